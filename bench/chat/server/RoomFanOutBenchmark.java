@@ -0,0 +1,181 @@
+package chat.server;
+
+import chat.server.runtime.ServerRuntime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the server-side fan-out cost of a single client message, sent
+ * through the server's own {@link ChatServer#sendGlobalClientMessage} and
+ * {@link ChatServer#sendRoomClientMessage} to real workers whose connections
+ * are counting streams that discard the bytes, so the benchmark measures the
+ * server's own work (iterating the recipients, rendering and flushing the
+ * frames) without the network.
+ * <br>
+ * Only the number of recipients varies: every client is a member of one room
+ * of each size, all of them on the same server, and every message is written
+ * to each recipient as a single frame, by either method. The writes reaching
+ * the connections are counted, to show that the frames cost the same per
+ * recipient on both paths.
+ * <br>
+ * The clients are also spread over the rooms of a single size, e.g. the
+ * 10 000 clients over 100 rooms of 100, and a message is sent to every one
+ * of them, each by one of its own members, so that every client receives one
+ * message, as from a single global message, but through the rooms.
+ * <br>
+ * Kept out of the server's sources, but in the server's package, as the
+ * workers are constructed the way the server constructs them, over streams of
+ * their own. Compiled against the server's classes:
+ * <pre>
+ * javac -d out $(find src bench -name '*.java')
+ * java -cp out chat.server.RoomFanOutBenchmark
+ * </pre>
+ */
+public class RoomFanOutBenchmark {
+
+    /** The number of simulated online clients. */
+    private static final int CLIENTS = 10_000;
+
+    /** The sizes of the rooms; every client is a member of one room of each size. */
+    private static final int[] ROOM_SIZES = {10, 100, 1000};
+
+    /** The number of messages sent in a single measured round. */
+    private static final int MESSAGES = 500;
+
+    /** The number of measured rounds, after the same number of warm-up rounds. */
+    private static final int ROUNDS = 3;
+
+    /**
+     * Benchmark starts from here.
+     *
+     * @param args none are used
+     * @throws IOException if the server's resource directory could not be created
+     */
+    public static void main(String[] args) throws IOException {
+        Path resources = Files.createTempDirectory("room-fan-out-");
+        Files.createFile(resources.resolve("command-list.txt"));
+
+        ChatServer server = new ChatServer(new ServerRuntime(ServerRuntime.DEFAULT_TIMER_THREADS),
+                "benchmark", resources, CLIENTS);
+
+        System.out.println(CLIENTS + " clients, rooms of " + Arrays.toString(ROOM_SIZES) + ", " + MESSAGES + " messages per round");
+
+        // Every join sends the roster delta to the clients joined before, as on a real server, so this takes a while.
+        List<ServerWorker> workers = new ArrayList<>(CLIENTS);
+        CountingOutputStream connections = new CountingOutputStream();
+        for(int i = 0; i < CLIENTS; i++) {
+            ServerWorker worker = new ServerWorker(server, InputStream.nullInputStream(), connections, () -> {}, "client" + i, false);
+            workers.add(worker);
+
+            for(int size : ROOM_SIZES) {
+                server.joinRoom(worker, roomName(size, i / size));
+            }
+        }
+
+        // Every room of index 0 has the first client as a member.
+        ServerWorker sender = workers.get(0);
+
+        System.out.printf("%-24s %12s %14s %14s %18s%n", "scenario", "recipients", "ns/message", "ns/recipient", "writes/recipient");
+
+        for(int round = -ROUNDS; round < ROUNDS; round++) {
+            boolean measured = round >= 0;
+
+            for(int size : ROOM_SIZES) {
+                String room = roomName(size, 0);
+                Measurement measurement = measure(connections, () -> {
+                    for(int m = 0; m < MESSAGES; m++) {
+                        server.sendRoomClientMessage(room, sender, "message number " + m);
+                    }
+                });
+                if(measured) measurement.print("1 room of " + size, size);
+            }
+
+            for(int size : ROOM_SIZES) {
+                int rooms = CLIENTS / size;
+                Measurement measurement = measure(connections, () -> {
+                    for(int m = 0; m < MESSAGES; m++) {
+                        // The first client of every room sends to it.
+                        for(int r = 0; r < rooms; r++) {
+                            server.sendRoomClientMessage(roomName(size, r), workers.get(r * size), "message number " + m);
+                        }
+                    }
+                });
+                if(measured) measurement.print(rooms + " rooms of " + size, CLIENTS);
+            }
+
+            Measurement global = measure(connections, () -> {
+                for(int m = 0; m < MESSAGES; m++) {
+                    server.sendGlobalClientMessage(sender.getClientUsername(), "message number " + m);
+                }
+            });
+            if(measured) {
+                global.print("global", CLIENTS);
+                System.out.println();
+            }
+        }
+
+        System.exit(0);
+    }
+
+    private static String roomName(int size, int index) {
+        return "room" + size + "-" + index;
+    }
+
+    private static Measurement measure(CountingOutputStream connections, Runnable runnable) {
+        long writes = connections.writes;
+        long start = System.nanoTime();
+        runnable.run();
+        return new Measurement(System.nanoTime() - start, connections.writes - writes);
+    }
+
+    //===========================================================
+    //                 Helper data structures
+    //===========================================================
+
+    /**
+     * The time a round took and the number of writes that reached the connections.
+     */
+    private static class Measurement {
+
+        private final long nanos;
+
+        private final long writes;
+
+        private Measurement(long nanos, long writes) {
+            this.nanos = nanos;
+            this.writes = writes;
+        }
+
+        private void print(String scenario, int recipients) {
+            long deliveries = (long) recipients * MESSAGES;
+            System.out.printf("%-24s %,12d %,14d %,14.1f %18.2f%n", scenario, recipients, nanos / MESSAGES,
+                    (double) nanos / deliveries, (double) writes / deliveries);
+        }
+    }
+
+    /**
+     * The connection of every simulated client: counts the writes reaching it
+     * and discards the bytes. Written only by the benchmark's thread.
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private long writes;
+
+        @Override
+        public void write(int b) {
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+        }
+    }
+}
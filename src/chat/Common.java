@@ -44,9 +44,18 @@ public class Common {
     /** The color of the text that displays the global client message. */
     public static final Color GLOBAL_CLIENT_MESSAGE_COLOR = Color.black;
 
+    /** The color of the text that displays a global client message not yet received by the server. */
+    public static final Color PENDING_CLIENT_MESSAGE_COLOR = Color.gray;
+
     /** The color of the text that displays the global server message. */
     public static final Color GLOBAL_SERVER_MESSAGE_COLOR = Color.red;
 
+    /** The color of the text that displays the room client message. */
+    public static final Color ROOM_CLIENT_MESSAGE_COLOR = new Color(0x0066CC);
+
+    /** The color of the text that displays the message published on a topic. */
+    public static final Color TOPIC_MESSAGE_COLOR = new Color(0x7A4FB5);
+
     /**
      * Appends the given message to the specified {@link JTextPane}.
      * @param textPane the text pane to be edited
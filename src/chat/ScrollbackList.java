@@ -0,0 +1,132 @@
+package chat;
+
+import javax.swing.*;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+
+/**
+ * Displays the lines of a {@link ScrollbackModel}. Only the visible rows are
+ * ever rendered, as all of the rows are of the same, fixed size and the list
+ * never needs to measure the others; a row longer than the list is cut off
+ * and shown whole in its tooltip.
+ * <br>
+ * While the list is scrolled to the bottom it follows the new lines, otherwise
+ * it stays where the user has scrolled to. The selected lines can be copied.
+ */
+public class ScrollbackList extends JList<String> {
+
+    /** The model of the list. */
+    private final ScrollbackModel model;
+
+    /** Whether the list was scrolled to the bottom before the lines of the current frame were evicted. */
+    private Boolean followingEvicted;
+
+    /**
+     * Constructs a new list of the given model's lines.
+     * @param model the lines
+     */
+    public ScrollbackList(ScrollbackModel model) {
+        super(model);
+        this.model = model;
+
+        setCellRenderer(new LineRenderer());
+        setFixedCellHeight(getFontMetrics(getFont()).getHeight() + 2);
+        // A fixed width keeps the list from measuring every row; it still fills the viewport.
+        setFixedCellWidth(1);
+        ToolTipManager.sharedInstance().registerComponent(this);
+
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                linesAdded();
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                linesEvicted(e.getIndex1() - e.getIndex0() + 1);
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) { }
+        });
+    }
+
+    /**
+     * Selects the closest line above the selected one that contains the given
+     * text, and scrolls to it.
+     * @param text the text searched for
+     * @return {@code false} if no line contains the text
+     */
+    public boolean findPrevious(String text) {
+        int selected = getSelectedIndex();
+        int index = model.findPrevious(text, selected < 0 ? model.getSize() : selected);
+        if(index < 0) return false;
+
+        setSelectedIndex(index);
+        ensureIndexIsVisible(index);
+        return true;
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent event) {
+        int index = locationToIndex(event.getPoint());
+        return index < 0 ? null : model.getElementAt(index);
+    }
+
+    /**
+     * Keeps the same lines in view while the user has scrolled up, as the
+     * oldest lines are evicted from above them.
+     */
+    private void linesEvicted(int count) {
+        JViewport viewport = getViewport();
+        if(viewport == null) return;
+
+        followingEvicted = isAtBottom(viewport);
+        if(!followingEvicted) {
+            Point position = viewport.getViewPosition();
+            viewport.setViewPosition(new Point(position.x, Math.max(0, position.y - count * getFixedCellHeight())));
+        }
+    }
+
+    /**
+     * Scrolls to the new lines if the list was scrolled to the bottom before they were added.
+     */
+    private void linesAdded() {
+        JViewport viewport = getViewport();
+        if(viewport == null) return;
+
+        boolean following = followingEvicted != null ? followingEvicted : isAtBottom(viewport);
+        followingEvicted = null;
+        if(following) {
+            // Once the list has grown with the new lines.
+            SwingUtilities.invokeLater(() -> ensureIndexIsVisible(model.getSize() - 1));
+        }
+    }
+
+    /**
+     * Checked against the list's height before the lines of the current frame changed it.
+     */
+    private boolean isAtBottom(JViewport viewport) {
+        Rectangle view = viewport.getViewRect();
+        return view.y + view.height >= getHeight() - getFixedCellHeight();
+    }
+
+    private JViewport getViewport() {
+        return (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+    }
+
+    /**
+     * Renders a single line in its color.
+     */
+    private class LineRenderer extends DefaultListCellRenderer {
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focused) {
+            super.getListCellRendererComponent(list, value, index, selected, focused);
+            if(!selected) setForeground(model.getColorAt(index));
+            return this;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package chat;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lines of a console, kept in a ring of a fixed capacity: once full,
+ * every new line evicts the oldest one, so the memory used stays the same
+ * however long the console runs.
+ * <br>
+ * The lines may be appended from any thread. They are queued and added to
+ * the ring on the event dispatch thread at most once per frame, with a single
+ * pair of list events per frame, so that a busy console is laid out and
+ * repainted once per frame rather than once per line.
+ * <br>
+ * A line appended with {@link #appendLine(String, Color)} can later be
+ * replaced, such as a sent message once the server has received it.
+ * <br>
+ * The console can be paused, holding the new lines until it is resumed, and
+ * filtered, showing only the lines that contain a given text. The lines held
+ * are bounded by the capacity as well: the ones that would be evicted right
+ * away are dropped while still queued.
+ */
+public class ScrollbackModel extends AbstractListModel<String> {
+
+    /** The default time between two renders, in milliseconds. */
+    public static final int DEFAULT_FRAME_MILLIS = 33;
+
+    /** The maximum number of lines kept. */
+    private final int capacity;
+
+    /** The text of the lines, as a ring starting at {@link #head}. */
+    private final String[] texts;
+
+    /** The index of every line's color in the {@link #palette}. */
+    private final byte[] colors;
+
+    /** The colors of the lines; few, so every line stores only its color's index. */
+    private final List<Color> palette = new ArrayList<>();
+
+    /** The position of the oldest line in the ring. */
+    private int head;
+
+    /** The number of lines kept. */
+    private int size;
+
+    /** The number of lines ever added; the sequence number of the next line. */
+    private long appended;
+
+    /** The lines not yet added to the ring. */
+    private final ConcurrentLinkedQueue<PendingMessage> pending = new ConcurrentLinkedQueue<>();
+
+    /** The number of the {@link #pending} messages that are appended rather than replacing a line. */
+    private final AtomicInteger pendingAppends = new AtomicInteger();
+
+    /** {@code true} while the console is paused, and the lines are only queued. */
+    private boolean paused;
+
+    /** The lower-case text the shown lines contain; {@code null} if all of the lines are shown. */
+    private String filter;
+
+    /** The sequence numbers of the lines shown through the {@link #filter}, as a ring starting at {@link #matchHead}. */
+    private long[] matches;
+
+    /** The position of the oldest line shown through the filter. */
+    private int matchHead;
+
+    /** The number of the lines shown through the filter. */
+    private int matchCount;
+
+    /** {@code true} while a render is scheduled. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** Adds the pending lines at the end of the frame. */
+    private final Timer frameTimer;
+
+    /**
+     * Constructs a new, empty model.
+     * @param capacity the maximum number of lines kept
+     * @param frameMillis the time between two renders, in milliseconds
+     */
+    public ScrollbackModel(int capacity, int frameMillis) {
+        if(capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+
+        this.capacity = capacity;
+        this.texts = new String[capacity];
+        this.colors = new byte[capacity];
+
+        frameTimer = new Timer(frameMillis, e -> render());
+        frameTimer.setRepeats(false);
+    }
+
+    //===========================================================
+    //                        Appending
+    //===========================================================
+
+    /**
+     * Queues the given message to be appended. May be called from any thread.
+     * A message of several lines is appended as several lines.
+     * @param message the message to be displayed; the line break at its end is optional
+     * @param color the color of the message
+     */
+    public void append(String message, Color color) {
+        queue(new PendingMessage(message, color, null, false));
+    }
+
+    /**
+     * Queues the given line to be appended, like {@link #append(String, Color)}.
+     * @param line the line to be displayed
+     * @param color the color of the line
+     * @return the handle replacing the line later on
+     */
+    public Line appendLine(String line, Color color) {
+        Line handle = new Line();
+        queue(new PendingMessage(line, color, handle, false));
+        return handle;
+    }
+
+    /**
+     * Queues the given line to replace a line appended before, if the line is
+     * still kept. May be called from any thread.
+     * @param line the handle of the line, as returned by {@link #appendLine(String, Color)}
+     * @param text the new text of the line
+     * @param color the new color of the line
+     */
+    public void replace(Line line, String text, Color color) {
+        queue(new PendingMessage(text, color, line, true));
+    }
+
+    private void queue(PendingMessage message) {
+        pending.add(message);
+
+        // Of more messages than the capacity, the oldest would only be evicted once added.
+        if(!message.replaces && pendingAppends.incrementAndGet() > capacity) {
+            PendingMessage dropped = pending.poll();
+            if(dropped != null && !dropped.replaces) pendingAppends.decrementAndGet();
+        }
+
+        if(scheduled.compareAndSet(false, true)) {
+            // Started on the event dispatch thread, so never while the timer is still firing.
+            SwingUtilities.invokeLater(frameTimer::start);
+        }
+    }
+
+    private void render() {
+        scheduled.set(false);
+        if(paused) return;
+
+        int oldSize = getSize();
+        int added = 0;
+        List<PendingMessage> replacements = new ArrayList<>();
+
+        PendingMessage message;
+        while ((message = pending.poll()) != null) {
+            if(message.replaces) {
+                replacements.add(message);
+                continue;
+            }
+            pendingAppends.decrementAndGet();
+            byte color = colorIndex(message.color);
+            if(message.line != null) message.line.sequence = appended;
+
+            for(String line : message.text.split("\r?\n")) {
+                if(size == capacity) {
+                    if(filter != null && matchCount > 0 && matches[matchHead] == appended - size) {
+                        matchHead = (matchHead + 1) % capacity;
+                        matchCount--;
+                    }
+                    texts[head] = null;
+                    head = (head + 1) % capacity;
+                    size--;
+                }
+
+                int position = (head + size) % capacity;
+                texts[position] = line;
+                colors[position] = color;
+                size++;
+                appended++;
+
+                if(filter == null) {
+                    added++;
+                } else if(line.toLowerCase().contains(filter)) {
+                    addMatch(appended - 1);
+                    added++;
+                }
+            }
+        }
+
+        // Of a batch larger than the capacity, only the newest lines were ever kept.
+        int newSize = getSize();
+        int kept = Math.min(added, newSize);
+        int evicted = oldSize - (newSize - kept);
+        if(evicted > 0) fireIntervalRemoved(this, 0, evicted - 1);
+        if(kept > 0) fireIntervalAdded(this, newSize - kept, newSize - 1);
+
+        // Replaced last, as the lines replaced may have been added in this very frame.
+        boolean replaced = false;
+        for(PendingMessage replacement : replacements) {
+            long index = replacement.line.sequence - (appended - size);
+            if(replacement.line.sequence < 0 || index < 0) continue;
+
+            int position = (int) ((head + index) % capacity);
+            texts[position] = replacement.text;
+            colors[position] = colorIndex(replacement.color);
+            if(filter == null) fireContentsChanged(this, (int) index, (int) index);
+            replaced = true;
+        }
+        // A replaced line may now be shown through the filter, or no longer be.
+        if(replaced && filter != null) refilter(getSize());
+    }
+
+    private byte colorIndex(Color color) {
+        int index = palette.indexOf(color);
+        if(index < 0) {
+            if(palette.size() == Byte.MAX_VALUE) return 0;
+            palette.add(color);
+            index = palette.size() - 1;
+        }
+        return (byte) index;
+    }
+
+    //===========================================================
+    //                    Pausing and filtering
+    //===========================================================
+
+    /**
+     * Pauses or resumes the console. While paused, the lines shown stay the
+     * same, and the new lines are held until the console is resumed.
+     * Called on the event dispatch thread.
+     * @param paused whether the console is paused
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if(!paused && !pending.isEmpty()) frameTimer.restart();
+    }
+
+    /**
+     * @return {@code true} while the console is paused
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Shows only the lines that contain the given text, ignoring the case.
+     * Called on the event dispatch thread.
+     * @param text the text the lines shown contain; empty or {@code null} to show all of the lines
+     */
+    public void setFilter(String text) {
+        String filter = text == null || text.isEmpty() ? null : text.toLowerCase();
+        if(filter == null ? this.filter == null : filter.equals(this.filter)) return;
+
+        int oldSize = getSize();
+        this.filter = filter;
+        refilter(oldSize);
+    }
+
+    /**
+     * Finds the lines shown through the filter anew, replacing all of the rows.
+     * @param oldSize the number of the rows shown before
+     */
+    private void refilter(int oldSize) {
+        matchHead = 0;
+        matchCount = 0;
+
+        if(filter != null) {
+            if(matches == null) matches = new long[capacity];
+            for(int i = 0; i < size; i++) {
+                if(texts[(head + i) % capacity].toLowerCase().contains(filter)) addMatch(appended - size + i);
+            }
+        }
+
+        if(oldSize > 0) fireIntervalRemoved(this, 0, oldSize - 1);
+        if(getSize() > 0) fireIntervalAdded(this, 0, getSize() - 1);
+    }
+
+    private void addMatch(long sequence) {
+        // Never full, as every match is a line kept, and the evicted ones are dropped as they are evicted.
+        matches[(matchHead + matchCount) % capacity] = sequence;
+        matchCount++;
+    }
+
+    //===========================================================
+    //                     Reading and search
+    //===========================================================
+
+    @Override
+    public int getSize() {
+        return filter == null ? size : matchCount;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return texts[position(index)];
+    }
+
+    /**
+     * @param index the index of the line
+     * @return the color of the line
+     */
+    public Color getColorAt(int index) {
+        return palette.get(colors[position(index)]);
+    }
+
+    /**
+     * @return the position in the ring of the line shown at the given index
+     */
+    private int position(int index) {
+        if(filter == null) return (head + index) % capacity;
+
+        long sequence = matches[(matchHead + index) % capacity];
+        return (int) ((head + (sequence - (appended - size))) % capacity);
+    }
+
+    /**
+     * @return the maximum number of lines kept
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Finds the closest line before the given index that contains the given
+     * text, ignoring the case, wrapping around to the newest line.
+     * @param text the text searched for
+     * @param before the index the search starts before; {@link #getSize()} to start from the newest line
+     * @return the index of the line found; {@code -1} if no line contains the text
+     */
+    public int findPrevious(String text, int before) {
+        int size = getSize();
+        if(text.isEmpty() || size == 0) return -1;
+        String query = text.toLowerCase();
+
+        for(int i = 1; i <= size; i++) {
+            int index = Math.floorMod(before - i, size);
+            if(getElementAt(index).toLowerCase().contains(query)) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * A line appended with {@link #appendLine(String, Color)}, which can be replaced.
+     */
+    public static class Line {
+
+        /** The sequence number of the line; {@code -1} until the line was added to the ring. */
+        private long sequence = -1;
+
+        private Line() { }
+    }
+
+    /**
+     * A message not yet added to the ring, or a line replacing one in the ring.
+     */
+    private static class PendingMessage {
+
+        private final String text;
+
+        private final Color color;
+
+        /** The handle of the line; {@code null} if the message cannot be replaced. */
+        private final Line line;
+
+        /** Whether the message replaces the {@link #line} rather than being appended. */
+        private final boolean replaces;
+
+        private PendingMessage(String text, Color color, Line line, boolean replaces) {
+            this.text = text;
+            this.color = color;
+            this.line = line;
+            this.replaces = replaces;
+        }
+    }
+}
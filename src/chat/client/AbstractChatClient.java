@@ -1,9 +1,13 @@
 package chat.client;
 
 import chat.client.listener.ClientListener;
+import chat.server.Server;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Abstract implementation of the chat-client that implements:
@@ -11,6 +15,9 @@ import java.util.List;
  *     <li>Listener addition and removal.</li>
  *     <li>Listener notifying.</li>
  *     <li>Private and global, client and server message receiving.</li>
+ *     <li>Room client message receiving.</li>
+ *     <li>Topic message receiving.</li>
+ *     <li>Keeping the versioned roster of online clients in sync.</li>
  * </ul>
  */
 abstract class AbstractChatClient implements Client {
@@ -18,17 +25,39 @@ abstract class AbstractChatClient implements Client {
     /** A collection of listeners of this client. */
     private List<ClientListener> listeners = new ArrayList<>();
 
+    /**
+     * Events received before the first listener was added. The client starts
+     * receiving right after logging in, which is before the view gets to add
+     * itself as a listener, so the early events (such as the recent history)
+     * are held here until then.
+     */
+    private List<Consumer<ClientListener>> pendingEvents = new ArrayList<>();
+
+    /** The usernames of the online clients, as of the {@link #rosterVersion}. */
+    private final Set<String> roster = new LinkedHashSet<>();
+
+    /**
+     * The version of the {@link #roster}; {@code -1} until the first snapshot
+     * is received, and while a new snapshot is being awaited after a gap.
+     */
+    private long rosterVersion = -1;
+
     //===========================================================
     //              Adding and removing listeners
     //===========================================================
 
-    public void addClientListener(ClientListener listener) {
+    public synchronized void addClientListener(ClientListener listener) {
         if(!listeners.contains(listener)) {
             listeners.add(listener);
         }
+
+        if(pendingEvents != null) {
+            pendingEvents.forEach(event -> dispatch(event, List.of(listener)));
+            pendingEvents = null;
+        }
     }
 
-    void removeClientListener(ClientListener listener) {
+    synchronized void removeClientListener(ClientListener listener) {
         listeners.remove(listener);
     }
 
@@ -36,6 +65,95 @@ abstract class AbstractChatClient implements Client {
     //                  Receiving messages
     //===========================================================
 
+    /**
+     * Passes the given frame received from the server to the listeners.
+     * @param flag the flag of the frame
+     * @param lines the lines of the frame, without the number of lines of a batch
+     * @return {@code false} if the frame has ended the connection
+     */
+    boolean receiveFrame(int flag, List<String> lines) {
+        switch (flag) {
+            case Server.INCOMING_PRIVATE_CLIENT_MESSAGE:
+            case Server.INCOMING_PRIVATE_CLIENT_MESSAGE_BATCH:
+                for(int i = 0; i + 2 < lines.size(); i += 3) {
+                    receivePrivateClientMessage(lines.get(i), lines.get(i + 1), lines.get(i + 2));
+                }
+                break;
+
+            case Server.INCOMING_PRIVATE_SERVER_MESSAGE:
+            case Server.INCOMING_PRIVATE_SERVER_MESSAGE_BATCH:
+                lines.forEach(this::receivePrivateServerMessage);
+                break;
+
+            case Server.INCOMING_GLOBAL_CLIENT_MESSAGE:
+            case Server.INCOMING_GLOBAL_CLIENT_MESSAGE_BATCH:
+                for(int i = 0; i + 1 < lines.size(); i += 2) {
+                    receiveGlobalClientMessage(lines.get(i), lines.get(i + 1));
+                }
+                break;
+
+            case Server.INCOMING_SEQUENCED_GLOBAL_CLIENT_MESSAGE:
+                receiveSequencedGlobalClientMessage(Long.parseLong(lines.get(0)), Long.parseLong(lines.get(1)), lines.get(2), lines.get(3));
+                break;
+
+            case Server.INCOMING_HISTORY_BATCH:
+                receiveHistory(lines);
+                break;
+
+            case Server.INCOMING_ROOM_CLIENT_MESSAGE:
+                receiveRoomClientMessage(lines.get(0), lines.get(1), lines.get(2));
+                break;
+
+            case Server.INCOMING_TOPIC_MESSAGE:
+                receiveTopicMessage(lines.get(0), lines.get(1));
+                break;
+
+            case Server.INCOMING_PRESENCE_BATCH:
+                for(int i = 0; i + 1 < lines.size(); i += 2) {
+                    receivePresence(lines.get(i), lines.get(i + 1));
+                }
+                break;
+
+            case Server.ROSTER_SNAPSHOT:
+                receiveRosterSnapshot(Long.parseLong(lines.get(0)), lines.subList(1, lines.size()));
+                break;
+
+            case Server.ROSTER_DELTA:
+            case Server.ROSTER_DELTA_BATCH:
+                receiveRosterDelta(Long.parseLong(lines.get(0)), lines.subList(1, lines.size()));
+                break;
+
+            case Server.INCOMING_GLOBAL_SERVER_MESSAGE:
+            case Server.INCOMING_GLOBAL_SERVER_MESSAGE_BATCH:
+            case Server.INCOMING_DISCONNECT_MESSAGE:
+            case Server.INCOMING_KICK_MESSAGE:
+            case Server.INCOMING_BAN_MESSAGE:
+            case Server.INCOMING_DELETE_MESSAGE:
+                lines.forEach(this::receiveGlobalServerMessage);
+                break;
+
+            case Server.RESUME_TOKEN:
+                receiveResumeToken(lines.get(0));
+                break;
+
+            case Server.KICKED:
+                receiveKick(lines.get(0));
+                return false;
+
+            case Server.BANNED:
+                receiveBan(lines.get(0));
+                return false;
+
+            case Server.DELETED:
+                receiveDelete(lines.get(0));
+                return false;
+
+            default:
+                System.err.println("Unknown flag with value " + flag + ", ignoring it.");
+        }
+        return true;
+    }
+
     void receivePrivateClientMessage(String sender, String receiver, String message) {
         notifyPrivateClientMessageReceived(sender, receiver, message);
     }
@@ -48,47 +166,230 @@ abstract class AbstractChatClient implements Client {
         notifyGlobalClientMessageReceived(sender, message);
     }
 
+    /**
+     * Called with a global client message sent with its sequence number, once the
+     * client synchronizes its history.
+     * @param sequence the sequence number of the message; {@code -1} if it was not logged
+     * @param timestamp the time the message was sent
+     */
+    void receiveSequencedGlobalClientMessage(long sequence, long timestamp, String sender, String message) {
+        receiveGlobalClientMessage(sender, message);
+    }
+
+    /**
+     * Called with the global client messages the client has not seen yet, sent once
+     * it synchronizes its history.
+     * @param lines the sequence number, the time, the sender and the message of every message, in turn
+     */
+    void receiveHistory(List<String> lines) {
+        for(int i = 0; i + 3 < lines.size(); i += 4) {
+            receiveGlobalClientMessage(lines.get(i + 2), lines.get(i + 3));
+        }
+    }
+
     void receiveGlobalServerMessage(String message) {
         notifyGlobalServerMessageReceived(message);
     }
 
+    void receiveRoomClientMessage(String room, String sender, String message) {
+        notifyRoomClientMessageReceived(room, sender, message);
+    }
+
+    void receiveTopicMessage(String topic, String message) {
+        notifyTopicMessageReceived(topic, message);
+    }
+
+    void receivePresence(String username, String state) {
+        notifyPresenceChanged(username, state);
+    }
+
+    /**
+     * Keeps the token resuming the session once its connection drops. The
+     * clients that do not resume their sessions ignore it.
+     * @param token the resume token
+     */
+    void receiveResumeToken(String token) { }
+
+    /**
+     * Closes the connection and notifies the listeners that the client was kicked.
+     * @param kicker the username of the client that kicked this client
+     */
+    abstract void receiveKick(String kicker);
+
+    /**
+     * Closes the connection and notifies the listeners that the client was banned.
+     * @param banner the username of the client that banned this client
+     */
+    abstract void receiveBan(String banner);
+
+    /**
+     * Closes the connection and notifies the listeners that the client was deleted.
+     * @param deleter the username of the client that deleted this client
+     */
+    abstract void receiveDelete(String deleter);
+
+    //===========================================================
+    //                        Roster
+    //===========================================================
+
+    /**
+     * Replaces the roster with the received snapshot.
+     * @param version the version of the snapshot
+     * @param usernames the usernames of the online clients
+     */
+    void receiveRosterSnapshot(long version, List<String> usernames) {
+        synchronized (roster) {
+            roster.clear();
+            roster.addAll(usernames);
+            rosterVersion = version;
+        }
+
+        notifyRosterReceived(List.copyOf(usernames));
+    }
+
+    /**
+     * Applies the received roster changes. Changes older than the current roster are
+     * ignored, and if a gap in the versions is detected, a new snapshot is requested.
+     * A change the roster already has, such as one the snapshot was taken after, is
+     * not passed on to the listeners.
+     * @param version the roster version after the changes
+     * @param changes the changes, each {@link Server#ROSTER_ADDED} or {@link Server#ROSTER_REMOVED}
+     *                followed by the username of the added or removed client
+     */
+    void receiveRosterDelta(long version, List<String> changes) {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+
+        synchronized (roster) {
+            if(rosterVersion < 0 || version <= rosterVersion) return;
+
+            if(version != rosterVersion + 1) {
+                rosterVersion = -1;
+                requestRoster();
+                return;
+            }
+
+            rosterVersion = version;
+            for(String change : changes) {
+                String username = change.substring(1);
+                if(change.charAt(0) == Server.ROSTER_ADDED) {
+                    if(roster.add(username)) added.add(username);
+                } else {
+                    if(roster.remove(username)) removed.add(username);
+                }
+            }
+        }
+
+        added.forEach(this::notifyRosterClientAdded);
+        removed.forEach(this::notifyRosterClientRemoved);
+    }
+
+    /**
+     * Requests the full roster snapshot from the server.
+     */
+    abstract void requestRoster();
+
+    /**
+     * @return the usernames of the online clients, in the order they joined
+     */
+    public List<String> getOnlineClients() {
+        synchronized (roster) {
+            return new ArrayList<>(roster);
+        }
+    }
+
     //===========================================================
     //                  Notifying listeners
     //===========================================================
 
     private void notifyPrivateClientMessageReceived(String sender, String receiver, String message) {
-        listeners.forEach(l -> l.privateClientMessageReceived(sender, receiver, message));
+        notifyListeners(l -> l.privateClientMessageReceived(sender, receiver, message));
     }
 
     void notifyPrivateServerMessageReceived(String message) {
-        listeners.forEach(l -> l.privateServerMessageReceived(message));
+        notifyListeners(l -> l.privateServerMessageReceived(message));
     }
 
     private void notifyGlobalClientMessageReceived(String sender, String message) {
-        listeners.forEach(l -> l.globalClientMessageReceived(sender, message));
+        notifyListeners(l -> l.globalClientMessageReceived(sender, message));
+    }
+
+    void notifyGlobalClientMessagePending(long id, String message) {
+        notifyListeners(l -> l.globalClientMessagePending(id, message));
+    }
+
+    void notifyGlobalClientMessageConfirmed(long id, String message) {
+        notifyListeners(l -> l.globalClientMessageConfirmed(id, message));
     }
 
     private void notifyGlobalServerMessageReceived(String message) {
-        listeners.forEach(l -> l.globalServerMessageReceived(message));
+        notifyListeners(l -> l.globalServerMessageReceived(message));
+    }
+
+    private void notifyRoomClientMessageReceived(String room, String sender, String message) {
+        notifyListeners(l -> l.roomClientMessageReceived(room, sender, message));
+    }
+
+    private void notifyTopicMessageReceived(String topic, String message) {
+        notifyListeners(l -> l.topicMessageReceived(topic, message));
+    }
+
+    private void notifyPresenceChanged(String username, String state) {
+        notifyListeners(l -> l.presenceChanged(username, state));
+    }
+
+    private void notifyRosterReceived(List<String> usernames) {
+        notifyListeners(l -> l.rosterReceived(usernames));
+    }
+
+    private void notifyRosterClientAdded(String username) {
+        notifyListeners(l -> l.rosterClientAdded(username));
+    }
+
+    private void notifyRosterClientRemoved(String username) {
+        notifyListeners(l -> l.rosterClientRemoved(username));
     }
 
     void notifyOnServerConnect() {
-        listeners.forEach(ClientListener::onServerConnect);
+        notifyListeners(ClientListener::onServerConnect);
     }
 
     void notifyOnServerDisconnect() {
-        listeners.forEach(ClientListener::onServerDisconnect);
+        notifyListeners(ClientListener::onServerDisconnect);
     }
 
     void notifyOnServerKick(String kicker) {
-        listeners.forEach(l -> l.onServerKick(kicker));
+        notifyListeners(l -> l.onServerKick(kicker));
     }
 
     void notifyOnServerBan(String banner) {
-        listeners.forEach(l -> l.onServerBan(banner));
+        notifyListeners(l -> l.onServerBan(banner));
     }
 
     void notifyOnServerDelete(String deleter) {
-        listeners.forEach(l -> l.onServerDelete(deleter));
+        notifyListeners(l -> l.onServerDelete(deleter));
+    }
+
+    /**
+     * Passes the given event to every listener, or holds it until the first
+     * listener is added, if there are none yet.
+     * @param event the event to be passed
+     */
+    private synchronized void notifyListeners(Consumer<ClientListener> event) {
+        if(pendingEvents != null) {
+            pendingEvents.add(event);
+        } else {
+            dispatch(event, listeners);
+        }
+    }
+
+    /**
+     * Passes the given event to the given listeners, right away on the calling
+     * thread. Called with the lock of this client held, in the order of the events.
+     * @param event the event to be passed
+     * @param listeners the listeners
+     */
+    void dispatch(Consumer<ClientListener> event, List<ClientListener> listeners) {
+        listeners.forEach(event);
     }
 }
\ No newline at end of file
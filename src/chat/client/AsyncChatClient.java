@@ -0,0 +1,652 @@
+package chat.client;
+
+import chat.client.listener.ClientListener;
+import chat.server.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A chat-client without the graphical user interface, for the bots and the
+ * services that run many sessions in a single process. Its connection is
+ * served by a {@link ClientEventLoop} shared with the other clients, so it
+ * needs no thread of its own, and none of its operations block: the login,
+ * the registration and every sent message complete a future instead.
+ * <br>
+ * The messages are written by the loop as fast as the connection takes them;
+ * the ones not yet written are held in the client's outbox, which is bounded.
+ * A message that does not fit is refused, rather than the sender blocked, so
+ * the senders should wait for the futures of their earlier messages, or check
+ * {@link #isWritable()}, before sending more.
+ * <br>
+ * The listeners are notified on the given executor, one event at a time and
+ * in the order the events were received.
+ * <br>
+ * The server's address is resolved off the caller's thread, and a login or
+ * a registration the server has not answered within the handshake timeout
+ * fails, as if the connection had failed.
+ */
+public class AsyncChatClient extends AbstractChatClient implements ClientEventLoop.Connection {
+
+    /** The default maximum number of bytes held in the outbox. */
+    public static final int DEFAULT_OUTBOX_CAPACITY = 256 * 1024;
+
+    /** The default time the server has to answer a login or a registration, in milliseconds. */
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    /** The maximum number of messages written with a single write. */
+    private static final int MAX_WRITE_BATCH = 64;
+
+    /** The stages of a connection. */
+    private enum Stage {
+        CONNECTING, AWAITING_LOGIN_STATUS, AWAITING_REGISTRATION_STATUS, OPEN, CLOSED
+    }
+
+    //===========================================================
+    //                         Fields
+    //===========================================================
+
+    /** The client's username. */
+    private final String username;
+
+    /** The client's password. */
+    private final String password;
+
+    /** The loop serving the connection. */
+    private final ClientEventLoop loop;
+
+    /** Notifies the listeners, one event at a time. */
+    private final SerialExecutor listenerExecutor;
+
+    /** The maximum number of bytes held in the outbox. */
+    private final int outboxCapacity;
+
+    /** The time the server has to answer a login or a registration, in milliseconds. */
+    private volatile long handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+
+    /** The charset of the lines; the server reads with its default charset, as does the client write. */
+    private final Charset charset = Charset.defaultCharset();
+
+    /** Decodes the frames of the open connection. */
+    private FrameDecoder decoder;
+
+    /** The connection to the server; {@code null} before the first login or registration. */
+    private SocketChannel channel;
+
+    /** The key of the connection within the loop's selector. */
+    private SelectionKey key;
+
+    /** The stage of the connection; changed only on the loop's thread, apart from the start of a connection. */
+    private volatile Stage stage = Stage.CLOSED;
+
+    /** Completed with the status of the login or the registration in progress. */
+    private CompletableFuture<Integer> handshake;
+
+    /** The status the handshake in progress completes with if the connection fails. */
+    private int handshakeFailure;
+
+    /** The messages not yet written, from the oldest. */
+    private final ArrayDeque<PendingWrite> outbox = new ArrayDeque<>();
+
+    /** The number of bytes held in the outbox. */
+    private int outboxBytes;
+
+    /** {@code true} while a flush of the outbox is scheduled on the loop. */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Creates a new client, whose listeners are notified on the loop's thread;
+     * the listeners must then never block.
+     *
+     * @param username the username of the client; cannot be null
+     * @param password the password of the client; cannot be null
+     * @param loop the loop serving the client's connection
+     */
+    public AsyncChatClient(String username, String password, ClientEventLoop loop) {
+        this(username, password, loop, Runnable::run, DEFAULT_OUTBOX_CAPACITY);
+    }
+
+    /**
+     * Creates a new client.
+     *
+     * @param username the username of the client; cannot be null
+     * @param password the password of the client; cannot be null
+     * @param loop the loop serving the client's connection
+     * @param listenerExecutor the executor the listeners are notified on
+     * @param outboxCapacity the maximum number of bytes held in the outbox
+     */
+    public AsyncChatClient(String username, String password, ClientEventLoop loop, Executor listenerExecutor,
+                           int outboxCapacity) {
+        this.username = Objects.requireNonNull(username, "Username cannot be null.");
+        this.password = Objects.requireNonNull(password, "Password cannot be null.");
+        this.loop = Objects.requireNonNull(loop, "Loop cannot be null.");
+        this.listenerExecutor = new SerialExecutor(Objects.requireNonNull(listenerExecutor, "Executor cannot be null."));
+        this.outboxCapacity = outboxCapacity;
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Logs in to the server at the given address, in a single round trip, so
+     * the server must support the {@link #DIRECT_LOGIN_REQUEST}.
+     * @param address the server's address
+     * @param port the server's port
+     * @return completed with {@link Server#LOGIN_ACCEPTED}, or the flag of the reason the login was denied for;
+     *         with {@link Server#LOGIN_DENIED_IO_ERROR} if the server did not answer within the handshake timeout
+     */
+    public CompletableFuture<Integer> loginAsync(String address, int port) {
+        return connect(address, port, Stage.AWAITING_LOGIN_STATUS, Server.LOGIN_DENIED_IO_ERROR);
+    }
+
+    /**
+     * Registers the client with the server at the given address.
+     * @param address the server's address
+     * @param port the server's port
+     * @return completed with the registration flag of the outcome; with
+     *         {@link Server#REGISTRATION_FAILED_IO_ERROR} if the server did not
+     *         answer within the handshake timeout
+     */
+    public CompletableFuture<Integer> registerAsync(String address, int port) {
+        return connect(address, port, Stage.AWAITING_REGISTRATION_STATUS, Server.REGISTRATION_FAILED_IO_ERROR);
+    }
+
+    /**
+     * Queues the given message to be sent to the server.
+     * @param message the message to be sent
+     * @return completed once the message was written to the connection; completed
+     *         exceptionally with an {@link IOException} if the client is not logged in,
+     *         the outbox is full, or the connection was closed before it was written
+     */
+    public CompletableFuture<Void> sendAsync(String message) {
+        byte[] bytes = (message + "\n").getBytes(charset);
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        synchronized (outbox) {
+            if(stage != Stage.OPEN) {
+                sent.completeExceptionally(new IOException("Not logged in."));
+                return sent;
+            }
+            if(outboxBytes + bytes.length > outboxCapacity) {
+                sent.completeExceptionally(new IOException("Outbox full."));
+                return sent;
+            }
+
+            outbox.add(new PendingWrite(ByteBuffer.wrap(bytes), sent));
+            outboxBytes += bytes.length;
+        }
+
+        scheduleFlush();
+        return sent;
+    }
+
+    /**
+     * @return {@code true} if the outbox has room for more messages
+     */
+    public boolean isWritable() {
+        synchronized (outbox) {
+            return outboxBytes < outboxCapacity;
+        }
+    }
+
+    /**
+     * @return the number of bytes held in the outbox, not yet written to the connection
+     */
+    public int getOutboxBytes() {
+        synchronized (outbox) {
+            return outboxBytes;
+        }
+    }
+
+    /**
+     * Sets the time the server has to answer the logins and the registrations
+     * started from now on.
+     * @param timeoutMillis the timeout, in milliseconds
+     */
+    public void setHandshakeTimeout(long timeoutMillis) {
+        handshakeTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Blocks until the login completes; must not be called on the loop's thread.
+     */
+    @Override
+    public int login(String address, int port) {
+        return loginAsync(address, port).join();
+    }
+
+    /**
+     * Blocks until the registration completes; must not be called on the loop's thread.
+     */
+    @Override
+    public int register(String address, int port) {
+        return registerAsync(address, port).join();
+    }
+
+    @Override
+    public void disconnect() {
+        if(closeConnection()) notifyOnServerDisconnect();
+    }
+
+    //===========================================================
+    //                       Connecting
+    //===========================================================
+
+    private synchronized CompletableFuture<Integer> connect(String address, int port, Stage handshakeStage, int ioError) {
+        if(stage != Stage.CLOSED) {
+            return CompletableFuture.completedFuture(ioError);
+        }
+
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        handshake = result;
+        handshakeFailure = ioError;
+        stage = Stage.CONNECTING;
+
+        try {
+            // The lookup may block, so it blocks neither the caller nor the loop.
+            loop.resolve(address, port, server -> open(result, server, handshakeStage));
+        } catch (RejectedExecutionException e) {
+            handshake = null;
+            stage = Stage.CLOSED;
+            return CompletableFuture.completedFuture(ioError);
+        }
+
+        CompletableFuture.delayedExecutor(handshakeTimeoutMillis, TimeUnit.MILLISECONDS, loop::execute)
+                .execute(() -> {
+                    if(isHandshake(result)) finishHandshake(ioError);
+                });
+        return result;
+    }
+
+    /**
+     * Opens the connection to the resolved address of the server, unless the
+     * handshake has timed out in the meantime; on the loop's thread.
+     */
+    private void open(CompletableFuture<Integer> result, InetSocketAddress server, Stage handshakeStage) {
+        if(!isHandshake(result)) return;
+
+        try {
+            if(server.isUnresolved()) throw new UnknownHostException(server.getHostString());
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            if(channel.connect(server)) connected(handshakeStage);
+            else key.attach(new Connector(handshakeStage));
+
+        } catch (IOException e) {
+            finishHandshake(handshakeFailure);
+        }
+    }
+
+    /**
+     * @return {@code true} if the given handshake is still in progress
+     */
+    private synchronized boolean isHandshake(CompletableFuture<Integer> result) {
+        return handshake == result;
+    }
+
+    /**
+     * Sends the first bytes of the handshake, once connected.
+     */
+    private void connected(Stage handshakeStage) {
+        key.attach(this);
+        key.interestOps(SelectionKey.OP_READ);
+        stage = handshakeStage;
+
+        // The login is sent in a single round trip.
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        if(handshakeStage == Stage.AWAITING_LOGIN_STATUS) {
+            request.write(DIRECT_LOGIN_REQUEST);
+            request.writeBytes((PROTOCOL_VERSION + "\n").getBytes(charset));
+        } else {
+            request.write(REGISTRATION_REQUEST);
+        }
+        request.writeBytes(credentials());
+        writeRaw(request.toByteArray());
+    }
+
+    private byte[] credentials() {
+        return (username + "\n" + password + "\n").getBytes(charset);
+    }
+
+    /**
+     * Completes the handshake in progress with the given status, closing the
+     * connection unless the login was accepted.
+     */
+    private void finishHandshake(int status) {
+        CompletableFuture<Integer> result;
+        synchronized (this) {
+            result = handshake;
+            handshake = null;
+        }
+
+        if(status == Server.LOGIN_ACCEPTED && stage == Stage.AWAITING_LOGIN_STATUS) {
+            decoder = new FrameDecoder();
+            stage = Stage.OPEN;
+            notifyOnServerConnect();
+        } else {
+            closeConnection();
+        }
+
+        if(result != null) result.complete(status);
+    }
+
+    /**
+     * Finishes the connecting, then hands the key over to the client.
+     */
+    private class Connector implements ClientEventLoop.Connection {
+
+        private final Stage handshakeStage;
+
+        private Connector(Stage handshakeStage) {
+            this.handshakeStage = handshakeStage;
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            try {
+                if(channel.finishConnect()) connected(handshakeStage);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        @Override
+        public void abort() {
+            AsyncChatClient.this.abort();
+        }
+    }
+
+    //===========================================================
+    //                    Loop's callbacks
+    //===========================================================
+
+    @Override
+    public void ready(SelectionKey key) {
+        if(key.isReadable()) read();
+        if(key.isValid() && key.isWritable()) flush();
+    }
+
+    @Override
+    public void abort() {
+        Stage aborted = stage;
+        if(aborted == Stage.OPEN) {
+            disconnect();
+        } else if(aborted != Stage.CLOSED) {
+            finishHandshake(handshakeFailure);
+        }
+    }
+
+    private void read() {
+        ByteBuffer buffer = loop.getReadBuffer();
+        buffer.clear();
+
+        int read;
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+
+        if(read < 0) {
+            abort();
+            return;
+        }
+
+        buffer.flip();
+        while (buffer.hasRemaining() && stage != Stage.OPEN && stage != Stage.CLOSED) {
+            readStatus(buffer.get());
+        }
+
+        if(stage == Stage.OPEN) decoder.decode(buffer, this::receiveFrame);
+    }
+
+    private void readStatus(int status) {
+        switch (stage) {
+            case AWAITING_LOGIN_STATUS:
+            case AWAITING_REGISTRATION_STATUS:
+                finishHandshake(status);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    //===========================================================
+    //                        Writing
+    //===========================================================
+
+    /**
+     * Queues the given bytes of the handshake; used only on the loop's thread.
+     */
+    private void writeRaw(byte[] bytes) {
+        synchronized (outbox) {
+            outbox.add(new PendingWrite(ByteBuffer.wrap(bytes), null));
+            outboxBytes += bytes.length;
+        }
+        flush();
+    }
+
+    private void scheduleFlush() {
+        if(flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Writes as much of the outbox as the connection takes without blocking,
+     * several messages with a single write, and waits for the connection to
+     * take the rest.
+     */
+    private void flush() {
+        if(stage == Stage.CLOSED) return;
+        List<PendingWrite> written = new ArrayList<>();
+
+        try {
+            synchronized (outbox) {
+                while (!outbox.isEmpty()) {
+                    int count = Math.min(outbox.size(), MAX_WRITE_BATCH);
+                    ByteBuffer[] buffers = new ByteBuffer[count];
+                    int i = 0;
+                    for(PendingWrite write : outbox) {
+                        if(i == count) break;
+                        buffers[i++] = write.buffer;
+                    }
+
+                    channel.write(buffers);
+
+                    while (!outbox.isEmpty() && !outbox.peek().buffer.hasRemaining()) {
+                        PendingWrite write = outbox.poll();
+                        outboxBytes -= write.buffer.limit();
+                        written.add(write);
+                    }
+                    if(buffers[count - 1].hasRemaining()) break;
+                }
+
+                key.interestOps(outbox.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            abort();
+        }
+
+        for(PendingWrite write : written) {
+            if(write.sent != null) write.sent.complete(null);
+        }
+    }
+
+    //===========================================================
+    //                        Closing
+    //===========================================================
+
+    @Override
+    void receiveKick(String kicker) {
+        if(closeConnection()) notifyOnServerKick(kicker);
+    }
+
+    @Override
+    void receiveBan(String banner) {
+        if(closeConnection()) notifyOnServerBan(banner);
+    }
+
+    @Override
+    void receiveDelete(String deleter) {
+        if(closeConnection()) notifyOnServerDelete(deleter);
+    }
+
+    /**
+     * Closes the connection and fails the messages not yet written.
+     * @return {@code true} if the connection was open and is now closed
+     */
+    private boolean closeConnection() {
+        List<PendingWrite> unsent;
+        synchronized (outbox) {
+            if(stage == Stage.CLOSED) return false;
+            stage = Stage.CLOSED;
+
+            unsent = new ArrayList<>(outbox);
+            outbox.clear();
+            outboxBytes = 0;
+        }
+
+        try {
+            if(channel != null) channel.close();
+        } catch (IOException e) {
+            // Closed anyway.
+        }
+
+        IOException closed = new IOException("Connection closed.");
+        for(PendingWrite write : unsent) {
+            if(write.sent != null) write.sent.completeExceptionally(closed);
+        }
+        return true;
+    }
+
+    //===========================================================
+    //                    Listeners and roster
+    //===========================================================
+
+    @Override
+    void dispatch(Consumer<ClientListener> event, List<ClientListener> listeners) {
+        List<ClientListener> targets = List.copyOf(listeners);
+        listenerExecutor.execute(() -> targets.forEach(event));
+    }
+
+    @Override
+    void requestRoster() {
+        sendAsync("/roster");
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return {@code true} while the client is logged in
+     */
+    public boolean isOpen() {
+        return stage == Stage.OPEN;
+    }
+
+    @Override
+    public String toString() {
+        return username;
+    }
+
+    //===========================================================
+    //                        Helpers
+    //===========================================================
+
+    /**
+     * A message not yet written, and the future completed once it is.
+     */
+    private static class PendingWrite {
+
+        private final ByteBuffer buffer;
+
+        /** {@code null} for the bytes of the handshake. */
+        private final CompletableFuture<Void> sent;
+
+        private PendingWrite(ByteBuffer buffer, CompletableFuture<Void> sent) {
+            this.buffer = buffer;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * Runs the tasks on the given executor one at a time, in the order they were submitted.
+     */
+    private static class SerialExecutor implements Executor {
+
+        private final Executor executor;
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        /** {@code true} while a task is submitted to the executor. */
+        private boolean running;
+
+        private SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if(running) return;
+                running = true;
+            }
+            executor.execute(this::runNext);
+        }
+
+        private void runNext() {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if(task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Client listener failed: " + e);
+                }
+            }
+        }
+    }
+}
@@ -2,27 +2,120 @@ package chat.client;
 
 import chat.server.Server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Encapsulates the data of a single chat-client.
+ * <br>
+ * Once its connection drops, the client reconnects on its own, waiting longer
+ * after every failed attempt. The session is resumed with the token the server
+ * has issued for it, so the client receives whatever it has missed in the
+ * meantime and the other clients never see it leave; if the session can no
+ * longer be resumed, the client logs in again.
+ * <br>
+ * The messages are sent through an {@link ClientOutbox}, so sending never
+ * blocks, and the messages sent while the client is reconnecting are sent
+ * once it has reconnected.
+ * <br>
+ * The global messages are kept in a {@link MessageCache} on the disk, in the
+ * directory set by the {@code chat.cache} property. Once logged in, the client
+ * shows the newest cached messages right away, and fetches from the server only
+ * the messages logged after the newest one it has.
  */
 public class ChatClient extends AbstractChatClient {
 
+    /** The delay before the first reconnection attempt, in milliseconds; doubled after every failed attempt. */
+    private static final long RECONNECT_BASE_DELAY_MILLIS = 250;
+
+    /** The longest delay between two reconnection attempts, in milliseconds. */
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 8_000;
+
+    /** The time after which the client gives up reconnecting, in milliseconds. */
+    private static final long RECONNECT_TIMEOUT_MILLIS = 60_000;
+
+    /** The time a reconnection attempt waits for the server to accept the connection, in milliseconds. */
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+
+    /** The directory of the message caches of all of the servers. */
+    private static final Path CACHE_DIRECTORY = Paths.get(System.getProperty("chat.cache",
+            Paths.get(System.getProperty("user.home"), ".chat", "cache").toString()));
+
+    /** The number of the newest cached messages shown once the client has logged in. */
+    private static final int CACHED_SCREEN_MESSAGES = 100;
+
+    /**
+     * The addresses of the servers found not to support the single round trip login, as they
+     * said so or accepted the legacy login after closing the connection of the single round trip;
+     * never added by a failed connection. Shared by all of the clients of the process.
+     */
+    private static final Set<String> LEGACY_LOGIN_SERVERS = ConcurrentHashMap.newKeySet();
+
     /** The client's username. */
     private String username;
 
     /** The client's password. */
     private String password;
 
+    /** The address of the server the client has logged in to. */
+    private String address;
+
+    /** The port of the server the client has logged in to. */
+    private int port;
+
     /** This client's socket. */
     private Socket clientSocket;
 
-    /** The writer used by the client for writing text to the server. */
-    private PrintWriter clientWriter;
+    /** The messages on their way to the server. */
+    private final ClientOutbox outbox;
+
+    /** The id of the last message sent. */
+    private final AtomicLong lastMessageId = new AtomicLong();
+
+    /** The presence state last reported to the server. */
+    private String presence = PRESENCE_ACTIVE;
+
+    //===========================================================
+    //                        Session
+    //===========================================================
+
+    /** Decodes the server's frames; kept across the connections of a session, as a frame may span two of them. */
+    private FrameDecoder decoder;
+
+    /** The number of the session's bytes received. */
+    private long received;
+
+    /** The token resuming the session; {@code null} if the session cannot be resumed. */
+    private volatile String resumeToken;
+
+    /** Set once the client has disconnected or its session was ended by the server; guarded by the {@link #reconnectLock}. */
+    private boolean closed;
+
+    /** Wakes the reconnecting client up once it has disconnected. */
+    private final Object reconnectLock = new Object();
+
+    /** The global messages of the server kept on the disk; {@code null} if they are not kept. */
+    private volatile MessageCache cache;
+
+    /** Set from the start of a session until the messages not yet cached have arrived. */
+    private boolean synchronizingHistory;
+
+    /** The sequenced messages that have arrived while synchronizing, cached once the history has arrived. */
+    private final List<MessageCache.Message> heldMessages = new ArrayList<>();
 
     //===========================================================
     //                      Constructor
@@ -37,6 +130,7 @@ public class ChatClient extends AbstractChatClient {
     public ChatClient(String username, String password) {
         this.username = Objects.requireNonNull(username, "Username cannot be null.");
         this.password = Objects.requireNonNull(password, "Password cannot be null.");
+        this.outbox = new ClientOutbox(username);
     }
 
     //===========================================================
@@ -45,25 +139,19 @@ public class ChatClient extends AbstractChatClient {
 
     @Override
     public int login(String address, int port) {
-        try {
-            clientSocket = new Socket(address, port);
-            clientSocket.getOutputStream().write(LOGIN_REQUEST);
+        this.address = address;
+        this.port = port;
 
-            // Checking if the server is full.
-            int status = clientSocket.getInputStream().read();
-            if (status != Server.LOGIN_ESTABLISHED_SERVER_NOT_FULL) return status;
-
-            // Sending the client username and password to the server.
-            clientWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-            clientWriter.println(username);
-            clientWriter.println(password);
+        try {
+            Login login = logIn();
+            clientSocket = login.socket;
+            if (login.status != Server.LOGIN_ACCEPTED) return login.status;
 
-            // Checking if provided username is accepted by the server.
-            status = clientSocket.getInputStream().read();
-            if (status != Server.LOGIN_ACCEPTED) return status;
+            // Only the servers supporting the single round trip synchronize the history.
+            if(login.direct) openCache();
 
             // Every test was passed, create a new thread for the client.
-            new ClientWorker(this, clientSocket).start();
+            startSession(login.socket, login.direct);
             notifyOnServerConnect();
             return Server.LOGIN_ACCEPTED;
 
@@ -72,6 +160,95 @@ public class ChatClient extends AbstractChatClient {
         }
     }
 
+    /**
+     * Connects to the server and logs in, in a single round trip, or with the
+     * legacy handshake if the server does not support it.
+     * @return the connection and the login status
+     * @throws IOException if an IO error occurs
+     */
+    private Login logIn() throws IOException {
+        String server = address + ":" + port;
+        boolean closedByServer = false;
+
+        if(!LEGACY_LOGIN_SERVERS.contains(server)) {
+            Socket socket = connect();
+            int status;
+            try {
+                status = sendDirectLoginRequest(socket);
+            } catch (IOException e) {
+                status = -1;
+            }
+            if(isDirectLoginStatus(status)) return new Login(socket, status, true);
+            socket.close();
+
+            // A server predating the single round trip may also just close the connection, but so may
+            // a failing one; the server is then remembered only once it has accepted the legacy login.
+            if(status != -1) LEGACY_LOGIN_SERVERS.add(server);
+            else closedByServer = true;
+        }
+
+        Socket socket = connect();
+        int status = sendLoginRequest(socket);
+        if(closedByServer && status == Server.LOGIN_ACCEPTED) LEGACY_LOGIN_SERVERS.add(server);
+        return new Login(socket, status, false);
+    }
+
+    /**
+     * @return {@code true} if the given status is an answer to the single round trip login
+     *         of a server that supports it
+     */
+    private static boolean isDirectLoginStatus(int status) {
+        switch (status) {
+            case Server.LOGIN_ACCEPTED:
+            case Server.LOGIN_DENIED_IO_ERROR:
+            case Server.LOGIN_DENIED_SERVER_FULL:
+            case Server.LOGIN_DENIED_CLIENT_ALREADY_LOGGED_IN:
+            case Server.LOGIN_DENIED_CLIENT_IS_BANNED:
+            case Server.LOGIN_DENIED_WRONG_PASSWORD:
+            case Server.LOGIN_DENIED_USERNAME_NOT_REGISTERED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sends the login request with the protocol version and the client's credentials, all at once.
+     * @param socket the connection to the server
+     * @return the login status sent by the server; {@code -1} if the server closed the connection
+     * @throws IOException if an IO error occurs
+     */
+    private int sendDirectLoginRequest(Socket socket) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(DIRECT_LOGIN_REQUEST);
+        request.writeBytes((PROTOCOL_VERSION + "\n" + username + "\n" + password + "\n").getBytes());
+        socket.getOutputStream().write(request.toByteArray());
+
+        return socket.getInputStream().read();
+    }
+
+    /**
+     * Sends the legacy login request, then the client's credentials once the server has answered it is not full.
+     * @param socket the connection to the server
+     * @return the login status sent by the server
+     * @throws IOException if an IO error occurs
+     */
+    private int sendLoginRequest(Socket socket) throws IOException {
+        socket.getOutputStream().write(LOGIN_REQUEST);
+
+        // Checking if the server is full.
+        int status = socket.getInputStream().read();
+        if (status != Server.LOGIN_ESTABLISHED_SERVER_NOT_FULL) return status;
+
+        // Sending the client username and password to the server.
+        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+        writer.println(username);
+        writer.println(password);
+
+        // Checking if provided username is accepted by the server.
+        return socket.getInputStream().read();
+    }
+
     @Override
     public int register(String address, int port) {
         try {
@@ -79,9 +256,9 @@ public class ChatClient extends AbstractChatClient {
             clientSocket.getOutputStream().write(REGISTRATION_REQUEST);
 
             // Sending the client username and password to the server.
-            clientWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-            clientWriter.println(username);
-            clientWriter.println(password);
+            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
+            writer.println(username);
+            writer.println(password);
 
             // Return the registration status.
             return clientSocket.getInputStream().read();
@@ -93,18 +270,33 @@ public class ChatClient extends AbstractChatClient {
 
     @Override
     public void disconnect() {
-        if(closeConnection()) notifyOnServerDisconnect();
+        if(!close()) return;
+
+        // Ends the session right away, rather than leaving it to be resumed, once
+        // the messages sent so far were written; the outbox then closes the connection.
+        sendMessage("/quit");
+        outbox.finish(clientSocket);
+        notifyOnServerDisconnect();
     }
 
+    @Override
     void receiveKick(String kicker) {
+        close();
+        outbox.close();
         if(closeConnection()) notifyOnServerKick(kicker);
     }
 
+    @Override
     void receiveBan(String banner) {
+        close();
+        outbox.close();
         if(closeConnection()) notifyOnServerBan(banner);
     }
 
+    @Override
     void receiveDelete(String deleter) {
+        close();
+        outbox.close();
         if(closeConnection()) notifyOnServerDelete(deleter);
     }
 
@@ -123,16 +315,368 @@ public class ChatClient extends AbstractChatClient {
         }
     }
 
+    /**
+     * Marks the client closed, so it no longer reconnects.
+     * @return {@code false} if the client was already closed
+     */
+    private boolean close() {
+        synchronized (reconnectLock) {
+            if(closed) return false;
+
+            closed = true;
+            reconnectLock.notifyAll();
+        }
+
+        MessageCache cache = this.cache;
+        if(cache != null) cache.close();
+        return true;
+    }
+
+    //===========================================================
+    //                     Message cache
+    //===========================================================
+
+    /**
+     * Opens the cache of the global messages of the server the client has logged
+     * in to, and shows the newest cached messages. Servers that do not support
+     * synchronizing the history are not cached.
+     */
+    private void openCache() {
+        if(cache != null) return;
+
+        String server = (username + "@" + address + "_" + port).replaceAll("[^A-Za-z0-9._@-]", "_");
+        try {
+            cache = new MessageCache(CACHE_DIRECTORY.resolve(server), MessageCache.GLOBAL_ROOM);
+        } catch (IOException e) {
+            System.err.println("Could not open the message cache: " + e.getMessage());
+            return;
+        }
+
+        for(MessageCache.Message message : cache.readLast(CACHED_SCREEN_MESSAGES)) {
+            super.receiveGlobalClientMessage(message.sender, message.message);
+        }
+    }
+
+    @Override
+    void receiveGlobalClientMessage(String sender, String message) {
+        // Sent once more, with its sequence number, in the history being synchronized.
+        if(synchronizingHistory) return;
+
+        deliverGlobalClientMessage(sender, message);
+    }
+
+    @Override
+    void receiveSequencedGlobalClientMessage(long sequence, long timestamp, String sender, String message) {
+        if(synchronizingHistory) {
+            // Sent after the history, though it may have been written ahead of it.
+            heldMessages.add(new MessageCache.Message(sequence, timestamp, sender, message));
+            return;
+        }
+
+        cacheGlobalClientMessage(sequence, timestamp, sender, message);
+    }
+
+    @Override
+    void receiveHistory(List<String> lines) {
+        synchronizingHistory = false;
+
+        // The messages are followed by the identifier of the log they are numbered by.
+        MessageCache cache = this.cache;
+        String historyId = lines.size() % 4 == 1 ? lines.get(lines.size() - 1) : null;
+        if(cache != null && historyId != null && !historyId.equals(cache.getHistoryId())) cache.reset(historyId);
+
+        for(int i = 0; i + 3 < lines.size(); i += 4) {
+            cacheGlobalClientMessage(Long.parseLong(lines.get(i)), Long.parseLong(lines.get(i + 1)), lines.get(i + 2), lines.get(i + 3));
+        }
+        for(MessageCache.Message held : heldMessages) {
+            cacheGlobalClientMessage(held.sequence, held.timestamp, held.sender, held.message);
+        }
+        heldMessages.clear();
+    }
+
+    /**
+     * Caches the given global client message and passes it on, unless it is cached already.
+     */
+    private void cacheGlobalClientMessage(long sequence, long timestamp, String sender, String message) {
+        MessageCache cache = this.cache;
+        if(cache == null || cache.add(sequence, timestamp, sender, message)) {
+            deliverGlobalClientMessage(sender, message);
+        }
+    }
+
+    //===========================================================
+    //                  Receiving and reconnecting
+    //===========================================================
+
+    /**
+     * Starts a new session on the given connection, on which the client has just logged in.
+     * @param socket the connection
+     * @param direct whether the client has logged in with the single round trip, so the
+     *               server supports synchronizing the history
+     * @throws IOException if an IO error occurs
+     */
+    private void startSession(Socket socket, boolean direct) throws IOException {
+        decoder = new FrameDecoder();
+        received = 0;
+        resumeToken = null;
+        synchronizingHistory = cache != null && direct;
+        heldMessages.clear();
+
+        int expired = attach(socket, -1);
+        if(expired > 0) {
+            notifyPrivateServerMessageReceived(expired + " of the messages sent before the server ended the session might not have been received.");
+        }
+
+        // Only the messages logged after the newest cached one, by the same log.
+        if(synchronizingHistory) {
+            String historyId = cache.getHistoryId();
+            sendMessage("/history " + cache.getLastSequence() + (historyId != null ? " " + historyId : ""));
+        }
+    }
+
+    /**
+     * Continues the session on the given connection.
+     * @param socket the connection
+     * @param sent the number of the session's bytes the server has received, from which
+     *             the messages are sent once more; {@code -1} if the session is a new one
+     * @return the number of the messages of the previous session expired, as they might
+     *         not have been received
+     * @throws IOException if an IO error occurs
+     */
+    private int attach(Socket socket, long sent) throws IOException {
+        int expired;
+        synchronized (reconnectLock) {
+            if(closed) {
+                socket.close();
+                return 0;
+            }
+
+            clientSocket = socket;
+            expired = outbox.attach(socket.getOutputStream(), sent);
+        }
+        new ClientWorker(this, socket).start();
+        return expired;
+    }
+
+    /**
+     * Decodes the given bytes of the session, passing the frames to the listeners.
+     * Called by the worker of the session's current connection.
+     * @param bytes the bytes received
+     * @param length the number of the bytes received
+     * @return {@code false} if a frame has ended the session
+     */
+    boolean receive(byte[] bytes, int length) {
+        received += length;
+        boolean open = decoder.decode(ByteBuffer.wrap(bytes, 0, length), this::receiveFrame);
+
+        // The messages cached from these bytes are written together.
+        MessageCache cache = this.cache;
+        if(cache != null) cache.flush();
+        return open;
+    }
+
+    @Override
+    void receiveResumeToken(String token) {
+        resumeToken = token;
+    }
+
+    /**
+     * Called by the worker of the session's connection once the connection has
+     * dropped. Reconnects, unless the client has disconnected, and notifies the
+     * listeners that the client has disconnected only once it gives up.
+     */
+    void connectionLost() {
+        synchronized (reconnectLock) {
+            if(closed) return;
+        }
+        outbox.detach();
+
+        notifyPrivateServerMessageReceived("Connection to the server lost, reconnecting...");
+        if(reconnect() || !close()) return;
+
+        outbox.close();
+        if(closeConnection()) notifyOnServerDisconnect();
+    }
+
+    /**
+     * Resumes the session on a new connection, or logs in again if the session
+     * can no longer be resumed, until either succeeds or the client gives up.
+     * @return {@code true} if the client has reconnected
+     */
+    private boolean reconnect() {
+        long deadline = System.currentTimeMillis() + RECONNECT_TIMEOUT_MILLIS;
+
+        for(int attempt = 0; System.currentTimeMillis() < deadline; attempt++) {
+            if(!awaitReconnectDelay(attempt)) return false;
+
+            try {
+                if(resumeToken != null) {
+                    Socket socket = connect();
+                    int status = sendResumeRequest(socket);
+                    if(status == Server.RESUME_ACCEPTED) {
+                        long sent;
+                        try {
+                            sent = readReceivedCount(socket);
+                        } catch (IOException e) {
+                            // Dropped again, so the server keeps the session for the next attempt.
+                            socket.close();
+                            throw e;
+                        }
+                        attach(socket, sent);
+                        notifyPrivateServerMessageReceived("Reconnected to the server.");
+                        return true;
+                    }
+
+                    socket.close();
+                    // The server has not found the old connection dropped yet, so the token is kept for the next attempt.
+                    if(status == Server.RESUME_PENDING) continue;
+
+                    // The session has ended, so the client logs in again.
+                    resumeToken = null;
+                }
+
+                Login login = logIn();
+                if(login.status == Server.LOGIN_ACCEPTED) {
+                    startSession(login.socket, login.direct);
+                    notifyPrivateServerMessageReceived("Reconnected to the server; the messages sent in the meantime were missed.");
+                    return true;
+                }
+
+                login.socket.close();
+                if(login.status == Server.LOGIN_DENIED_CLIENT_IS_BANNED || login.status == Server.LOGIN_DENIED_WRONG_PASSWORD
+                        || login.status == Server.LOGIN_DENIED_USERNAME_NOT_REGISTERED) {
+                    return false;
+                }
+
+            } catch (IOException e) {
+                // The server is not reachable yet.
+            }
+        }
+
+        return false;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MILLIS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the request resuming the session, with the number of the session's bytes received.
+     * @param socket the new connection to the server
+     * @return the resumption status sent by the server
+     * @throws IOException if an IO error occurs
+     */
+    private int sendResumeRequest(Socket socket) throws IOException {
+        socket.getOutputStream().write(RESUME_REQUEST);
+
+        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+        writer.println(resumeToken);
+        writer.println(received);
+
+        return socket.getInputStream().read();
+    }
+
+    /**
+     * Reads the number of the session's bytes the server has received, sent on a line
+     * of its own after the {@link Server#RESUME_ACCEPTED}. The line is read a byte at a
+     * time, as the frames the client has missed follow it right away.
+     * @param socket the connection the session was resumed on
+     * @return the number of the bytes
+     * @throws IOException if the number could not be read
+     */
+    private long readReceivedCount(Socket socket) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int read;
+        while ((read = socket.getInputStream().read()) != '\n') {
+            if(read < 0) throw new EOFException("Connection closed while resuming the session.");
+            if(read != '\r') line.append((char) read);
+        }
+
+        try {
+            return Long.parseLong(line.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number of bytes received: " + line);
+        }
+    }
+
+    /**
+     * Waits before the given reconnection attempt: exponentially longer after
+     * every failed attempt, up to a limit, and for a random part of that, so
+     * that the clients of a failed server do not all reconnect at once.
+     * @param attempt the number of the attempt, starting with {@code 0}
+     * @return {@code false} if the client has disconnected in the meantime
+     */
+    private boolean awaitReconnectDelay(int attempt) {
+        long delay = Math.min(RECONNECT_MAX_DELAY_MILLIS, RECONNECT_BASE_DELAY_MILLIS << Math.min(attempt, 16));
+        long until = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+
+        synchronized (reconnectLock) {
+            try {
+                long remaining;
+                while (!closed && (remaining = until - System.currentTimeMillis()) > 0) {
+                    reconnectLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return !closed;
+        }
+    }
+
     //===========================================================
     //                    Sending message
     //===========================================================
 
     /**
-     * Sends the given message to the server.
+     * Sends the given message to the server, without waiting for it to be written.
+     * A global message is passed to the listeners as pending right away, and as
+     * confirmed once the server has sent it back.
      * @param message the message to be sent
      */
     public void sendMessage(String message) {
-        clientWriter.println(message);
+        boolean global = !message.startsWith("/") && !message.startsWith("#");
+        long id = lastMessageId.incrementAndGet();
+
+        // Pending before it can be confirmed.
+        if(global) notifyGlobalClientMessagePending(id, message);
+        outbox.add(id, message, global);
+    }
+
+    /**
+     * Passes the given global client message to the listeners, as confirmed
+     * if it is one of the client's own pending messages.
+     */
+    private void deliverGlobalClientMessage(String sender, String message) {
+        long id = sender.equals(username) ? outbox.confirm(message) : -1;
+        if(id != -1) {
+            notifyGlobalClientMessageConfirmed(id, message);
+        } else {
+            super.receiveGlobalClientMessage(sender, message);
+        }
+    }
+
+    /**
+     * Reports the given presence state to the server, unless it is the
+     * state that was reported last, so only the transitions are sent.
+     * @param state the presence state, one of the {@code PRESENCE_*} constants
+     */
+    public synchronized void setPresence(String state) {
+        if(presence.equals(state)) return;
+
+        presence = state;
+        sendMessage("/presence " + state);
+    }
+
+    @Override
+    void requestRoster() {
+        sendMessage("/roster");
     }
 
     //===========================================================
@@ -172,4 +716,23 @@ public class ChatClient extends AbstractChatClient {
     public String toString() {
         return username;
     }
-}
\ No newline at end of file
+
+    /**
+     * A connection to the server and the status of the login sent on it.
+     */
+    private static class Login {
+
+        private final Socket socket;
+
+        private final int status;
+
+        /** Whether the login was sent in a single round trip, rather than with the legacy handshake. */
+        private final boolean direct;
+
+        private Login(Socket socket, int status, boolean direct) {
+            this.socket = socket;
+            this.status = status;
+            this.direct = direct;
+        }
+    }
+}
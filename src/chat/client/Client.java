@@ -64,12 +64,34 @@ public interface Client {
      */
     String[] RANK = {"User", "Moderator", "Admin", "Master Admin", "Owner"};
 
+    //===========================================================
+    //                    Presence states
+    //===========================================================
+
+    /**
+     * The default presence state of the online client.
+     */
+    String PRESENCE_ACTIVE = "active";
+
+    /**
+     * The presence state of the client that is typing a message.
+     */
+    String PRESENCE_TYPING = "typing";
+
+    /**
+     * The presence state of the client that has been inactive for a while.
+     */
+    String PRESENCE_AWAY = "away";
+
     //===========================================================
     //              Requests sent to the server
     //===========================================================
 
     /**
      * Value sent to the server indicating that the login request is being sent.
+     * The server first answers whether it is full, and only then is sent the
+     * username and the password, so this login takes two round trips; see the
+     * {@link #DIRECT_LOGIN_REQUEST}.
      */
     byte LOGIN_REQUEST = 3;
 
@@ -78,6 +100,29 @@ public interface Client {
      */
     byte REGISTRATION_REQUEST = 4;
 
+    /**
+     * Value sent to the server indicating that the login request is being sent in a
+     * single round trip. The flag is followed by the client's {@link #PROTOCOL_VERSION},
+     * the username and the password, one per line, all of them sent at once. The
+     * server answers only once it has checked the credentials, with the final login
+     * status, followed right away by the initial state of the session: the recent
+     * history, the roster and the presence states.
+     */
+    byte DIRECT_LOGIN_REQUEST = 6;
+
+    /**
+     * The version of the protocol spoken by the clients, sent with the {@link #DIRECT_LOGIN_REQUEST}.
+     * Version 2 adds the {@code /history} command and the sequenced global client messages.
+     */
+    int PROTOCOL_VERSION = 2;
+
+    /**
+     * Value sent to the server indicating that the session of a dropped connection
+     * is being resumed. The flag is followed by the session's resume token and the
+     * number of bytes of the session received, one per line.
+     */
+    byte RESUME_REQUEST = 5;
+
     //===========================================================
     //                      Client API
     //===========================================================
@@ -0,0 +1,190 @@
+package chat.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * A single thread serving the connections of many {@link AsyncChatClient}s:
+ * it connects them, reads and decodes the server's frames and writes their
+ * messages, never blocking on any single connection. A process running
+ * hundreds of sessions thus needs a single thread for all of their I/O.
+ * The servers' addresses, whose lookup may block, are resolved by a few
+ * threads of their own.
+ * <br>
+ * The loop runs until it is closed, which closes all of its connections.
+ */
+public class ClientEventLoop implements Closeable {
+
+    /** The size of the buffer the connections are read into. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** The number of threads resolving the servers' addresses. */
+    private static final int RESOLVER_THREADS = 2;
+
+    /** Waits for the connections to be ready. */
+    private final Selector selector;
+
+    /** The thread of the loop. */
+    private final Thread thread;
+
+    /** Resolves the servers' addresses off the loop's thread. */
+    private final ExecutorService resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, task -> {
+        Thread resolverThread = new Thread(task, "ClientEventLoop-resolver");
+        resolverThread.setDaemon(true);
+        return resolverThread;
+    });
+
+    /** The tasks to be run on the loop's thread. */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** The buffer every connection is read into, in turn; the decoders copy the bytes out of it. */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /** Set once the loop is closed. */
+    private volatile boolean closed;
+
+    /**
+     * A connection served by the loop.
+     */
+    interface Connection {
+
+        /**
+         * Called on the loop's thread once the connection is ready for the
+         * operations it is interested in.
+         * @param key the key of the connection
+         */
+        void ready(SelectionKey key);
+
+        /**
+         * Called on the loop's thread once the connection can no longer be
+         * served, as the loop was closed or serving the connection failed.
+         */
+        void abort();
+    }
+
+    /**
+     * Constructs and starts a new loop.
+     * @throws IOException if the selector could not be opened
+     */
+    public ClientEventLoop() throws IOException {
+        selector = Selector.open();
+
+        thread = new Thread(this::run, "ClientEventLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop and closes all of its connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        resolver.shutdown();
+        selector.wakeup();
+    }
+
+    //===========================================================
+    //                    Used by the clients
+    //===========================================================
+
+    /**
+     * Runs the given task on the loop's thread.
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Resolves the given address, then passes it to the given callback on the
+     * loop's thread; the address is unresolved if the lookup failed.
+     * @param host the host name or the literal address
+     * @param port the port
+     * @param resolved the callback
+     * @throws java.util.concurrent.RejectedExecutionException if the loop is closed
+     */
+    void resolve(String host, int port, Consumer<InetSocketAddress> resolved) {
+        resolver.execute(() -> {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            execute(() -> resolved.accept(address));
+        });
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * @return the buffer the connections are read into; used only on the loop's thread
+     */
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * @return {@code true} if called on the loop's thread
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    //===========================================================
+    //                          Loop
+    //===========================================================
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) continue;
+
+                    try {
+                        ((Connection) key.attachment()).ready(key);
+                    } catch (RuntimeException e) {
+                        System.err.println("Client connection failed: " + e);
+                        ((Connection) key.attachment()).abort();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Client event loop failed: " + e.getMessage());
+        }
+
+        for(SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).abort();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Client event loop task failed: " + e);
+            }
+        }
+    }
+}
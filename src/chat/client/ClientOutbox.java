@@ -0,0 +1,334 @@
+package chat.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * The messages of a client on their way to the server. The messages are
+ * only queued by the senders, which never block, and written by a thread of
+ * the outbox's own, which writes all of the messages queued in the meantime
+ * with a single write.
+ * <br>
+ * The outbox outlives the client's connections: while the client has no
+ * connection the messages are held, and they are written once the client
+ * has reconnected. The messages written are kept until the client resumes
+ * its session, told the number of the session's bytes the server has received,
+ * and the bytes after it are written once more, so no message is lost, nor
+ * received twice, not even in part.
+ * <br>
+ * The messages the server sends back to all of the clients, the sender
+ * included, are also kept until the server's copy arrives, so the client
+ * can tell which of its messages the server has received. Those of a session
+ * that has ended are expired, as they may never arrive.
+ */
+class ClientOutbox {
+
+    /** The maximum number of bytes written with a single write. */
+    private static final int MAX_WRITE_BYTES = 64 * 1024;
+
+    /** The maximum number of the written bytes kept to be written once more; the older ones are taken as received. */
+    private static final int MAX_RETAINED_BYTES = 1024 * 1024;
+
+    /** The maximum number of the messages kept until the server sends them back; the older ones are expired. */
+    private static final int MAX_UNCONFIRMED = 16 * 1024;
+
+    /** The messages not yet written, in the order they were sent. */
+    private final ArrayDeque<Outgoing> unsent = new ArrayDeque<>();
+
+    /** The messages written in the session, not yet known to be received by the server, from the oldest. */
+    private final ArrayDeque<Outgoing> written = new ArrayDeque<>();
+
+    /** The number of bytes of the {@link #written} messages. */
+    private long writtenBytes;
+
+    /** The number of the session's bytes written, at which the next message written starts. */
+    private long sessionOffset;
+
+    /** The messages whose copy the server has not yet sent back, in the order they were sent. */
+    private final ArrayDeque<Outgoing> unconfirmed = new ArrayDeque<>();
+
+    /** The name of the writing thread. */
+    private final String name;
+
+    /** Writes the messages; {@code null} until the first connection. */
+    private Thread writer;
+
+    /** The stream of the client's current connection; {@code null} while the client has no connection. */
+    private OutputStream out;
+
+    /** The connection closed once all of the messages were written; {@code null} until the client disconnects. */
+    private Closeable finishing;
+
+    /** Set once the outbox was closed; the messages still held are discarded. */
+    private boolean closed;
+
+    /**
+     * @param name the name of the client, which names the writing thread
+     */
+    ClientOutbox(String name) {
+        this.name = name;
+    }
+
+    //===========================================================
+    //                        Sending
+    //===========================================================
+
+    /**
+     * Queues the given message.
+     * @param id the id of the message
+     * @param message the message
+     * @param echoed whether the server sends the message back to its sender,
+     *               in which case it is kept until {@link #confirm(String)}
+     */
+    synchronized void add(long id, String message, boolean echoed) {
+        if(closed || finishing != null) return;
+
+        Outgoing outgoing = new Outgoing(id, message);
+        unsent.add(outgoing);
+        if(echoed) {
+            unconfirmed.add(outgoing);
+            if(unconfirmed.size() > MAX_UNCONFIRMED) unconfirmed.poll();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Forgets the oldest message with the given text whose copy the server has
+     * not yet sent back, as the copy has just arrived.
+     * @param message the text of the server's copy
+     * @return the id of the message; {@code -1} if there is no such message
+     */
+    synchronized long confirm(String message) {
+        Iterator<Outgoing> it = unconfirmed.iterator();
+        while (it.hasNext()) {
+            Outgoing outgoing = it.next();
+            if(outgoing.message.equals(message)) {
+                it.remove();
+                return outgoing.id;
+            }
+        }
+        return -1;
+    }
+
+    //===========================================================
+    //                      Connections
+    //===========================================================
+
+    /**
+     * Writes the messages to the given connection from now on, starting with the
+     * ones the server has not received, followed by the ones held.
+     * @param out the stream of the client's new connection
+     * @param received the number of the session's bytes the server has received,
+     *                 after which the messages written are written once more; {@code -1}
+     *                 if the connection starts a new session, in which case the messages
+     *                 written in the previous one are not written again, and those not yet
+     *                 sent back by the server are expired
+     * @return the number of the messages expired
+     */
+    synchronized int attach(OutputStream out, long received) {
+        int expired = received < 0 ? restart() : resume(received);
+
+        this.out = out;
+        if(writer == null) {
+            writer = new Thread(this::run, "ClientOutbox " + name);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        notifyAll();
+        return expired;
+    }
+
+    /**
+     * Puts the written messages the server has not received, from the given number of
+     * the session's bytes, back ahead of the ones not yet written. The part of a message
+     * the server has received is not written again.
+     * @return {@code 0}, as no message is expired
+     */
+    private int resume(long received) {
+        while (!written.isEmpty()) {
+            Outgoing outgoing = written.pollLast();
+            if(outgoing.offset >= received) {
+                unsent.addFirst(outgoing);
+            } else {
+                long remaining = outgoing.offset + outgoing.bytes.length - received;
+                if(remaining > 0) unsent.addFirst(outgoing.tail((int) remaining));
+                break;
+            }
+        }
+
+        written.clear();
+        writtenBytes = 0;
+        sessionOffset = Math.max(received, 0);
+        return 0;
+    }
+
+    /**
+     * Forgets the messages written in the previous session, and expires the ones
+     * not yet sent back, as the server may never have received them, so they are
+     * never taken for the copy of a later message with the same text.
+     * @return the number of the messages expired
+     */
+    private int restart() {
+        written.clear();
+        writtenBytes = 0;
+        sessionOffset = 0;
+        unsent.removeIf(outgoing -> outgoing.partial);
+
+        int expired = 0;
+        Iterator<Outgoing> it = unconfirmed.iterator();
+        while (it.hasNext()) {
+            if(!unsent.contains(it.next())) {
+                it.remove();
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Holds the messages until the client reconnects, as its connection has dropped.
+     */
+    synchronized void detach() {
+        out = null;
+    }
+
+    /**
+     * Closes the given connection once all of the messages queued so far were
+     * written, or right away if the client has no connection. No more messages
+     * are queued.
+     * @param connection the connection
+     */
+    synchronized void finish(Closeable connection) {
+        if(writer == null) {
+            closeQuietly(connection);
+            closed = true;
+            return;
+        }
+        finishing = connection;
+        notifyAll();
+    }
+
+    /**
+     * Discards the messages still held and stops writing.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    //===========================================================
+    //                        Writing
+    //===========================================================
+
+    private void run() {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+        while (true) {
+            OutputStream target;
+            int count = 0;
+
+            synchronized (this) {
+                try {
+                    while (!closed && finishing == null && (out == null || unsent.isEmpty())) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(closed) return;
+
+                if(finishing != null && (out == null || unsent.isEmpty())) {
+                    closeQuietly(finishing);
+                    closed = true;
+                    return;
+                }
+
+                // All of the messages queued so far, up to a single write's worth, taken as
+                // written before the write, as the server may receive them even if it fails.
+                batch.reset();
+                while (!unsent.isEmpty()) {
+                    Outgoing outgoing = unsent.peek();
+                    if(count > 0 && batch.size() + outgoing.bytes.length > MAX_WRITE_BYTES) break;
+                    batch.write(outgoing.bytes, 0, outgoing.bytes.length);
+                    count++;
+                    written(unsent.poll());
+                }
+                target = out;
+            }
+
+            try {
+                target.write(batch.toByteArray());
+                target.flush();
+            } catch (IOException e) {
+                // Written again once the client has resumed the session.
+                synchronized (this) {
+                    if(out == target) out = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the given message, written from now on, until the server is known to have received it.
+     */
+    private void written(Outgoing outgoing) {
+        outgoing.offset = sessionOffset;
+        sessionOffset += outgoing.bytes.length;
+        written.add(outgoing);
+        writtenBytes += outgoing.bytes.length;
+
+        while (writtenBytes > MAX_RETAINED_BYTES) {
+            writtenBytes -= written.poll().bytes.length;
+        }
+    }
+
+    private static void closeQuietly(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+
+    /**
+     * A message of the outbox.
+     */
+    private static class Outgoing {
+
+        private final long id;
+
+        private final String message;
+
+        /** The message as written, with its line break. */
+        private final byte[] bytes;
+
+        /** Set if the bytes are only the end of the message, the rest of which the server has received. */
+        private final boolean partial;
+
+        /** The number of the session's bytes written before the message; set once the message is written. */
+        private long offset;
+
+        private Outgoing(long id, String message) {
+            this(id, message, (message + "\n").getBytes(), false);
+        }
+
+        private Outgoing(long id, String message, byte[] bytes, boolean partial) {
+            this.id = id;
+            this.message = message;
+            this.bytes = bytes;
+            this.partial = partial;
+        }
+
+        /**
+         * @return the last given number of bytes of the message, to be written on their own
+         */
+        private Outgoing tail(int length) {
+            return new Outgoing(id, message, Arrays.copyOfRange(bytes, bytes.length - length, bytes.length), true);
+        }
+    }
+}
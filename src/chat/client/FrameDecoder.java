@@ -0,0 +1,148 @@
+package chat.client;
+
+import chat.server.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the frames sent by the server from the bytes as they arrive, in
+ * any chunks. A frame is its flag, a single byte, followed by a fixed number
+ * of lines, or by a line with the number of lines and the lines themselves
+ * for the batch frames.
+ */
+class FrameDecoder {
+
+    /** The shape of the frames whose number of lines precedes the lines. */
+    static final int BATCH = -1;
+
+    /** The shape of the flags that are not known. */
+    static final int UNKNOWN = -2;
+
+    /**
+     * Receives the decoded frames.
+     */
+    interface FrameHandler {
+
+        /**
+         * @param flag the flag of the frame
+         * @param lines the lines of the frame, without the number of lines of a batch
+         * @return {@code false} if no more frames are to be decoded
+         */
+        boolean frame(int flag, List<String> lines);
+    }
+
+    /** The charset of the lines; the server writes with its default charset, as does the client read. */
+    private final Charset charset = Charset.defaultCharset();
+
+    /** The bytes of the line being decoded. */
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /** The flag of the frame being decoded; {@code -1} between the frames. */
+    private int flag = -1;
+
+    /** The number of lines of the frame still to be decoded; {@link #BATCH} until a batch's count is decoded. */
+    private int remaining;
+
+    /** The lines of the frame decoded so far. */
+    private List<String> lines;
+
+    /**
+     * Returns the shape of the frames with the given flag.
+     * @param flag the flag of the frame
+     * @return the number of lines of the frame, {@link #BATCH} or {@link #UNKNOWN}
+     */
+    static int shapeOf(int flag) {
+        switch (flag) {
+            case Server.INCOMING_PRIVATE_SERVER_MESSAGE:
+            case Server.INCOMING_GLOBAL_SERVER_MESSAGE:
+            case Server.INCOMING_DISCONNECT_MESSAGE:
+            case Server.INCOMING_KICK_MESSAGE:
+            case Server.INCOMING_BAN_MESSAGE:
+            case Server.INCOMING_DELETE_MESSAGE:
+            case Server.KICKED:
+            case Server.BANNED:
+            case Server.DELETED:
+            case Server.RESUME_TOKEN:
+                return 1;
+
+            case Server.INCOMING_GLOBAL_CLIENT_MESSAGE:
+            case Server.INCOMING_TOPIC_MESSAGE:
+            case Server.ROSTER_DELTA:
+                return 2;
+
+            case Server.INCOMING_PRIVATE_CLIENT_MESSAGE:
+            case Server.INCOMING_ROOM_CLIENT_MESSAGE:
+                return 3;
+
+            case Server.INCOMING_SEQUENCED_GLOBAL_CLIENT_MESSAGE:
+                return 4;
+
+            case Server.INCOMING_PRIVATE_CLIENT_MESSAGE_BATCH:
+            case Server.INCOMING_PRIVATE_SERVER_MESSAGE_BATCH:
+            case Server.INCOMING_GLOBAL_CLIENT_MESSAGE_BATCH:
+            case Server.INCOMING_GLOBAL_SERVER_MESSAGE_BATCH:
+            case Server.INCOMING_PRESENCE_BATCH:
+            case Server.ROSTER_SNAPSHOT:
+            case Server.ROSTER_DELTA_BATCH:
+            case Server.INCOMING_HISTORY_BATCH:
+                return BATCH;
+
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * Decodes all of the complete frames of the given bytes, keeping the
+     * incomplete rest for the next call.
+     * @param in the bytes received
+     * @param handler receives the decoded frames
+     * @return {@code false} if the handler stopped the decoding
+     */
+    boolean decode(ByteBuffer in, FrameHandler handler) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+
+            if(flag < 0) {
+                int shape = shapeOf(b);
+                if(shape == UNKNOWN) {
+                    System.err.println("Unknown flag with value " + b + ", ignoring it.");
+                    continue;
+                }
+
+                flag = b;
+                remaining = shape;
+                lines = new ArrayList<>(Math.max(shape, 1));
+                continue;
+            }
+
+            if(b != '\n') {
+                line.write(b);
+                continue;
+            }
+
+            byte[] bytes = line.toByteArray();
+            int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+            String text = new String(bytes, 0, length, charset);
+            line.reset();
+
+            if(remaining == BATCH) {
+                remaining = Integer.parseInt(text);
+            } else {
+                lines.add(text);
+                remaining--;
+            }
+
+            if(remaining == 0) {
+                int decoded = flag;
+                flag = -1;
+                if(!handler.frame(decoded, lines)) return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,439 @@
+package chat.client;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The messages of a single room of a single server, kept on the disk by the
+ * client, so that its history survives a restart and the client needs to fetch
+ * only the messages logged after the last one it has.
+ * <br>
+ * The messages are appended to a data file, each as its length followed by its
+ * sequence number, the time it was sent, the sender and the message. An index
+ * file keeps the offset of every {@link #INDEX_INTERVAL}th message, so the most
+ * recent messages are read without reading the whole data file. Once the cache
+ * holds {@link #MAX_MESSAGES} messages, only the newest {@link #COMPACTED_MESSAGES}
+ * of them are kept.
+ * <br>
+ * The sequence numbers are those of the server's message log, whose identifier
+ * is kept next to the messages. Once the server numbers its messages by another
+ * log, such as after a standby has taken over, the cache is {@link #reset(String)}.
+ * <br>
+ * The cache is used by a single client at a time. Once it fails, it only keeps
+ * track of the last sequence number, and nothing is written anymore.
+ */
+class MessageCache implements Closeable {
+
+    /** The name of the room of the global messages. */
+    static final String GLOBAL_ROOM = "global";
+
+    /** The number of messages between two entries of the index. */
+    private static final int INDEX_INTERVAL = 64;
+
+    /** The number of messages at which the cache is compacted. */
+    private static final int MAX_MESSAGES = 20_000;
+
+    /** The number of the newest messages kept once the cache is compacted. */
+    private static final int COMPACTED_MESSAGES = 10_000;
+
+    /** The size of the fixed part of a message: its length, sequence number and time. */
+    private static final int HEADER_BYTES = Integer.BYTES + 2 * Long.BYTES;
+
+    private final Path dataPath;
+
+    private final Path indexPath;
+
+    private final Path historyIdPath;
+
+    /** Keeps the other clients from using the same cache. */
+    private final FileChannel lockChannel;
+
+    private final FileLock lock;
+
+    private FileChannel data;
+
+    /** The offsets of every {@link #INDEX_INTERVAL}th message, from the first one. */
+    private long[] offsets = new long[16];
+
+    /** The number of the {@link #offsets}. */
+    private int indexed;
+
+    /** The number of the index entries already written to the index file. */
+    private int indexWritten;
+
+    /** The number of the messages kept. */
+    private int count;
+
+    /** The size of the data file, together with the {@link #unwritten} bytes. */
+    private long end;
+
+    /** The messages added since the last {@link #flush()}. */
+    private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+
+    /** The sequence number of the newest message; {@code -1} if there is none. */
+    private long lastSequence = -1;
+
+    /** The identifier of the server's log the messages are numbered by; {@code null} if not known. */
+    private String historyId;
+
+    /** Set once the cache was closed or has failed. */
+    private boolean closed;
+
+    /**
+     * Opens the cache of the given room, kept in the given directory.
+     * @param directory the directory of the server's cache
+     * @param room the name of the room
+     * @throws IOException if the cache could not be opened, or is used by another client
+     */
+    MessageCache(Path directory, String room) throws IOException {
+        Files.createDirectories(directory);
+        dataPath = directory.resolve(room + ".dat");
+        indexPath = directory.resolve(room + ".idx");
+        historyIdPath = directory.resolve(room + ".id");
+
+        lockChannel = FileChannel.open(directory.resolve(room + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another client of this process.
+            lock = null;
+        }
+        this.lock = lock;
+        if(lock == null) {
+            lockChannel.close();
+            throw new IOException("The message cache is used by another client.");
+        }
+
+        try {
+            data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the index and the messages after its last entry, truncating a
+     * message that was only partly written. A damaged index is rebuilt.
+     */
+    private void load() throws IOException {
+        if(Files.exists(historyIdPath)) {
+            historyId = new String(Files.readAllBytes(historyIdPath), StandardCharsets.UTF_8).trim();
+        }
+
+        long size = data.size();
+        readIndex(size);
+
+        int ordinal = indexed == 0 ? 0 : (indexed - 1) * INDEX_INTERVAL;
+        long offset = indexed == 0 ? 0 : offsets[indexed - 1];
+        ByteBuffer buffer = size > offset ? data.map(FileChannel.MapMode.READ_ONLY, offset, size - offset) : ByteBuffer.allocate(0);
+
+        while (true) {
+            int start = buffer.position();
+            Message message = decode(buffer);
+            if(message == null) break;
+
+            if(ordinal % INDEX_INTERVAL == 0 && ordinal / INDEX_INTERVAL >= indexed) addIndexEntry(offset + start);
+            lastSequence = message.sequence;
+            ordinal++;
+        }
+
+        count = ordinal;
+        end = offset + buffer.position();
+        if(end < size) data.truncate(end);
+        if(indexWritten > indexed) rewriteIndex();
+    }
+
+    /**
+     * Reads the index file, keeping the entries only if all of them lie within the data file.
+     */
+    private void readIndex(long size) throws IOException {
+        if(!Files.exists(indexPath)) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            long entries = Files.size(indexPath) / Long.BYTES;
+            long previous = -1;
+            for(long i = 0; i < entries; i++) {
+                long offset = in.readLong();
+                if(offset <= previous || offset >= size) {
+                    // Damaged; rebuilt from the start of the data file.
+                    indexed = 0;
+                    indexWritten = Integer.MAX_VALUE;
+                    return;
+                }
+                addIndexEntry(offset);
+                previous = offset;
+            }
+        }
+        indexWritten = indexed;
+    }
+
+    private void addIndexEntry(long offset) {
+        if(indexed == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[indexed++] = offset;
+    }
+
+    //===========================================================
+    //                    Adding and reading
+    //===========================================================
+
+    /**
+     * Adds the given message, unless the cache already has it. The message is
+     * written with the next {@link #flush()}. A message that was not logged by
+     * the server, and so has no sequence number, is never kept, nor taken for
+     * one the cache already has.
+     * @param sequence the sequence number of the message; {@code -1} if it has none
+     * @param timestamp the time the message was sent
+     * @param sender the sender of the message
+     * @param message the message
+     * @return {@code false} if the cache already has the message
+     */
+    synchronized boolean add(long sequence, long timestamp, String sender, String message) {
+        if(sequence < 0) return true;
+        if(sequence <= lastSequence) return false;
+
+        lastSequence = sequence;
+        if(closed) return true;
+
+        if(count % INDEX_INTERVAL == 0) addIndexEntry(end);
+        end += encode(new Message(sequence, timestamp, sender, message), unwritten);
+        count++;
+
+        if(count >= MAX_MESSAGES) compact();
+        return true;
+    }
+
+    /**
+     * Writes the messages added since the last flush.
+     */
+    synchronized void flush() {
+        if(closed || unwritten.size() == 0 && indexWritten == indexed) return;
+
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(unwritten.toByteArray());
+            long position = end - bytes.remaining();
+            while (bytes.hasRemaining()) position += data.write(bytes, position);
+            unwritten.reset();
+
+            // Written after the data, so the index never points past it.
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(indexPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                for(; indexWritten < indexed; indexWritten++) out.writeLong(offsets[indexWritten]);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads the newest messages, located through the index.
+     * @param limit the maximum number of the messages read
+     * @return the newest messages, from the oldest to the newest
+     */
+    synchronized List<Message> readLast(int limit) {
+        List<Message> messages = new ArrayList<>();
+        flush();
+        if(closed || count == 0) return messages;
+
+        int first = Math.max(0, count - limit);
+        int entry = first / INDEX_INTERVAL;
+        try {
+            ByteBuffer buffer = data.map(FileChannel.MapMode.READ_ONLY, offsets[entry], end - offsets[entry]);
+            for(int ordinal = entry * INDEX_INTERVAL; ordinal < count; ordinal++) {
+                Message message = decode(buffer);
+                if(message == null) break;
+                if(ordinal >= first) messages.add(message);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return messages;
+    }
+
+    /**
+     * @return the sequence number of the newest message; {@code -1} if there is none
+     */
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the identifier of the server's log the messages are numbered by; {@code null} if not known
+     */
+    synchronized String getHistoryId() {
+        return historyId;
+    }
+
+    /**
+     * Removes all of the messages, as they are numbered by another log than the
+     * one with the given identifier, by which the messages added from now on are.
+     * @param historyId the identifier of the server's log
+     */
+    synchronized void reset(String historyId) {
+        this.historyId = historyId;
+        lastSequence = -1;
+        if(closed) return;
+
+        try {
+            unwritten.reset();
+            data.truncate(0);
+            indexed = 0;
+            count = 0;
+            end = 0;
+            rewriteIndex();
+            Files.write(historyIdPath, historyId.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Keeps only the newest {@link #COMPACTED_MESSAGES} messages, rewriting the data
+     * file and the index in full, and replacing the old ones only once written.
+     */
+    private void compact() {
+        List<Message> kept = readLast(COMPACTED_MESSAGES);
+        if(closed) return;
+
+        Path compactedPath = dataPath.resolveSibling(dataPath.getFileName() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            indexed = 0;
+            for(int i = 0; i < kept.size(); i++) {
+                if(i % INDEX_INTERVAL == 0) addIndexEntry(bytes.size());
+                encode(kept.get(i), bytes);
+            }
+            Files.write(compactedPath, bytes.toByteArray());
+
+            data.close();
+            Files.move(compactedPath, dataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            data = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            count = kept.size();
+            end = bytes.size();
+            rewriteIndex();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        Files.deleteIfExists(indexPath);
+        indexWritten = 0;
+        flush();
+    }
+
+    private void fail(IOException e) {
+        System.err.println("Message cache failed, no longer caching the messages: " + e.getMessage());
+        release();
+    }
+
+    /**
+     * Writes the messages not yet written and closes the cache.
+     */
+    @Override
+    public synchronized void close() {
+        flush();
+        release();
+    }
+
+    private void release() {
+        if(closed) return;
+        closed = true;
+
+        try {
+            if(data != null) data.close();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+
+    //===========================================================
+    //                        Encoding
+    //===========================================================
+
+    /**
+     * Writes the given message to the given stream.
+     * @return the number of bytes written
+     */
+    private static int encode(Message message, ByteArrayOutputStream out) {
+        byte[] sender = message.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.message.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_BYTES + 2 * Integer.BYTES + sender.length + text.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(length).putLong(message.sequence).putLong(message.timestamp);
+        buffer.putInt(sender.length).put(sender);
+        buffer.putInt(text.length).put(text);
+
+        out.write(buffer.array(), 0, length);
+        return length;
+    }
+
+    /**
+     * Reads the next message of the given buffer.
+     * @return the message; {@code null} if the buffer holds no complete message
+     */
+    private static Message decode(ByteBuffer buffer) {
+        if(buffer.remaining() < HEADER_BYTES) return null;
+
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if(length < HEADER_BYTES + 2 * Integer.BYTES || length > buffer.remaining()) return null;
+
+        try {
+            buffer.position(start + Integer.BYTES);
+            long sequence = buffer.getLong();
+            long timestamp = buffer.getLong();
+            String sender = readString(buffer);
+            String message = readString(buffer);
+
+            buffer.position(start + length);
+            return new Message(sequence, timestamp, sender, message);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            // Damaged; the cache ends before it.
+            buffer.position(start);
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A message of the cache.
+     */
+    static class Message {
+
+        final long sequence;
+
+        final long timestamp;
+
+        final String sender;
+
+        final String message;
+
+        Message(long sequence, long timestamp, String sender, String message) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+}
@@ -2,12 +2,21 @@ package chat.client.frame;
 
 import chat.Common;
 import chat.JHintTextField;
+import chat.ScrollbackList;
+import chat.ScrollbackModel;
 import chat.client.ChatClient;
+import chat.client.Client;
 import chat.client.listener.ClientListener;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Models the client's view, that is, the graphical user
@@ -15,8 +24,14 @@ import java.awt.event.*;
  */
 public class ChatClientView extends JFrame implements ClientListener {
 
-    /** The chat text-pane. */
-    private JTextPane chatTP;
+    /** The lines of the chat, the most recent {@link #SCROLLBACK_LINES} of them. */
+    private ScrollbackModel chatLines;
+
+    /** The chat list, rendering only the visible lines. */
+    private ScrollbackList chatList;
+
+    /** The field the chat lines are searched with. */
+    private JHintTextField searchTF;
 
     /** The message text field. */
     private JHintTextField messageTF;
@@ -24,6 +39,30 @@ public class ChatClientView extends JFrame implements ClientListener {
     /** The button used for sending the message. */
     private JButton sendButton;
 
+    /** The lines of the messages sent but not yet received by the server, by message id. */
+    private Map<Long, ScrollbackModel.Line> pendingLines = new ConcurrentHashMap<>();
+
+    /** The usernames of the online clients, kept in sync with the client's roster. */
+    private DefaultListModel<String> onlineClients = new DefaultListModel<>();
+
+    /** The presence states other than active of the online clients, by username. */
+    private Map<String, String> presences = new HashMap<>();
+
+    /** Resets the presence to active once the client stops typing. */
+    private Timer typingTimer;
+
+    /** Sets the presence to away once the window has been out of focus for a while. */
+    private Timer awayTimer;
+
+    /** The time after the last keystroke at which the client is no longer typing, in milliseconds. */
+    private static final int TYPING_TIMEOUT_MILLIS = 4000;
+
+    /** The time out of focus after which the client is away, in milliseconds. */
+    private static final int AWAY_TIMEOUT_MILLIS = 120_000;
+
+    /** The maximum number of chat lines kept; the older ones are dropped. Set by the {@code chat.scrollback} property. */
+    private static final int SCROLLBACK_LINES = Integer.getInteger("chat.scrollback", 5000);
+
     /** The client of this client view. */
     private ChatClient client;
 
@@ -48,10 +87,30 @@ public class ChatClientView extends JFrame implements ClientListener {
         this.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosed(WindowEvent e) {
+                typingTimer.stop();
+                awayTimer.stop();
                 client.disconnect();
             }
         });
 
+        this.addWindowFocusListener(new WindowAdapter() {
+            @Override
+            public void windowGainedFocus(WindowEvent e) {
+                awayTimer.stop();
+                client.setPresence(Client.PRESENCE_ACTIVE);
+            }
+
+            @Override
+            public void windowLostFocus(WindowEvent e) {
+                awayTimer.restart();
+            }
+        });
+
+        typingTimer = new Timer(TYPING_TIMEOUT_MILLIS, e -> client.setPresence(Client.PRESENCE_ACTIVE));
+        typingTimer.setRepeats(false);
+        awayTimer = new Timer(AWAY_TIMEOUT_MILLIS, e -> client.setPresence(Client.PRESENCE_AWAY));
+        awayTimer.setRepeats(false);
+
         initGUI();
 
         Dimension dim = Toolkit.getDefaultToolkit().getScreenSize();
@@ -64,7 +123,7 @@ public class ChatClientView extends JFrame implements ClientListener {
     private void initGUI() {
         Container pane = getContentPane();
         pane.add(createServerDisconnectPanel(), BorderLayout.NORTH);
-        pane.add(createChatPane(), BorderLayout.CENTER);
+        pane.add(createCenterPanel(), BorderLayout.CENTER);
         pane.add(createMessagePanel(), BorderLayout.SOUTH);
     }
 
@@ -78,20 +137,49 @@ public class ChatClientView extends JFrame implements ClientListener {
         info.setForeground(Color.white);
         serverDisconnectPanel.add(info);
 
+        searchTF = new JHintTextField("Search...");
+        searchTF.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        searchTF.addActionListener(e -> search(searchTF.getText()));
+        serverDisconnectPanel.add(searchTF);
+
         return serverDisconnectPanel;
     }
 
+    private JSplitPane createCenterPanel() {
+        JList<String> onlineList = new JList<>(onlineClients);
+        onlineList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focused) {
+                String state = presences.get(value);
+                String text = state == null ? value.toString() : value + " (" + state + ")";
+                return super.getListCellRendererComponent(list, text, index, selected, focused);
+            }
+        });
+        ((DefaultListCellRenderer) onlineList.getCellRenderer()).setHorizontalAlignment(SwingConstants.CENTER);
+
+        JScrollPane onlineSP = new JScrollPane(onlineList);
+        onlineSP.setBorder(BorderFactory.createEmptyBorder());
+        onlineSP.setPreferredSize(new Dimension(0, 0));
+
+        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, createChatPane(), onlineSP);
+        splitPane.setResizeWeight(0.8);
+        splitPane.setDividerSize(1);
+        splitPane.setEnabled(false);
+
+        return splitPane;
+    }
+
     private JScrollPane createChatPane() {
-        chatTP = new JTextPane();
-        chatTP.setEditable(false);
-        chatTP.setMargin(new Insets(10, 10, 10, 10));
-        Common.textPaneAppend(
-                chatTP,
+        chatLines = new ScrollbackModel(SCROLLBACK_LINES, ScrollbackModel.DEFAULT_FRAME_MILLIS);
+        chatList = new ScrollbackList(chatLines);
+        chatList.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        chatLines.append(
                 "Welcome, " + client.getUsername() + "!\r\n" +
                 "For a list of all the valid commands, type /help\r\n",
                 Common.PRIVATE_SERVER_MESSAGE_COLOR
         );
-        return new JScrollPane(chatTP);
+        return new JScrollPane(chatList, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
+                ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
     }
 
     private JPanel createMessagePanel() {
@@ -104,6 +192,20 @@ public class ChatClientView extends JFrame implements ClientListener {
                 }
             }
         });
+        messageTF.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                messageEdited();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                messageEdited();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) { }
+        });
         messageTF.setBorder(BorderFactory.createEmptyBorder(6, 4, 6, 4));
 
         sendButton = new JButton("Send");
@@ -129,6 +231,21 @@ public class ChatClientView extends JFrame implements ClientListener {
         return messagePanel;
     }
 
+    /**
+     * Reports the typing presence while the message is being edited, and the
+     * active presence once the message is cleared or sent. Only the transitions
+     * reach the server, not the individual keystrokes.
+     */
+    private void messageEdited() {
+        if(messageTF.getText().isEmpty()) {
+            typingTimer.stop();
+            client.setPresence(Client.PRESENCE_ACTIVE);
+        } else {
+            typingTimer.restart();
+            client.setPresence(Client.PRESENCE_TYPING);
+        }
+    }
+
     /**
      * Sends the current text from the {@link #messageTF} to the server,
      * where the text will get processed and interpreted.
@@ -140,6 +257,24 @@ public class ChatClientView extends JFrame implements ClientListener {
         messageTF.setText("");
     }
 
+    /**
+     * Selects the previous chat line containing the given text, going back
+     * from the selected line, or from the newest one.
+     * @param text the text searched for
+     */
+    private void search(String text) {
+        if(text.isBlank()) return;
+        if(!chatList.findPrevious(text)) Toolkit.getDefaultToolkit().beep();
+    }
+
+    /**
+     * Disables sending, once the client was removed from the server.
+     */
+    private void disableInput() {
+        messageTF.setEnabled(false);
+        sendButton.setEnabled(false);
+    }
+
     //===========================================================
     //                 Client Listener methods
     //===========================================================
@@ -154,29 +289,25 @@ public class ChatClientView extends JFrame implements ClientListener {
 
     @Override
     public void onServerKick(String kicker) {
-        Common.textPaneAppend(chatTP, "You were kicked from the server by '" + kicker + "'.\r\n", Common.CLIENT_KICKED_COLOR);
-        messageTF.setEnabled(false);
-        sendButton.setEnabled(false);
+        chatLines.append("You were kicked from the server by '" + kicker + "'.\r\n", Common.CLIENT_KICKED_COLOR);
+        SwingUtilities.invokeLater(this::disableInput);
     }
 
     @Override
     public void onServerBan(String banner) {
-        Common.textPaneAppend(chatTP, "You were banned from the server by '" + banner + "'.\r\n", Common.CLIENT_BANNED_COLOR);
-        messageTF.setEnabled(false);
-        sendButton.setEnabled(false);
+        chatLines.append("You were banned from the server by '" + banner + "'.\r\n", Common.CLIENT_BANNED_COLOR);
+        SwingUtilities.invokeLater(this::disableInput);
     }
 
     @Override
     public void onServerDelete(String deleter) {
-        Common.textPaneAppend(chatTP, "Your account was deleted by '" + deleter + "'.\r\n", Common.CLIENT_DELETED_COLOR);
-        messageTF.setEnabled(false);
-        sendButton.setEnabled(false);
+        chatLines.append("Your account was deleted by '" + deleter + "'.\r\n", Common.CLIENT_DELETED_COLOR);
+        SwingUtilities.invokeLater(this::disableInput);
     }
 
     @Override
     public void privateClientMessageReceived(String sender, String receiver, String message) {
-        Common.textPaneAppend(
-                chatTP,
+        chatLines.append(
                 "[" + sender + " >>> " + receiver + "] " + message + "\r\n",
                 Common.PRIVATE_CLIENT_MESSAGE_COLOR
         );
@@ -184,16 +315,79 @@ public class ChatClientView extends JFrame implements ClientListener {
 
     @Override
     public void privateServerMessageReceived(String message) {
-        Common.textPaneAppend(chatTP, message + "\r\n", Common.PRIVATE_SERVER_MESSAGE_COLOR);
+        chatLines.append(message + "\r\n", Common.PRIVATE_SERVER_MESSAGE_COLOR);
     }
 
     @Override
     public void globalClientMessageReceived(String sender, String message) {
-        Common.textPaneAppend(chatTP, sender + ": " + message + "\r\n", Common.GLOBAL_CLIENT_MESSAGE_COLOR);
+        chatLines.append(sender + ": " + message + "\r\n", Common.GLOBAL_CLIENT_MESSAGE_COLOR);
+    }
+
+    @Override
+    public void globalClientMessagePending(long id, String message) {
+        pendingLines.put(id, chatLines.appendLine(client.getUsername() + ": " + message, Common.PENDING_CLIENT_MESSAGE_COLOR));
+    }
+
+    @Override
+    public void globalClientMessageConfirmed(long id, String message) {
+        ScrollbackModel.Line line = pendingLines.remove(id);
+        String text = client.getUsername() + ": " + message;
+
+        if(line != null) {
+            chatLines.replace(line, text, Common.GLOBAL_CLIENT_MESSAGE_COLOR);
+        } else {
+            chatLines.append(text + "\r\n", Common.GLOBAL_CLIENT_MESSAGE_COLOR);
+        }
+    }
+
+    @Override
+    public void roomClientMessageReceived(String room, String sender, String message) {
+        chatLines.append("[#" + room + "] " + sender + ": " + message + "\r\n", Common.ROOM_CLIENT_MESSAGE_COLOR);
+    }
+
+    @Override
+    public void topicMessageReceived(String topic, String message) {
+        chatLines.append("<" + topic + "> " + message + "\r\n", Common.TOPIC_MESSAGE_COLOR);
     }
 
     @Override
     public void globalServerMessageReceived(String message) {
-        Common.textPaneAppend(chatTP, message + "\r\n", Common.GLOBAL_SERVER_MESSAGE_COLOR);
+        chatLines.append(message + "\r\n", Common.GLOBAL_SERVER_MESSAGE_COLOR);
+    }
+
+    @Override
+    public void rosterReceived(List<String> usernames) {
+        SwingUtilities.invokeLater(() -> {
+            onlineClients.clear();
+            onlineClients.addAll(usernames);
+        });
+    }
+
+    @Override
+    public void rosterClientAdded(String username) {
+        SwingUtilities.invokeLater(() -> onlineClients.addElement(username));
+    }
+
+    @Override
+    public void rosterClientRemoved(String username) {
+        SwingUtilities.invokeLater(() -> {
+            presences.remove(username);
+            onlineClients.removeElement(username);
+        });
+    }
+
+    @Override
+    public void presenceChanged(String username, String state) {
+        SwingUtilities.invokeLater(() -> {
+            if(state.equals(Client.PRESENCE_ACTIVE)) {
+                presences.remove(username);
+            } else {
+                presences.put(username, state);
+            }
+
+            // Re-setting the same element repaints only its row.
+            int index = onlineClients.indexOf(username);
+            if(index >= 0) onlineClients.set(index, username);
+        });
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package chat.client.listener;
 
+import java.util.List;
+
 /**
  * Models objects that listen for the client events.
  */
@@ -53,6 +55,63 @@ public interface ClientListener {
      */
     void globalClientMessageReceived(String sender, String message);
 
+    /**
+     * Called once the client has sent a global message, before the server
+     * has received it, so the message can be shown right away.
+     * @param id the id of the message, passed again once it is confirmed
+     * @param message the message
+     */
+    void globalClientMessagePending(long id, String message);
+
+    /**
+     * Called once the server has sent back a global message of the client,
+     * instead of {@link #globalClientMessageReceived(String, String)}.
+     * @param id the id the message was pending with
+     * @param message the message
+     */
+    void globalClientMessageConfirmed(long id, String message);
+
+    /**
+     * Processes the received room client message.
+     * @param room the name of the room the message was sent to
+     * @param sender the sender of the room message
+     * @param message the message
+     */
+    void roomClientMessageReceived(String room, String sender, String message);
+
+    /**
+     * Processes the message published on a topic the client is subscribed to.
+     * @param topic the topic the message was published on
+     * @param message the message
+     */
+    void topicMessageReceived(String topic, String message);
+
+    /**
+     * Processes the full roster of online clients, received once the client
+     * logs in and every time the client resynchronizes the roster.
+     * @param usernames the usernames of the online clients
+     */
+    void rosterReceived(List<String> usernames);
+
+    /**
+     * Called once a client has been added to the roster of online clients.
+     * @param username the username of the added client
+     */
+    void rosterClientAdded(String username);
+
+    /**
+     * Called once a client has been removed from the roster of online clients.
+     * @param username the username of the removed client
+     */
+    void rosterClientRemoved(String username);
+
+    /**
+     * Called once the presence state of an online client has changed.
+     * @param username the username of the client
+     * @param state the new presence state, as defined by the {@code Client.PRESENCE_*} constants
+     */
+    void presenceChanged(String username, String state);
+
     /**
      * Processes the received global server message.
      * @param message the message
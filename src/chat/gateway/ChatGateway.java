@@ -0,0 +1,610 @@
+package chat.gateway;
+
+import chat.client.Client;
+import chat.server.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static chat.gateway.GatewayProtocol.*;
+
+/**
+ * The front-end gateway that balances the clients across several backend
+ * servers. The clients connect to the gateway exactly as they would to a
+ * server; the gateway terminates the login handshake, picks the backend by
+ * consistent hashing of the username and, from then on, forwards the bytes
+ * between the client and the backend without parsing them.
+ * <br>
+ * The gateway keeps a single link to every backend, opened once and shared
+ * by all of the clients routed to that backend, so a login costs no new
+ * backend connection. All of the connections are served by a single thread
+ * with a selector. A backend whose link is down is skipped, and its clients
+ * are routed to the next backend on the ring until the link is reconnected.
+ * <br>
+ * The backends must share the client data, through the client data
+ * replication, and should be federated, so that the clients on different
+ * backends can talk to each other.
+ */
+public class ChatGateway {
+
+    /** The default number of points every backend is placed at on the hash ring. */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    /** The size of the buffer the connections are read into. */
+    private static final int READ_BUFFER_SIZE = MAX_PAYLOAD_SIZE;
+
+    /** The maximum number of bytes queued for a client; a client that falls further behind is disconnected. */
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    /** The maximum length of the login or registration request of a client. */
+    private static final int MAX_HANDSHAKE_SIZE = 1024;
+
+    /** The time between the attempts to reconnect the backend links, in milliseconds. */
+    private static final long RECONNECT_MILLIS = 1000;
+
+    //===========================================================
+    //                         Fields
+    //===========================================================
+
+    /** The port the clients connect to. */
+    private final int port;
+
+    /** The links to the backends. */
+    private final List<BackendLink> backends = new ArrayList<>();
+
+    /** Maps the usernames to the backends. */
+    private final ConsistentHashRing<BackendLink> ring;
+
+    /** Selects the ready connections. */
+    private Selector selector;
+
+    /** Accepts the clients. */
+    private ServerSocketChannel acceptingChannel;
+
+    /** The buffer every connection is read into; there is only a single thread. */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /** Set when the gateway is closed. */
+    private volatile boolean closed;
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Constructs a new gateway.
+     * @param port the port the clients connect to
+     * @param backendAddresses the addresses of the backends' gateway ports
+     * @param virtualNodes the number of points every backend is placed at on the hash ring
+     */
+    public ChatGateway(int port, List<InetSocketAddress> backendAddresses, int virtualNodes) {
+        if(backendAddresses.isEmpty()) throw new IllegalArgumentException("At least one backend is needed.");
+
+        this.port = port;
+        this.ring = new ConsistentHashRing<>(virtualNodes);
+
+        for(InetSocketAddress address : backendAddresses) {
+            BackendLink backend = new BackendLink(address);
+            backends.add(backend);
+            ring.add(backend, address.getHostString() + ":" + address.getPort());
+        }
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Starts the gateway on its port and serves the connections until the
+     * gateway is closed.
+     * @throws IOException if the port could not be opened
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        acceptingChannel = ServerSocketChannel.open();
+        acceptingChannel.bind(new InetSocketAddress(port));
+        acceptingChannel.configureBlocking(false);
+        acceptingChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        System.out.println("Gateway started on port " + port + " with " + backends.size() + " backends.");
+
+        while (!closed) {
+            reconnectBackends();
+            selector.select(RECONNECT_MILLIS);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                process(key);
+            }
+        }
+
+        for(SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    public void close() {
+        closed = true;
+        if(selector != null) selector.wakeup();
+    }
+
+    //===========================================================
+    //                     Event dispatch
+    //===========================================================
+
+    private void process(SelectionKey key) {
+        if(!key.isValid()) return;
+
+        if(key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        try {
+            if(key.isConnectable()) ((BackendLink) connection).finishConnect();
+            if(key.isValid() && key.isWritable()) connection.writeQueued();
+            if(key.isValid() && key.isReadable()) connection.read();
+        } catch (IOException e) {
+            connection.fail();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = acceptingChannel.accept();
+            if(channel == null) return;
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            ClientConnection client = new ClientConnection(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+
+        } catch (IOException e) {
+            System.err.println("Could not accept the client: " + e.getMessage());
+        }
+    }
+
+    private void reconnectBackends() {
+        long now = System.currentTimeMillis();
+
+        for(BackendLink backend : backends) {
+            if(backend.channel == null && now - backend.lastAttempt >= RECONNECT_MILLIS) {
+                backend.connect(now);
+            }
+        }
+    }
+
+    /**
+     * Builds a single frame of the gateway link.
+     */
+    private static ByteBuffer frame(int sessionId, byte type, byte[] payload, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.putInt(sessionId).put(type).putInt(length).put(payload, offset, length);
+        return frame.flip();
+    }
+
+    //===========================================================
+    //                      Connections
+    //===========================================================
+
+    /**
+     * A non-blocking connection with its own queue of the buffers waiting to be written.
+     */
+    private abstract class Connection {
+
+        /** The channel of the connection; {@code null} while a backend link is down. */
+        SocketChannel channel;
+
+        /** The key of the channel. */
+        SelectionKey key;
+
+        /** The buffers waiting to be written. */
+        final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+        /** The number of bytes waiting to be written. */
+        long pendingBytes;
+
+        /**
+         * Writes the given buffer, queueing whatever could not be written right away.
+         */
+        void send(ByteBuffer buffer) {
+            if(channel == null) return;
+
+            try {
+                if(writeQueue.isEmpty()) channel.write(buffer);
+            } catch (IOException e) {
+                fail();
+                return;
+            }
+
+            if(buffer.hasRemaining()) {
+                writeQueue.add(buffer);
+                pendingBytes += buffer.remaining();
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                if(pendingBytes > MAX_PENDING_BYTES) overflow();
+            }
+        }
+
+        void writeQueued() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer buffer = writeQueue.peek();
+                int written = channel.write(buffer);
+                pendingBytes -= written;
+
+                if(buffer.hasRemaining()) return;
+                writeQueue.poll();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            drained();
+        }
+
+        /**
+         * Reads what is available into the shared read buffer and processes it.
+         */
+        abstract void read() throws IOException;
+
+        /** Called once the connection has broken. */
+        abstract void fail();
+
+        /** Called once more bytes are queued for the connection than allowed. */
+        void overflow() { }
+
+        /** Called once all of the queued buffers were written. */
+        void drained() { }
+
+        void closeChannel() {
+            try {
+                if(channel != null) channel.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+            writeQueue.clear();
+            pendingBytes = 0;
+        }
+    }
+
+    //===========================================================
+    //                       Clients
+    //===========================================================
+
+    /**
+     * The connection of a single client, which goes through the handshake first,
+     * and is then forwarded to its backend as a session of the backend link.
+     */
+    private class ClientConnection extends Connection {
+
+        /** The handshake bytes received so far. */
+        private final ByteBuffer handshake = ByteBuffer.allocate(MAX_HANDSHAKE_SIZE);
+
+        /** The backend the client is forwarded to; {@code null} during the handshake. */
+        private BackendLink backend;
+
+        /** The id of the client's session on the backend link. */
+        private int sessionId;
+
+        /** Set once the login was told the gateway is not full. */
+        private boolean sentEstablished;
+
+        /** Set once the backend has closed the session; the client is closed once its queue is written. */
+        private boolean closing;
+
+        ClientConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        void read() throws IOException {
+            if(closing) {
+                // Anything the client sends while being closed is discarded.
+                readBuffer.clear();
+                if(channel.read(readBuffer) < 0) throw new IOException("Client disconnected.");
+                return;
+            }
+
+            if(backend == null) {
+                if(channel.read(handshake) < 0) throw new IOException("Client disconnected.");
+                readHandshake();
+                return;
+            }
+
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if(read < 0) throw new IOException("Client disconnected.");
+            if(read > 0) backend.send(frame(sessionId, DATA, readBuffer.array(), 0, read));
+        }
+
+        /**
+         * Parses the request flag and the username and the password lines, preceded
+         * by the protocol version line of the single round trip login; the only
+         * bytes of the client protocol the gateway parses. The bytes that follow are
+         * forwarded as they are.
+         */
+        private void readHandshake() {
+            byte[] bytes = handshake.array();
+            int length = handshake.position();
+            if(length == 0) return;
+
+            byte request = bytes[0];
+            boolean login = request == Client.LOGIN_REQUEST || request == Client.DIRECT_LOGIN_REQUEST;
+            if(!login && request != Client.REGISTRATION_REQUEST) {
+                System.err.println("Invalid client request. Closing client connection.");
+                fail();
+                return;
+            }
+
+            // The legacy login is first told the gateway is not full; the backend may still be.
+            if(request == Client.LOGIN_REQUEST && !sentEstablished) {
+                send(ByteBuffer.wrap(new byte[] {Server.LOGIN_ESTABLISHED_SERVER_NOT_FULL}));
+                sentEstablished = true;
+            }
+
+            int credentialsStart = 1;
+            if(request == Client.DIRECT_LOGIN_REQUEST) {
+                int versionEnd = indexOf(bytes, 1, length);
+                if(versionEnd < 0) {
+                    if(!handshake.hasRemaining()) fail();
+                    return;
+                }
+                credentialsStart = versionEnd + 1;
+            }
+
+            int usernameEnd = indexOf(bytes, credentialsStart, length);
+            int passwordEnd = usernameEnd < 0 ? -1 : indexOf(bytes, usernameEnd + 1, length);
+            if(passwordEnd < 0) {
+                if(!handshake.hasRemaining()) fail();
+                return;
+            }
+
+            if(request == Client.DIRECT_LOGIN_REQUEST && !line(bytes, 1, credentialsStart - 1).equals(Integer.toString(Client.PROTOCOL_VERSION))) {
+                send(ByteBuffer.wrap(new byte[] {Server.LOGIN_DENIED_UNSUPPORTED_PROTOCOL}));
+                closing = true;
+                drainedOrLater();
+                return;
+            }
+
+            String username = line(bytes, credentialsStart, usernameEnd);
+            String password = line(bytes, usernameEnd + 1, passwordEnd);
+
+            BackendLink target = ring.get(username, BackendLink::isConnected);
+            if(target == null) {
+                send(ByteBuffer.wrap(new byte[] {login ? Server.LOGIN_DENIED_IO_ERROR : Server.REGISTRATION_FAILED_IO_ERROR}));
+                closing = true;
+                drainedOrLater();
+                return;
+            }
+
+            backend = target;
+            sessionId = target.open(this, login ? OPEN_LOGIN : OPEN_REGISTRATION, username, password);
+
+            // Whatever the client has already sent after the handshake.
+            if(length > passwordEnd + 1) {
+                target.send(frame(sessionId, DATA, bytes, passwordEnd + 1, length - passwordEnd - 1));
+            }
+        }
+
+        private int indexOf(byte[] bytes, int from, int to) {
+            for(int i = from; i < to; i++) {
+                if(bytes[i] == '\n') return i;
+            }
+            return -1;
+        }
+
+        private String line(byte[] bytes, int from, int end) {
+            if(end > from && bytes[end - 1] == '\r') end--;
+            return new String(bytes, from, end - from, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The backend has closed the session; the client is closed once it was sent everything.
+         */
+        void sessionClosed() {
+            backend = null;
+            closing = true;
+            drainedOrLater();
+        }
+
+        private void drainedOrLater() {
+            if(writeQueue.isEmpty()) drained();
+        }
+
+        @Override
+        void drained() {
+            if(closing) {
+                key.cancel();
+                closeChannel();
+            }
+        }
+
+        @Override
+        void overflow() {
+            System.err.println("Client has fallen behind, disconnecting it.");
+            fail();
+        }
+
+        @Override
+        void fail() {
+            if(backend != null) backend.close(sessionId);
+            backend = null;
+            key.cancel();
+            closeChannel();
+        }
+    }
+
+    //===========================================================
+    //                       Backends
+    //===========================================================
+
+    /**
+     * The link to a single backend, shared by all of the clients routed to it.
+     */
+    private class BackendLink extends Connection {
+
+        /** The address of the backend's gateway port. */
+        private final InetSocketAddress address;
+
+        /** The clients forwarded over this link, mapped to their session ids. */
+        private final Map<Integer, ClientConnection> sessions = new HashMap<>();
+
+        /** The frames read so far. */
+        private final ByteBuffer frames = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD_SIZE);
+
+        /** The id of the next session. */
+        private int nextSessionId;
+
+        /** Set once the connection was established. */
+        private boolean connected;
+
+        /** The time of the last connection attempt. */
+        private long lastAttempt;
+
+        BackendLink(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        void connect(long now) {
+            lastAttempt = now;
+
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                if(channel.connect(address)) finishConnect();
+
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if(!channel.finishConnect()) return;
+
+            key.interestOps(SelectionKey.OP_READ);
+            connected = true;
+            frames.clear();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(HANDSHAKE);
+            send(ByteBuffer.wrap(bytes.toByteArray()));
+            System.out.println("Backend " + address + " connected.");
+        }
+
+        /**
+         * Opens a new session for the given client.
+         * @return the id of the session
+         */
+        int open(ClientConnection client, byte type, String username, String password) {
+            int sessionId = nextSessionId++;
+            sessions.put(sessionId, client);
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream payload = new DataOutputStream(bytes);
+                payload.writeUTF(username);
+                payload.writeUTF(password);
+                send(frame(sessionId, type, bytes.toByteArray(), 0, bytes.size()));
+            } catch (IOException e) {
+                // Writing to the memory never fails.
+            }
+
+            return sessionId;
+        }
+
+        /**
+         * Closes the session of a client that has disconnected.
+         */
+        void close(int sessionId) {
+            if(sessions.remove(sessionId) != null) {
+                send(frame(sessionId, CLOSE, new byte[0], 0, 0));
+            }
+        }
+
+        @Override
+        void read() throws IOException {
+            if(channel.read(frames) < 0) throw new IOException("Backend disconnected.");
+            frames.flip();
+
+            while (frames.remaining() >= HEADER_SIZE) {
+                int position = frames.position();
+                int sessionId = frames.getInt(position);
+                byte type = frames.get(position + 4);
+                int length = frames.getInt(position + 5);
+
+                if(length < 0 || length > MAX_PAYLOAD_SIZE) throw new IOException("Corrupted gateway frame.");
+                if(frames.remaining() < HEADER_SIZE + length) break;
+
+                frames.position(position + HEADER_SIZE);
+                processFrame(sessionId, type, length);
+            }
+
+            frames.compact();
+        }
+
+        private void processFrame(int sessionId, byte type, int length) {
+            ClientConnection client = sessions.get(sessionId);
+            if(client == null) {
+                frames.position(frames.position() + length);
+                return;
+            }
+
+            switch (type) {
+                case STATUS:
+                    byte status = frames.get();
+                    frames.position(frames.position() + length - 1);
+                    client.send(ByteBuffer.wrap(new byte[] {status}));
+                    if(status != Server.LOGIN_ACCEPTED) {
+                        sessions.remove(sessionId);
+                        client.sessionClosed();
+                    }
+                    break;
+
+                case DATA:
+                    byte[] data = new byte[length];
+                    frames.get(data);
+                    client.send(ByteBuffer.wrap(data));
+                    break;
+
+                case CLOSE:
+                    frames.position(frames.position() + length);
+                    sessions.remove(sessionId);
+                    client.sessionClosed();
+                    break;
+
+                default:
+                    frames.position(frames.position() + length);
+            }
+        }
+
+        @Override
+        void fail() {
+            if(connected) System.err.println("Backend " + address + " disconnected, closing its " + sessions.size() + " clients.");
+            connected = false;
+
+            if(key != null) key.cancel();
+            closeChannel();
+            channel = null;
+
+            List<ClientConnection> clients = new ArrayList<>(sessions.values());
+            sessions.clear();
+            for(ClientConnection client : clients) {
+                client.backend = null;
+                client.fail();
+            }
+        }
+    }
+}
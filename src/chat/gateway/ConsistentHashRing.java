@@ -0,0 +1,84 @@
+package chat.gateway;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Maps the keys to the nodes by consistent hashing. Every node is placed on
+ * the ring at several points, its virtual nodes, and a key belongs to the node
+ * of the first point at or after the key's hash. Adding or removing a node thus
+ * moves only the keys of the neighbouring points, and a node that is down hands
+ * its keys over to the following nodes on the ring only until it is back.
+ * @param <T> the type of the nodes
+ */
+public class ConsistentHashRing<T> {
+
+    /** The points of the ring, mapped to their nodes. */
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+
+    /** The number of points every node is placed at. */
+    private final int virtualNodes;
+
+    /**
+     * Constructs a new, empty ring.
+     * @param virtualNodes the number of points every node is placed at
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        if(virtualNodes < 1) throw new IllegalArgumentException("Number of virtual nodes must be positive.");
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Places the given node on the ring.
+     * @param node the node
+     * @param name the name of the node, which its points are derived from; must be
+     *             stable across restarts, so that the keys keep their nodes
+     */
+    public void add(T node, String name) {
+        Objects.requireNonNull(node, "Node cannot be null.");
+
+        for(int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(name + "#" + i), node);
+        }
+    }
+
+    /**
+     * Returns the node of the given key, skipping the nodes that are not available.
+     * @param key the key
+     * @param available tells whether a node is available
+     * @return the node, or {@code null} if no node is available
+     */
+    public T get(String key, Predicate<T> available) {
+        if(ring.isEmpty()) return null;
+        long hash = hash(key);
+
+        for(T node : ring.tailMap(hash).values()) {
+            if(available.test(node)) return node;
+        }
+        for(Map.Entry<Long, T> point : ring.headMap(hash).entrySet()) {
+            if(available.test(point.getValue())) return point.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * 64-bit FNV-1a of the characters, finished with the MurmurHash3 mixer,
+     * as the FNV hashes of similar short strings are poorly spread.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0, len = key.length(); i < len; i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
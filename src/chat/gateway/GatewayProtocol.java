@@ -0,0 +1,38 @@
+package chat.gateway;
+
+/**
+ * The protocol of the link between the {@link ChatGateway} and a backend
+ * server. A single link carries the sessions of many clients. Every frame
+ * consists of the session id, the frame type, the payload length and the
+ * payload. The payload of the {@link #DATA} frames is the raw bytes of the
+ * client protocol, forwarded without being parsed.
+ */
+public interface GatewayProtocol {
+
+    /** The first string sent by the gateway, identifying the gateway link protocol. */
+    String HANDSHAKE = "chat-gateway-1";
+
+    /** The length of the frame header: the session id, the frame type and the payload length. */
+    int HEADER_SIZE = 9;
+
+    /** The maximum length of a frame payload. */
+    int MAX_PAYLOAD_SIZE = 16 * 1024;
+
+    /** Gateway to backend: log in the client; the payload is the username and the password. */
+    byte OPEN_LOGIN = 1;
+
+    /** Gateway to backend: register the client; the payload is the username and the password. */
+    byte OPEN_REGISTRATION = 2;
+
+    /**
+     * Backend to gateway: the outcome of the login or the registration; the payload is the
+     * single login or registration flag. Only an accepted login keeps the session open.
+     */
+    byte STATUS = 3;
+
+    /** Either way: the client protocol bytes of the session. */
+    byte DATA = 4;
+
+    /** Either way: the session is closed; there is no payload. */
+    byte CLOSE = 5;
+}
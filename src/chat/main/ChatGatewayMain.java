@@ -0,0 +1,39 @@
+package chat.main;
+
+import chat.gateway.ChatGateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a new gateway process, which balances the clients across the
+ * backend servers started with a gateway port.
+ * <br>
+ * Usage: {@code ChatGatewayMain <port> <host:gatewayPort> [host:gatewayPort ...]}
+ */
+public class ChatGatewayMain {
+
+    /**
+     * Gateway process starts from here.
+     *
+     * @param args the client port and the addresses of the backends' gateway ports
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: ChatGatewayMain <port> <host:gatewayPort> [host:gatewayPort ...]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+
+        List<InetSocketAddress> backends = new ArrayList<>();
+        for(int i = 1; i < args.length; i++) {
+            int colon = args[i].lastIndexOf(':');
+            backends.add(new InetSocketAddress(args[i].substring(0, colon), Integer.parseInt(args[i].substring(colon + 1))));
+        }
+
+        new ChatGateway(port, backends, ChatGateway.DEFAULT_VIRTUAL_NODES).start();
+    }
+}
@@ -0,0 +1,79 @@
+package chat.main;
+
+import chat.server.ChatServer;
+import chat.server.listener.ServerEventListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Starts a new server process as the primary or the hot standby of a failover
+ * pair, without the graphical user interface. Both servers need their own
+ * working directory, containing their own {@code res} directory, and run on
+ * the same host, as the standby takes over the primary's port.
+ * <br>
+ * Usage: <br>
+ * {@code ChatServerFailoverMain primary <port> <maxClients> <replicationPort> <standbyPort> <secretFile>} <br>
+ * {@code ChatServerFailoverMain standby <port> <maxClients> <primaryHost> <replicationPort> <standbyPort> <secretFile>}
+ * <br>
+ * Both servers authenticate their links with the secret read from the given
+ * file, which must be the same on both. The primary accepts the standby on
+ * the loopback address only.
+ */
+public class ChatServerFailoverMain {
+
+    /**
+     * Failover server process starts from here.
+     *
+     * @param args the role, the client port, the client limit and the ports of the
+     *             primary's replication and standby links
+     */
+    public static void main(String[] args) throws IOException {
+        boolean primary = args.length == 6 && args[0].equals("primary");
+        boolean standby = args.length == 7 && args[0].equals("standby");
+
+        if(!primary && !standby) {
+            System.err.println("Usage: ChatServerFailoverMain primary <port> <maxClients> <replicationPort> <standbyPort> <secretFile>");
+            System.err.println("       ChatServerFailoverMain standby <port> <maxClients> <primaryHost> <replicationPort> <standbyPort> <secretFile>");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[1]);
+        ChatServer server = new ChatServer(Integer.parseInt(args[2]));
+        byte[] secret = Files.readString(Paths.get(args[args.length - 1])).trim().getBytes(StandardCharsets.UTF_8);
+
+        try {
+            if(primary) {
+                server.enableReplicationLeader(InetAddress.getLoopbackAddress(), Integer.parseInt(args[3]), secret);
+                server.enableStandbyPublisher(InetAddress.getLoopbackAddress(), Integer.parseInt(args[4]), secret);
+            } else {
+                server.enableStandby(args[3], Integer.parseInt(args[4]), Integer.parseInt(args[5]), secret);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        server.addServerListener(new ServerEventListener() {
+            @Override
+            public void serverStarted() {
+                System.out.println("Server started on port " + port + ".");
+            }
+
+            @Override
+            public void serverClosed() {
+                System.out.println("Server closed.");
+            }
+
+            @Override
+            public void serverMessage(String message) {
+                System.out.println(message);
+            }
+        });
+
+        server.start(port);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,105 @@
+package chat.main;
+
+import chat.server.ChatServer;
+import chat.server.ServerConfig;
+import chat.server.listener.ServerEventListener;
+import chat.server.runtime.ServerRuntime;
+
+import java.io.IOException;
+
+/**
+ * Starts a single server without the graphical user interface, configured by
+ * a properties file and the command line flags, as described by {@link ServerConfig}.
+ * Nothing of AWT or Swing is loaded, so the server runs on machines without a display.
+ * <br>
+ * Once the process is stopped, as with {@code SIGTERM} or {@code SIGINT}, the
+ * server is closed the same way it is closed from the user interface, before
+ * the process exits.
+ * <br>
+ * Usage: {@code ChatServerHeadlessMain [--config <file>] [--<key> <value>] ...}
+ */
+public class ChatServerHeadlessMain {
+
+    /**
+     * Server process starts from here.
+     *
+     * @param args the configuration flags
+     */
+    public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ChatServerHeadlessMain " + ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+
+        ServerRuntime runtime = new ServerRuntime(config.getTimerThreads(), config.getIoThreads(), config.getIoKeepAliveSeconds());
+        ChatServer server = new ChatServer(runtime, config.getName(), config.getResourceDirectory(),
+                config.getMaxClients(), config.getPresenceWindowMillis(), config.getPresenceThreshold());
+        server.setSessionResumption(config.getResumeWindowMillis(), config.getReplayBufferBytes());
+
+        try {
+            switch (config.getDao()) {
+                case ServerConfig.DAO_REPLICATION_LEADER:
+                    server.enableReplicationLeader(config.getReplicationBindAddress(), config.getReplicationPort(),
+                            config.readReplicationSecret());
+                    break;
+                case ServerConfig.DAO_REPLICATION_FOLLOWER:
+                    server.enableReplicationFollower(config.getReplicationLeaderHost(), config.getReplicationLeaderPort(),
+                            config.readReplicationSecret());
+                    break;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not enable the replication: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if(config.getGatewayPort() > 0) server.enableGatewayEndpoint(config.getGatewayPort());
+
+        boolean[] started = new boolean[1];
+        server.addServerListener(new ServerEventListener() {
+            @Override
+            public void serverStarted() {
+                started[0] = true;
+                System.out.println("Server '" + config.getName() + "' started on port " + config.getPort() + ".");
+            }
+
+            @Override
+            public void serverClosed() {
+                System.out.println("Server '" + config.getName() + "' closed.");
+            }
+
+            @Override
+            public void serverMessage(String message) {
+                System.out.println(message);
+            }
+        });
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(server, config.getShutdownTimeoutMillis()),
+                "ChatServerHeadlessMain shutdown"));
+
+        System.out.println("Configuration: " + config);
+        // Returns once the server is closed.
+        server.start(config.getPort());
+        if(!started[0]) System.exit(1);
+    }
+
+    /**
+     * Closes the server, giving up once the given time has passed, so a stuck
+     * close never keeps the process from exiting.
+     */
+    private static void shutdown(ChatServer server, long timeoutMillis) {
+        Thread closing = new Thread(server::shutdown, "ChatServerHeadlessMain close");
+        closing.setDaemon(true);
+        closing.start();
+        try {
+            closing.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            // Exiting anyway.
+        }
+        if(closing.isAlive()) System.err.println("Server did not close within " + timeoutMillis + " ms, exiting anyway.");
+    }
+}
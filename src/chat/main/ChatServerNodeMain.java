@@ -0,0 +1,132 @@
+package chat.main;
+
+import chat.server.ChatServer;
+import chat.server.federation.PeerAddress;
+import chat.server.listener.ServerEventListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a new server process as a node of the federation, without the
+ * graphical user interface. Every node needs its own working directory,
+ * containing its own {@code res} directory.
+ * <br>
+ * Usage: {@code ChatServerNodeMain <nodeId> <port> <maxClients> <federationPort> --federation-secret <file>
+ * [--federation-bind <address>] [nodeId@host:port ...]
+ * [--replication-leader <port> [--replication-bind <address>] | --replication-follower <host:port>] [--gateway <port>]}
+ * <br>
+ * The nodes authenticate their links with the secret read from the given file,
+ * which must be the same on every node. The federation port is bound to the
+ * loopback address unless another address is given.
+ * <br>
+ * The client data is replicated between the nodes only if one of them is
+ * started as the replication leader and the others as its followers. The
+ * replication links are authenticated with the same secret, and the
+ * replication port is also bound to the loopback address unless another
+ * address is given.
+ */
+public class ChatServerNodeMain {
+
+    /**
+     * Server node process starts from here.
+     *
+     * @param args the node id, the client port, the client limit, the federation
+     *             port, the addresses of the peer nodes, the replication role and
+     *             the gateway port
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 4) {
+            printUsage();
+            System.exit(1);
+        }
+
+        String nodeId = args[0];
+        int port = Integer.parseInt(args[1]);
+        int maxClients = Integer.parseInt(args[2]);
+        int federationPort = Integer.parseInt(args[3]);
+
+        ChatServer server = new ChatServer(maxClients);
+        List<PeerAddress> peers = new ArrayList<>();
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        InetAddress replicationBindAddress = InetAddress.getLoopbackAddress();
+        int replicationPort = -1;
+        String replicationLeader = null;
+        byte[] secret = null;
+
+        for(int i = 4; i < args.length; i++) {
+            if(args[i].equals("--federation-secret") && i + 1 < args.length) {
+                secret = Files.readString(Paths.get(args[++i])).trim().getBytes(StandardCharsets.UTF_8);
+
+            } else if(args[i].equals("--federation-bind") && i + 1 < args.length) {
+                bindAddress = InetAddress.getByName(args[++i]);
+
+            } else if(args[i].equals("--replication-leader") && i + 1 < args.length) {
+                replicationPort = Integer.parseInt(args[++i]);
+
+            } else if(args[i].equals("--replication-bind") && i + 1 < args.length) {
+                replicationBindAddress = InetAddress.getByName(args[++i]);
+
+            } else if(args[i].equals("--replication-follower") && i + 1 < args.length) {
+                replicationLeader = args[++i];
+
+            } else if(args[i].equals("--gateway") && i + 1 < args.length) {
+                server.enableGatewayEndpoint(Integer.parseInt(args[++i]));
+
+            } else {
+                peers.add(PeerAddress.parse(args[i]));
+            }
+        }
+
+        if(secret == null) {
+            System.err.println("The federation secret is required.");
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            server.enableFederation(nodeId, bindAddress, federationPort, peers, secret);
+
+            if(replicationPort > 0) {
+                server.enableReplicationLeader(replicationBindAddress, replicationPort, secret);
+            } else if(replicationLeader != null) {
+                int colon = replicationLeader.lastIndexOf(':');
+                server.enableReplicationFollower(replicationLeader.substring(0, colon),
+                        Integer.parseInt(replicationLeader.substring(colon + 1)), secret);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        server.addServerListener(new ServerEventListener() {
+            @Override
+            public void serverStarted() {
+                System.out.println("Node '" + nodeId + "' started on port " + port + ", federation port " + federationPort + ".");
+            }
+
+            @Override
+            public void serverClosed() {
+                System.out.println("Node '" + nodeId + "' closed.");
+            }
+
+            @Override
+            public void serverMessage(String message) {
+                System.out.println(message);
+            }
+        });
+
+        server.start(port);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: ChatServerNodeMain <nodeId> <port> <maxClients> <federationPort> --federation-secret <file>"
+                + " [--federation-bind <address>] [nodeId@host:port ...]"
+                + " [--replication-leader <port> [--replication-bind <address>] | --replication-follower <host:port>]"
+                + " [--gateway <port>]");
+    }
+}
@@ -0,0 +1,66 @@
+package chat.main;
+
+import chat.server.ChatServer;
+import chat.server.listener.ServerEventListener;
+import chat.server.runtime.ServerRuntime;
+
+import java.nio.file.Paths;
+
+/**
+ * Starts several servers in a single process, without the graphical user
+ * interface. The servers share the threads of a single runtime, while each
+ * has its own port, client limit and resource directory, so its own client
+ * data and command list.
+ * <br>
+ * Usage: {@code ChatServerRuntimeMain <name>:<port>:<maxClients>:<resourceDirectory> ...}
+ */
+public class ChatServerRuntimeMain {
+
+    /**
+     * Server process starts from here.
+     *
+     * @param args the specifications of the servers
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if(args.length == 0) {
+            System.err.println("Usage: ChatServerRuntimeMain <name>:<port>:<maxClients>:<resourceDirectory> ...");
+            System.exit(1);
+        }
+
+        ServerRuntime runtime = new ServerRuntime(ServerRuntime.DEFAULT_TIMER_THREADS);
+
+        for(String spec : args) {
+            String[] parts = spec.split(":", 4);
+            if(parts.length != 4) {
+                System.err.println("Invalid server specification '" + spec + "'.");
+                System.exit(1);
+            }
+
+            String name = parts[0];
+            int port = Integer.parseInt(parts[1]);
+            ChatServer server = new ChatServer(runtime, name, Paths.get(parts[3]), Integer.parseInt(parts[2]));
+
+            server.addServerListener(new ServerEventListener() {
+                @Override
+                public void serverStarted() {
+                    System.out.println("Server '" + name + "' started on port " + port + ".");
+                }
+
+                @Override
+                public void serverClosed() {
+                    System.out.println("Server '" + name + "' closed.");
+                }
+
+                @Override
+                public void serverMessage(String message) {
+                    System.out.println("[" + name + "] " + message);
+                }
+            });
+
+            server.getTenant().execute(() -> server.start(port));
+        }
+
+        // The runtime's threads are daemons, the process lives as long as this thread.
+        Thread.currentThread().join();
+    }
+}
@@ -2,15 +2,43 @@ package chat.server;
 
 import chat.server.listener.ServerClientListener;
 import chat.server.listener.ServerEventListener;
+import chat.server.runtime.Tenant;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 abstract class AbstractChatServer implements Server {
 
-    /** A list of workers of this server. Each worker represents a single client. */
-    List<ServerWorker> workers = new ArrayList<>();
+    /**
+     * A list of workers of this server. Each worker represents a single client.
+     * Modified only under the server's lock, along with the roster version.
+     */
+    List<ServerWorker> workers = new CopyOnWriteArrayList<>();
+
+    /** The length of the window the roster changes are collected over before they are sent, in milliseconds. */
+    private static final long ROSTER_WINDOW_MILLIS = 200;
+
+    /** The version of the roster of online clients, incremented on every roster delta sent. */
+    private long rosterVersion;
+
+    /** The last rendered roster snapshot, reused by the joining clients until the roster changes. */
+    private MessageBatch rosterSnapshot;
+
+    /**
+     * The clients whose roster changes were not sent yet, mapped to their last change,
+     * either {@link #ROSTER_ADDED} or {@link #ROSTER_REMOVED}. A change undone within
+     * the window is still sent, as a snapshot taken in between does not have it undone.
+     */
+    private final Map<String, Character> rosterChanges = new LinkedHashMap<>();
+
+    /** {@code true} if the flush of the roster changes is already scheduled. */
+    private boolean rosterFlushScheduled;
 
     /** A list of server event listeners. */
     private List<ServerEventListener> eventListeners = new ArrayList<>();
@@ -23,33 +51,114 @@ abstract class AbstractChatServer implements Server {
     //===========================================================
 
     /**
-     * Adds a new {@link ServerWorker} to the list of all the workers.
+     * Adds a new {@link ServerWorker} to the list of all the workers. The other
+     * clients are sent the roster change with the next roster delta, and the new
+     * client is sent the full roster snapshot, which already contains it.
      * @param worker the worker to be added
      */
-    void addServerWorker(ServerWorker worker) {
+    synchronized void addServerWorker(ServerWorker worker) {
         Objects.requireNonNull(worker, "Worker cannot be null.");
 
         String username = worker.getClientUsername();
-        if(isClientOnline(username)) {
+        if(getOnlineClient(username) != null) {
             System.err.println("User '" + username + "' is already added");
         } else {
+            rosterChanged(ROSTER_ADDED, username);
             workers.add(worker);
+            sendRoster(worker);
             notifyClientConnected(username);
         }
     }
 
     /**
      * Removes the given {@link ServerWorker} from the list of all the workers.
+     * The remaining clients are sent the roster change with the next roster delta.
      * @param worker the worker to be removed
      */
-    void removeServerWorker(ServerWorker worker) {
+    synchronized void removeServerWorker(ServerWorker worker) {
         boolean didRemove = workers.remove(worker);
 
         if(didRemove) {
+            rosterChanged(ROSTER_REMOVED, worker.getClientUsername());
             notifyClientDisconnected(worker.getClientUsername());
         }
     }
 
+    //===========================================================
+    //                         Roster
+    //===========================================================
+
+    /**
+     * Sends the full roster of online clients, tagged with the current roster
+     * version, to the given worker's client. The snapshot is rendered once per
+     * roster change. It already has the changes of the next roster delta, which
+     * the client applies once more, with no effect.
+     * @param worker the worker of the receiving client
+     */
+    public synchronized void sendRoster(ServerWorker worker) {
+        if(rosterSnapshot == null) {
+            List<String> lines = new ArrayList<>(workers.size() + 1);
+            lines.add(Long.toString(rosterVersion));
+            for(ServerWorker w : workers) {
+                lines.add(w.getClientUsername());
+            }
+
+            rosterSnapshot = new MessageBatch(ROSTER_SNAPSHOT, lines);
+        }
+
+        rosterSnapshot.writeTo(worker.getServerWriter());
+    }
+
+    /**
+     * Collects the given roster change, to be sent with the next roster delta,
+     * at the end of the current window.
+     * @param change either {@link #ROSTER_ADDED} or {@link #ROSTER_REMOVED}
+     * @param username the username of the added or removed client
+     */
+    private void rosterChanged(char change, String username) {
+        rosterSnapshot = null;
+        rosterChanges.put(username, change);
+        if(rosterFlushScheduled) return;
+
+        try {
+            getTenant().schedule(this::flushRosterChanges, ROSTER_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            rosterFlushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // The server is closing.
+        }
+    }
+
+    /**
+     * Advances the roster version and queues all of the changes of the window,
+     * as a single {@link #ROSTER_DELTA_BATCH} rendered once, to all of the workers
+     * currently in the list.
+     */
+    private void flushRosterChanges() {
+        MessageBatch delta;
+        synchronized (this) {
+            rosterFlushScheduled = false;
+            if(rosterChanges.isEmpty()) return;
+
+            List<String> lines = new ArrayList<>(rosterChanges.size() + 1);
+            lines.add(Long.toString(++rosterVersion));
+            rosterChanges.forEach((username, change) -> lines.add(change + username));
+            rosterChanges.clear();
+            rosterSnapshot = null;
+
+            delta = new MessageBatch(ROSTER_DELTA_BATCH, lines);
+        }
+
+        // A client added in the meantime has the changes in its snapshot already, and ignores the delta.
+        for(ServerWorker w : workers) {
+            delta.queueTo(w);
+        }
+    }
+
+    /**
+     * @return this server's share of the runtime, whose timers send the roster deltas
+     */
+    abstract Tenant getTenant();
+
     //===========================================================
     //                    Server information
     //===========================================================
@@ -0,0 +1,61 @@
+package chat.server;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Models a named chat room. Messages sent to the room are delivered
+ * only to the room's members, so the cost of a room message depends
+ * on the size of the room, not on the number of online clients.
+ */
+public class ChatRoom {
+
+    /** The name of the room. */
+    private final String name;
+
+    /** The workers of the clients that are members of this room. */
+    private final Set<ServerWorker> members = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs a new, empty room.
+     * @param name the name of the room
+     */
+    ChatRoom(String name) {
+        this.name = Objects.requireNonNull(name, "Room name cannot be null.");
+    }
+
+    boolean addMember(ServerWorker worker) {
+        return members.add(worker);
+    }
+
+    boolean removeMember(ServerWorker worker) {
+        return members.remove(worker);
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isMember(ServerWorker worker) {
+        return members.contains(worker);
+    }
+
+    public Set<ServerWorker> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
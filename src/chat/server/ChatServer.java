@@ -1,14 +1,44 @@
 package chat.server;
 
 import chat.client.Client;
+import chat.server.command.CommandDirectoryWatcher;
+import chat.server.command.CommandRegistry;
 import chat.server.dao.DAO;
 import chat.server.dao.DAOProvider;
+import chat.server.dao.ReplicatedDAO;
+import chat.server.federation.FederationListener;
+import chat.server.federation.FederationNode;
+import chat.server.federation.PeerAddress;
+import chat.server.history.MessageLog;
+import chat.server.history.MessageRecord;
+import chat.server.history.OfflineMailbox;
+import chat.server.history.RecentMessageBuffer;
+import chat.server.runtime.ServerRuntime;
+import chat.server.runtime.Tenant;
+import chat.server.search.SearchIndex;
+import chat.server.standby.StandbyMonitor;
+import chat.server.standby.StandbyPublisher;
+import chat.server.topic.SubscriptionTrie;
 
 import java.io.*;
+import java.net.BindException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
  * Models the chat-server that receives client's messages,
@@ -16,14 +46,122 @@ import java.util.List;
  */
 public class ChatServer extends AbstractChatServer {
 
+    /** The prefix of the topics the moderation events are published on, as in {@code events.moderation.kick}. */
+    public static final String MODERATION_TOPIC_PREFIX = "events.moderation.";
+
+    /**
+     * The prefix of the topics the room messages are published on, as in {@code room.support}.
+     * Only the moderators are sent them, and only of the rooms they are not members of.
+     */
+    public static final String ROOM_TOPIC_PREFIX = "room.";
+
+    /** The number of the most recent global client messages replayed to the joining clients. */
+    private static final int RECENT_HISTORY_SIZE = 50;
+
+    /** The maximum number of the newest global client messages sent to a client synchronizing its history. */
+    private static final int HISTORY_SYNC_LIMIT = 500;
+
+    /** The default time a session whose connection dropped is kept for its client to resume it, in milliseconds. */
+    public static final long DEFAULT_RESUME_WINDOW_MILLIS = 30_000;
+
+    /** The default number of the most recent bytes sent to a session that are kept for its resumption. */
+    public static final int DEFAULT_REPLAY_BUFFER_SIZE = 64 * 1024;
+
+    /** The time between the attempts to open the port taken over from the primary, in milliseconds. */
+    private static final long TAKEOVER_BIND_RETRY_MILLIS = 20;
+
+    /** The resource directory of the servers that were not given one. */
+    private static final Path DEFAULT_RESOURCE_DIRECTORY = Paths.get("res");
+
+    /** The name of the tenant of the servers that were not given a runtime. */
+    private static final String DEFAULT_TENANT_NAME = "default";
+
     /** The maximum number of clients of this server. */
     private final int maxClients;
 
+    /** The time a session whose connection dropped is kept for its client to resume it, in milliseconds. */
+    private long resumeWindowMillis = DEFAULT_RESUME_WINDOW_MILLIS;
+
+    /** The number of the most recent bytes sent to a session that are kept for its resumption. */
+    private int replayBufferSize = DEFAULT_REPLAY_BUFFER_SIZE;
+
+    /** This server's share of the runtime, which runs its accept loop, its workers and its timers. */
+    private final Tenant tenant;
+
+    /** The directory holding this server's client data, commands, history and indexes. */
+    private final Path resourceDirectory;
+
+    /** Provides the client data of the resource directory. */
+    private final DAOProvider daoProvider;
+
+    /** The registry of all the commands that the clients of this server can execute. */
+    private final CommandRegistry commandRegistry;
+
+    /** Coalesces the join and leave announcements. */
+    private final PresenceAnnouncer presenceAnnouncer;
+
+    /** Tracks the presence states of the clients and throttles their updates. */
+    private final PresenceTracker presenceTracker;
+
     /** The socket of this server used to connect with incoming clients. */
     private ServerSocket acceptingSocket;
 
+    /** Keeps the command registry in sync with the command module directory. */
+    private CommandDirectoryWatcher commandWatcher;
+
+    /** The persistent log of all the client messages; {@code null} if it could not be opened. */
+    private MessageLog messageLog;
+
+    /** Identifies the global messages sent while the {@link #messageLog} is not kept, none of which has a sequence number. */
+    private final String unloggedHistoryId = UUID.randomUUID().toString();
+
+    /** The full-text index of the message log; {@code null} if it could not be opened. */
+    private SearchIndex searchIndex;
+
+    /** The mailboxes of the offline clients; {@code null} if they could not be opened. */
+    private OfflineMailbox offlineMailbox;
+
+    /** Links this server with the other federated servers; {@code null} if the federation is not enabled. */
+    private FederationNode federation;
+
+    /** Replicates the client data between the servers; {@code null} if the replication is not enabled. */
+    private ReplicatedDAO replication;
+
+    /** Streams the recent history and the heartbeats to the standby; {@code null} if no standby is expected. */
+    private StandbyPublisher standbyPublisher;
+
+    /** Watches the primary while this server stands by; {@code null} if this server is not a standby. */
+    private StandbyMonitor standbyMonitor;
+
+    /** Serves the clients forwarded by the gateways; {@code null} if the gateways are not accepted. */
+    private GatewayEndpoint gatewayEndpoint;
+
+    /** Maps the room name to the room. Rooms are created on the first join and removed once empty. */
+    private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    /** The topic subscriptions of the clients. */
+    private final SubscriptionTrie<ServerWorker> subscriptions = new SubscriptionTrie<>();
+
+    /** The most recent global client messages. */
+    private final RecentMessageBuffer recentMessages = new RecentMessageBuffer(RECENT_HISTORY_SIZE);
+
+    /** The last rendered recent history, reused by the joining clients until a new message arrives. */
+    private volatile RenderedHistory renderedHistory;
+
+    /** Issues and verifies the tokens resuming the sessions. */
+    private final ResumeTokens resumeTokens = new ResumeTokens();
+
+    /** Maps the session id to the worker of every session that may be resumed. */
+    private final ConcurrentHashMap<Long, ServerWorker> sessions = new ConcurrentHashMap<>();
+
+    /** Issues the connected sessions fresh resume tokens; {@code null} until the server is started. */
+    private ScheduledFuture<?> tokenRefresh;
+
+    /** The id of the next session. */
+    private final AtomicLong nextSessionId = new AtomicLong();
+
     /** The DAO instance used by the server. */
-    private DAO dao = DAOProvider.getInstance().getDAO();
+    private DAO dao;
 
     //===========================================================
     //                      Constructors
@@ -36,22 +174,203 @@ public class ChatServer extends AbstractChatServer {
      * @param maxClients the maximum number of clients
      */
     public ChatServer(int maxClients) {
+        this(maxClients, PresenceAnnouncer.DEFAULT_WINDOW_MILLIS, PresenceAnnouncer.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructs a new {@link ChatServer} object, with specified client
+     * limit and the coalescing of the join and leave announcements.
+     *
+     * @param maxClients the maximum number of clients
+     * @param presenceWindowMillis the length of the window over which the join and
+     *                             leave announcements are coalesced, in milliseconds
+     * @param presenceThreshold the number of joins or leaves in a single window above
+     *                          which they are announced as a single summary line
+     */
+    public ChatServer(int maxClients, long presenceWindowMillis, int presenceThreshold) {
+        this(ServerRuntime.getDefault(), DEFAULT_TENANT_NAME, DEFAULT_RESOURCE_DIRECTORY, maxClients,
+                presenceWindowMillis, presenceThreshold);
+    }
+
+    /**
+     * Constructs a new {@link ChatServer} object, running as a tenant of the
+     * given runtime, with its own resource directory and client limit.
+     *
+     * @param runtime the runtime shared with the other servers of the JVM
+     * @param tenantName the name of this server within the runtime
+     * @param resourceDirectory the directory holding the client list, the command list
+     *                          and the history of this server
+     * @param maxClients the maximum number of clients
+     */
+    public ChatServer(ServerRuntime runtime, String tenantName, Path resourceDirectory, int maxClients) {
+        this(runtime, tenantName, resourceDirectory, maxClients,
+                PresenceAnnouncer.DEFAULT_WINDOW_MILLIS, PresenceAnnouncer.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructs a new {@link ChatServer} object, running as a tenant of the
+     * given runtime, with its own resource directory, client limit and the
+     * coalescing of the join and leave announcements.
+     *
+     * @param runtime the runtime shared with the other servers of the JVM
+     * @param tenantName the name of this server within the runtime
+     * @param resourceDirectory the directory holding the client list, the command list
+     *                          and the history of this server
+     * @param maxClients the maximum number of clients
+     * @param presenceWindowMillis the length of the window over which the join and
+     *                             leave announcements are coalesced, in milliseconds
+     * @param presenceThreshold the number of joins or leaves in a single window above
+     *                          which they are announced as a single summary line
+     */
+    public ChatServer(ServerRuntime runtime, String tenantName, Path resourceDirectory, int maxClients,
+                      long presenceWindowMillis, int presenceThreshold) {
         this.maxClients = maxClients;
+        this.tenant = runtime.register(tenantName);
+        this.resourceDirectory = resourceDirectory;
+        this.daoProvider = DAOProvider.forDirectory(resourceDirectory);
+        this.dao = daoProvider.getDAO();
+        this.commandRegistry = CommandRegistry.load(resourceDirectory.resolve("command-list.txt"));
+        this.presenceAnnouncer = new PresenceAnnouncer(presenceWindowMillis, presenceThreshold, this::sendGlobalServerMessages, tenant);
+        this.presenceTracker = new PresenceTracker(PresenceTracker.DEFAULT_TICK_MILLIS, this::sendPresenceUpdates, tenant);
     }
 
     //===========================================================
     //                      Public API
     //===========================================================
 
+    /**
+     * Makes this server a node of the federation, linked with the given peer nodes.
+     * Global messages, private messages to the clients of the other nodes and the
+     * kick, ban and delete events are then relayed between the nodes. Must be called
+     * before the server is started.
+     *
+     * @param nodeId the id of this node, unique within the federation
+     * @param bindAddress the address this node accepts the peer links on
+     * @param federationPort the port this node accepts the peer links on
+     * @param peers the addresses of the peer nodes
+     * @param secret the secret shared by the nodes of the federation, which authenticates the links
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public void enableFederation(String nodeId, InetAddress bindAddress, int federationPort, List<PeerAddress> peers, byte[] secret) {
+        federation = new FederationNode(nodeId, bindAddress, federationPort, peers, secret,
+                new RemoteEventHandler(), this::getLocalClients);
+    }
+
+    /**
+     * Makes this server the leader of the client data replication: all of the
+     * changes of the client data are logged and streamed to the followers, which
+     * connect to the given address. Must be called before the server is started.
+     *
+     * @param bindAddress the address the followers connect to
+     * @param replicationPort the port the followers connect to
+     * @param secret the secret shared by the leader and its followers, which authenticates the links
+     * @throws IOException if the change log could not be opened
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public void enableReplicationLeader(InetAddress bindAddress, int replicationPort, byte[] secret) throws IOException {
+        replication = daoProvider.createReplicationLeader(bindAddress, replicationPort, secret);
+        dao = replication;
+    }
+
+    /**
+     * Makes this server a follower of the client data replication: the client
+     * data is streamed from the leader at the given address, and the changes made
+     * on this server are forwarded to the leader. Must be called before the server
+     * is started.
+     *
+     * @param leaderHost the leader's host
+     * @param leaderPort the leader's replication port
+     * @param secret the secret shared by the leader and its followers, which authenticates the links
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public void enableReplicationFollower(String leaderHost, int leaderPort, byte[] secret) {
+        replication = daoProvider.createReplicationFollower(leaderHost, leaderPort, secret);
+        dao = replication;
+    }
+
+    /**
+     * Lets a standby server follow this server, the primary, over the given port:
+     * the standby is streamed the recent history and the heartbeats. The standby
+     * follows the client data through the replication, so this server must also
+     * be the replication leader. Must be called before the server is started.
+     *
+     * @param bindAddress the address the standby connects to
+     * @param standbyPort the port the standby connects to
+     * @param secret the secret shared with the standby, which authenticates the link
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public void enableStandbyPublisher(InetAddress bindAddress, int standbyPort, byte[] secret) {
+        standbyPublisher = new StandbyPublisher(bindAddress, standbyPort, secret, recentMessages);
+    }
+
+    /**
+     * Makes this server the standby of the primary at the given host. Once
+     * started, the server does not accept any clients; it follows the primary's
+     * client data and recent history and, once the primary stops sending the
+     * heartbeats, takes over its port, so the clients reconnect to a server that
+     * already has all of the data loaded. Must be called before the server is started.
+     *
+     * @param primaryHost the primary's host
+     * @param replicationPort the primary's replication port
+     * @param standbyPort the primary's standby port
+     * @param secret the secret shared with the primary, which authenticates the links
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public void enableStandby(String primaryHost, int replicationPort, int standbyPort, byte[] secret) {
+        enableReplicationFollower(primaryHost, replicationPort, secret);
+        standbyMonitor = new StandbyMonitor(primaryHost, standbyPort, secret,
+                StandbyMonitor.DEFAULT_FAILOVER_TIMEOUT_MILLIS, RECENT_HISTORY_SIZE);
+    }
+
+    /**
+     * Makes this server a backend of the gateways, which connect to the given port
+     * and forward their clients' sessions over it. Must be called before the server
+     * is started.
+     *
+     * @param gatewayPort the port the gateways connect to
+     */
+    public void enableGatewayEndpoint(int gatewayPort) {
+        gatewayEndpoint = new GatewayEndpoint(this, gatewayPort);
+    }
+
+    /**
+     * Sets how long, and from how far back, the sessions whose connection dropped
+     * can be resumed. Must be called before the server is started.
+     *
+     * @param resumeWindowMillis the time a session is kept for its client to resume it, in milliseconds
+     * @param replayBufferSize the number of the most recent bytes sent to a session that
+     *                         are kept for its resumption; {@code 0} if the sessions cannot be resumed
+     */
+    public void setSessionResumption(long resumeWindowMillis, int replayBufferSize) {
+        this.resumeWindowMillis = resumeWindowMillis;
+        this.replayBufferSize = replayBufferSize;
+    }
+
     @Override
     public void start(int port) {
         try {
-            acceptingSocket = new ServerSocket(port);
+            acceptingSocket = standbyMonitor != null ? takeOver(port) : new ServerSocket(port);
+            commandWatcher = new CommandDirectoryWatcher(commandRegistry, resourceDirectory.resolve("commands"), tenant);
+            commandWatcher.start();
+            openMessageLog();
+            openSearchIndex();
+            openOfflineMailbox();
+            startFederation();
+            startReplication();
+            startStandbyPublisher();
+            startGatewayEndpoint();
+            presenceTracker.start();
+            startResumeTokenRefresh();
             notifyServerStarted();
 
             while (true) {
                 Socket serverSocket = acceptingSocket.accept();
-                processClientConnection(serverSocket);
+                try {
+                    processClientConnection(serverSocket);
+                } catch (IOException e) {
+                    // Only this client's connection has failed, such as one dropped while resuming.
+                    serverSocket.close();
+                }
             }
         } catch (SocketException e) {
             notifyServerClosed();
@@ -60,6 +379,150 @@ public class ChatServer extends AbstractChatServer {
         }
     }
 
+    private void openMessageLog() {
+        try {
+            messageLog = new MessageLog(resourceDirectory.resolve("history"));
+        } catch (IOException e) {
+            System.err.println("Could not open the message log, chat history will not be saved.");
+        }
+    }
+
+    /**
+     * Opens the search index, indexes the messages that were logged but not
+     * indexed before the last shutdown, and starts indexing the new messages.
+     */
+    private void openSearchIndex() {
+        if(messageLog == null) return;
+
+        try {
+            searchIndex = new SearchIndex(resourceDirectory.resolve("search-index"));
+            messageLog.replay(searchIndex.getIndexedSequence() + 1, searchIndex::index);
+            messageLog.addWriteListener(searchIndex::index);
+        } catch (IOException e) {
+            System.err.println("Could not open the search index, chat history will not be searchable.");
+            searchIndex = null;
+        }
+    }
+
+    private void openOfflineMailbox() {
+        try {
+            offlineMailbox = new OfflineMailbox(resourceDirectory.resolve("mailbox"));
+        } catch (IOException e) {
+            System.err.println("Could not open the offline mailboxes, offline messages will not be stored.");
+        }
+    }
+
+    private void startFederation() {
+        if(federation == null) return;
+
+        try {
+            federation.start();
+        } catch (IOException e) {
+            System.err.println("Could not open the federation port, running as a standalone server.");
+            federation = null;
+        }
+    }
+
+    private void startReplication() {
+        if(replication == null) return;
+
+        try {
+            replication.start();
+        } catch (IOException e) {
+            System.err.println("Could not start the client data replication: " + e.getMessage());
+        }
+    }
+
+    private void startStandbyPublisher() {
+        if(standbyPublisher == null) return;
+
+        try {
+            standbyPublisher.start();
+        } catch (IOException e) {
+            System.err.println("Could not open the standby port, the standby will not be able to take over.");
+            standbyPublisher = null;
+        }
+    }
+
+    private void startGatewayEndpoint() {
+        if(gatewayEndpoint == null) return;
+
+        try {
+            gatewayEndpoint.start();
+        } catch (IOException e) {
+            System.err.println("Could not open the gateway port, the gateways will not be able to connect.");
+            gatewayEndpoint = null;
+        }
+    }
+
+    /**
+     * Stands by until the primary fails, then takes over its client data, its
+     * recent history and its port.
+     * <br>
+     * The standby is promoted only once it holds the primary's port. Until then
+     * a primary that has stopped sending the heartbeats, as in a long pause, may
+     * still be serving its clients, so the standby keeps following it and goes
+     * back to standing by once the heartbeats resume.
+     * @param port the primary's client port
+     * @return the socket accepting the clients on the taken over port
+     * @throws IOException if the port could not be opened
+     */
+    private ServerSocket takeOver(int port) throws IOException {
+        startReplication();
+        standbyMonitor.start();
+        notifyServerMessage("Standing by for the primary...");
+
+        boolean reported = false;
+        while (true) {
+            long lastContact;
+            try {
+                lastContact = standbyMonitor.awaitPrimaryFailure();
+            } catch (InterruptedException e) {
+                throw new SocketException("Closed while standing by.");
+            }
+
+            ServerSocket socket = bindTakenOverPort(port);
+            if(socket != null) {
+                standbyMonitor.close();
+                replication.close();
+                replication = null;
+                dao = daoProvider.promoteToStandalone();
+                // Numbered by the primary's log, so not by this server's; sent as not logged.
+                for(MessageRecord record : standbyMonitor.getHistory()) {
+                    recentMessages.add(new MessageRecord(-1, record.getTimestamp(), record.getType(),
+                            record.getSender(), record.getTarget(), record.getBody()));
+                }
+
+                notifyServerMessage("Primary failed, took over port " + port + " "
+                        + (System.currentTimeMillis() - lastContact) + " ms after its last heartbeat.");
+                return socket;
+            }
+
+            if(!reported) {
+                notifyServerMessage("Port " + port + " is still held by the primary, standing by until it is released...");
+                reported = true;
+            }
+
+            try {
+                Thread.sleep(TAKEOVER_BIND_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                throw new SocketException("Closed while taking over.");
+            }
+        }
+    }
+
+    /**
+     * Opens the primary's port.
+     * @return the socket accepting the clients, or {@code null} if the port is still held by the primary
+     */
+    private ServerSocket bindTakenOverPort(int port) throws IOException {
+        try {
+            return new ServerSocket(port);
+        } catch (BindException e) {
+            return null;
+        }
+    }
+
     /**
      * Processes a single client connection and determines if the connection
      * should be accepted or denied.
@@ -70,12 +533,18 @@ public class ChatServer extends AbstractChatServer {
     private void processClientConnection(Socket serverSocket) throws IOException {
         int request = serverSocket.getInputStream().read();
 
-        if(request == Client.LOGIN_REQUEST) {
+        if(request == Client.DIRECT_LOGIN_REQUEST) {
+            processDirectLoginRequest(serverSocket);
+
+        } else if(request == Client.LOGIN_REQUEST) {
             processLoginRequest(serverSocket);
 
         } else if(request == Client.REGISTRATION_REQUEST) {
             processRegistrationRequest(serverSocket);
 
+        } else if(request == Client.RESUME_REQUEST) {
+            processResumeRequest(serverSocket);
+
         } else {
             System.err.println("Invalid client request. Closing client connection.");
             serverSocket.close();
@@ -83,7 +552,7 @@ public class ChatServer extends AbstractChatServer {
     }
 
     private void processLoginRequest(Socket serverSocket) throws IOException {
-        if(workers.size() >= maxClients) {
+        if(isFull()) {
             notifyServerMessage("Connection denied: Client limit reached.");
             serverSocket.getOutputStream().write(LOGIN_DENIED_SERVER_FULL);
             serverSocket.close();
@@ -93,40 +562,111 @@ public class ChatServer extends AbstractChatServer {
         serverSocket.getOutputStream().write(LOGIN_ESTABLISHED_SERVER_NOT_FULL);
 
         // Reader on the server side that reads the client's messages.
-        BufferedReader serverReader = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
+        ClientLineReader serverReader = clientReader(serverSocket);
         String username = serverReader.readLine();
         String password = serverReader.readLine();
 
-        if(isClientOnline(username)) {
-            serverSocket.getOutputStream().write(LOGIN_DENIED_CLIENT_ALREADY_LOGGED_IN);
-            serverSocket.close();
-            return;
+        finishLogin(serverSocket, serverReader, username, checkLogin(username, password));
+    }
+
+    /**
+     * Processes the login request sent in a single round trip: the protocol
+     * version and the credentials arrive together, and the client is answered
+     * only with the final status and the initial state of its session.
+     */
+    private void processDirectLoginRequest(Socket serverSocket) throws IOException {
+        ClientLineReader serverReader = clientReader(serverSocket);
+        String version = serverReader.readLine();
+        String username = serverReader.readLine();
+        String password = serverReader.readLine();
+
+        int status;
+        if(!isSupportedProtocol(version)) {
+            status = LOGIN_DENIED_UNSUPPORTED_PROTOCOL;
+        } else if(isFull()) {
+            notifyServerMessage("Connection denied: Client limit reached.");
+            status = LOGIN_DENIED_SERVER_FULL;
+        } else {
+            status = checkLogin(username, password);
         }
 
-        boolean registered = dao.isClientRegistered(username);
-        if(!registered) {
-            serverSocket.getOutputStream().write(LOGIN_DENIED_USERNAME_NOT_REGISTERED);
+        finishLogin(serverSocket, serverReader, username, status);
+    }
+
+    /**
+     * Starts the session of the client whose login was accepted, or sends the client
+     * the reason its login was denied for.
+     * @param serverReader the reader the login request was read with
+     * @param status the login status
+     */
+    private void finishLogin(Socket serverSocket, ClientLineReader serverReader, String username, int status) throws IOException {
+        if(status != LOGIN_ACCEPTED) {
+            serverSocket.getOutputStream().write(status);
             serverSocket.close();
             return;
         }
 
-        boolean successfulLogin = dao.loginClient(username, password);
-        if(!successfulLogin) {
-            serverSocket.getOutputStream().write(LOGIN_DENIED_WRONG_PASSWORD);
-            serverSocket.close();
-            return;
+        // Every test was passed, create a new worker thread; it sends the status itself.
+        boolean tookOver = takeOverDetachedSession(username);
+        new ServerWorker(this, serverSocket, serverReader, username, !tookOver).start();
+    }
+
+    /**
+     * @param version the protocol version sent by the client
+     * @return {@code true} if this server speaks the given version of the protocol
+     */
+    private boolean isSupportedProtocol(String version) {
+        try {
+            int number = Integer.parseInt(version);
+            return number >= 1 && number <= Client.PROTOCOL_VERSION;
+        } catch (NumberFormatException e) {
+            return false;
         }
+    }
 
-        boolean clientBanned = dao.isClientBanned(username);
-        if(clientBanned) {
-            serverSocket.getOutputStream().write(LOGIN_DENIED_CLIENT_IS_BANNED);
-            serverSocket.close();
-            return;
+    /**
+     * @return the reader of the client's lines, which the client's worker goes on reading with
+     */
+    private ClientLineReader clientReader(Socket serverSocket) throws IOException {
+        return new ClientLineReader(tenant.countInput(serverSocket.getInputStream()));
+    }
+
+    private void processResumeRequest(Socket serverSocket) throws IOException {
+        ClientLineReader serverReader = clientReader(serverSocket);
+        String token = serverReader.readLine();
+        String received = serverReader.readLine();
+
+        int status = resumeSession(serverSocket, serverReader, token, received);
+        if(status == RESUME_ACCEPTED) return;
+
+        serverSocket.getOutputStream().write(status);
+        serverSocket.close();
+    }
+
+    /**
+     * Resumes the session the given token was issued for on the given connection.
+     * @param serverReader the reader the resume request was read with
+     * @param token the session's resume token
+     * @param received the number of the session's bytes the client has received
+     * @return {@link #RESUME_ACCEPTED} if the session was resumed; otherwise the response to send
+     * @throws IOException if the new connection failed
+     */
+    private int resumeSession(Socket serverSocket, ClientLineReader serverReader, String token, String received) throws IOException {
+        if(token == null || received == null) return RESUME_DENIED;
+
+        long[] claims = resumeTokens.verify(token);
+        ServerWorker worker = claims == null ? null : sessions.get(claims[0]);
+        if(worker == null) return RESUME_DENIED;
+
+        int status;
+        try {
+            status = worker.resume(serverSocket, serverReader, (int) claims[1], Long.parseLong(received));
+        } catch (NumberFormatException e) {
+            return RESUME_DENIED;
         }
 
-        // Every test was passed, send the accepting flag and create a new worker thread.
-        serverSocket.getOutputStream().write(LOGIN_ACCEPTED);
-        new ServerWorker(this, serverSocket, username).start();
+        if(status == RESUME_ACCEPTED) notifyServerMessage("Client '" + worker.getClientUsername() + "' has resumed the session.");
+        return status;
     }
 
     private void processRegistrationRequest(Socket clientSocket) throws IOException {
@@ -134,34 +674,156 @@ public class ChatServer extends AbstractChatServer {
         String username = clientReader.readLine();
         String password = clientReader.readLine();
 
+        clientSocket.getOutputStream().write(register(username, password));
+        clientSocket.close();
+    }
+
+    /**
+     * @return {@code true} if the client limit of this server has been reached,
+     *         or the runtime has no I/O thread left to serve another client
+     */
+    boolean isFull() {
+        return workers.size() >= maxClients || tenant.isIoSaturated();
+    }
+
+    /**
+     * Checks whether the client with the given credentials may log in.
+     * @param username the client's username
+     * @param password the client's password
+     * @return {@link #LOGIN_ACCEPTED}, or the login flag of the reason the login was denied for
+     */
+    int checkLogin(String username, String password) {
+        if(username == null || password == null) return LOGIN_DENIED_IO_ERROR;
+        if(isClientOnline(username) && !isSessionDetached(username)) return LOGIN_DENIED_CLIENT_ALREADY_LOGGED_IN;
+        if(!dao.isClientRegistered(username)) return LOGIN_DENIED_USERNAME_NOT_REGISTERED;
+        if(!dao.loginClient(username, password)) return LOGIN_DENIED_WRONG_PASSWORD;
+        if(dao.isClientBanned(username)) return LOGIN_DENIED_CLIENT_IS_BANNED;
+        return LOGIN_ACCEPTED;
+    }
+
+    //===========================================================
+    //                    Session resumption
+    //===========================================================
+
+    /**
+     * Registers the given worker's session for a resumption.
+     * @param worker the worker of the session
+     * @return the id of the session
+     */
+    long openSession(ServerWorker worker) {
+        long sessionId = nextSessionId.incrementAndGet();
+        sessions.put(sessionId, worker);
+        return sessionId;
+    }
+
+    /**
+     * Forgets the given worker's session, which has ended.
+     * @param worker the worker of the session
+     */
+    void closeSession(ServerWorker worker) {
+        sessions.remove(worker.getSessionId(), worker);
+    }
+
+    /**
+     * @param worker the worker of the session
+     * @return the token resuming the session's current connection
+     */
+    String issueResumeToken(ServerWorker worker) {
+        // Valid for the whole resume window even if the connection drops right before the next refresh.
+        long expires = System.currentTimeMillis() + getTokenRefreshMillis() + resumeWindowMillis;
+        return resumeTokens.issue(worker.getSessionId(), worker.getConnectionNumber(), expires);
+    }
+
+    /**
+     * @return the time after which the connected sessions are issued fresh resume tokens, in milliseconds
+     */
+    private long getTokenRefreshMillis() {
+        return Math.max(1, resumeWindowMillis / 2);
+    }
+
+    /**
+     * Issues fresh resume tokens to the connected sessions for as long as the server runs,
+     * unless the sessions are never kept for a resumption.
+     */
+    private void startResumeTokenRefresh() {
+        if(resumeWindowMillis <= 0) return;
+
+        long refreshMillis = getTokenRefreshMillis();
+        tokenRefresh = tenant.scheduleWithFixedDelay(() -> sessions.values().forEach(ServerWorker::refreshResumeToken),
+                refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param username the client's username
+     * @return {@code true} if the client's session is kept without a connection, waiting to be resumed
+     */
+    private boolean isSessionDetached(String username) {
+        ServerWorker worker = getOnlineClient(username);
+        return worker != null && worker.isDetached();
+    }
+
+    /**
+     * Ends the session the given client has left waiting to be resumed, as the
+     * client is logging in again instead, neither announcing that it has left
+     * nor, later, that it has joined.
+     * @param username the client's username
+     * @return {@code true} if there was such a session
+     */
+    boolean takeOverDetachedSession(String username) {
+        ServerWorker worker = getOnlineClient(username);
+        return worker != null && worker.endDetached();
+    }
+
+    /**
+     * Registers a new client with the given credentials.
+     * @param username the client's username
+     * @param password the client's password
+     * @return the registration flag of the outcome
+     */
+    int register(String username, String password) {
+        if(username == null || password == null) return REGISTRATION_FAILED_IO_ERROR;
+
         if(dao.isClientRegistered(username)) {
             notifyServerMessage("Registration denied: username '" + username + "' already taken.");
-            clientSocket.getOutputStream().write(REGISTRATION_FAILED_USERNAME_ALREADY_TAKEN);
-            return;
+            return REGISTRATION_FAILED_USERNAME_ALREADY_TAKEN;
         }
 
-        boolean successful = dao.registerClient(username, password);
-
-        if(successful) {
-            clientSocket.getOutputStream().write(REGISTRATION_SUCCEEDED);
+        if(dao.registerClient(username, password)) {
             notifyServerMessage("New client '" + username + "' has just registered!");
+            return REGISTRATION_SUCCEEDED;
         } else {
-            clientSocket.getOutputStream().write(REGISTRATION_FAILED_IO_ERROR);
             notifyServerMessage("Registration denied: IO error occurred.");
+            return REGISTRATION_FAILED_IO_ERROR;
         }
-
-        clientSocket.close();
     }
 
     public void close() {
-        new Thread(() -> {
-            try {
-                sendGlobalServerMessage("Server is closing...");
-                acceptingSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }).start();
+        new Thread(this::shutdown).start();
+    }
+
+    /**
+     * Closes the server on the calling thread, returning once the clients were told
+     * and the queued messages were written to the message log.
+     */
+    public void shutdown() {
+        try {
+            if(standbyMonitor != null) standbyMonitor.close();
+            presenceAnnouncer.close();
+            presenceTracker.stop();
+            if(tokenRefresh != null) tokenRefresh.cancel(false);
+            sendGlobalServerMessage("Server is closing...");
+            if(commandWatcher != null) commandWatcher.stop();
+            if(acceptingSocket != null) acceptingSocket.close();
+            if(messageLog != null) messageLog.close();
+            if(searchIndex != null) searchIndex.close();
+            if(federation != null) federation.close();
+            if(replication != null) replication.close();
+            if(standbyPublisher != null) standbyPublisher.close();
+            if(gatewayEndpoint != null) gatewayEndpoint.close();
+            tenant.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     //===========================================================
@@ -206,18 +868,71 @@ public class ChatServer extends AbstractChatServer {
      * @param message the private message to be sent
      */
     public void sendPrivateClientMessage(String sender, String receiver, String message) {
+        String frame = frame(INCOMING_PRIVATE_CLIENT_MESSAGE, sender, receiver, message);
+
         for(ServerWorker worker : workers) {
             if(worker.getClientUsername().equals(sender) || worker.getClientUsername().equals(receiver)) {
-                worker.getServerWriter().write(INCOMING_PRIVATE_CLIENT_MESSAGE);
-                worker.getServerWriter().println(sender);
-                worker.getServerWriter().println(receiver);
-                worker.getServerWriter().println(message);
+                worker.getServerWriter().println(frame);
             }
         }
 
+        if(federation != null && getOnlineClient(receiver) == null) {
+            federation.publishPrivateClientMessage(sender, receiver, message);
+        }
+
+        if(messageLog != null) messageLog.append(MessageRecord.PRIVATE, sender, receiver, message);
         notifyServerMessage(sender + " sent \"" + message + "\" to " + receiver);
     }
 
+    /**
+     * Stores the private message for the client that is registered, but not online.
+     * The message will be delivered once the client logs in.
+     * @param sender the username of the private message sender
+     * @param receiver the username of the offline private message receiver
+     * @param message the private message to be stored
+     */
+    public void sendOfflinePrivateClientMessage(String sender, String receiver, String message) {
+        if(offlineMailbox == null) {
+            sendPrivateServerMessage(sender, "Client '" + receiver + "' is not online.");
+            return;
+        }
+
+        if(!offlineMailbox.store(sender, receiver, message)) {
+            sendPrivateServerMessage(sender, "Could not store the message, the mailbox of '" + receiver + "' is full.");
+            return;
+        }
+
+        if(messageLog != null) messageLog.append(MessageRecord.PRIVATE, sender, receiver, message);
+        sendPrivateServerMessage(sender, "Client '" + receiver + "' is offline, the message will be delivered once they log in.");
+        notifyServerMessage(sender + " left \"" + message + "\" for " + receiver);
+
+        // The receiver may have logged in since they were found offline, after their mail was delivered;
+        // a joining client is added to the workers before it is, so one of the two deliveries finds it.
+        ServerWorker worker = getOnlineClient(receiver);
+        if(worker != null) deliverOfflineMessages(worker);
+    }
+
+    /**
+     * Sends all of the private messages stored while the given worker's client
+     * was offline, as a single frame.
+     * @param worker the worker of the client that has just joined
+     */
+    void deliverOfflineMessages(ServerWorker worker) {
+        if(offlineMailbox == null) return;
+
+        List<MessageRecord> mail = offlineMailbox.takeAll(worker.getClientUsername());
+        if(mail.isEmpty()) return;
+
+        List<String> lines = new ArrayList<>();
+        for(MessageRecord record : mail) {
+            lines.add(record.getSender());
+            lines.add(record.getTarget());
+            lines.add(record.getBody());
+        }
+
+        new MessageBatch(INCOMING_PRIVATE_CLIENT_MESSAGE_BATCH, lines).writeTo(worker.getServerWriter());
+    }
+
     /**
      * Sends the private message from server to the specified client.
      * @param receiver the username of the private message receiver
@@ -226,23 +941,210 @@ public class ChatServer extends AbstractChatServer {
     public void sendPrivateServerMessage(String receiver, String message) {
         for(ServerWorker worker : workers) {
             if(worker.getClientUsername().equals(receiver)) {
-                worker.getServerWriter().write(INCOMING_PRIVATE_SERVER_MESSAGE);
-                worker.getServerWriter().println(message);
+                worker.getServerWriter().println(frame(INCOMING_PRIVATE_SERVER_MESSAGE, message));
                 break;
             }
         }
     }
 
+    /**
+     * Sends the given batch of private server messages to the specified client
+     * as a single frame.
+     * @param receiver the username of the batch receiver
+     * @param batch the batch to be sent
+     */
+    public void sendPrivateServerMessages(String receiver, MessageBatch batch) {
+        ServerWorker worker = getOnlineClient(receiver);
+        if(worker != null) {
+            batch.writeTo(worker.getServerWriter());
+        }
+    }
+
+    /**
+     * Adds the given worker to the list of all the workers, and then sends its
+     * client the most recent global client messages, as a single frame, tagged
+     * with the position of the recent messages the frame ends at. The worker
+     * holds the global client messages broadcast until then, and skips those
+     * older than that position, so the client is sent every message exactly once,
+     * either with the history or on its own, without holding up the broadcasts.
+     * @param worker the worker of the client that has just joined
+     */
+    void joinWithRecentHistory(ServerWorker worker) {
+        addServerWorker(worker);
+        sendRecentHistory(worker);
+    }
+
+    private void sendRecentHistory(ServerWorker worker) {
+        long position = recentMessages.getWritePosition();
+        RenderedHistory rendered = renderedHistory;
+
+        if(rendered == null || rendered.position != position) {
+            List<MessageRecord> records = new ArrayList<>(recentMessages.getCapacity());
+            long end;
+            while ((end = recentMessages.snapshot(records)) < 0) {
+                // A message still being added was skipped; it is published within moments.
+                records.clear();
+                Thread.onSpinWait();
+            }
+
+            List<String> lines = new ArrayList<>(records.size() * 2);
+            for(MessageRecord record : records) {
+                lines.add(record.getSender());
+                lines.add(record.getBody());
+            }
+
+            // Cached under the position the snapshot itself ends at.
+            rendered = new RenderedHistory(end, new MessageBatch(INCOMING_GLOBAL_CLIENT_MESSAGE_BATCH, lines));
+            renderedHistory = rendered;
+        }
+
+        worker.sendRecentHistory(rendered.batch, rendered.position);
+    }
+
+    /**
+     * Sends the given client message to the members of the specified room. The
+     * message is rendered once and written to every member with a single call.
+     * @param roomName the name of the room
+     * @param sender the worker of the sender, who must be a member of the room
+     * @param message the client message to be sent
+     */
+    public void sendRoomClientMessage(String roomName, ServerWorker sender, String message) {
+        ChatRoom room = rooms.get(roomName);
+        String username = sender.getClientUsername();
+
+        if(room == null || !room.isMember(sender)) {
+            sendPrivateServerMessage(username, "You are not a member of room '" + roomName + "'. To join it, type /join " + roomName);
+            return;
+        }
+
+        String frame = (char) INCOMING_ROOM_CLIENT_MESSAGE + roomName + System.lineSeparator() +
+                       username + System.lineSeparator() + message;
+
+        for(ServerWorker member : room.getMembers()) {
+            member.getServerWriter().println(frame);
+        }
+
+        if(messageLog != null) messageLog.append(MessageRecord.ROOM, username, roomName, message);
+        // The members have already been sent the message.
+        publish(ROOM_TOPIC_PREFIX + roomName, "[" + username + "] " + message,
+                subscriber -> !room.isMember(subscriber) && getClientPrivilegeLevel(subscriber.getClientUsername()) >= Client.MODERATOR);
+        notifyServerMessage("[#" + roomName + "] [" + username + "] " + message);
+    }
+
     /**
      * Sends the given client message to all of the clients connected to the server.
      * @param sender the username of the sender
      * @param message the client message to be broadcast
      */
     public void sendGlobalClientMessage(String sender, String message) {
-        broadcast(INCOMING_GLOBAL_CLIENT_MESSAGE, sender, message);
+        if(federation != null) federation.publishGlobalClientMessage(sender, message);
+        deliverGlobalClientMessage(sender, message);
+    }
+
+    /**
+     * Sends the global client message to the clients of this server, and stores it.
+     */
+    private void deliverGlobalClientMessage(String sender, String message) {
+        MessageRecord record = messageLog != null ? messageLog.append(MessageRecord.GLOBAL, sender, "", message) : null;
+        if(record == null) {
+            record = new MessageRecord(-1, System.currentTimeMillis(), MessageRecord.GLOBAL, sender, "", message);
+        }
+
+        // Stored before it is sent, so a client synchronizing its history either is sent it
+        // with its sequence number or finds it among the recent messages.
+        long position = standbyPublisher != null ? standbyPublisher.publish(record) : recentMessages.add(record);
+        broadcastGlobalClientMessage(record, position);
         notifyServerMessage("[" + sender + "] " + message);
     }
 
+    /**
+     * Sends the given global client message to all of the clients connected to the
+     * server, with its sequence number to the clients that synchronize their history.
+     * Each form of the message is rendered once.
+     * @param position the position of the message in the recent messages
+     */
+    private void broadcastGlobalClientMessage(MessageRecord record, long position) {
+        String plain = (char) INCOMING_GLOBAL_CLIENT_MESSAGE + record.getSender() + System.lineSeparator() + record.getBody();
+        String sequenced = null;
+
+        for(ServerWorker worker : workers) {
+            if(worker.isSequenced()) {
+                if(sequenced == null) {
+                    sequenced = (char) INCOMING_SEQUENCED_GLOBAL_CLIENT_MESSAGE + String.join(System.lineSeparator(), historyLines(record));
+                }
+                worker.sendGlobalClientMessage(position, sequenced);
+            } else {
+                worker.sendGlobalClientMessage(position, plain);
+            }
+        }
+    }
+
+    /**
+     * Sends the given worker's client the global client messages logged after the
+     * given sequence number, at most {@link #HISTORY_SYNC_LIMIT} of the newest, as a
+     * single {@link #INCOMING_HISTORY_BATCH}, followed by the identifier of the log
+     * their sequence numbers belong to. From then on, the client is sent the global
+     * messages with their sequence numbers.
+     * <br>
+     * The log is read from no earlier than {@link #HISTORY_SYNC_LIMIT} records before
+     * its end, so a client far behind never has the whole log read for it. The sequence
+     * number of a client that has numbered its messages by another log, such as the one
+     * of the primary this server has taken over from, means nothing here, so the client
+     * is sent only the recent messages, as if it had none.
+     * @param worker the worker of the client
+     * @param after the sequence number of the last message the client has; {@code -1}
+     *              if it has none, in which case it is sent only the recent messages
+     * @param historyId the identifier of the log the client's sequence number belongs
+     *                  to; {@code null} if not known
+     */
+    public void sendHistory(ServerWorker worker, long after, String historyId) {
+        worker.setSequenced();
+
+        String currentHistoryId = messageLog != null ? messageLog.getId() : unloggedHistoryId;
+        if(historyId != null && !historyId.equals(currentHistoryId)) after = -1;
+
+        ArrayDeque<MessageRecord> history = new ArrayDeque<>();
+        List<MessageRecord> recent = recentMessages.snapshot();
+
+        // The messages older than the recent ones are read from the log.
+        boolean covered = after < 0 || (!recent.isEmpty() && recent.get(0).getSequence() <= after + 1);
+        if(!covered && messageLog != null) {
+            try {
+                messageLog.replay(Math.max(after + 1, messageLog.getNextSequence() - HISTORY_SYNC_LIMIT), record -> {
+                    if(record.getType() != MessageRecord.GLOBAL) return;
+                    history.add(record);
+                    if(history.size() > HISTORY_SYNC_LIMIT) history.poll();
+                });
+            } catch (IOException e) {
+                System.err.println("Could not read the message log: " + e.getMessage());
+            }
+        }
+
+        // The recent messages also cover those the log has not written yet. Those not
+        // logged are sent only to the client that has none, as nothing else tells which
+        // of them it already has.
+        long last = history.isEmpty() ? after : history.getLast().getSequence();
+        for(MessageRecord record : recent) {
+            if(record.getSequence() < 0 ? after >= 0 : record.getSequence() <= last) continue;
+            history.add(record);
+            if(history.size() > HISTORY_SYNC_LIMIT) history.poll();
+        }
+
+        List<String> lines = new ArrayList<>(history.size() * 4 + 1);
+        for(MessageRecord record : history) {
+            lines.addAll(historyLines(record));
+        }
+        lines.add(currentHistoryId);
+        new MessageBatch(INCOMING_HISTORY_BATCH, lines).writeTo(worker.getServerWriter());
+    }
+
+    /**
+     * @return the lines of the given global client message, as sent to the clients synchronizing their history
+     */
+    private static List<String> historyLines(MessageRecord record) {
+        return List.of(Long.toString(record.getSequence()), Long.toString(record.getTimestamp()), record.getSender(), record.getBody());
+    }
+
     /**
      * Sends the given server message to all of the clients connected to the server.
      * @param message the message to be sent
@@ -252,36 +1154,355 @@ public class ChatServer extends AbstractChatServer {
         notifyServerMessage("[SERVER] " + message);
     }
 
-    public void broadcastClientDisconnected(String username) {
-        broadcast(INCOMING_DISCONNECT_MESSAGE, "'" + username + "' has disconnected from the server.");
+    /**
+     * Sends the given server messages to all of the clients connected to the server,
+     * as a single frame. The frame is rendered once for all of the clients.
+     * @param messages the messages to be sent
+     */
+    private void sendGlobalServerMessages(List<String> messages) {
+        if(federation != null) federation.publishGlobalServerMessages(messages);
+        deliverGlobalServerMessages(messages);
+    }
+
+    /**
+     * Sends the given server messages to all of the clients as a single frame.
+     * Called by the timers, so the frame is only queued for every client.
+     */
+    private void deliverGlobalServerMessages(List<String> messages) {
+        MessageBatch batch = new MessageBatch(INCOMING_GLOBAL_SERVER_MESSAGE_BATCH, messages);
+
+        for(ServerWorker worker : workers) {
+            batch.queueTo(worker);
+        }
+
+        messages.forEach(message -> notifyServerMessage("[SERVER] " + message));
+    }
+
+    /**
+     * Announces that the given worker's client has joined the server. The announcement
+     * is coalesced with the other joins and leaves of the same window.
+     * @param worker the worker of the joining client
+     */
+    void announceClientJoined(ServerWorker worker) {
+        String username = worker.getClientUsername();
+        String clientRank = Client.RANK[ getClientPrivilegeLevel(username) ];
+        presenceAnnouncer.clientJoined(username, clientRank + " " + username + " has just connected!");
+        if(federation != null) federation.publishClientJoined(username);
+    }
+
+    /**
+     * Announces that the given worker's client has left the server. The announcement
+     * is coalesced with the other joins and leaves of the same window.
+     * @param worker the worker of the leaving client
+     */
+    void announceClientLeft(ServerWorker worker) {
+        presenceAnnouncer.clientLeft(worker.getClientUsername());
+        if(federation != null) federation.publishClientLeft(worker.getClientUsername());
+    }
+
+    //===========================================================
+    //                        Presence
+    //===========================================================
+
+    /**
+     * Updates the presence state of the given worker's client. The change is sent
+     * to the clients with the other changes of the same tick.
+     * @param worker the worker of the client
+     * @param state the new presence state
+     */
+    public void updatePresence(ServerWorker worker, String state) {
+        presenceTracker.update(worker.getClientUsername(), state);
+    }
+
+    /**
+     * Sends the current presence states of the online clients to the given
+     * worker's client, as a single frame.
+     * @param worker the worker of the client that has just joined
+     */
+    void sendPresenceStates(ServerWorker worker) {
+        List<String> lines = presenceTracker.getStates();
+        if(!lines.isEmpty()) {
+            new MessageBatch(INCOMING_PRESENCE_BATCH, lines).writeTo(worker.getServerWriter());
+        }
+    }
+
+    /**
+     * Forgets the presence state of the given worker's client.
+     * @param worker the worker of the leaving client
+     */
+    void removePresence(ServerWorker worker) {
+        presenceTracker.remove(worker.getClientUsername());
+    }
+
+    /**
+     * Sends the presence changes of a single tick to all of the clients, as a single frame.
+     * @param lines the username and state lines of the changed clients, in turn
+     */
+    /**
+     * Sends the presence changes of a tick to all of the clients as a single frame.
+     * Called by the timers, so the frame is only queued for every client.
+     */
+    private void sendPresenceUpdates(List<String> lines) {
+        MessageBatch batch = new MessageBatch(INCOMING_PRESENCE_BATCH, lines);
+
+        for(ServerWorker worker : workers) {
+            batch.queueTo(worker);
+        }
     }
 
     public void broadcastClientKicked(String kicker, String kicked) {
-        broadcast(INCOMING_KICK_MESSAGE, "'" + kicked + "' was kicked from the server by '" + kicker + "'.");
+        if(federation != null) federation.publishClientKicked(kicker, kicked);
+
+        String message = "'" + kicked + "' was kicked from the server by '" + kicker + "'.";
+        broadcast(INCOMING_KICK_MESSAGE, message);
+        publish(MODERATION_TOPIC_PREFIX + "kick", message);
     }
 
     public void broadcastClientBanned(String banner, String banned) {
-        broadcast(INCOMING_BAN_MESSAGE, "'" + banned + "' was banned from the server by '" + banner + "'.");
+        if(federation != null) federation.publishClientBanned(banner, banned);
+
+        String message = "'" + banned + "' was banned from the server by '" + banner + "'.";
+        broadcast(INCOMING_BAN_MESSAGE, message);
+        publish(MODERATION_TOPIC_PREFIX + "ban", message);
     }
 
     public void broadcastClientDeleted(String deleter, String deleted) {
-        broadcast(INCOMING_DELETE_MESSAGE, "'" + deleted + "' was deleted by '" + deleter + "'.");
+        if(federation != null) federation.publishClientDeleted(deleter, deleted);
+
+        String message = "'" + deleted + "' was deleted by '" + deleter + "'.";
+        broadcast(INCOMING_DELETE_MESSAGE, message);
+        publish(MODERATION_TOPIC_PREFIX + "delete", message);
     }
 
     /**
      * Broadcasts the given flag followed by the given sequence of messages
-     * to all of the clients currently connected to the server.
+     * to all of the clients currently connected to the server. The frame is
+     * rendered once and written to every client with a single call, so the
+     * announcements flushed by the timers never split it.
      * @param flag the flag to be sent
      * @param messages a sequence of messages to be broadcast
      */
     private void broadcast(int flag, String... messages) {
+        String frame = frame(flag, messages);
+
         for(ServerWorker worker : workers) {
-            worker.getServerWriter().write(flag);
+            worker.getServerWriter().println(frame);
+        }
+    }
 
-            for(String message : messages) {
-                worker.getServerWriter().println(message);
-            }
+    /**
+     * Renders the given flag followed by the given lines as a single frame, without
+     * the trailing line separator. A frame is always written with a single call, as
+     * the worker's writer is shared by the worker, the timers and the federation
+     * readers, and a frame written a line at a time can be split by another one.
+     * @param flag the flag of the frame
+     * @param lines the lines of the frame
+     * @return the frame
+     */
+    private static String frame(int flag, String... lines) {
+        return (char) flag + String.join(System.lineSeparator(), lines);
+    }
+
+    //===========================================================
+    //                         Topics
+    //===========================================================
+
+    /**
+     * Publishes the given message on the specified topic, sending it to every
+     * client subscribed to a matching pattern. The message is rendered once
+     * and written to every subscriber with a single call.
+     * @param topic the topic, without wildcards
+     * @param message the message to be published
+     */
+    public void publish(String topic, String message) {
+        publish(topic, message, subscriber -> true);
+    }
+
+    /**
+     * Publishes the given message on the specified topic, sending it to the
+     * clients subscribed to a matching pattern that pass the given filter.
+     */
+    private void publish(String topic, String message, Predicate<ServerWorker> filter) {
+        Set<ServerWorker> subscribers = subscriptions.match(topic);
+        if(subscribers.isEmpty()) return;
+
+        String frame = (char) INCOMING_TOPIC_MESSAGE + topic + System.lineSeparator() + message;
+
+        for(ServerWorker subscriber : subscribers) {
+            if(filter.test(subscriber)) subscriber.getServerWriter().println(frame);
+        }
+    }
+
+    /**
+     * Subscribes the given worker's client to the topics matching the specified pattern.
+     * @param worker the worker of the subscribing client
+     * @param pattern the topic pattern, which must be valid
+     * @return {@code true} if the client was subscribed, {@code false} if the client
+     *         was already subscribed to the pattern
+     * @see SubscriptionTrie#isValidPattern(String)
+     */
+    public boolean subscribe(ServerWorker worker, String pattern) {
+        boolean subscribed = subscriptions.subscribe(pattern, worker);
+        if(subscribed) worker.getSubscriptions().add(pattern);
+        return subscribed;
+    }
+
+    /**
+     * Unsubscribes the given worker's client from the specified pattern.
+     * @param worker the worker of the unsubscribing client
+     * @param pattern the topic pattern
+     * @return {@code true} if the client was unsubscribed, {@code false} if the
+     *         client was not subscribed to the pattern
+     */
+    public boolean unsubscribe(ServerWorker worker, String pattern) {
+        boolean unsubscribed = subscriptions.unsubscribe(pattern, worker);
+        if(unsubscribed) worker.getSubscriptions().remove(pattern);
+        return unsubscribed;
+    }
+
+    /**
+     * Unsubscribes the given worker's client from all of its patterns.
+     * @param worker the worker of the leaving client
+     */
+    void unsubscribeAll(ServerWorker worker) {
+        for(String pattern : worker.getSubscriptions()) {
+            unsubscribe(worker, pattern);
+        }
+    }
+
+    //===========================================================
+    //                          Rooms
+    //===========================================================
+
+    /**
+     * Adds the given worker's client to the specified room, creating the room if needed.
+     * @param worker the worker of the joining client
+     * @param roomName the name of the room
+     * @return {@code true} if the client joined the room, {@code false} if the client
+     *         was already a member of the room
+     */
+    public boolean joinRoom(ServerWorker worker, String roomName) {
+        boolean[] joined = new boolean[1];
+
+        rooms.compute(roomName, (name, room) -> {
+            if(room == null) room = new ChatRoom(name);
+            joined[0] = room.addMember(worker);
+            return room;
+        });
+
+        if(joined[0]) worker.getRooms().add(roomName);
+        return joined[0];
+    }
+
+    /**
+     * Removes the given worker's client from the specified room, removing the room if it becomes empty.
+     * @param worker the worker of the leaving client
+     * @param roomName the name of the room
+     * @return {@code true} if the client left the room, {@code false} if the client
+     *         was not a member of the room
+     */
+    public boolean leaveRoom(ServerWorker worker, String roomName) {
+        boolean[] left = new boolean[1];
+
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            left[0] = room.removeMember(worker);
+            return room.getMemberCount() == 0 ? null : room;
+        });
+
+        if(left[0]) worker.getRooms().remove(roomName);
+        return left[0];
+    }
+
+    /**
+     * Removes the given worker's client from all of the rooms it is a member of.
+     * @param worker the worker of the leaving client
+     */
+    void leaveAllRooms(ServerWorker worker) {
+        for(String roomName : worker.getRooms()) {
+            leaveRoom(worker, roomName);
+        }
+    }
+
+    /**
+     * @return all of the non-empty rooms
+     */
+    public Collection<ChatRoom> getRooms() {
+        return rooms.values();
+    }
+
+    //===========================================================
+    //                     Message history
+    //===========================================================
+
+    /**
+     * Finds the newest logged messages that contain all of the given terms.
+     * Terms of the form {@code user:<username>} match the sender of the message.
+     * @param terms the query terms
+     * @param limit the maximum number of results
+     * @return the matching messages, from the newest to the oldest
+     * @throws IOException if the message log could not be read
+     */
+    public List<MessageRecord> searchMessages(List<String> terms, int limit) throws IOException {
+        List<MessageRecord> results = new ArrayList<>();
+        if(searchIndex == null) return results;
+
+        for(long sequence : searchIndex.search(terms, limit)) {
+            MessageRecord record = messageLog.read(sequence);
+            if(record != null) results.add(record);
+        }
+
+        return results;
+    }
+
+    public boolean isMessageSearchAvailable() {
+        return searchIndex != null;
+    }
+
+    //===========================================================
+    //                       Federation
+    //===========================================================
+
+    /**
+     * Checks if the client with the specified username is online, either on this
+     * server or, if the federation is enabled, on any other node of the federation.
+     * @param username the username of the requested client
+     * @return {@code true} if the client is online, {@code false} otherwise
+     */
+    @Override
+    public boolean isClientOnline(String username) {
+        return super.isClientOnline(username) || (federation != null && federation.getHomeNode(username) != null);
+    }
+
+    /**
+     * Returns the id of the federation node the given client is logged in on.
+     * @param username the username of the client
+     * @return the id of the node, or {@code null} if the client is not online;
+     *         for the clients of this server, the id of this node, or an empty
+     *         string if the federation is not enabled
+     */
+    public String getHomeNode(String username) {
+        if(getOnlineClient(username) != null) {
+            return federation != null ? federation.getNodeId() : "";
         }
+
+        return federation != null ? federation.getHomeNode(username) : null;
+    }
+
+    private List<String> getLocalClients() {
+        List<String> usernames = new ArrayList<>();
+        for(ServerWorker worker : workers) {
+            usernames.add(worker.getClientUsername());
+        }
+        return usernames;
+    }
+
+    /**
+     * Sends the given flag and the moderator's username to the client of this
+     * server that was just kicked, banned or deleted on another node.
+     */
+    private void sendModerationFlag(String username, byte flag, String moderator) {
+        ServerWorker worker = getOnlineClient(username);
+        if(worker != null) worker.endSession(flag, moderator);
     }
 
     //===========================================================
@@ -335,4 +1556,119 @@ public class ChatServer extends AbstractChatServer {
     public int getMaxClients() {
         return maxClients;
     }
-}
\ No newline at end of file
+
+    long getResumeWindowMillis() {
+        return resumeWindowMillis;
+    }
+
+    int getReplayBufferSize() {
+        return replayBufferSize;
+    }
+
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * @return the replicated client data; {@code null} if the replication is not enabled
+     */
+    public ReplicatedDAO getReplication() {
+        return replication;
+    }
+
+    /**
+     * @return this server's share of the runtime, with its resource accounting
+     */
+    public Tenant getTenant() {
+        return tenant;
+    }
+
+    /**
+     * @return the registry of all the commands that the clients of this server can execute
+     */
+    public CommandRegistry getCommandRegistry() {
+        return commandRegistry;
+    }
+
+    //===========================================================
+    //                  Remote event handler
+    //===========================================================
+
+    /**
+     * Applies the events relayed from the other federation nodes to the clients
+     * of this server. The events are never relayed any further.
+     */
+    private class RemoteEventHandler implements FederationListener {
+
+        @Override
+        public void remoteGlobalClientMessage(String sender, String message) {
+            deliverGlobalClientMessage(sender, message);
+        }
+
+        @Override
+        public void remoteGlobalServerMessages(List<String> messages) {
+            deliverGlobalServerMessages(messages);
+        }
+
+        @Override
+        public void remotePrivateClientMessage(String sender, String receiver, String message) {
+            ServerWorker worker = getOnlineClient(receiver);
+            if(worker == null) return;
+
+            worker.getServerWriter().println(frame(INCOMING_PRIVATE_CLIENT_MESSAGE, sender, receiver, message));
+            notifyServerMessage(sender + " sent \"" + message + "\" to " + receiver);
+        }
+
+        @Override
+        public void remoteClientKicked(String kicker, String kicked) {
+            sendModerationFlag(kicked, KICKED, kicker);
+
+            String message = "'" + kicked + "' was kicked from the server by '" + kicker + "'.";
+            broadcast(INCOMING_KICK_MESSAGE, message);
+            publish(MODERATION_TOPIC_PREFIX + "kick", message);
+        }
+
+        @Override
+        public void remoteClientBanned(String banner, String banned) {
+            // Every node has its own copy of the user store.
+            if(!dao.isClientBanned(banned)) dao.banClient(banned);
+            sendModerationFlag(banned, BANNED, banner);
+
+            String message = "'" + banned + "' was banned from the server by '" + banner + "'.";
+            broadcast(INCOMING_BAN_MESSAGE, message);
+            publish(MODERATION_TOPIC_PREFIX + "ban", message);
+        }
+
+        @Override
+        public void remoteClientDeleted(String deleter, String deleted) {
+            if(dao.isClientRegistered(deleted)) dao.deleteClient(deleted);
+            sendModerationFlag(deleted, DELETED, deleter);
+
+            String message = "'" + deleted + "' was deleted by '" + deleter + "'.";
+            broadcast(INCOMING_DELETE_MESSAGE, message);
+            publish(MODERATION_TOPIC_PREFIX + "delete", message);
+        }
+    }
+
+    //===========================================================
+    //           RenderedHistory helper data structure
+    //===========================================================
+
+    /**
+     * The recent history batch, tagged with the write position of the
+     * recent messages buffer its snapshot ends at.
+     */
+    private static class RenderedHistory {
+
+        /** The write position of the recent messages buffer the rendered snapshot ends at. */
+        private final long position;
+
+        /** The rendered batch. */
+        private final MessageBatch batch;
+
+        private RenderedHistory(long position, MessageBatch batch) {
+            this.position = position;
+            this.batch = batch;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the lines of a client's connection, as a {@link java.io.BufferedReader}
+ * would, and tells the number of bytes of every line read, so the server can
+ * count the bytes of the session it has received.
+ * <br>
+ * Unlike a {@link java.io.BufferedReader}, the reader never returns a line the
+ * connection has ended in the middle of, as the client sends such a line whole
+ * once more after it has resumed its session.
+ */
+class ClientLineReader {
+
+    private final InputStream in;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    private final byte[] buffer = new byte[8192];
+
+    /** The position of the next byte of the {@link #buffer} to be read. */
+    private int position;
+
+    /** The number of the bytes in the {@link #buffer}. */
+    private int limit;
+
+    /** The bytes of the line being read that were taken from the previous buffers. */
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /** The number of bytes of the last line read, with its line break. */
+    private int lineBytes;
+
+    ClientLineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line, ended by a {@code \n} or a {@code \r\n}.
+     * @return the line, without its line break; {@code null} if the connection has
+     *         ended, dropping the part of the line read so far
+     * @throws IOException if an IO error occurs
+     */
+    String readLine() throws IOException {
+        line.reset();
+
+        while (true) {
+            if(position == limit) {
+                int read = in.read(buffer);
+                if(read < 0) return null;
+                position = 0;
+                limit = read;
+            }
+
+            for(int i = position; i < limit; i++) {
+                if(buffer[i] != '\n') continue;
+
+                int start = position;
+                position = i + 1;
+                if(line.size() == 0) {
+                    // The whole line is in the buffer, as most are.
+                    lineBytes = i + 1 - start;
+                    return decode(buffer, start, i - start);
+                }
+
+                line.write(buffer, start, i - start);
+                lineBytes = line.size() + 1;
+                return decode(line.toByteArray(), 0, line.size());
+            }
+
+            line.write(buffer, position, limit - position);
+            position = limit;
+        }
+    }
+
+    /**
+     * Decodes the given bytes of a line, without its {@code \r} line break, if any.
+     */
+    private String decode(byte[] bytes, int offset, int length) {
+        if(length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, charset);
+    }
+
+    /**
+     * @return the number of bytes of the last line read, with its line break
+     */
+    int getLineBytes() {
+        return lineBytes;
+    }
+}
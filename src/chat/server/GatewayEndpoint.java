@@ -0,0 +1,405 @@
+package chat.server;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static chat.gateway.GatewayProtocol.*;
+
+/**
+ * The backend's end of the gateway links. Every link carries the sessions of
+ * many clients; every logged in session gets its own {@link ServerWorker},
+ * reading from and writing to the session instead of a socket of its own.
+ * <br>
+ * The frames of a link are read by a single thread, which never waits on a
+ * session: the logins and the registrations, which check the credentials, run
+ * on the I/O threads, and the input of every session is bounded, so a session
+ * whose worker does not keep up with its client's messages is closed, rather
+ * than holding up the other sessions of the link.
+ */
+class GatewayEndpoint {
+
+    /** The maximum number of bytes sent by a client and not yet read by its worker. */
+    private static final int MAX_SESSION_INPUT_BYTES = 256 * 1024;
+
+    /** The server the sessions are logged in to. */
+    private final ChatServer server;
+
+    /** The port the gateways connect to. */
+    private final int port;
+
+    /** Accepts the gateways. */
+    private ServerSocket acceptingSocket;
+
+    /** The sockets of the connected gateways. */
+    private final Set<Socket> gateways = ConcurrentHashMap.newKeySet();
+
+    GatewayEndpoint(ChatServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    void start() throws IOException {
+        acceptingSocket = new ServerSocket(port);
+
+        Thread acceptor = new Thread(this::acceptLoop, "GatewayEndpoint acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void close() {
+        try {
+            if(acceptingSocket != null) acceptingSocket.close();
+            for(Socket gateway : gateways) {
+                gateway.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not close the gateway endpoint: " + e.getMessage());
+        }
+    }
+
+    private void acceptLoop() {
+        while (!acceptingSocket.isClosed()) {
+            try {
+                Socket socket = acceptingSocket.accept();
+                socket.setTcpNoDelay(true);
+                gateways.add(socket);
+
+                Thread reader = new Thread(() -> new Link(socket).run(), "GatewayEndpoint link");
+                reader.setDaemon(true);
+                reader.start();
+
+            } catch (IOException e) {
+                // The accepting socket was closed.
+            }
+        }
+    }
+
+    //===========================================================
+    //                          Link
+    //===========================================================
+
+    /**
+     * A single gateway link and its sessions.
+     */
+    private class Link {
+
+        /** The socket of the link. */
+        private final Socket socket;
+
+        /** The output of the link, shared by all of the sessions. */
+        private DataOutputStream out;
+
+        /** The open sessions, mapped to their ids. */
+        private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+
+        private Link(Socket socket) {
+            this.socket = socket;
+        }
+
+        private void run() {
+            try (socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                if(!HANDSHAKE.equals(in.readUTF())) {
+                    System.err.println("Invalid gateway handshake, closing the connection.");
+                    return;
+                }
+                server.notifyServerMessage("Gateway connected from " + socket.getInetAddress() + ".");
+
+                while (true) {
+                    int sessionId = in.readInt();
+                    byte type = in.readByte();
+                    int length = in.readInt();
+                    if(length < 0 || length > MAX_PAYLOAD_SIZE) throw new IOException("Corrupted gateway frame.");
+
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    processFrame(sessionId, type, payload);
+                }
+
+            } catch (EOFException | SocketException e) {
+                // The gateway has disconnected.
+            } catch (IOException e) {
+                System.err.println("Gateway link broke: " + e.getMessage());
+            } finally {
+                gateways.remove(socket);
+                for(Session session : new ArrayList<>(sessions.values())) {
+                    session.input.end();
+                }
+            }
+        }
+
+        private void processFrame(int sessionId, byte type, byte[] payload) throws IOException {
+            switch (type) {
+                case OPEN_LOGIN:
+                case OPEN_REGISTRATION:
+                    DataInputStream credentials = new DataInputStream(new ByteArrayInputStream(payload));
+                    String username = credentials.readUTF();
+                    String password = credentials.readUTF();
+                    open(sessionId, type == OPEN_LOGIN, username, password);
+                    break;
+
+                case DATA:
+                    Session session = sessions.get(sessionId);
+                    if(session != null && !session.input.feed(payload)) {
+                        System.err.println("Client '" + session.username + "' is not keeping up with its messages, closing its session.");
+                        session.close();
+                    }
+                    break;
+
+                case CLOSE:
+                    Session closed = sessions.get(sessionId);
+                    if(closed != null) closed.input.end();
+                    break;
+
+                default:
+                    System.err.println("Unknown gateway frame " + type + ", ignoring it.");
+            }
+        }
+
+        /**
+         * Logs in or registers the client of the given session on an I/O thread. The
+         * session of a login is opened right away, so the messages the client sends
+         * ahead of the answer are kept for its worker.
+         */
+        private void open(int sessionId, boolean login, String username, String password) throws IOException {
+            Session session = login ? new Session(this, sessionId, username) : null;
+            if(login) sessions.put(sessionId, session);
+
+            try {
+                server.getTenant().execute(() -> {
+                    try {
+                        if(login) {
+                            login(session, password);
+                        } else {
+                            sendStatus(sessionId, server.register(username, password));
+                        }
+                    } catch (IOException e) {
+                        // The link is down, its reader ends the sessions.
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if(login) sessions.remove(sessionId);
+                sendStatus(sessionId, login ? Server.LOGIN_DENIED_SERVER_FULL : Server.REGISTRATION_FAILED_IO_ERROR);
+            }
+        }
+
+        private void login(Session session, String password) throws IOException {
+            int status = server.isFull() ? Server.LOGIN_DENIED_SERVER_FULL : server.checkLogin(session.username, password);
+            if(status != Server.LOGIN_ACCEPTED) sessions.remove(session.id);
+            sendStatus(session.id, status);
+            if(status != Server.LOGIN_ACCEPTED) return;
+
+            // Closed in the meantime, by the gateway or as it fell behind.
+            if(session.closed.get()) return;
+
+            boolean tookOver = server.takeOverDetachedSession(session.username);
+            new ServerWorker(server, session.input, session.output, session, session.username, !tookOver).start();
+        }
+
+        private void sendStatus(int sessionId, int status) throws IOException {
+            send(sessionId, STATUS, new byte[] {(byte) status}, 0, 1);
+        }
+
+        private void send(int sessionId, byte type, byte[] payload, int offset, int length) throws IOException {
+            synchronized (this) {
+                out.writeInt(sessionId);
+                out.writeByte(type);
+                out.writeInt(length);
+                out.write(payload, offset, length);
+                out.flush();
+            }
+        }
+    }
+
+    //===========================================================
+    //                         Session
+    //===========================================================
+
+    /**
+     * A single client session of a gateway link.
+     */
+    private static class Session implements Closeable {
+
+        /** The link the session belongs to. */
+        private final Link link;
+
+        /** The id of the session within the link. */
+        private final int id;
+
+        /** The username of the session's client. */
+        private final String username;
+
+        /** The bytes sent by the client. */
+        private final SessionInput input = new SessionInput();
+
+        /** The bytes sent to the client. */
+        private final SessionOutput output = new SessionOutput(this);
+
+        /** Set once the session was closed. */
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Session(Link link, int id, String username) {
+            this.link = link;
+            this.id = id;
+            this.username = username;
+        }
+
+        @Override
+        public void close() {
+            if(!closed.compareAndSet(false, true)) return;
+
+            link.sessions.remove(id);
+            input.end();
+            try {
+                link.send(id, CLOSE, new byte[0], 0, 0);
+            } catch (IOException e) {
+                // The link is down, the gateway closes the client itself.
+            }
+        }
+    }
+
+    /**
+     * The bytes sent by the client, fed by the link's reader thread, at most
+     * {@link #MAX_SESSION_INPUT_BYTES} of them not yet read.
+     */
+    private static class SessionInput extends InputStream {
+
+        /** Marks the end of the input. */
+        private static final byte[] END = new byte[0];
+
+        /** The chunks not yet read. */
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+
+        /** The number of bytes of the chunks not yet taken by the reader. */
+        private final AtomicInteger queuedBytes = new AtomicInteger();
+
+        /** The chunk being read. */
+        private byte[] chunk = new byte[0];
+
+        /** The position within the chunk being read. */
+        private int position;
+
+        /** Set once the end of the input was reached. */
+        private boolean ended;
+
+        /**
+         * Queues the given bytes, unless the reader has fallen too far behind.
+         * @return {@code false} if the bytes were not queued, as too many are already
+         */
+        boolean feed(byte[] bytes) {
+            if(bytes.length == 0) return true;
+            if(queuedBytes.addAndGet(bytes.length) > MAX_SESSION_INPUT_BYTES) {
+                queuedBytes.addAndGet(-bytes.length);
+                return false;
+            }
+
+            chunks.add(bytes);
+            return true;
+        }
+
+        void end() {
+            chunks.add(END);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!fill()) return -1;
+            return chunk[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(!fill()) return -1;
+
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk.length - position;
+        }
+
+        /**
+         * Waits for the next chunk, unless the current one has bytes left.
+         * @return {@code false} if the end of the input was reached
+         */
+        private boolean fill() throws IOException {
+            while (position == chunk.length) {
+                if(ended) return false;
+
+                try {
+                    chunk = chunks.take();
+                    position = 0;
+                    queuedBytes.addAndGet(-chunk.length);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+
+                if(chunk == END) ended = true;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The bytes sent to the client. Written out as a single frame on every flush,
+     * which the worker's writer does after every message.
+     */
+    private static class SessionOutput extends OutputStream {
+
+        /** The session the output belongs to. */
+        private final Session session;
+
+        /** The bytes written since the last flush. */
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private SessionOutput(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if(session.closed.get()) throw new IOException("Session closed.");
+
+            byte[] bytes = buffer.toByteArray();
+            buffer.reset();
+
+            for(int offset = 0; offset < bytes.length; offset += MAX_PAYLOAD_SIZE) {
+                session.link.send(session.id, DATA, bytes, offset, Math.min(MAX_PAYLOAD_SIZE, bytes.length - offset));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package chat.server;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * An immutable batch of messages that is sent to the client as a single
+ * frame: the flag, followed by the number of messages, followed by the
+ * messages themselves, one per line. The frame is rendered only once, so
+ * the same batch can be sent to any number of clients, each time with a
+ * single write and a single flush.
+ */
+public class MessageBatch {
+
+    /** The messages of this batch. */
+    private final List<String> messages;
+
+    /** The rendered frame, without the trailing line separator. */
+    private final String frame;
+
+    /**
+     * Constructs a new batch of messages.
+     * @param flag the flag that precedes the batch
+     * @param messages the messages of the batch; none can contain a line separator
+     */
+    public MessageBatch(int flag, List<String> messages) {
+        this.messages = List.copyOf(messages);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append((char) flag).append(messages.size());
+        for(String message : messages) {
+            sb.append(System.lineSeparator()).append(message);
+        }
+
+        this.frame = sb.toString();
+    }
+
+    /**
+     * Writes this batch to the given writer.
+     * @param writer the client writer
+     */
+    public void writeTo(PrintWriter writer) {
+        writer.println(frame);
+    }
+
+    /**
+     * Queues this batch to be written to the given worker's client, without
+     * blocking on the client's connection.
+     * @param worker the worker of the client
+     */
+    public void queueTo(ServerWorker worker) {
+        worker.queueFrame(frame);
+    }
+
+    /**
+     * @return the messages of this batch
+     */
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the number of messages in this batch
+     */
+    public int size() {
+        return messages.size();
+    }
+}
@@ -0,0 +1,155 @@
+package chat.server;
+
+import chat.server.runtime.Tenant;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces the announcements of the clients joining and leaving the server.
+ * <br>
+ * Instead of announcing every join and leave as soon as it happens, the
+ * announcer collects them over a short window and then passes all of the
+ * announcements of the window to the sink at once, so that they can be sent
+ * as a single frame. If more clients joined (or left) during the window than
+ * the threshold, they are summarized in a single line, such as
+ * "37 users have just connected". A client that leaves and joins again within
+ * the same window, as after a network blip, is not announced at all.
+ */
+class PresenceAnnouncer {
+
+    /** The default length of the coalescing window, in milliseconds. */
+    static final long DEFAULT_WINDOW_MILLIS = 500;
+
+    /** The default number of joins or leaves above which they are summarized. */
+    static final int DEFAULT_THRESHOLD = 5;
+
+    /** The maximum number of usernames listed in a summary line. */
+    private static final int MAX_LISTED_USERNAMES = 10;
+
+    /** The length of the coalescing window, in milliseconds. */
+    private final long windowMillis;
+
+    /** The number of joins or leaves above which they are summarized. */
+    private final int threshold;
+
+    /** Receives the announcement lines of every window. */
+    private final Consumer<List<String>> sink;
+
+    /** The clients that joined during the current window, mapped to their join announcement. */
+    private final Map<String, String> joined = new LinkedHashMap<>();
+
+    /** The clients that left during the current window. */
+    private final Set<String> left = new LinkedHashSet<>();
+
+    /** {@code true} if the flush of the current window is already scheduled. */
+    private boolean flushScheduled;
+
+    /** {@code true} once the announcer was closed; nothing is scheduled from then on. */
+    private boolean closed;
+
+    /** The tenant whose timers run the flushes at the end of the windows. */
+    private final Tenant tenant;
+
+    /**
+     * Constructs a new announcer.
+     * @param windowMillis the length of the coalescing window, in milliseconds
+     * @param threshold the number of joins or leaves above which they are summarized
+     * @param sink receives the announcement lines of every window
+     * @param tenant the tenant whose timers run the flushes
+     */
+    PresenceAnnouncer(long windowMillis, int threshold, Consumer<List<String>> sink, Tenant tenant) {
+        this.windowMillis = windowMillis;
+        this.threshold = threshold;
+        this.sink = Objects.requireNonNull(sink, "Sink cannot be null.");
+        this.tenant = Objects.requireNonNull(tenant, "Tenant cannot be null.");
+    }
+
+    //===========================================================
+    //                      Announcing
+    //===========================================================
+
+    /**
+     * Announces that the client has joined the server.
+     * @param username the username of the client
+     * @param announcement the line that announces the single join
+     */
+    synchronized void clientJoined(String username, String announcement) {
+        if(!left.remove(username)) {
+            joined.put(username, announcement);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Announces that the client has left the server.
+     * @param username the username of the client
+     */
+    synchronized void clientLeft(String username) {
+        if(joined.remove(username) == null) {
+            left.add(username);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Announces everything collected so far immediately and stops the announcer.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    private void scheduleFlush() {
+        if(flushScheduled || closed) return;
+
+        tenant.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        flushScheduled = true;
+    }
+
+    private void flush() {
+        List<String> lines = new ArrayList<>();
+
+        synchronized (this) {
+            flushScheduled = false;
+
+            if(joined.size() > threshold) {
+                lines.add(summarize(joined.keySet(), "have just connected"));
+            } else {
+                lines.addAll(joined.values());
+            }
+
+            if(left.size() > threshold) {
+                lines.add(summarize(left, "have disconnected from the server"));
+            } else {
+                for(String username : left) {
+                    lines.add("'" + username + "' has disconnected from the server.");
+                }
+            }
+
+            joined.clear();
+            left.clear();
+        }
+
+        if(!lines.isEmpty()) sink.accept(lines);
+    }
+
+    /**
+     * Summarizes the given usernames in a single line, listing at most
+     * {@link #MAX_LISTED_USERNAMES} of them.
+     */
+    private static String summarize(Collection<String> usernames, String action) {
+        StringJoiner sj = new StringJoiner(", ", usernames.size() + " users " + action + ": ", "");
+
+        Iterator<String> it = usernames.iterator();
+        for(int i = 0; i < MAX_LISTED_USERNAMES && it.hasNext(); i++) {
+            sj.add(it.next());
+        }
+
+        int remaining = usernames.size() - MAX_LISTED_USERNAMES;
+        return remaining > 0 ? sj + " and " + remaining + " more." : sj + ".";
+    }
+}
@@ -0,0 +1,142 @@
+package chat.server;
+
+import chat.client.Client;
+import chat.server.runtime.Tenant;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks the presence states of the online clients, such as typing or away,
+ * and throttles the presence updates sent to the clients.
+ * <br>
+ * The clients report only the state transitions. The changes are collected
+ * per user, so that only the latest state of a user within a tick is kept,
+ * and once per tick all of the collected changes are passed to the sink as
+ * a single batch. No matter how often the clients change their states, the
+ * recipients get at most one presence frame per tick. The frames are queued
+ * by the tenant's timer threads and written by the I/O threads, never by the
+ * workers handling the chat messages, so neither the chat nor the timers of
+ * the other tenants wait for a slow client.
+ */
+class PresenceTracker {
+
+    /** The default length of a single tick, in milliseconds. */
+    static final long DEFAULT_TICK_MILLIS = 250;
+
+    /** The length of a single tick, in milliseconds. */
+    private final long tickMillis;
+
+    /** Receives the batched changes of every tick, as username and state lines, in turn. */
+    private final Consumer<List<String>> sink;
+
+    /** The presence states other than active, by username. */
+    private final Map<String, String> states = new HashMap<>();
+
+    /** The changes collected during the current tick, by username. */
+    private final Map<String, String> changes = new LinkedHashMap<>();
+
+    /** The tenant whose timers run the ticks. */
+    private final Tenant tenant;
+
+    /** The periodic tick; {@code null} until the tracker is started. */
+    private ScheduledFuture<?> tickTask;
+
+    /**
+     * Constructs a new tracker.
+     * @param tickMillis the length of a single tick, in milliseconds
+     * @param sink receives the batched changes of every tick
+     * @param tenant the tenant whose timers run the ticks
+     */
+    PresenceTracker(long tickMillis, Consumer<List<String>> sink, Tenant tenant) {
+        this.tickMillis = tickMillis;
+        this.sink = Objects.requireNonNull(sink, "Sink cannot be null.");
+        this.tenant = Objects.requireNonNull(tenant, "Tenant cannot be null.");
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Starts the ticks.
+     */
+    void start() {
+        tickTask = tenant.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the ticks. The changes that were not sent yet are dropped.
+     */
+    void stop() {
+        if(tickTask != null) tickTask.cancel(false);
+    }
+
+    /**
+     * Updates the presence state of the given client.
+     * @param username the username of the client
+     * @param state the new presence state
+     * @return {@code true} if the state has changed, {@code false} if the client
+     *         was already in the given state
+     */
+    synchronized boolean update(String username, String state) {
+        String previous = state.equals(Client.PRESENCE_ACTIVE) ? states.remove(username) : states.put(username, state);
+        String previousState = previous == null ? Client.PRESENCE_ACTIVE : previous;
+
+        if(previousState.equals(state)) return false;
+
+        changes.put(username, state);
+        return true;
+    }
+
+    /**
+     * Forgets the presence state of the client that has left the server.
+     * @param username the username of the client
+     */
+    synchronized void remove(String username) {
+        states.remove(username);
+        changes.remove(username);
+    }
+
+    /**
+     * Returns the current presence states other than active, as username and
+     * state lines, in turn.
+     * @return the current states
+     */
+    synchronized List<String> getStates() {
+        List<String> lines = new ArrayList<>(states.size() * 2);
+        states.forEach((username, state) -> {
+            lines.add(username);
+            lines.add(state);
+        });
+        return lines;
+    }
+
+    //===========================================================
+    //                         Ticks
+    //===========================================================
+
+    private void tick() {
+        List<String> lines;
+
+        synchronized (this) {
+            if(changes.isEmpty()) return;
+
+            lines = new ArrayList<>(changes.size() * 2);
+            changes.forEach((username, state) -> {
+                lines.add(username);
+                lines.add(state);
+            });
+            changes.clear();
+        }
+
+        try {
+            sink.accept(lines);
+        } catch (RuntimeException e) {
+            // An exception would cancel all of the future ticks.
+            e.printStackTrace();
+        }
+    }
+}
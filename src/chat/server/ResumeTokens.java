@@ -0,0 +1,83 @@
+package chat.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Issues and verifies the tokens resuming the client sessions. A token names
+ * the session and the connection of the session it was issued on, and the time
+ * it expires at, signed with a key that lives only as long as the server, so
+ * the tokens cannot be forged and are never valid on another server or after
+ * a restart.
+ * <br>
+ * A token is only as valid as the session it names: it resumes the session
+ * once, and only once the session's connection has dropped, within the resume
+ * window. The server issues the connected sessions a fresh token well before
+ * the last one expires, so a token that has leaked is of use only for a while.
+ */
+class ResumeTokens {
+
+    /** The algorithm the tokens are signed with. */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /** The key the tokens are signed with. */
+    private final SecretKeySpec key;
+
+    ResumeTokens() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * Issues the token resuming the given connection of the given session.
+     * @param sessionId the id of the session
+     * @param connection the number of the session's connection the token is issued on
+     * @param expiresMillis the time the token expires at, in milliseconds since the epoch
+     * @return the token
+     */
+    String issue(long sessionId, int connection, long expiresMillis) {
+        String claims = sessionId + ":" + connection + ":" + expiresMillis;
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + "." + encoder.encodeToString(sign(claims));
+    }
+
+    /**
+     * Verifies the given token's signature and expiry.
+     * @param token the token
+     * @return the session id and the connection number the token was issued for;
+     *         {@code null} if the token is malformed, was not issued by this server or has expired
+     */
+    long[] verify(String token) {
+        int dot = token.indexOf('.');
+        if(dot < 0) return null;
+
+        try {
+            String claims = new String(Base64.getUrlDecoder().decode(token.substring(0, dot)), StandardCharsets.UTF_8);
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+            if(!MessageDigest.isEqual(signature, sign(claims))) return null;
+
+            String[] fields = claims.split(":");
+            if(fields.length != 3 || System.currentTimeMillis() > Long.parseLong(fields[2])) return null;
+            return new long[] {Long.parseLong(fields[0]), Integer.parseInt(fields[1])};
+
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String claims) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(claims.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available.", e);
+        }
+    }
+}
@@ -61,6 +61,13 @@ public interface Server {
      */
     byte LOGIN_DENIED_USERNAME_NOT_REGISTERED = 39;
 
+    /**
+     * Response value sent to the {@link chat.client.Client#DIRECT_LOGIN_REQUEST} of
+     * a client whose protocol version is not supported by the server. The client
+     * may still log in with the {@link chat.client.Client#LOGIN_REQUEST}.
+     */
+    byte LOGIN_DENIED_UNSUPPORTED_PROTOCOL = 66;
+
     //===========================================================
     //          Registration flags sent to the client
     //===========================================================
@@ -82,6 +89,42 @@ public interface Server {
      */
     byte REGISTRATION_SUCCEEDED = 42;
 
+    //===========================================================
+    //           Session resumption flags sent to the client
+    //===========================================================
+
+    /**
+     * Value sent to the client indicating that the token resuming its session
+     * will be sent, on the line following the flag. It is sent as the first frame
+     * of every session that can be resumed, and again after every resumption,
+     * as every token resumes the session only once.
+     */
+    byte RESUME_TOKEN = 63;
+
+    /**
+     * Response value sent to the {@link chat.client.Client#RESUME_REQUEST} once the
+     * session has been resumed. It is followed by the number of the session's bytes
+     * the server has received from the client, on a line of its own, from which the
+     * client sends its messages once more, and by the frames the client has missed.
+     */
+    byte RESUME_ACCEPTED = 64;
+
+    /**
+     * Response value sent to the {@link chat.client.Client#RESUME_REQUEST} once the
+     * session could not be resumed, as its token is not valid or it has ended, or
+     * as the frames the client has missed are no longer kept. The client may
+     * still log in again.
+     */
+    byte RESUME_DENIED = 65;
+
+    /**
+     * Response value sent to the {@link chat.client.Client#RESUME_REQUEST} while
+     * the session is still connected, as the server has not found its connection
+     * dropped yet. The connection is probed, and the client may retry with the
+     * same token shortly.
+     */
+    byte RESUME_PENDING = 69;
+
     //===========================================================
     //             Message flags sent to the client
     //===========================================================
@@ -130,6 +173,110 @@ public interface Server {
      */
     byte INCOMING_DELETE_MESSAGE = 50;
 
+    /**
+     * Value sent to the client indicating that a batch of private server messages
+     * will be sent. The flag is followed by the number of messages in the batch,
+     * which is followed by the messages themselves, one per line.
+     */
+    byte INCOMING_PRIVATE_SERVER_MESSAGE_BATCH = 54;
+
+    /**
+     * Value sent to the client indicating that a batch of the recent global client
+     * messages will be sent. The flag is followed by the number of lines, which is
+     * followed by the sender and the message line of every message, in turn.
+     */
+    byte INCOMING_GLOBAL_CLIENT_MESSAGE_BATCH = 55;
+
+    /**
+     * Value sent to the client indicating that a batch of private client messages,
+     * stored while the client was offline, will be sent. The flag is followed by the
+     * number of lines, which is followed by the sender, the receiver and the message
+     * line of every message, in turn.
+     */
+    byte INCOMING_PRIVATE_CLIENT_MESSAGE_BATCH = 56;
+
+    /**
+     * Value sent to the client indicating that the room client message will be sent.
+     * The flag is followed by the room name, the sender and the message line.
+     */
+    byte INCOMING_ROOM_CLIENT_MESSAGE = 57;
+
+    /**
+     * Value sent to the client indicating that a message published on a topic the
+     * client is subscribed to will be sent. The flag is followed by the topic and
+     * the message line.
+     */
+    byte INCOMING_TOPIC_MESSAGE = 58;
+
+    /**
+     * Value sent to the client indicating that a batch of global server messages,
+     * such as the coalesced join and leave announcements, will be sent. The flag is
+     * followed by the number of messages in the batch, which is followed by the
+     * messages themselves, one per line.
+     */
+    byte INCOMING_GLOBAL_SERVER_MESSAGE_BATCH = 59;
+
+    /**
+     * Value sent to the client indicating that a batch of presence updates will be
+     * sent. The flag is followed by the number of lines, which is followed by the
+     * username and the new presence state of every updated client, in turn.
+     */
+    byte INCOMING_PRESENCE_BATCH = 62;
+
+    /**
+     * Value sent instead of {@link #INCOMING_GLOBAL_CLIENT_MESSAGE} to the clients that
+     * synchronize their history with the {@code /history} command. The flag is followed
+     * by the sequence number of the message, the time it was sent, the sender and the
+     * message. A message that was not logged has the sequence number {@code -1}.
+     */
+    byte INCOMING_SEQUENCED_GLOBAL_CLIENT_MESSAGE = 67;
+
+    /**
+     * Value sent to the client indicating that the global client messages it has not
+     * seen yet will be sent, in answer to the {@code /history} command. The flag is
+     * followed by the number of lines, which is followed by four lines per message,
+     * in the order of {@link #INCOMING_SEQUENCED_GLOBAL_CLIENT_MESSAGE}, and by the
+     * identifier of the log the sequence numbers belong to. The sequence numbers of
+     * different logs cannot be compared with each other.
+     */
+    byte INCOMING_HISTORY_BATCH = 68;
+
+    //===========================================================
+    //              Roster flags sent to the client
+    //===========================================================
+
+    /**
+     * Value sent to the client indicating that the full roster of online clients
+     * will be sent. The flag is followed by the number of lines, which is followed
+     * by the roster version and the usernames of the online clients, one per line.
+     */
+    byte ROSTER_SNAPSHOT = 60;
+
+    /**
+     * Value sent to the client indicating that a single roster change will be sent.
+     * The flag is followed by the new roster version and the line consisting of
+     * {@link #ROSTER_ADDED} or {@link #ROSTER_REMOVED}, followed by the username.
+     * The version of every delta is exactly one greater than the version of the
+     * previous one, so the client that detects a gap should request a new snapshot.
+     */
+    byte ROSTER_DELTA = 61;
+
+    /**
+     * Value sent to the client indicating that the roster changes of a window will be
+     * sent. The flag is followed by the number of lines, which is followed by the new
+     * roster version and a line per changed client, in the form of the {@link #ROSTER_DELTA}
+     * line. Every batch advances the version by exactly one, as a {@link #ROSTER_DELTA}
+     * does. A change already in the client's roster, such as one its snapshot was taken
+     * after, has no effect.
+     */
+    byte ROSTER_DELTA_BATCH = 70;
+
+    /** Marks the client added to the roster in the {@link #ROSTER_DELTA} line. */
+    char ROSTER_ADDED = '+';
+
+    /** Marks the client removed from the roster in the {@link #ROSTER_DELTA} line. */
+    char ROSTER_REMOVED = '-';
+
     //===========================================================
     //             Kick and ban flags sent to the client
     //===========================================================
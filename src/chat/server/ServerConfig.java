@@ -0,0 +1,348 @@
+package chat.server;
+
+import chat.server.runtime.ServerRuntime;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * The configuration of a server started without the graphical user interface,
+ * read from a properties file and overridden by the command line flags. Every
+ * key of the file is also a flag, as in {@code --max-clients 5000}.
+ * <br>
+ * The file is given by the {@code --config} flag; without it, the
+ * {@code server.properties} file of the resource directory is read, if any.
+ * Every value is checked once the configuration is read, so a server is never
+ * started with a configuration it would fail on later.
+ */
+public class ServerConfig {
+
+    /** The name of the configuration file looked for in the resource directory. */
+    public static final String DEFAULT_FILE_NAME = "server.properties";
+
+    /** The flag naming the configuration file, which is not a key of the file itself. */
+    private static final String CONFIG_FLAG = "config";
+
+    //===========================================================
+    //                          Keys
+    //===========================================================
+
+    public static final String PORT = "port";
+    public static final String MAX_CLIENTS = "max-clients";
+    public static final String NAME = "name";
+    public static final String RESOURCES = "resources";
+    public static final String TIMER_THREADS = "timer-threads";
+    public static final String IO_THREADS = "io-threads";
+    public static final String IO_KEEP_ALIVE_SECONDS = "io-keep-alive-seconds";
+    public static final String DAO = "dao";
+    public static final String REPLICATION_PORT = "replication-port";
+    public static final String REPLICATION_LEADER = "replication-leader";
+    public static final String REPLICATION_BIND = "replication-bind";
+    public static final String REPLICATION_SECRET_FILE = "replication-secret-file";
+    public static final String GATEWAY_PORT = "gateway-port";
+    public static final String REPLAY_BUFFER_BYTES = "replay-buffer-bytes";
+    public static final String RESUME_WINDOW_MILLIS = "resume-window-millis";
+    public static final String PRESENCE_WINDOW_MILLIS = "presence-window-millis";
+    public static final String PRESENCE_THRESHOLD = "presence-threshold";
+    public static final String SHUTDOWN_TIMEOUT_MILLIS = "shutdown-timeout-millis";
+
+    /** The DAO backends: the local client data, or its replication as the leader or a follower. */
+    public static final String DAO_FILE = "file";
+    public static final String DAO_REPLICATION_LEADER = "replication-leader";
+    public static final String DAO_REPLICATION_FOLLOWER = "replication-follower";
+
+    /** Every key, with its default value; {@code null} if the key has none. */
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put(PORT, "2468");
+        DEFAULTS.put(MAX_CLIENTS, "1000");
+        DEFAULTS.put(NAME, "default");
+        DEFAULTS.put(RESOURCES, "res");
+        DEFAULTS.put(TIMER_THREADS, Integer.toString(ServerRuntime.DEFAULT_TIMER_THREADS));
+        DEFAULTS.put(IO_THREADS, Integer.toString(ServerRuntime.DEFAULT_MAX_IO_THREADS));
+        DEFAULTS.put(IO_KEEP_ALIVE_SECONDS, Long.toString(ServerRuntime.DEFAULT_IO_KEEP_ALIVE_SECONDS));
+        DEFAULTS.put(DAO, DAO_FILE);
+        DEFAULTS.put(REPLICATION_PORT, null);
+        DEFAULTS.put(REPLICATION_LEADER, null);
+        DEFAULTS.put(REPLICATION_BIND, null);
+        DEFAULTS.put(REPLICATION_SECRET_FILE, null);
+        DEFAULTS.put(GATEWAY_PORT, null);
+        DEFAULTS.put(REPLAY_BUFFER_BYTES, Integer.toString(ChatServer.DEFAULT_REPLAY_BUFFER_SIZE));
+        DEFAULTS.put(RESUME_WINDOW_MILLIS, Long.toString(ChatServer.DEFAULT_RESUME_WINDOW_MILLIS));
+        DEFAULTS.put(PRESENCE_WINDOW_MILLIS, Long.toString(PresenceAnnouncer.DEFAULT_WINDOW_MILLIS));
+        DEFAULTS.put(PRESENCE_THRESHOLD, Integer.toString(PresenceAnnouncer.DEFAULT_THRESHOLD));
+        DEFAULTS.put(SHUTDOWN_TIMEOUT_MILLIS, "10000");
+    }
+
+    /** The values set by the file and the flags. */
+    private final Map<String, String> values;
+
+    private ServerConfig(Map<String, String> values) {
+        this.values = values;
+        check();
+    }
+
+    /**
+     * Reads the configuration given by the command line flags.
+     *
+     * @param args the flags, as {@code --key value} or {@code --key=value}
+     * @return the configuration
+     * @throws IllegalArgumentException if a flag or a value is not valid
+     * @throws IOException if the configuration file could not be read
+     */
+    public static ServerConfig parse(String[] args) throws IOException {
+        Map<String, String> flags = new HashMap<>();
+        for(int i = 0; i < args.length; i++) {
+            if(!args[i].startsWith("--")) throw new IllegalArgumentException("Invalid argument '" + args[i] + "'.");
+
+            String flag = args[i].substring(2);
+            int equals = flag.indexOf('=');
+            if(equals >= 0) {
+                flags.put(flag.substring(0, equals), flag.substring(equals + 1));
+            } else if(i + 1 < args.length) {
+                flags.put(flag, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value of the flag '--" + flag + "'.");
+            }
+        }
+
+        Map<String, String> values = new HashMap<>();
+        String file = flags.remove(CONFIG_FLAG);
+        Path path = file != null ? Paths.get(file)
+                : Paths.get(flags.getOrDefault(RESOURCES, DEFAULTS.get(RESOURCES))).resolve(DEFAULT_FILE_NAME);
+
+        if(file != null || Files.exists(path)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(path)) {
+                properties.load(reader);
+            }
+            properties.stringPropertyNames().forEach(key -> values.put(key, properties.getProperty(key).trim()));
+        }
+
+        // The flags override the file.
+        values.putAll(flags);
+        return new ServerConfig(values);
+    }
+
+    /**
+     * @return the usage of the flags, with the default values
+     */
+    public static String usage() {
+        StringBuilder sb = new StringBuilder("[--config <file>]");
+        DEFAULTS.forEach((key, value) -> sb.append(" [--").append(key).append(' ')
+                .append(value != null ? value : "<" + key + ">").append(']'));
+        return sb.toString();
+    }
+
+    //===========================================================
+    //                        Checking
+    //===========================================================
+
+    private void check() {
+        for(String key : values.keySet()) {
+            if(!DEFAULTS.containsKey(key)) throw new IllegalArgumentException("Unknown configuration key '" + key + "'.");
+        }
+
+        getPort();
+        getMaxClients();
+        getTimerThreads();
+        getIoThreads();
+        getIoKeepAliveSeconds();
+        getReplayBufferBytes();
+        getResumeWindowMillis();
+        getPresenceWindowMillis();
+        getPresenceThreshold();
+        getShutdownTimeoutMillis();
+        if(getGatewayPort() == getPort()) throw new IllegalArgumentException("The gateway port must differ from the client port.");
+
+        switch (getDao()) {
+            case DAO_FILE:
+                break;
+            case DAO_REPLICATION_LEADER:
+                getReplicationPort();
+                getReplicationBindAddress();
+                getReplicationSecretFile();
+                break;
+            case DAO_REPLICATION_FOLLOWER:
+                getReplicationLeaderPort();
+                getReplicationSecretFile();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown DAO backend '" + getDao() + "'; expected "
+                        + DAO_FILE + ", " + DAO_REPLICATION_LEADER + " or " + DAO_REPLICATION_FOLLOWER + ".");
+        }
+    }
+
+    private String value(String key) {
+        String value = values.getOrDefault(key, DEFAULTS.get(key));
+        if(value == null) throw new IllegalArgumentException("Missing configuration key '" + key + "'.");
+        return value;
+    }
+
+    private long number(String key, long min, long max) {
+        long number;
+        try {
+            number = Long.parseLong(value(key));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The value of '" + key + "' must be an integer.");
+        }
+        if(number < min || number > max) {
+            throw new IllegalArgumentException("The value of '" + key + "' must be in range from " + min + " to " + max + ".");
+        }
+        return number;
+    }
+
+    private int port(String key) {
+        return (int) number(key, 1, 65535);
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    public int getPort() {
+        return port(PORT);
+    }
+
+    public int getMaxClients() {
+        return (int) number(MAX_CLIENTS, 1, Integer.MAX_VALUE);
+    }
+
+    public String getName() {
+        return value(NAME);
+    }
+
+    public Path getResourceDirectory() {
+        return Paths.get(value(RESOURCES));
+    }
+
+    public int getTimerThreads() {
+        return (int) number(TIMER_THREADS, 1, 1024);
+    }
+
+    /**
+     * @return the maximum number of I/O threads, each holding a connection; once
+     *         they are all busy, the server is reported full
+     */
+    public int getIoThreads() {
+        return (int) number(IO_THREADS, 1, Integer.MAX_VALUE);
+    }
+
+    public long getIoKeepAliveSeconds() {
+        return number(IO_KEEP_ALIVE_SECONDS, 0, Long.MAX_VALUE);
+    }
+
+    public String getDao() {
+        return value(DAO);
+    }
+
+    /**
+     * @return the port the replication followers connect to, if the DAO backend is the replication leader
+     */
+    public int getReplicationPort() {
+        return port(REPLICATION_PORT);
+    }
+
+    /**
+     * @return the address the replication followers connect to, if the DAO backend is the
+     *         replication leader; the loopback address unless another address is given
+     */
+    public InetAddress getReplicationBindAddress() {
+        if(!values.containsKey(REPLICATION_BIND)) return InetAddress.getLoopbackAddress();
+
+        try {
+            return InetAddress.getByName(value(REPLICATION_BIND));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("The value of '" + REPLICATION_BIND + "' must be a known address.");
+        }
+    }
+
+    /**
+     * @return the file holding the secret shared by the replication leader and its followers
+     */
+    public Path getReplicationSecretFile() {
+        return Paths.get(value(REPLICATION_SECRET_FILE));
+    }
+
+    /**
+     * Reads the secret shared by the replication leader and its followers.
+     * @return the secret
+     * @throws IOException if the secret file could not be read
+     */
+    public byte[] readReplicationSecret() throws IOException {
+        return Files.readString(getReplicationSecretFile()).trim().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the host of the replication leader, if the DAO backend is a replication follower
+     */
+    public String getReplicationLeaderHost() {
+        String leader = value(REPLICATION_LEADER);
+        return leader.substring(0, Math.max(0, leader.lastIndexOf(':')));
+    }
+
+    /**
+     * @return the replication port of the leader, if the DAO backend is a replication follower
+     */
+    public int getReplicationLeaderPort() {
+        String leader = value(REPLICATION_LEADER);
+        int colon = leader.lastIndexOf(':');
+        if(colon <= 0) throw new IllegalArgumentException("The value of '" + REPLICATION_LEADER + "' must be <host>:<port>.");
+
+        try {
+            int port = Integer.parseInt(leader.substring(colon + 1));
+            if(port >= 1 && port <= 65535) return port;
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("The value of '" + REPLICATION_LEADER + "' must be <host>:<port>.");
+    }
+
+    /**
+     * @return the port the gateways connect to; {@code -1} if the gateways are not accepted
+     */
+    public int getGatewayPort() {
+        return values.containsKey(GATEWAY_PORT) ? port(GATEWAY_PORT) : -1;
+    }
+
+    public int getReplayBufferBytes() {
+        return (int) number(REPLAY_BUFFER_BYTES, 0, Integer.MAX_VALUE);
+    }
+
+    public long getResumeWindowMillis() {
+        return number(RESUME_WINDOW_MILLIS, 0, Long.MAX_VALUE);
+    }
+
+    public long getPresenceWindowMillis() {
+        return number(PRESENCE_WINDOW_MILLIS, 1, Long.MAX_VALUE);
+    }
+
+    public int getPresenceThreshold() {
+        return (int) number(PRESENCE_THRESHOLD, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the time the server is given to close once the process is stopped, in milliseconds
+     */
+    public long getShutdownTimeoutMillis() {
+        return number(SHUTDOWN_TIMEOUT_MILLIS, 0, Long.MAX_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(String key : DEFAULTS.keySet()) {
+            String value = values.getOrDefault(key, DEFAULTS.get(key));
+            if(value != null) sb.append(sb.length() == 0 ? "" : ", ").append(key).append('=').append(value);
+        }
+        return sb.toString();
+    }
+}
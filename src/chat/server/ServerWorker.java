@@ -1,19 +1,29 @@
 package chat.server;
 
-import chat.client.Client;
 import chat.server.command.Command;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Worker that listens for the client's messages.
+ * Worker that listens for the client's messages. Runs on one of the
+ * I/O threads of the server's runtime for as long as the client is connected.
+ * <br>
+ * A worker serves the client's whole session, which may outlive its connection:
+ * once the connection of a session that can be resumed drops, the session is
+ * kept, still a member of its rooms and still receiving its messages, until the
+ * client resumes it on a new connection or the resume window passes.
  */
-public class ServerWorker extends Thread {
+public class ServerWorker implements Runnable {
 
     /**
      * The pattern that needs to be send as the start of a message to indicate
@@ -21,14 +31,26 @@ public class ServerWorker extends Thread {
      */
     private static final String COMMAND_PATTERN = "/";
 
-    /** The reader that waits and reads the client's messages. */
-    private BufferedReader serverReader;
+    /**
+     * The pattern that needs to be send as the start of a message to indicate
+     * that the message is sent to a room, as in {@code #room message}.
+     */
+    private static final String ROOM_PATTERN = "#";
 
-    /** Writer used for writing messages to the client. */
+    /** The maximum number of queued frames; a client that falls further behind has its connection dropped. */
+    private static final int MAX_QUEUED_FRAMES = 1024;
+
+    /** The reader that waits and reads the client's messages, from the session's current connection. */
+    private ClientLineReader serverReader;
+
+    /** Writer used for writing messages to the client. The same writer serves all of the session's connections. */
     private PrintWriter serverWriter;
 
-    /** The server side socket. */
-    private Socket serverSocket;
+    /** The bytes sent to the client, kept for a resumption of the session. */
+    private SessionOutputStream sessionOutput;
+
+    /** The current connection to the client: the server side socket, or the session of a gateway link. */
+    private volatile Closeable connection;
 
     /** The server this thread is "working" for. */
     private ChatServer server;
@@ -36,54 +58,246 @@ public class ServerWorker extends Thread {
     /** The username of the client this thread is dedicated to. */
     private String clientUsername;
 
-    /** Maps the command name to the object that can execute the command. */
-    private static Map<String, Command> commandMap = new HashMap<>();
+    /** The names of the rooms the client is a member of. */
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    /** The topic patterns the client is subscribed to. */
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+
+    /** Set once the client synchronizes its history, so it is sent the global messages with their sequence numbers. */
+    private volatile boolean sequenced;
+
+    //===========================================================
+    //                    Session resumption
+    //===========================================================
+
+    /** Whether the session is kept for a resumption once its connection drops. */
+    private boolean resumable;
+
+    /** The id of the session; {@code -1} if the session cannot be resumed. */
+    private long sessionId = -1;
+
+    /** The number of the session's current connection, incremented on every resumption. */
+    private int connectionNumber;
+
+    /** The number of the session's bytes received from the client, those of the whole lines read. */
+    private long received;
+
+    /** {@code false} while the session is kept without a connection, waiting to be resumed. */
+    private boolean attached = true;
+
+    /** Set once the session has ended. */
+    private boolean ended;
+
+    /** Ends the session once the resume window has passed; {@code null} while the session is attached. */
+    private ScheduledFuture<?> expiry;
+
+    //===========================================================
+    //                     Recent history
+    //===========================================================
+
+    /** Guards the held messages, so the recent history is sent ahead of them. */
+    private final Object historyLock = new Object();
+
+    /** The global client messages broadcast before the recent history was sent; {@code null} once it is sent. */
+    private List<HeldMessage> heldMessages = new ArrayList<>();
 
-    static {
+    /** The position of the recent messages the sent history ends at; the older messages are not sent again. */
+    private long historyEnd;
+
+    //===========================================================
+    //                      Queued frames
+    //===========================================================
+
+    /** The frames queued by the timers, waiting to be written by an I/O thread. */
+    private final ConcurrentLinkedQueue<String> queuedFrames = new ConcurrentLinkedQueue<>();
+
+    /** The number of the queued frames. */
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    /** Set while an I/O thread is writing the queued frames. */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Constructs a worker of the client that has just logged in on the given socket,
+     * and sends the client the {@link Server#LOGIN_ACCEPTED} status together with the
+     * initial state of its session.
+     * @param serverReader the reader of the socket the login request was read with,
+     *                     which may have already read the client's first messages
+     * @param announce whether the client's joining is announced; it is not once the
+     *                 client has logged in again while its previous session was kept
+     */
+    ServerWorker(ChatServer server, Socket serverSocket, ClientLineReader serverReader, String clientUsername, boolean announce) throws IOException {
+        this(server, serverReader, serverSocket.getOutputStream(), serverSocket, clientUsername, Server.LOGIN_ACCEPTED, server.getReplayBufferSize() > 0, announce);
+    }
+
+    /**
+     * Constructs a worker reading from and writing to the given streams, which
+     * need not belong to a socket of their own, as the sessions of a gateway link.
+     * Such sessions cannot be resumed, as a resumption needs a connection of its own.
+     * @param connection closes the client connection once the worker is done
+     * @param announce whether the client's joining is announced
+     */
+    ServerWorker(ChatServer server, InputStream in, OutputStream out, Closeable connection, String clientUsername, boolean announce) {
+        this(server, new ClientLineReader(server.getTenant().countInput(in)), out, connection, clientUsername, -1, false, announce);
+    }
+
+    /**
+     * @param status the login status sent ahead of the session; {@code -1} if it was sent already
+     */
+    private ServerWorker(ChatServer server, ClientLineReader serverReader, OutputStream out, Closeable connection,
+                         String clientUsername, int status, boolean resumable, boolean announce) {
+        this.server         = Objects.requireNonNull(server, "Server cannot be null.");
+        this.connection     = Objects.requireNonNull(connection, "Connection cannot be null.");
+        this.clientUsername = Objects.requireNonNull(clientUsername, "Client username cannot be null.");
+        this.serverReader   = serverReader;
+        this.resumable      = resumable;
+
+        server.getTenant().connectionOpened();
+        OutputStream connectionOutput = connectionOutput(out);
         try {
-            for(String fqcn : Files.readAllLines(Paths.get("res/command-list.txt"))) {
-                if(fqcn.isBlank()) continue;
+            if(status >= 0) connectionOutput.write(status);
+        } catch (IOException e) {
+            // Buffered; the connection's failure is found by the reader.
+        }
+        sessionOutput = new SessionOutputStream(connectionOutput, resumable ? server.getReplayBufferSize() : 0);
+        serverWriter = new PrintWriter(sessionOutput, true);
+
+        // The status and the initial state are sent at once, rather than a frame at a time.
+        sessionOutput.cork();
+        if(resumable) {
+            sessionId = server.openSession(this);
+            serverWriter.println((char) Server.RESUME_TOKEN + server.issueResumeToken(this));
+        }
+        server.joinWithRecentHistory(this);
+        server.deliverOfflineMessages(this);
+        server.sendPresenceStates(this);
+        sessionOutput.uncork();
+
+        if(announce) server.announceClientJoined(this);
+    }
+
+    /**
+     * Sends the client the given global client message, unless the recent history
+     * sent to the client already contains it. Until the history is sent, the
+     * message is held.
+     * @param position the position of the message in the server's recent messages
+     * @param frame the rendered message
+     */
+    void sendGlobalClientMessage(long position, String frame) {
+        synchronized (historyLock) {
+            if(heldMessages != null) {
+                heldMessages.add(new HeldMessage(position, frame));
+                return;
+            }
+        }
 
-                try {
-                    Command command = (Command) Class.forName(fqcn).getConstructor().newInstance();
-                    System.out.println("Loaded command '" + command.getName() + "'");
-                    commandMap.put(command.getName(), command);
+        if(position >= historyEnd) serverWriter.println(frame);
+    }
 
-                } catch (Exception e) {
-                    System.err.println("Error instantiating command from '" + fqcn + "'.");
-                }
+    /**
+     * Sends the client the recent history, followed by the global client messages
+     * held until now that the history does not contain.
+     * @param history the rendered recent history
+     * @param end the position of the server's recent messages the history ends at
+     */
+    void sendRecentHistory(MessageBatch history, long end) {
+        synchronized (historyLock) {
+            history.writeTo(serverWriter);
+            for(HeldMessage held : heldMessages) {
+                if(held.position >= end) serverWriter.println(held.frame);
             }
-        } catch (IOException e) {
-            System.err.println("Error loading commands.");
+
+            historyEnd = end;
+            heldMessages = null;
         }
     }
 
-    ServerWorker(ChatServer server, Socket serverSocket, String clientUsername) {
+    /**
+     * Queues the given frame to be written to the client by one of the runtime's
+     * I/O threads, so the caller never blocks on the client's connection, as the
+     * timers shared by all of the tenants must not. The queued frames are written
+     * in order; a client that falls {@link #MAX_QUEUED_FRAMES} behind has its
+     * connection dropped.
+     * @param frame the frame
+     */
+    void queueFrame(String frame) {
+        if(queuedCount.incrementAndGet() > MAX_QUEUED_FRAMES) {
+            queuedCount.decrementAndGet();
+            System.err.println("Client '" + clientUsername + "' has fallen behind, dropping its connection.");
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+            return;
+        }
+
+        queuedFrames.add(frame);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if(!draining.compareAndSet(false, true)) return;
+
         try {
-            this.server         = Objects.requireNonNull(server, "Server cannot be null.");
-            this.serverSocket   = Objects.requireNonNull(serverSocket, "Server socket cannot be null.");
-            this.clientUsername = Objects.requireNonNull(clientUsername, "Client username cannot be null.");
+            server.getTenant().execute(this::drainQueuedFrames);
+        } catch (RejectedExecutionException e) {
+            // Every I/O thread is busy; the frames are written once the next one is queued.
+            draining.set(false);
+        }
+    }
 
-            serverWriter = new PrintWriter(serverSocket.getOutputStream(), true);
-            serverReader = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            server.addServerWorker(this);
+    private void drainQueuedFrames() {
+        String frame;
+        while ((frame = queuedFrames.poll()) != null) {
+            queuedCount.decrementAndGet();
+            serverWriter.println(frame);
+        }
 
-            String clientRank = Client.RANK[ server.getClientPrivilegeLevel(clientUsername) ];
-            server.sendGlobalServerMessage(clientRank + " " + clientUsername + " has just connected!");
+        draining.set(false);
+        // A frame queued after the last poll, but before the flag was cleared.
+        if(!queuedFrames.isEmpty()) scheduleDrain();
+    }
 
-            setName("ServerWorker " + clientUsername);
-            setDaemon(true);
+    /**
+     * @return the buffered stream of the bytes sent on a connection of the session
+     */
+    private OutputStream connectionOutput(OutputStream out) {
+        return new BufferedOutputStream(server.getTenant().countOutput(out));
+    }
 
-        } catch (IOException ex) {
-            ex.printStackTrace();
+    /**
+     * Starts listening for the client's messages on one of the runtime's I/O threads.
+     * If the runtime has none left, the connection is treated as dropped.
+     */
+    void start() {
+        try {
+            server.getTenant().execute(this);
+        } catch (RejectedExecutionException e) {
+            System.err.println("No I/O thread left for client '" + clientUsername + "'.");
+            connectionLost(connectionNumber);
         }
     }
 
     @Override
     public void run() {
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        thread.setName("ServerWorker " + clientUsername);
+
+        ClientLineReader reader;
+        int connection;
+        synchronized (this) {
+            reader = serverReader;
+            connection = connectionNumber;
+        }
+
         try {
             String message;
-            while ((message = serverReader.readLine()) != null) {
+            while ((message = reader.readLine()) != null) {
+                if(!lineReceived(connection, reader.getLineBytes())) break;
+                server.getTenant().messageReceived();
                 processMessage(message);
             }
         } catch (SocketException ex) {
@@ -93,29 +307,210 @@ public class ServerWorker extends Thread {
             System.out.println("IO Exc");
         }
 
-        server.removeServerWorker(this);
+        connectionLost(connection);
+        thread.setName(threadName);
+    }
+
+    /**
+     * Counts the given line of the given connection as received, unless the session
+     * has moved on from the connection. The lines read from a connection that has
+     * dropped are not processed, as the client sends them once more, from the number
+     * of the bytes received it is told once it has resumed the session.
+     * @return {@code false} if the line is not to be processed
+     */
+    private synchronized boolean lineReceived(int connection, int bytes) {
+        if(!attached || connection != connectionNumber) return false;
+
+        received += bytes;
+        return true;
+    }
+
+    /**
+     * Called once the given connection of the session has dropped. Unless the
+     * session has already moved on to a newer connection, it is either ended,
+     * or kept for its client to resume it within the resume window.
+     */
+    private synchronized void connectionLost(int connection) {
+        if(ended || !attached || connection != connectionNumber) return;
+
+        if(resumable) {
+            detach();
+        } else {
+            end(true);
+        }
+    }
+
+    /**
+     * Keeps the session without a connection until it is resumed or the resume window passes.
+     */
+    private void detach() {
+        attached = false;
+        sessionOutput.detach();
         closeConnection();
+
+        int connection = connectionNumber;
+        try {
+            expiry = server.getTenant().schedule(() -> expire(connection), server.getResumeWindowMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The server is closing.
+            end(true);
+        }
+    }
+
+    private synchronized void expire(int connection) {
+        if(!ended && !attached && connection == connectionNumber) end(true);
+    }
+
+    /**
+     * Resumes the session on the given connection, sending the client the number of
+     * the session's bytes received from it, followed by everything it has missed. A session still connected is never taken over, as the token
+     * may have leaked; its connection is probed instead, so that a connection
+     * the client has lost is found dropped, and the client retries.
+     * @param socket the new connection
+     * @param reader the reader of the new connection the resume request was read with
+     * @param connection the number of the connection the client's token was issued on
+     * @param received the number of the session's bytes the client has received
+     * @return {@link Server#RESUME_ACCEPTED} if the session was resumed; otherwise the
+     *         response to send, {@link Server#RESUME_PENDING} or {@link Server#RESUME_DENIED}
+     * @throws IOException if the new connection failed
+     */
+    synchronized int resume(Socket socket, ClientLineReader reader, int connection, long received) throws IOException {
+        if(ended || !resumable || connection != connectionNumber) return Server.RESUME_DENIED;
+
+        if(attached) {
+            refreshResumeToken();
+            return Server.RESUME_PENDING;
+        }
+        byte[] response = ((char) Server.RESUME_ACCEPTED + Long.toString(this.received) + "\n").getBytes();
+        if(ended || !sessionOutput.attach(connectionOutput(socket.getOutputStream()), response, received)) {
+            // Kept until the resume window passes, as the client may still log in again, taking the session over.
+            return Server.RESUME_DENIED;
+        }
+
+        expiry.cancel(false);
+        expiry = null;
+
+        // A token resumes the session only once.
+        connectionNumber++;
+        this.connection = socket;
+        serverReader = reader;
+        attached = true;
+        server.getTenant().connectionOpened();
+
+        // Sent together with the status and the replayed bytes.
+        serverWriter.println((char) Server.RESUME_TOKEN + server.issueResumeToken(this));
+        start();
+        return Server.RESUME_ACCEPTED;
+    }
+
+    /**
+     * Queues a fresh token resuming the session, to be sent to the client before
+     * its last one expires. The write also probes the connection, which is found
+     * dropped once the write fails.
+     */
+    void refreshResumeToken() {
+        String token;
+        synchronized (this) {
+            if(ended || !attached || !resumable) return;
+            token = server.issueResumeToken(this);
+        }
+
+        queueFrame((char) Server.RESUME_TOKEN + token);
     }
 
+    /**
+     * Ends the session if it is kept without a connection, without announcing
+     * that its client has left, as the client is logging in again.
+     * @return {@code true} if the session was ended
+     */
+    synchronized boolean endDetached() {
+        if(ended || attached) return false;
+
+        end(false);
+        return true;
+    }
+
+    /**
+     * Sends the client the given flag ending its session, such as {@link Server#KICKED},
+     * followed by the given moderator's username. The session is not kept for
+     * a resumption once the client closes the connection.
+     * @param flag the flag
+     * @param moderator the username of the client that ended the session
+     */
+    public synchronized void endSession(byte flag, String moderator) {
+        resumable = false;
+        if(attached) {
+            serverWriter.println((char) flag + moderator);
+        } else if(!ended) {
+            end(true);
+        }
+    }
+
+    /**
+     * Ends the session right away, as its client has quit, rather than keeping
+     * it for a resumption.
+     */
+    public synchronized void quit() {
+        resumable = false;
+        try {
+            // The worker ends the session once it finds the connection closed.
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void end(boolean announce) {
+        ended = true;
+        server.closeSession(this);
+        server.leaveAllRooms(this);
+        server.unsubscribeAll(this);
+        server.removePresence(this);
+        server.removeServerWorker(this);
+        if(announce) server.announceClientLeft(this);
+
+        if(attached) closeConnection();
+        attached = false;
+        serverWriter.close();
+    }
+
+    /**
+     * Closes the current connection. The reader is left to fail on its own, as it may
+     * still be blocked in a read on the connection's thread.
+     */
     private void closeConnection() {
         try {
-            serverReader.close();
-            serverWriter.close();
-            serverSocket.close();
+            connection.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        server.getTenant().connectionClosed();
     }
 
     private void processMessage(String message) throws IOException {
         if(message.startsWith(COMMAND_PATTERN)) {
             // Remove the first character "/" and trim to avoid space "holes".
             processCommand(message.substring(1).trim());
+        } else if(message.startsWith(ROOM_PATTERN)) {
+            processRoomMessage(message.substring(1));
         } else {
             server.sendGlobalClientMessage(clientUsername, message);
         }
     }
 
+    private void processRoomMessage(String message) {
+        int firstSpace = message.indexOf(' ');
+        String room = (firstSpace >= 0) ? message.substring(0, firstSpace) : message;
+        String text = (firstSpace >= 0) ? message.substring(firstSpace).trim() : "";
+
+        if(room.isEmpty() || text.isEmpty()) {
+            server.sendPrivateServerMessage(clientUsername, "Room messages are sent as: #<room> <message>");
+            return;
+        }
+
+        server.sendRoomClientMessage(room, this, text);
+    }
+
     private void processCommand(String message) throws IOException {
         if(message.isEmpty()) {
             server.sendPrivateServerMessage(clientUsername, "Invalid, empty command.");
@@ -125,7 +520,7 @@ public class ServerWorker extends Thread {
         int firstSpace = message.indexOf(' ');
         String commandName = (firstSpace >= 0) ? message.substring(0, firstSpace) : message;
 
-        Command command = commandMap.get(commandName);
+        Command command = server.getCommandRegistry().get(commandName);
         if(command == null) {
             String msg = "Invalid command '" + commandName + "'. For a list of valid commands, type /help";
             server.sendPrivateServerMessage(clientUsername, msg);
@@ -146,10 +541,11 @@ public class ServerWorker extends Thread {
     //                        Getters
     //===========================================================
 
-    public static Map<String, Command> getCommandMap() {
-        return commandMap;
-    }
-
+    /**
+     * The writer is shared by the worker, the accepting thread, the timers and the
+     * federation readers, so every frame is written to it with a single call.
+     * @return the writer of the client's session
+     */
     public PrintWriter getServerWriter() {
         return serverWriter;
     }
@@ -158,8 +554,71 @@ public class ServerWorker extends Thread {
         return clientUsername;
     }
 
+    /**
+     * @return the id of the session; {@code -1} if the session cannot be resumed
+     */
+    long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return the number of the session's current connection
+     */
+    synchronized int getConnectionNumber() {
+        return connectionNumber;
+    }
+
+    /**
+     * @return {@code true} while the session is kept without a connection, waiting to be resumed
+     */
+    public synchronized boolean isDetached() {
+        return !attached && !ended;
+    }
+
+    /**
+     * @return {@code true} if the client is sent the global messages with their sequence numbers
+     */
+    boolean isSequenced() {
+        return sequenced;
+    }
+
+    void setSequenced() {
+        sequenced = true;
+    }
+
+    /**
+     * @return the names of the rooms the client is a member of
+     */
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    /**
+     * @return the topic patterns the client is subscribed to
+     */
+    public Set<String> getSubscriptions() {
+        return subscriptions;
+    }
+
     @Override
     public String toString() {
         return clientUsername;
     }
+
+    /**
+     * A global client message broadcast before the recent history was sent.
+     */
+    private static class HeldMessage {
+
+        /** The position of the message in the server's recent messages. */
+        private final long position;
+
+        /** The rendered message. */
+        private final String frame;
+
+        private HeldMessage(long position, String frame) {
+            this.position = position;
+            this.frame = frame;
+        }
+    }
 }
\ No newline at end of file
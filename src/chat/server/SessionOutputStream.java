@@ -0,0 +1,189 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The stream of the bytes sent to a single client session, which outlives the
+ * session's connections. Every byte written is kept in a replay buffer of a
+ * fixed capacity, so that once the session is resumed on a new connection the
+ * bytes the client has missed can be sent again from exactly where the client
+ * stopped receiving. While the session has no connection the bytes are only
+ * kept.
+ * <br>
+ * The bytes are counted from the start of the session; the client counts the
+ * bytes it receives the same way, and resumes with its count.
+ */
+class SessionOutputStream extends OutputStream {
+
+    /** The initial capacity of the replay buffer, which grows up to its capacity as needed. */
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+
+    /** The maximum number of the most recent bytes kept. */
+    private final int capacity;
+
+    /** The most recent bytes, as a ring: the byte at offset {@code n} is kept at {@code n % ring.length}. */
+    private byte[] ring;
+
+    /** The number of bytes written since the start of the session. */
+    private long written;
+
+    /** The stream of the session's connection; {@code null} while the session has no connection. */
+    private OutputStream target;
+
+    /** While set, the flushes are held back, so that the bytes written are sent together. */
+    private boolean corked;
+
+    /**
+     * @param target the stream of the session's first connection
+     * @param capacity the maximum number of the most recent bytes kept for a resumption
+     */
+    SessionOutputStream(OutputStream target, int capacity) {
+        this.target = target;
+        this.capacity = capacity;
+        this.ring = new byte[Math.min(INITIAL_CAPACITY, capacity)];
+    }
+
+    //===========================================================
+    //                        Writing
+    //===========================================================
+
+    @Override
+    public synchronized void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        keep(b, off, len);
+
+        if(target != null) {
+            try {
+                target.write(b, off, len);
+            } catch (IOException e) {
+                // The connection has dropped; the bytes are kept until the session is resumed.
+                target = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        if(target != null && !corked) {
+            try {
+                target.flush();
+            } catch (IOException e) {
+                target = null;
+            }
+        }
+    }
+
+    /**
+     * Holds back the flushes until {@link #uncork()}, so that the bytes written in
+     * the meantime, such as the initial state of a session, are sent together.
+     * Useful only with a buffered connection stream.
+     */
+    synchronized void cork() {
+        corked = true;
+    }
+
+    /**
+     * Sends the bytes held back since {@link #cork()}.
+     */
+    synchronized void uncork() {
+        corked = false;
+        flush();
+    }
+
+    private void keep(byte[] b, int off, int len) {
+        if(written + len > ring.length && ring.length < capacity) grow(written + len);
+        if(ring.length == 0) {
+            written += len;
+            return;
+        }
+
+        // Of a write larger than the ring, only its last bytes are kept.
+        int skipped = Math.max(0, len - ring.length);
+        long offset = written + skipped;
+        for(int i = skipped; i < len; ) {
+            int position = (int) (offset % ring.length);
+            int chunk = Math.min(len - i, ring.length - position);
+            System.arraycopy(b, off + i, ring, position, chunk);
+            i += chunk;
+            offset += chunk;
+        }
+        written += len;
+    }
+
+    private void grow(long needed) {
+        int length = ring.length;
+        while (length < needed && length < capacity) length = Math.min(length * 2, capacity);
+
+        byte[] grown = new byte[length];
+        long start = written - retained();
+        for(long offset = start; offset < written; offset++) {
+            grown[(int) (offset % length)] = ring[(int) (offset % ring.length)];
+        }
+        ring = grown;
+    }
+
+    /**
+     * @return the number of the most recent bytes currently kept
+     */
+    private long retained() {
+        return Math.min(written, ring.length);
+    }
+
+    //===========================================================
+    //                      Connections
+    //===========================================================
+
+    /**
+     * Stops sending the bytes to the session's connection, which has dropped.
+     * The bytes written from now on are only kept.
+     */
+    synchronized void detach() {
+        target = null;
+    }
+
+    /**
+     * Checks whether the session can be resumed from the given offset.
+     * @param offset the number of the session's bytes the client has received
+     * @return {@code true} if all of the bytes after the offset are still kept
+     */
+    private boolean canReplayFrom(long offset) {
+        return offset <= written && offset >= written - retained();
+    }
+
+    /**
+     * Sends the bytes to the given connection from now on, starting with the
+     * given response, followed by all of the bytes written after the given offset.
+     * The bytes are sent with the next flush.
+     * @param target the stream of the session's new connection
+     * @param response the response sent ahead of the replayed bytes
+     * @param offset the number of the session's bytes the client has received
+     * @return {@code false} if the bytes after the offset are no longer kept,
+     *         in which case nothing was sent
+     * @throws IOException if the new connection failed
+     */
+    synchronized boolean attach(OutputStream target, byte[] response, long offset) throws IOException {
+        if(!canReplayFrom(offset)) return false;
+
+        target.write(response);
+        for(long position = offset; position < written; ) {
+            int index = (int) (position % ring.length);
+            int chunk = (int) Math.min(written - position, ring.length - index);
+            target.write(ring, index, chunk);
+            position += chunk;
+        }
+
+        this.target = target;
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(target != null) target.close();
+        target = null;
+    }
+}
@@ -62,8 +62,7 @@ public class BanCommand extends AbstractCommand {
         if(didBan) {
             ServerWorker justBannedClient = server.getOnlineClient(banned);
             if(justBannedClient != null) {
-                justBannedClient.getServerWriter().write(Server.BANNED);
-                justBannedClient.getServerWriter().println(banner);
+                justBannedClient.endSession(Server.BANNED, banner);
             }
 
             server.broadcastClientBanned(banner, banned);
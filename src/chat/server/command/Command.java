@@ -42,6 +42,15 @@ public interface Command {
      */
     int getRequiredPrivilegeLevel();
 
+    /**
+     * Returns whether the command is left out of the list of commands sent by the
+     * {@code help} command, as the clients send it on their own, rather than the users.
+     * @return {@code true} if the command is not listed
+     */
+    default boolean isHidden() {
+        return false;
+    }
+
     /**
      * Returns the message displayed to the caller once the invalid command
      * usage has been made.
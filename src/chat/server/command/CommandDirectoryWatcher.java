@@ -0,0 +1,287 @@
+package chat.server.command;
+
+import chat.server.runtime.Tenant;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches a directory of command modules and keeps the {@link CommandRegistry}
+ * in sync with it, without restarting the server. A command module is either a
+ * jar file or a directory of compiled classes. Each module is loaded by its own,
+ * isolated class loader and declares its commands through the standard
+ * {@code META-INF/services/chat.server.command.Command} provider file.
+ * <br>
+ * When a module is added, its commands are registered. When a module is changed,
+ * its commands are replaced in a single atomic registry update. When a module is
+ * removed, its commands are unregistered. Commands that are executing during the
+ * update finish on the old version, as they keep the reference to the old object.
+ * <br>
+ * A module never takes over the name of a built-in command or of a command of
+ * another module; such a command is skipped, so unloading a module never removes
+ * any command but its own.
+ */
+public class CommandDirectoryWatcher {
+
+    /** How often the watched directory is scanned, in milliseconds. */
+    private static final long SCAN_PERIOD_MILLIS = 2000;
+
+    /** How long the class loader of a replaced module stays open, in milliseconds. */
+    private static final long CLOSE_DELAY_MILLIS = 30_000;
+
+    /** The registry that is kept in sync with the watched directory. */
+    private final CommandRegistry registry;
+
+    /** The directory containing the command modules. */
+    private final Path directory;
+
+    /** Maps the module file name to the currently loaded module. */
+    private final Map<String, LoadedModule> modules = new HashMap<>();
+
+    /** The tenant whose timers perform the scanning and closing of old class loaders. */
+    private final Tenant tenant;
+
+    /** Maps the replaced and removed modules to the tasks closing their class loaders. */
+    private final Map<LoadedModule, ScheduledFuture<?>> closing = new HashMap<>();
+
+    /** The periodic scan; {@code null} while the watcher is stopped. */
+    private ScheduledFuture<?> scanTask;
+
+    /**
+     * Constructs a new watcher.
+     * @param registry the registry to be kept in sync
+     * @param directory the directory containing the command modules
+     * @param tenant the tenant whose timers perform the scanning
+     */
+    public CommandDirectoryWatcher(CommandRegistry registry, Path directory, Tenant tenant) {
+        this.registry = Objects.requireNonNull(registry, "Registry cannot be null.");
+        this.directory = Objects.requireNonNull(directory, "Directory cannot be null.");
+        this.tenant = Objects.requireNonNull(tenant, "Tenant cannot be null.");
+    }
+
+    //===========================================================
+    //                  Starting and stopping
+    //===========================================================
+
+    /**
+     * Performs the initial scan and starts watching the directory.
+     */
+    public synchronized void start() {
+        if(scanTask != null) return;
+
+        scanTask = tenant.scheduleWithFixedDelay(this::scan, 0, SCAN_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching the directory. The class loaders of the replaced and removed
+     * modules are closed right away, rather than left to the timers, which may no
+     * longer run once the runtime shuts down. The loaded commands remain registered.
+     */
+    public synchronized void stop() {
+        if(scanTask == null) return;
+
+        scanTask.cancel(false);
+        scanTask = null;
+
+        for(Map.Entry<LoadedModule, ScheduledFuture<?>> entry : new ArrayList<>(closing.entrySet())) {
+            entry.getValue().cancel(false);
+            close(entry.getKey());
+        }
+    }
+
+    //===========================================================
+    //                       Scanning
+    //===========================================================
+
+    /**
+     * Compares the content of the watched directory with the loaded modules
+     * and loads, reloads or unloads the modules accordingly.
+     */
+    private synchronized void scan() {
+        if(scanTask == null || !Files.isDirectory(directory)) return;
+
+        Map<String, Path> found = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for(Path path : stream) {
+                if(Files.isDirectory(path) || path.toString().endsWith(".jar")) {
+                    found.put(path.getFileName().toString(), path);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error scanning command directory '" + directory + "'.");
+            return;
+        }
+
+        for(Iterator<LoadedModule> it = modules.values().iterator(); it.hasNext(); ) {
+            LoadedModule module = it.next();
+            if(found.containsKey(module.name)) continue;
+
+            registry.replace(module.commands, Collections.emptyList());
+            scheduleClose(module);
+            it.remove();
+            System.out.println("Unloaded command module '" + module.name + "'.");
+        }
+
+        found.forEach((name, path) -> {
+            try {
+                LoadedModule old = modules.get(name);
+                FileTime lastModified = lastModified(path);
+                if(old != null && old.lastModified.equals(lastModified)) return;
+
+                LoadedModule module = load(name, path, lastModified);
+                List<Command> registered = registry.replace(old == null ? Collections.emptyList() : old.commands, module.commands);
+                for(Command command : module.commands) {
+                    if(!registered.contains(command)) {
+                        System.err.println("Command '" + command.getName() + "' of module '" + name + "' is already registered; skipped.");
+                    }
+                }
+                module.commands.retainAll(registered);
+                modules.put(name, module);
+                if(old != null) scheduleClose(old);
+
+                System.out.println((old == null ? "Loaded" : "Reloaded") + " command module '" + name + "' " + module.getCommandNames());
+
+            } catch (Exception e) {
+                System.err.println("Error loading command module '" + name + "'.");
+            }
+        });
+    }
+
+    /**
+     * Loads the commands of the given module using a new, isolated class loader.
+     * Jar files are copied before loading so that the original jar can be
+     * overwritten while the module is loaded.
+     */
+    private LoadedModule load(String name, Path path, FileTime lastModified) throws IOException {
+        Path copy = null;
+        if(!Files.isDirectory(path)) {
+            copy = Files.createTempFile("command-module-", ".jar");
+            // Deleted once the module is closed; only the copies of the modules loaded at exit are left to this.
+            copy.toFile().deleteOnExit();
+        }
+
+        URLClassLoader loader = null;
+        try {
+            if(copy != null) Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+
+            loader = new URLClassLoader(
+                    "command-module-" + name,
+                    new URL[] { (copy != null ? copy : path).toUri().toURL() },
+                    Command.class.getClassLoader()
+            );
+
+            List<Command> commands = new ArrayList<>();
+            for(Command command : ServiceLoader.load(Command.class, loader)) {
+                // The service loader also finds the providers visible to the parent class loader.
+                if(command.getClass().getClassLoader() == loader) {
+                    commands.add(command);
+                }
+            }
+
+            return new LoadedModule(name, lastModified, loader, copy, commands);
+
+        } catch (IOException | RuntimeException | Error e) {
+            close(new LoadedModule(name, lastModified, loader, copy, new ArrayList<>()));
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the class loader of the given replaced or removed module once the commands
+     * still executing on it are given the time to finish.
+     */
+    private void scheduleClose(LoadedModule module) {
+        try {
+            closing.put(module, tenant.schedule(() -> close(module), CLOSE_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            // The runtime is shutting down.
+            close(module);
+        }
+    }
+
+    /**
+     * Closes the class loader of the given module and deletes its copy of the jar file, if any.
+     */
+    private synchronized void close(LoadedModule module) {
+        closing.remove(module);
+        try {
+            if(module.loader != null) module.loader.close();
+            if(module.copy != null) Files.deleteIfExists(module.copy);
+        } catch (IOException e) {
+            System.err.println("Error closing command module '" + module.name + "'.");
+        }
+    }
+
+    /**
+     * Returns the latest modification time of the given module. For directory
+     * modules, every file in the directory tree is taken into account.
+     */
+    private static FileTime lastModified(Path path) throws IOException {
+        if(!Files.isDirectory(path)) {
+            return Files.getLastModifiedTime(path);
+        }
+
+        try (Stream<Path> files = Files.walk(path)) {
+            FileTime latest = FileTime.fromMillis(0);
+            for(Path file : (Iterable<Path>) files::iterator) {
+                FileTime time = Files.getLastModifiedTime(file);
+                if(time.compareTo(latest) > 0) latest = time;
+            }
+            return latest;
+        }
+    }
+
+    //===========================================================
+    //            LoadedModule helper data structure
+    //===========================================================
+
+    /**
+     * A simple helper data structure that encapsulates a single
+     * loaded command module.
+     */
+    private static class LoadedModule {
+
+        /** The file name of the module. */
+        private final String name;
+
+        /** The modification time of the module at the time of loading. */
+        private final FileTime lastModified;
+
+        /** The class loader that loaded the module's commands; {@code null} if loading has failed. */
+        private final URLClassLoader loader;
+
+        /** The copy of the module's jar file the classes are loaded from; {@code null} for a directory module. */
+        private final Path copy;
+
+        /** The registered commands of the module. */
+        private final List<Command> commands;
+
+        private LoadedModule(String name, FileTime lastModified, URLClassLoader loader, Path copy, List<Command> commands) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.loader = loader;
+            this.copy = copy;
+            this.commands = commands;
+        }
+
+        /**
+         * @return the names of the module's registered commands
+         */
+        private List<String> getCommandNames() {
+            List<String> names = new ArrayList<>();
+            commands.forEach(command -> names.add(command.getName()));
+            return names;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package chat.server.command;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds all of the commands that the server can execute, mapped by
+ * their names. Lookups are performed on an immutable snapshot of the
+ * command map, while every modification publishes a new snapshot and
+ * increments the registry version, which allows other objects (such as
+ * the {@link HelpCommand}) to cache data derived from the registry.
+ */
+public class CommandRegistry {
+
+    /** The current, immutable snapshot that maps the command name to the command. */
+    private volatile Map<String, Command> commandMap = Collections.emptyMap();
+
+    /** Incremented every time the registry changes. */
+    private volatile int version;
+
+    //===========================================================
+    //                       Loading
+    //===========================================================
+
+    /**
+     * Creates a new registry and fills it with the commands whose fully
+     * qualified class names are listed (one per line) in the given file.
+     * @param commandListPath the path to the command list file
+     * @return the loaded registry
+     */
+    public static CommandRegistry load(Path commandListPath) {
+        CommandRegistry registry = new CommandRegistry();
+
+        try {
+            for(String fqcn : Files.readAllLines(commandListPath)) {
+                if(fqcn.isBlank()) continue;
+
+                try {
+                    Command command = (Command) Class.forName(fqcn).getConstructor().newInstance();
+                    System.out.println("Loaded command '" + command.getName() + "'");
+                    registry.register(command);
+
+                } catch (Exception e) {
+                    System.err.println("Error instantiating command from '" + fqcn + "'.");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading commands.");
+        }
+
+        return registry;
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Registers the given command, replacing the command with the same name, if any.
+     * @param command the command to be registered
+     */
+    public synchronized void register(Command command) {
+        Map<String, Command> newMap = new LinkedHashMap<>(commandMap);
+        newMap.put(command.getName(), command);
+        publish(newMap);
+    }
+
+    /**
+     * Atomically removes the given commands and registers the given new commands.
+     * Lookups see either the old or the new set of commands, never a mix of both.
+     * Commands that are already executing are not affected.
+     * <br>
+     * A name is only ever taken over from one of the removed commands: a new
+     * command whose name belongs to any other command is not registered, so that
+     * the commands of one owner never shadow nor remove those of another.
+     * @param oldCommands the commands to be removed
+     * @param newCommands the commands to be registered
+     * @return the new commands that were registered
+     */
+    public synchronized List<Command> replace(Collection<Command> oldCommands, Collection<Command> newCommands) {
+        Map<String, Command> newMap = new LinkedHashMap<>(commandMap);
+        oldCommands.forEach(command -> newMap.remove(command.getName(), command));
+
+        List<Command> registered = new ArrayList<>();
+        for(Command command : newCommands) {
+            if(newMap.putIfAbsent(command.getName(), command) == null) registered.add(command);
+        }
+
+        publish(newMap);
+        return registered;
+    }
+
+    /**
+     * Returns the command with the given name.
+     * @param name the name of the command
+     * @return the command, or {@code null} if there is no such command
+     */
+    public Command get(String name) {
+        return commandMap.get(name);
+    }
+
+    /**
+     * @return all of the currently registered commands, in registration order
+     */
+    public Collection<Command> getCommands() {
+        return commandMap.values();
+    }
+
+    /**
+     * @return the version of the registry; changes every time the registry changes
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    private void publish(Map<String, Command> newMap) {
+        commandMap = Collections.unmodifiableMap(newMap);
+        version++;
+    }
+}
@@ -41,8 +41,7 @@ public class DeleteCommand extends AbstractCommand {
         if(didDelete) {
             ServerWorker justDeletedClient = server.getOnlineClient(deleted);
             if(justDeletedClient != null) {
-                justDeletedClient.getServerWriter().write(Server.DELETED);
-                justDeletedClient.getServerWriter().println(deleter);
+                justDeletedClient.endSession(Server.DELETED, deleter);
             }
 
             server.broadcastClientDeleted(deleter, deleted);
@@ -2,6 +2,8 @@ package chat.server.command;
 
 import chat.client.Client;
 import chat.server.ChatServer;
+import chat.server.MessageBatch;
+import chat.server.Server;
 import chat.server.ServerWorker;
 
 import java.util.*;
@@ -13,6 +15,9 @@ import java.util.*;
  */
 public class HelpCommand extends AbstractCommand {
 
+    /** The help pages rendered from the command registry. */
+    private volatile HelpPages pages;
+
     public HelpCommand() {
         usageList.add("/help - Lists all of the commands that you can use.");
         usageList.add("/help <command> - Displays the details about the specified command.");
@@ -33,31 +38,17 @@ public class HelpCommand extends AbstractCommand {
      * Lists all of the commands that the client can perform. The list
      * will be generated based on the client's privilege level, meaning
      * that some clients may have different server response, based on
-     * their privilege level.
+     * their privilege level. The hidden commands are not listed.
      * @param server the server used for sending the response
      * @param receiver the response receiver
      */
     private void listCommands(ChatServer server, String receiver) {
-        StringBuilder sb = new StringBuilder();
-
-        Collection<Command> commands = ServerWorker.getCommandMap().values();
-        Iterator<Command> iterator = commands.iterator();
         int callerLevel = server.getClientPrivilegeLevel(receiver);
+        if(callerLevel < 0) return;
 
-        boolean foundFirst = false;
-        while (iterator.hasNext()) {
-            Command command = iterator.next();
-            if(callerLevel < command.getRequiredPrivilegeLevel()) continue;
-
-            if(foundFirst) {
-                sb.append(", ").append(command.getName());
-            } else {
-                sb.append(command.getName());
-                foundFirst = true;
-            }
-        }
-
-        server.sendPrivateServerMessage(receiver, "Valid commands are: " + sb.toString());
+        // A level above the highest rank may call every command the highest rank may.
+        String[] commandLists = getPages(server).commandLists;
+        server.sendPrivateServerMessage(receiver, commandLists[Math.min(callerLevel, commandLists.length - 1)]);
     }
 
     /**
@@ -68,19 +59,32 @@ public class HelpCommand extends AbstractCommand {
      * @param receiver the command information receiver
      */
     private void displayCommandDetails(String commandName, ChatServer server, String receiver) {
-        Command command = ServerWorker.getCommandMap().get(commandName);
+        MessageBatch details = getPages(server).commandDetails.get(commandName);
 
-        if(command != null) {
-            server.sendPrivateServerMessage(receiver, "\t" + commandName + " - " + command.getDescription());
-
-            for(String usage : command.getUsageList()) {
-                server.sendPrivateServerMessage(receiver, usage);
-            }
+        if(details != null) {
+            server.sendPrivateServerMessages(receiver, details);
         } else {
             server.sendPrivateServerMessage(receiver, "Unknown command '" + commandName + "'.");
         }
     }
 
+    /**
+     * Returns the help pages for the current state of the command registry,
+     * rendering them again only if the registry has changed since the last render.
+     * @return the help pages
+     */
+    private HelpPages getPages(ChatServer server) {
+        CommandRegistry registry = server.getCommandRegistry();
+        HelpPages current = pages;
+
+        if(current == null || current.registryVersion != registry.getVersion()) {
+            current = new HelpPages(registry);
+            pages = current;
+        }
+
+        return current;
+    }
+
     @Override
     public String getName() {
         return "help";
@@ -95,4 +99,49 @@ public class HelpCommand extends AbstractCommand {
     public int getRequiredPrivilegeLevel() {
         return Client.USER;
     }
-}
\ No newline at end of file
+
+    //===========================================================
+    //             HelpPages helper data structure
+    //===========================================================
+
+    /**
+     * Holds all of the help responses, rendered once for a single
+     * version of the command registry.
+     */
+    private static class HelpPages {
+
+        /** The version of the registry these pages were rendered from. */
+        private final int registryVersion;
+
+        /** The command list response, indexed by the privilege level of the caller. */
+        private final String[] commandLists = new String[Client.RANK.length];
+
+        /** Maps the command name to its details, sent as a single batch. */
+        private final Map<String, MessageBatch> commandDetails = new HashMap<>();
+
+        private HelpPages(CommandRegistry registry) {
+            this.registryVersion = registry.getVersion();
+            Collection<Command> commands = registry.getCommands();
+
+            for(int level = 0; level < commandLists.length; level++) {
+                StringJoiner sj = new StringJoiner(", ", "Valid commands are: ", "");
+
+                for(Command command : commands) {
+                    if(!command.isHidden() && level >= command.getRequiredPrivilegeLevel()) {
+                        sj.add(command.getName());
+                    }
+                }
+
+                commandLists[level] = sj.toString();
+            }
+
+            for(Command command : commands) {
+                List<String> lines = new ArrayList<>();
+                lines.add("\t" + command.getName() + " - " + command.getDescription());
+                lines.addAll(command.getUsageList());
+
+                commandDetails.put(command.getName(), new MessageBatch(Server.INCOMING_PRIVATE_SERVER_MESSAGE_BATCH, lines));
+            }
+        }
+    }
+}
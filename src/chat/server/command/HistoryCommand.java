@@ -0,0 +1,59 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+/**
+ * Models the command that sends the caller the global messages it has not
+ * seen yet, those logged after the given sequence number. Clients that keep
+ * the history on their own send it automatically once they log in, so only
+ * the missing messages are sent; from then on, they are sent every global
+ * message with its sequence number. The identifier of the log the client's
+ * sequence number belongs to may follow it; a client numbering its messages
+ * by another log is sent only the recent messages.
+ */
+public class HistoryCommand extends AbstractCommand {
+
+    public HistoryCommand() {
+        usageList.add("/history <sequence> [log id] - Sends the global messages logged after the given sequence number.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 1 && args.length != 2) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        long after;
+        try {
+            after = Long.parseLong(args[0]);
+        } catch (NumberFormatException e) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "Sequence number must be an integer.");
+            return;
+        }
+
+        server.sendHistory(caller, after, args.length == 2 ? args[1] : null);
+    }
+
+    @Override
+    public String getName() {
+        return "history";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Sends the global messages not seen yet.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+
+    @Override
+    public boolean isHidden() {
+        return true;
+    }
+}
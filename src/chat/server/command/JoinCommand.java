@@ -0,0 +1,58 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+/**
+ * Models the command for joining a chat room. The room is created
+ * once the first client joins it. Once in the room, the client can
+ * send messages to the room members as {@code #room message}.
+ */
+public class JoinCommand extends AbstractCommand {
+
+    /** The maximum length of the room name. */
+    private static final int MAX_ROOM_NAME_LENGTH = 32;
+
+    public JoinCommand() {
+        usageList.add("/join <room> - Joins the room with the given name, creating it if it does not exist.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 1) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        String room = args[0];
+
+        if(!room.matches("\\w{1," + MAX_ROOM_NAME_LENGTH + "}")) {
+            String msg = "Room name must consist only of letters, digits or symbol \"_\", and be at most " +
+                         MAX_ROOM_NAME_LENGTH + " symbols long.";
+            server.sendPrivateServerMessage(caller.getClientUsername(), msg);
+            return;
+        }
+
+        if(server.joinRoom(caller, room)) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "Joined room '" + room + "'. Send messages to it as: #" + room + " <message>");
+        } else {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "You are already in room '" + room + "'.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "join";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Joins the specified chat room.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+}
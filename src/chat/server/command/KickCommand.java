@@ -53,8 +53,10 @@ public class KickCommand extends AbstractCommand {
 
         ServerWorker toBeKicked = server.getOnlineClient(kicked);
         if(toBeKicked != null) {
-            toBeKicked.getServerWriter().write(Server.KICKED);
-            toBeKicked.getServerWriter().println(kicker);
+            toBeKicked.endSession(Server.KICKED, kicker);
+            server.broadcastClientKicked(kicker, kicked);
+        } else if(server.isClientOnline(kicked)) {
+            // Logged in on another federation node, which performs the kick itself.
             server.broadcastClientKicked(kicker, kicked);
         } else {
             server.sendPrivateServerMessage(kicker, "Client '" + kicked + "' is not online.");
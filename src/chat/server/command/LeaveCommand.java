@@ -0,0 +1,47 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+/**
+ * Models the command for leaving a chat room. The room is removed
+ * once the last client leaves it.
+ */
+public class LeaveCommand extends AbstractCommand {
+
+    public LeaveCommand() {
+        usageList.add("/leave <room> - Leaves the room with the given name.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 1) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        String room = args[0];
+
+        if(server.leaveRoom(caller, room)) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "Left room '" + room + "'.");
+        } else {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "You are not in room '" + room + "'.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "leave";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Leaves the specified chat room.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+}
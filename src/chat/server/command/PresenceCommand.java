@@ -0,0 +1,52 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+import java.util.List;
+
+/**
+ * Models the command for changing the caller's presence state. The client
+ * sends it on its own once the user starts or stops typing, or becomes
+ * inactive, but it can also be used directly, as in {@code /presence away}.
+ */
+public class PresenceCommand extends AbstractCommand {
+
+    /** The valid presence states. */
+    private static final List<String> STATES = List.of(Client.PRESENCE_ACTIVE, Client.PRESENCE_TYPING, Client.PRESENCE_AWAY);
+
+    public PresenceCommand() {
+        usageList.add("/presence <state> - Sets your presence state, one of: " + String.join(", ", STATES) + ".");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 1 || !STATES.contains(args[0])) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        server.updatePresence(caller, args[0]);
+    }
+
+    @Override
+    public String getName() {
+        return "presence";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Sets your presence state.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+
+    @Override
+    public boolean isHidden() {
+        return true;
+    }
+}
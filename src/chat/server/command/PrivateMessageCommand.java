@@ -7,7 +7,8 @@ import chat.server.ServerWorker;
 /**
  * Models the command for sending private message to the specified
  * client. Private message is a message that only the sending and
- * receiving client can see.
+ * receiving client can see. Messages sent to registered clients
+ * that are not online are delivered once they log in.
  */
 public class PrivateMessageCommand extends AbstractCommand {
 
@@ -30,13 +31,18 @@ public class PrivateMessageCommand extends AbstractCommand {
             return;
         }
 
-        if(!server.isClientOnline(receiver)) {
+        if(!server.isClientRegistered(receiver)) {
             server.sendPrivateServerMessage(sender, "Invalid user '" + receiver + "'.");
             return;
         }
 
         String message = args[1];
-        server.sendPrivateClientMessage(sender, receiver, message);
+
+        if(server.isClientOnline(receiver)) {
+            server.sendPrivateClientMessage(sender, receiver, message);
+        } else {
+            server.sendOfflinePrivateClientMessage(sender, receiver, message);
+        }
     }
 
     @Override
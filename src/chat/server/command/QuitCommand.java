@@ -0,0 +1,47 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+/**
+ * Models the command that ends the caller's session right away. Clients
+ * send it as they disconnect, so that the session is not kept for a
+ * resumption and the other clients learn that the caller has left at once.
+ */
+public class QuitCommand extends AbstractCommand {
+
+    public QuitCommand() {
+        usageList.add("/quit - Disconnects from the server.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 0) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        caller.quit();
+    }
+
+    @Override
+    public String getName() {
+        return "quit";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Disconnects from the server.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+
+    @Override
+    public boolean isHidden() {
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+import chat.server.dao.ReplicatedDAO;
+
+/**
+ * Models the command that displays the state of the client data
+ * replication: the role of this server, the offset of the last applied
+ * change and how far behind the leader this server is.
+ */
+public class ReplicationCommand extends AbstractCommand {
+
+    public ReplicationCommand() {
+        usageList.add("/replication - Displays the state of the client data replication.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 0) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        ReplicatedDAO replication = server.getReplication();
+        if(replication == null) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "Client data replication is not enabled.");
+            return;
+        }
+
+        String message = (replication.isLeader() ? "Replication leader" : "Replication follower")
+                + ", applied offset " + replication.getAppliedOffset()
+                + ", lag " + replication.getReplicationLag() + " changes"
+                + " (" + replication.getReplicationLagMillis() + " ms).";
+        server.sendPrivateServerMessage(caller.getClientUsername(), message);
+    }
+
+    @Override
+    public String getName() {
+        return "replication";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Displays the state of the client data replication.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.ADMIN;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,60 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatRoom;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Models the command that lists all of the chat rooms, along with
+ * the number of their members, marking the rooms the caller is in.
+ */
+public class RoomsCommand extends AbstractCommand {
+
+    public RoomsCommand() {
+        usageList.add("/rooms - Lists all of the rooms; the rooms you are in are marked with *.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 0) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        List<ChatRoom> rooms = new ArrayList<>(server.getRooms());
+        if(rooms.isEmpty()) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "There are no rooms. To create one, type /join <room>");
+            return;
+        }
+
+        rooms.sort((a, b) -> a.getName().compareToIgnoreCase(b.getName()));
+        StringJoiner sj = new StringJoiner(", ", "Rooms: ", "");
+
+        for(ChatRoom room : rooms) {
+            String mark = room.isMember(caller) ? "*" : "";
+            sj.add(mark + room.getName() + " (" + room.getMemberCount() + ")");
+        }
+
+        server.sendPrivateServerMessage(caller.getClientUsername(), sj.toString());
+    }
+
+    @Override
+    public String getName() {
+        return "rooms";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Lists all of the chat rooms.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+}
@@ -0,0 +1,47 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+/**
+ * Models the command that resends the full roster of online clients
+ * to the caller. Clients send it automatically once they detect a gap
+ * in the versions of the roster deltas.
+ */
+public class RosterCommand extends AbstractCommand {
+
+    public RosterCommand() {
+        usageList.add("/roster - Resends the list of online clients.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 0) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        server.sendRoster(caller);
+    }
+
+    @Override
+    public String getName() {
+        return "roster";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Resends the list of online clients.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+
+    @Override
+    public boolean isHidden() {
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.MessageBatch;
+import chat.server.Server;
+import chat.server.ServerWorker;
+import chat.server.history.MessageRecord;
+import chat.server.search.SearchIndex;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Models the command for searching the chat history. The command
+ * finds the newest global and private messages that contain all of
+ * the given words, optionally sent by the given client.
+ * <br>
+ * Search operation can be performed by clients whose privilege
+ * level is equal to or higher than {@link Client#MODERATOR}.
+ */
+public class SearchCommand extends AbstractCommand {
+
+    /** The maximum number of messages displayed to the caller. */
+    private static final int MAX_RESULTS = 20;
+
+    public SearchCommand() {
+        usageList.add("/search <words> - Displays the newest messages containing all of the given words.");
+        usageList.add("/search <words> user:<username> - Displays the newest such messages sent by the given client.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length == 0) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        if(!server.isMessageSearchAvailable()) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "Chat history search is not available.");
+            return;
+        }
+
+        List<String> terms = new ArrayList<>();
+        for(String arg : args) {
+            if(arg.toLowerCase().startsWith(SearchIndex.SENDER_PREFIX)) {
+                terms.add(arg);
+            } else {
+                terms.addAll(SearchIndex.tokenize(arg));
+            }
+        }
+
+        List<MessageRecord> results;
+        try {
+            results = server.searchMessages(terms, MAX_RESULTS);
+        } catch (IOException e) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "IO error while searching the chat history.");
+            return;
+        }
+
+        if(results.isEmpty()) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "No messages found.");
+            return;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        List<String> lines = new ArrayList<>();
+        lines.add("Found " + results.size() + " message(s), newest first:");
+        for(MessageRecord record : results) {
+            lines.add(format.format(new Date(record.getTimestamp())) + " " + record);
+        }
+
+        server.sendPrivateServerMessages(caller.getClientUsername(), new MessageBatch(Server.INCOMING_PRIVATE_SERVER_MESSAGE_BATCH, lines));
+    }
+
+    @Override
+    public String getName() {
+        return "search";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Searches the chat history.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.MODERATOR;
+    }
+}
@@ -0,0 +1,87 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+import chat.server.topic.SubscriptionTrie;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Models the command for subscribing to the topics, such as the moderation
+ * events ({@code events.moderation.*}) or, for the moderators, the messages of
+ * the rooms they are not members of ({@code room.#}). Called without arguments,
+ * lists the caller's subscriptions.
+ */
+public class SubscribeCommand extends AbstractCommand {
+
+    public SubscribeCommand() {
+        usageList.add("/subscribe - Lists the topic patterns you are subscribed to.");
+        usageList.add("/subscribe <pattern> - Subscribes to the topics matching the pattern, " +
+                      "where * matches one segment and # matches any number of trailing segments.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length == 0) {
+            listSubscriptions(caller, server);
+            return;
+        }
+
+        if(args.length != 1) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        String pattern = args[0];
+
+        if(!SubscriptionTrie.isValidPattern(pattern)) {
+            String msg = "Invalid topic pattern '" + pattern + "'. Topic segments are separated by dots and " +
+                         "consist of letters, digits, \"_\" or \"-\", or are a wildcard: * or # (last segment only).";
+            server.sendPrivateServerMessage(caller.getClientUsername(), msg);
+            return;
+        }
+
+        if(pattern.startsWith(ChatServer.ROOM_TOPIC_PREFIX)
+                && server.getClientPrivilegeLevel(caller.getClientUsername()) < Client.MODERATOR) {
+            String msg = "Only the moderators may subscribe to the room topics. To read a room, type /join <room>";
+            server.sendPrivateServerMessage(caller.getClientUsername(), msg);
+            return;
+        }
+
+        if(server.subscribe(caller, pattern)) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "Subscribed to '" + pattern + "'.");
+        } else {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "You are already subscribed to '" + pattern + "'.");
+        }
+    }
+
+    private void listSubscriptions(ServerWorker caller, ChatServer server) {
+        List<String> patterns = new ArrayList<>(caller.getSubscriptions());
+
+        if(patterns.isEmpty()) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "You are not subscribed to any topic.");
+            return;
+        }
+
+        Collections.sort(patterns);
+        server.sendPrivateServerMessage(caller.getClientUsername(), "Subscriptions: " + String.join(", ", patterns));
+    }
+
+    @Override
+    public String getName() {
+        return "subscribe";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Subscribes to the specified topics.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+}
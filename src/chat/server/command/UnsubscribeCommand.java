@@ -0,0 +1,47 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+
+/**
+ * Models the command for unsubscribing from the topic pattern
+ * the caller has subscribed to with {@link SubscribeCommand}.
+ */
+public class UnsubscribeCommand extends AbstractCommand {
+
+    public UnsubscribeCommand() {
+        usageList.add("/unsubscribe <pattern> - Unsubscribes from the given topic pattern.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 1) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        String pattern = args[0];
+
+        if(server.unsubscribe(caller, pattern)) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "Unsubscribed from '" + pattern + "'.");
+        } else {
+            server.sendPrivateServerMessage(caller.getClientUsername(), "You are not subscribed to '" + pattern + "'.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "unsubscribe";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Unsubscribes from the specified topics.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.USER;
+    }
+}
@@ -0,0 +1,49 @@
+package chat.server.command;
+
+import chat.client.Client;
+import chat.server.ChatServer;
+import chat.server.ServerWorker;
+import chat.server.runtime.Tenant;
+
+/**
+ * Models the command that displays this server's share of the runtime it
+ * shares with the other servers of the JVM: its connections, its traffic
+ * and the time its timer tasks have taken.
+ */
+public class UsageCommand extends AbstractCommand {
+
+    public UsageCommand() {
+        usageList.add("/usage - Displays the resource usage of this server.");
+    }
+
+    @Override
+    public void execute(String[] args, ChatServer server, ServerWorker caller) {
+        if(args.length != 0) {
+            server.sendPrivateServerMessage(caller.getClientUsername(), getInvalidUsageMessage());
+            return;
+        }
+
+        Tenant tenant = server.getTenant();
+        String message = "Tenant '" + tenant.getName() + "': "
+                + tenant.getActiveConnections() + " connections (" + tenant.getTotalConnections() + " total), "
+                + tenant.getMessagesReceived() + " messages received, "
+                + tenant.getBytesReceived() + " bytes in, " + tenant.getBytesSent() + " bytes out, "
+                + tenant.getTimerTasksRun() + " timer tasks in " + tenant.getTimerBusyNanos() / 1_000_000 + " ms.";
+        server.sendPrivateServerMessage(caller.getClientUsername(), message);
+    }
+
+    @Override
+    public String getName() {
+        return "usage";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Displays the resource usage of this server.";
+    }
+
+    @Override
+    public int getRequiredPrivilegeLevel() {
+        return Client.ADMIN;
+    }
+}
@@ -0,0 +1,148 @@
+package chat.server.dao;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The append-only log of the client data changes made on the replication
+ * leader. Every change is forced to the disk before it is shipped to the
+ * replicas, so a replica can never get ahead of the leader's log.
+ * <br>
+ * The client data changes rarely, so the whole log is also kept in the memory
+ * and the replicas are streamed from there.
+ */
+class ChangeLog implements Closeable {
+
+    /** The records of the log, in the order of their offsets. */
+    private final List<ChangeRecord> records = new ArrayList<>();
+
+    /** The channel of the log file, positioned at its end. */
+    private final FileChannel channel;
+
+    /** The stream appending to the log file. */
+    private final DataOutputStream out;
+
+    /**
+     * Opens the log file, creating it if needed. A torn record at the end of the
+     * file, left by a crash in the middle of an append, is truncated.
+     * @param file the log file
+     * @throws IOException if the log could not be opened
+     */
+    ChangeLog(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        long validLength = 0;
+
+        if(Files.exists(file)) {
+            try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+                 DataInputStream in = new DataInputStream(counter)) {
+
+                while (true) {
+                    ChangeRecord record = ChangeRecord.readFrom(in);
+                    if(record.getOffset() != getLastOffset() + 1) {
+                        throw new IOException("Change record out of order.");
+                    }
+
+                    records.add(record);
+                    validLength = counter.count;
+                }
+            } catch (IOException e) {
+                // EOF, or a torn record at the end of the log.
+            }
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if(channel.size() > validLength) {
+            System.err.println("Truncating the torn end of the change log at " + validLength + ".");
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Appends the given record and forces it to the disk.
+     * @param record the record, whose offset must follow the last offset of the log
+     * @throws IOException if the record could not be written
+     */
+    synchronized void append(ChangeRecord record) throws IOException {
+        if(record.getOffset() != getLastOffset() + 1) {
+            throw new IllegalArgumentException("Change record offset " + record.getOffset() + " does not follow " + getLastOffset() + ".");
+        }
+
+        record.writeTo(out);
+        out.flush();
+        channel.force(false);
+        records.add(record);
+    }
+
+    /**
+     * Returns the records starting from the given offset, at most the given number of them.
+     * @param fromOffset the offset of the first record
+     * @param max the maximum number of records
+     * @return the records; empty if there are none
+     */
+    synchronized List<ChangeRecord> read(long fromOffset, int max) {
+        int from = (int) Math.max(0, fromOffset - 1);
+        if(from >= records.size()) return List.of();
+
+        return new ArrayList<>(records.subList(from, Math.min(records.size(), from + max)));
+    }
+
+    /**
+     * @return the offset of the last record; {@code 0} if the log is empty
+     */
+    synchronized long getLastOffset() {
+        return records.size();
+    }
+
+    /**
+     * @return the time of the last record; {@code 0} if the log is empty
+     */
+    synchronized long getLastTimestamp() {
+        return records.isEmpty() ? 0 : records.get(records.size() - 1).getTimestamp();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.flush();
+        channel.close();
+    }
+
+    //===========================================================
+    //         CountingInputStream helper data structure
+    //===========================================================
+
+    /**
+     * Counts the bytes read, so that the end of the last complete record is known.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        /** The number of bytes read so far. */
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) count += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package chat.server.dao;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * A single change of the client data, as stored in the {@link ChangeLog} and
+ * shipped to the replicas: the offset of the change within the log, the time
+ * of the change, the operation and its arguments.
+ * <br>
+ * Every record is written as its length, its payload and the CRC32 checksum
+ * of the payload, so that a torn or corrupted record is detected both when
+ * the log is read from the disk and when the record arrives at a replica.
+ */
+class ChangeRecord {
+
+    /** Registers a new client; the argument is the password. */
+    static final byte REGISTER = 1;
+
+    /** Sets the client's privilege level; the argument is the new privilege level. */
+    static final byte SET_PRIVILEGE_LEVEL = 2;
+
+    /** Deletes the client; there is no argument. */
+    static final byte DELETE = 3;
+
+    /** Bans the client; there is no argument. */
+    static final byte BAN = 4;
+
+    /** Un-bans the client; there is no argument. */
+    static final byte UNBAN = 5;
+
+    /** The maximum length of a record payload, guarding against corrupted lengths. */
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    /** The offset of this change within the log; the first change has offset 1. */
+    private final long offset;
+
+    /** The time of this change, in milliseconds since the epoch. */
+    private final long timestamp;
+
+    /** The operation of this change. */
+    private final byte operation;
+
+    /** The username of the changed client. */
+    private final String username;
+
+    /** The argument of the operation; empty if the operation has no argument. */
+    private final String argument;
+
+    ChangeRecord(long offset, long timestamp, byte operation, String username, String argument) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.operation = operation;
+        this.username = username;
+        this.argument = argument;
+    }
+
+    /**
+     * Applies this change to the given DAO.
+     * @param dao the DAO to be changed
+     * @return the result of the DAO operation
+     */
+    boolean applyTo(DAO dao) {
+        switch (operation) {
+            case REGISTER:            return dao.registerClient(username, argument);
+            case SET_PRIVILEGE_LEVEL: return dao.setClientPrivilegeLevel(username, Integer.parseInt(argument));
+            case DELETE:              return dao.deleteClient(username);
+            case BAN:                 return dao.banClient(username);
+            case UNBAN:               return dao.unbanClient(username);
+            default: throw new IllegalStateException("Unknown change operation " + operation + ".");
+        }
+    }
+
+    //===========================================================
+    //                     Serialization
+    //===========================================================
+
+    void writeTo(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeLong(offset);
+        payload.writeLong(timestamp);
+        payload.writeByte(operation);
+        payload.writeUTF(username);
+        payload.writeUTF(argument);
+
+        byte[] data = bytes.toByteArray();
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt(checksum(data));
+    }
+
+    /**
+     * Reads a single record.
+     * @param in the input to read from
+     * @return the record
+     * @throws EOFException if the input ends before the record is complete
+     * @throws IOException if the record is corrupted or an IO error occurs
+     */
+    static ChangeRecord readFrom(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Corrupted change record length " + length + ".");
+        }
+
+        byte[] data = new byte[length];
+        in.readFully(data);
+
+        if(in.readInt() != checksum(data)) {
+            throw new IOException("Change record checksum mismatch.");
+        }
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(data));
+        return new ChangeRecord(payload.readLong(), payload.readLong(), payload.readByte(), payload.readUTF(), payload.readUTF());
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    long getOffset() {
+        return offset;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+}
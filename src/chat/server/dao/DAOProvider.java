@@ -1,25 +1,61 @@
 package chat.server.dao;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A simple provider class that returns the internally
  * specified {@link DAO} implementation.
+ * <br>
+ * There is a single instance per resource directory, so that the servers
+ * sharing a JVM keep their client data apart, while the servers sharing a
+ * resource directory share its client data.
  */
 public class DAOProvider {
 
-    /** The singleton instance. */
-    private static DAOProvider INSTANCE = new DAOProvider();
+    /** The resource directory of the default instance. */
+    private static final Path DEFAULT_DIRECTORY = Paths.get("res");
+
+    /** The instances, mapped to their normalized resource directories. */
+    private static final Map<Path, DAOProvider> INSTANCES = new ConcurrentHashMap<>();
+
+    /** The change log of the replication leader. */
+    private final Path replicationLog;
+
+    /** The applied offset of the replication follower. */
+    private final Path replicationOffset;
+
+    /** The local client data. */
+    private final FileDAO fileDAO;
 
     /** The DAO implementation. */
-    private DAO dao = new FileDAO();
+    private DAO dao;
 
     // Private constructor to block the creation of instances.
-    private DAOProvider() { }
+    private DAOProvider(Path directory) {
+        replicationLog = directory.resolve("replication/changes.log");
+        replicationOffset = directory.resolve("replication/follower.offset");
+        fileDAO = new FileDAO(directory.resolve("client-list.txt"));
+        dao = fileDAO;
+    }
 
     /**
-     * @return the {@link DAOProvider} instance
+     * @return the {@link DAOProvider} instance of the default resource directory
      */
     public static DAOProvider getInstance() {
-        return INSTANCE;
+        return forDirectory(DEFAULT_DIRECTORY);
+    }
+
+    /**
+     * @param directory the resource directory holding the client data
+     * @return the {@link DAOProvider} instance of the given resource directory
+     */
+    public static DAOProvider forDirectory(Path directory) {
+        return INSTANCES.computeIfAbsent(directory.toAbsolutePath().normalize(), DAOProvider::new);
     }
 
     /**
@@ -28,4 +64,46 @@ public class DAOProvider {
     public DAO getDAO() {
         return dao;
     }
+
+    /**
+     * Makes the provided DAO the leader of the client data replication, whose
+     * followers connect to the given address. The replication is not started.
+     * @param bindAddress the address the followers connect to
+     * @param port the port the followers connect to
+     * @param secret the secret shared by the leader and its followers
+     * @return the replication leader
+     * @throws IOException if the change log could not be opened
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public synchronized ReplicatedDAO createReplicationLeader(InetAddress bindAddress, int port, byte[] secret) throws IOException {
+        ReplicatedDAO leader = new ReplicationLeader(fileDAO, replicationLog, bindAddress, port, secret);
+        dao = leader;
+        return leader;
+    }
+
+    /**
+     * Makes the provided DAO a follower of the client data replication, streaming
+     * the changes from the leader at the given address. The replication is not started.
+     * @param host the leader's host
+     * @param port the leader's replication port
+     * @param secret the secret shared by the leader and its followers
+     * @return the replication follower
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public synchronized ReplicatedDAO createReplicationFollower(String host, int port, byte[] secret) {
+        ReplicatedDAO follower = new ReplicationFollower(fileDAO, replicationOffset, host, port, secret);
+        dao = follower;
+        return follower;
+    }
+
+    /**
+     * Makes the local client data the provided DAO again, so that the changes are
+     * no longer forwarded to the replication leader. Used by a standby server taking
+     * over from the failed leader, after its replication follower has been closed.
+     * @return the local client data
+     */
+    public synchronized DAO promoteToStandalone() {
+        dao = fileDAO;
+        return fileDAO;
+    }
 }
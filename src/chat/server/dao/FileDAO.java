@@ -3,31 +3,40 @@ package chat.server.dao;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * DAO implementation that uses files as a means of saving
  * client data to the persistent memory.
+ * <br>
+ * The changes are synchronized, while the reads go straight to the
+ * concurrent map, so that the replication threads can apply the changes
+ * while the server workers keep reading.
  */
 public class FileDAO implements DAO {
 
     /** Path to the file containing all of the registered clients' data. */
-    private static final Path clientListPath = Paths.get("res/client-list.txt");
+    private final Path clientListPath;
     
     /**
      * A map that maps the unique client's username to its attributes container. <br>
      * Visually, it looks like this: USERNAME -> (PASSWORD, PRIVILEGE_LEVEL, IS_BANNED)
      */
-    private Map<String, ClientAttributes> clientMap = new HashMap<>();
+    private Map<String, ClientAttributes> clientMap = new ConcurrentHashMap<>();
 
 
     //===========================================================
     //                    Constructor
     //===========================================================
 
-    FileDAO() {
+    /**
+     * @param clientListPath path to the file containing all of the registered clients' data
+     */
+    FileDAO(Path clientListPath) {
+        this.clientListPath = clientListPath;
         try {
             if(!Files.exists(clientListPath)) {
                 Files.createFile(clientListPath);
@@ -72,7 +81,7 @@ public class FileDAO implements DAO {
     }
 
     @Override
-    public boolean registerClient(String username, String password) {
+    public synchronized boolean registerClient(String username, String password) {
         if(isClientRegistered(username)) {
             System.err.println("Client '" + username + "' is already registered.");
             return false;
@@ -106,7 +115,7 @@ public class FileDAO implements DAO {
     }
 
     @Override
-    public boolean setClientPrivilegeLevel(String username, int privilegeLevel) {
+    public synchronized boolean setClientPrivilegeLevel(String username, int privilegeLevel) {
         if(!isClientRegistered(username)) {
             System.err.println("Could not change privilege level of client '" + username + "' as the client is not registered.");
             return false;
@@ -118,7 +127,7 @@ public class FileDAO implements DAO {
     }
 
     @Override
-    public boolean deleteClient(String username) {
+    public synchronized boolean deleteClient(String username) {
         if(!isClientRegistered(username)) {
             System.err.println("Could not delete '" + username + "' as the client is not registered.");
             return false;
@@ -128,13 +137,13 @@ public class FileDAO implements DAO {
             List<String> lines = Files.readAllLines(clientListPath);
 
             for(int i = 0, len = lines.size(); i < len; i++) {
-                if(lines.get(i).startsWith(username)) {
+                if(lines.get(i).startsWith(username + ",")) {
                     lines.remove(i);
                     break;
                 }
             }
 
-            Files.write(clientListPath, lines);
+            writeClientList(lines);
         } catch (IOException e) {
             System.err.println("Could not delete the given client '" + username + "'.");
             return false;
@@ -145,14 +154,14 @@ public class FileDAO implements DAO {
     }
 
     @Override
-    public boolean banClient(String username) {
+    public synchronized boolean banClient(String username) {
         ClientAttributes attributes = clientMap.get(username);
         attributes.isBanned = true;
         return updateExistingClient(username, attributes);
     }
 
     @Override
-    public boolean unbanClient(String username) {
+    public synchronized boolean unbanClient(String username) {
         if(!isClientRegistered(username)) {
             System.err.println("Could not un-ban client '" + username + "' as the client is not registered.");
             return false;
@@ -181,6 +190,53 @@ public class FileDAO implements DAO {
         return banList;
     }
 
+    //===========================================================
+    //                      Replication
+    //===========================================================
+
+    /**
+     * Returns all of the clients' data, one client per line, in the format of
+     * the client list file.
+     * @return the lines of the client list
+     */
+    synchronized List<String> exportClients() {
+        List<String> lines = new ArrayList<>(clientMap.size());
+        clientMap.forEach((username, attr) ->
+                lines.add(username + "," + attr.password + "," + attr.privilegeLevel + "," + attr.isBanned));
+        return lines;
+    }
+
+    /**
+     * Replaces all of the clients' data with the given lines, both in the file
+     * and in the memory.
+     * @param lines the lines of the client list, as returned by {@link #exportClients()}
+     * @throws IOException if the client list file could not be written
+     */
+    synchronized void importClients(List<String> lines) throws IOException {
+        writeClientList(lines);
+
+        // Reloaded in place, so that the concurrent readers never see an empty map.
+        Set<String> usernames = new HashSet<>();
+        for(String line : lines) {
+            usernames.add(line.split(",")[0]);
+        }
+        loadClientMap();
+        clientMap.keySet().retainAll(usernames);
+    }
+
+    /**
+     * Replaces the client list file with the given lines. The lines are written to
+     * a temporary file first, which then atomically replaces the client list, so a
+     * crash in the middle of the write never leaves a half-written client list.
+     * @param lines the lines of the client list
+     * @throws IOException if the client list could not be written
+     */
+    private void writeClientList(List<String> lines) throws IOException {
+        Path temp = clientListPath.resolveSibling(clientListPath.getFileName() + ".tmp");
+        Files.write(temp, lines);
+        Files.move(temp, clientListPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     /**
      * Updates the attributes of the client with the given username.
      * @param username the client's username
@@ -193,13 +249,13 @@ public class FileDAO implements DAO {
             List<String> lines = Files.readAllLines(clientListPath);
 
             for(int i = 0, len = lines.size(); i < len; i++) {
-                if(lines.get(i).startsWith(username)) {
+                if(lines.get(i).startsWith(username + ",")) {
                     lines.set(i, username + "," + attr.password + "," + attr.privilegeLevel + "," + attr.isBanned);
                     break;
                 }
             }
 
-            Files.write(clientListPath, lines);
+            writeClientList(lines);
         } catch (IOException e) {
             System.err.println("Could not update the given client '" + username + "'.");
             return false;
@@ -0,0 +1,47 @@
+package chat.server.dao;
+
+import java.io.IOException;
+
+/**
+ * A {@link DAO} whose data is replicated between several servers. One server,
+ * the leader, performs all of the changes and records them in its change log;
+ * the other servers, the followers, stream the log from the leader and apply
+ * the changes to their own copies, in the same order. The followers forward
+ * their own changes to the leader.
+ */
+public interface ReplicatedDAO extends DAO {
+
+    /**
+     * Starts the replication: the leader starts accepting the followers, the
+     * follower starts streaming the changes from the leader.
+     * @throws IOException if the replication could not be started
+     */
+    void start() throws IOException;
+
+    /**
+     * Stops the replication.
+     */
+    void close();
+
+    /**
+     * @return {@code true} if this is the leader, {@code false} if this is a follower
+     */
+    boolean isLeader();
+
+    /**
+     * @return the offset of the last change applied to the local copy of the data
+     */
+    long getAppliedOffset();
+
+    /**
+     * @return the number of changes made on the leader, but not yet applied to the
+     *         local copy of the data; always {@code 0} on the leader
+     */
+    long getReplicationLag();
+
+    /**
+     * @return how far behind the leader the local copy of the data is, in milliseconds
+     *         of the leader's time; always {@code 0} on the leader
+     */
+    long getReplicationLagMillis();
+}
@@ -0,0 +1,407 @@
+package chat.server.dao;
+
+import chat.server.federation.FederationHandshake;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static chat.server.dao.ReplicationLeader.*;
+
+/**
+ * The replication follower: keeps a local copy of the client data, streamed
+ * from the {@link ReplicationLeader}.
+ * <br>
+ * The reads are served from the local {@link FileDAO}. The changes are
+ * forwarded to the leader and the follower waits until the change comes back
+ * through the stream and is applied locally, so that a client that has just
+ * registered on the follower can log in right away.
+ * <br>
+ * The offset of the last applied change is persisted after every change, so
+ * that a restarted follower continues from where it stopped. A change applied
+ * just before a crash may be applied again, which is harmless, as applying a
+ * change twice has no further effect.
+ * <br>
+ * The leader is authenticated by the {@link FederationHandshake}, with the
+ * secret shared by the leader and its followers, before anything it streams
+ * is applied.
+ */
+public class ReplicationFollower implements ReplicatedDAO {
+
+    /** The time between the attempts to reconnect to the leader, in milliseconds. */
+    private static final long RECONNECT_MILLIS = 1000;
+
+    /** The time to wait for the leader to perform a forwarded change, in milliseconds. */
+    private static final long FORWARD_TIMEOUT_MILLIS = 5000;
+
+    //===========================================================
+    //                         Fields
+    //===========================================================
+
+    /** The local copy of the client data. */
+    private final FileDAO local;
+
+    /** The leader's host. */
+    private final String host;
+
+    /** The leader's replication port. */
+    private final int port;
+
+    /** Authenticates the leader. */
+    private final FederationHandshake handshake;
+
+    /** The file the applied offset is persisted to. */
+    private final Path offsetFile;
+
+    /** The offset of the last change applied to the local copy. */
+    private volatile long appliedOffset;
+
+    /** The time of the last change applied to the local copy, in the leader's time. */
+    private volatile long appliedTimestamp;
+
+    /** The last offset of the leader's log, as last reported by the leader. */
+    private volatile long leaderOffset;
+
+    /** The time of the last change in the leader's log, as last reported by the leader. */
+    private volatile long leaderTimestamp;
+
+    /** The connection to the leader; {@code null} while disconnected. */
+    private volatile Socket socket;
+
+    /** The output to the leader; {@code null} while disconnected. */
+    private volatile DataOutputStream out;
+
+    /** The source of the forwarded change ids. */
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    /** The forwarded changes awaiting the leader's result, mapped to their ids. */
+    private final Map<Long, CompletableFuture<Long>> pending = new ConcurrentHashMap<>();
+
+    /** The thread streaming the changes from the leader. */
+    private Thread streamThread;
+
+    /** Set when the follower is closed. */
+    private volatile boolean closed;
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Constructs a new replication follower.
+     * @param local the local copy of the client data
+     * @param offsetFile the file the applied offset is persisted to
+     * @param host the leader's host
+     * @param port the leader's replication port
+     * @param secret the secret shared by the leader and its followers
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    ReplicationFollower(FileDAO local, Path offsetFile, String host, int port, byte[] secret) {
+        this.local = Objects.requireNonNull(local, "Local DAO cannot be null.");
+        this.offsetFile = Objects.requireNonNull(offsetFile, "Offset file cannot be null.");
+        this.host = Objects.requireNonNull(host, "Leader host cannot be null.");
+        this.port = port;
+        this.handshake = new FederationHandshake(Objects.requireNonNull(secret, "Secret cannot be null."), HANDSHAKE);
+    }
+
+    //===========================================================
+    //                     Replication API
+    //===========================================================
+
+    @Override
+    public void start() throws IOException {
+        if(Files.exists(offsetFile)) {
+            try {
+                appliedOffset = Long.parseLong(Files.readString(offsetFile).trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Corrupted replication offset, the client data will be re-sent by the leader.");
+            }
+        }
+
+        streamThread = new Thread(this::streamLoop, "ReplicationFollower stream");
+        streamThread.setDaemon(true);
+        streamThread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            Socket socket = this.socket;
+            if(socket != null) socket.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the replication follower: " + e.getMessage());
+        }
+        if(streamThread != null) streamThread.interrupt();
+    }
+
+    @Override
+    public boolean isLeader() {
+        return false;
+    }
+
+    @Override
+    public long getAppliedOffset() {
+        return appliedOffset;
+    }
+
+    @Override
+    public long getReplicationLag() {
+        return Math.max(0, leaderOffset - appliedOffset);
+    }
+
+    @Override
+    public long getReplicationLagMillis() {
+        if(getReplicationLag() == 0) return 0;
+        return Math.max(0, leaderTimestamp - appliedTimestamp);
+    }
+
+    /**
+     * @return {@code true} if the follower is currently connected to the leader
+     */
+    public boolean isConnected() {
+        return out != null;
+    }
+
+    //===========================================================
+    //                       Changes
+    //===========================================================
+
+    @Override
+    public boolean registerClient(String username, String password) {
+        return forward(ChangeRecord.REGISTER, username, password);
+    }
+
+    @Override
+    public boolean setClientPrivilegeLevel(String username, int privilegeLevel) {
+        return forward(ChangeRecord.SET_PRIVILEGE_LEVEL, username, Integer.toString(privilegeLevel));
+    }
+
+    @Override
+    public boolean deleteClient(String username) {
+        return forward(ChangeRecord.DELETE, username, "");
+    }
+
+    @Override
+    public boolean banClient(String username) {
+        return forward(ChangeRecord.BAN, username, "");
+    }
+
+    @Override
+    public boolean unbanClient(String username) {
+        return forward(ChangeRecord.UNBAN, username, "");
+    }
+
+    /**
+     * Forwards the change to the leader and waits until it is applied to the local copy.
+     * @return {@code true} if the leader performed the change, {@code false} if it failed,
+     *         or if the leader could not be reached
+     */
+    private boolean forward(byte operation, String username, String argument) {
+        DataOutputStream out = this.out;
+        if(out == null) {
+            System.err.println("Not connected to the replication leader, the change of client '" + username + "' is rejected.");
+            return false;
+        }
+
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        pending.put(requestId, result);
+
+        try {
+            synchronized (out) {
+                out.writeByte(FRAME_CHANGE);
+                out.writeLong(requestId);
+                out.writeByte(operation);
+                out.writeUTF(username);
+                out.writeUTF(argument);
+                out.flush();
+            }
+
+            long offset = result.get(FORWARD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return offset > 0 && awaitApplied(offset);
+
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            System.err.println("Could not forward the change of client '" + username + "' to the replication leader.");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    /**
+     * Waits until the change with the given offset is applied to the local copy.
+     * @return {@code true} if the change was applied in time
+     */
+    private synchronized boolean awaitApplied(long offset) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + FORWARD_TIMEOUT_MILLIS;
+
+        while (appliedOffset < offset) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    //===========================================================
+    //                        Reads
+    //===========================================================
+
+    @Override
+    public boolean loginClient(String username, String password) {
+        return local.loginClient(username, password);
+    }
+
+    @Override
+    public boolean isClientRegistered(String username) {
+        return local.isClientRegistered(username);
+    }
+
+    @Override
+    public boolean isClientBanned(String username) {
+        return local.isClientBanned(username);
+    }
+
+    @Override
+    public int getClientPrivilegeLevel(String username) {
+        return local.getClientPrivilegeLevel(username);
+    }
+
+    @Override
+    public List<String> getBanList() {
+        return local.getBanList();
+    }
+
+    //===========================================================
+    //                 Streaming from the leader
+    //===========================================================
+
+    private void streamLoop() {
+        while (!closed) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), (int) RECONNECT_MILLIS);
+                this.socket = socket;
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                socket.setSoTimeout(FederationHandshake.TIMEOUT_MILLIS);
+                handshake.connect(in, out, FOLLOWER_ID, LEADER_ID);
+                socket.setSoTimeout(0);
+
+                out.writeLong(appliedOffset);
+                out.flush();
+                this.out = out;
+
+                readFrames(in);
+
+            } catch (EOFException | SocketException | SocketTimeoutException e) {
+                // The leader is unreachable, or the stream broke; try again later.
+            } catch (IOException e) {
+                System.err.println("Replication stream from the leader broke: " + e.getMessage());
+            } finally {
+                this.socket = null;
+                this.out = null;
+                pending.values().forEach(result -> result.completeExceptionally(new IOException("Disconnected from the leader.")));
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void readFrames(DataInputStream in) throws IOException {
+        while (true) {
+            byte frame = in.readByte();
+
+            switch (frame) {
+                case FRAME_RECORD:
+                    applyRecord(ChangeRecord.readFrom(in));
+                    break;
+
+                case FRAME_SNAPSHOT:
+                    long offset = in.readLong();
+                    int count = in.readInt();
+                    List<String> lines = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) {
+                        lines.add(in.readUTF());
+                    }
+
+                    local.importClients(lines);
+                    System.out.println("Received the snapshot of " + count + " clients at replication offset " + offset + ".");
+                    setApplied(offset, leaderTimestamp);
+                    break;
+
+                case FRAME_HEARTBEAT:
+                    leaderOffset = in.readLong();
+                    leaderTimestamp = in.readLong();
+                    break;
+
+                case FRAME_RESULT:
+                    long requestId = in.readLong();
+                    boolean successful = in.readBoolean();
+                    long changeOffset = in.readLong();
+
+                    CompletableFuture<Long> result = pending.get(requestId);
+                    if(result != null) result.complete(successful ? changeOffset : -1);
+                    break;
+
+                default:
+                    throw new IOException("Unknown replication frame " + frame + ".");
+            }
+        }
+    }
+
+    private void applyRecord(ChangeRecord record) throws IOException {
+        if(record.getOffset() <= appliedOffset) return;
+        if(record.getOffset() != appliedOffset + 1) {
+            // Reconnecting makes the leader resend everything after the applied offset.
+            throw new IOException("Replication gap: expected offset " + (appliedOffset + 1) + ", got " + record.getOffset() + ".");
+        }
+
+        try {
+            record.applyTo(local);
+        } catch (RuntimeException e) {
+            System.err.println("Could not apply the change at replication offset " + record.getOffset() + ": " + e);
+        }
+
+        if(record.getOffset() > leaderOffset) {
+            leaderOffset = record.getOffset();
+            leaderTimestamp = record.getTimestamp();
+        }
+        setApplied(record.getOffset(), record.getTimestamp());
+    }
+
+    /**
+     * Records and persists the applied offset and wakes up the forwarded changes waiting for it.
+     */
+    private synchronized void setApplied(long offset, long timestamp) throws IOException {
+        Path temp = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+        Files.createDirectories(offsetFile.toAbsolutePath().getParent());
+        Files.writeString(temp, Long.toString(offset));
+        Files.move(temp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        appliedOffset = offset;
+        appliedTimestamp = timestamp;
+        if(offset > leaderOffset) leaderOffset = offset;
+        notifyAll();
+    }
+}
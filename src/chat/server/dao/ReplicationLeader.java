@@ -0,0 +1,391 @@
+package chat.server.dao;
+
+import chat.server.federation.FederationHandshake;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The replication leader: the only server that changes the client data.
+ * <br>
+ * Every change is first applied to the local {@link FileDAO}, then appended
+ * to the {@link ChangeLog} and then streamed, in the order of the log, to all
+ * of the connected followers. A follower connects with the offset of the last
+ * change it has applied and is streamed the changes after it; a follower that
+ * has no data yet, or whose offset is unknown to the log, is first sent the
+ * snapshot of all the client data. While there are no changes, the followers
+ * are sent heartbeats carrying the last offset, from which they compute their
+ * replication lag.
+ * <br>
+ * Every follower is authenticated by the {@link FederationHandshake}, with
+ * the secret shared by the leader and its followers, before it is sent any
+ * of the client data or may forward any change.
+ */
+public class ReplicationLeader implements ReplicatedDAO {
+
+    //===========================================================
+    //                   Replication protocol
+    //===========================================================
+
+    /** The first string sent by the follower, identifying the replication protocol. */
+    static final String HANDSHAKE = "chat-replication-2";
+
+    /** The node id the leader signs its handshake with. */
+    static final String LEADER_ID = "leader";
+
+    /** The node id the followers sign their handshakes with. */
+    static final String FOLLOWER_ID = "follower";
+
+    /** Leader to follower: a change record follows. */
+    static final byte FRAME_RECORD = 1;
+
+    /** Leader to follower: the offset, the number of lines and the lines of the client list follow. */
+    static final byte FRAME_SNAPSHOT = 2;
+
+    /** Leader to follower: the last offset of the log and the time of its change follow. */
+    static final byte FRAME_HEARTBEAT = 3;
+
+    /** Leader to follower: the request id, the success flag and the offset of the forwarded change follow. */
+    static final byte FRAME_RESULT = 4;
+
+    /** Follower to leader: the request id, the operation, the username and the argument of a change follow. */
+    static final byte FRAME_CHANGE = 5;
+
+    /** The time between the heartbeats sent to an idle follower, in milliseconds. */
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    /** The maximum number of records written to a follower with a single flush. */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    //===========================================================
+    //                         Fields
+    //===========================================================
+
+    /** The local copy of the client data. */
+    private final FileDAO local;
+
+    /** The log of all the changes. */
+    private final ChangeLog log;
+
+    /** The address the followers connect to. */
+    private final InetAddress bindAddress;
+
+    /** The port the followers connect to. */
+    private final int port;
+
+    /** Authenticates the followers. */
+    private final FederationHandshake handshake;
+
+    /** Accepts the followers. */
+    private ServerSocket acceptingSocket;
+
+    /** The sockets of the connected followers. */
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Constructs a new replication leader.
+     * @param local the local copy of the client data
+     * @param logFile the change log file
+     * @param bindAddress the address the followers connect to
+     * @param port the port the followers connect to
+     * @param secret the secret shared by the leader and its followers
+     * @throws IOException if the change log could not be opened
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    ReplicationLeader(FileDAO local, Path logFile, InetAddress bindAddress, int port, byte[] secret) throws IOException {
+        this.local = Objects.requireNonNull(local, "Local DAO cannot be null.");
+        this.bindAddress = Objects.requireNonNull(bindAddress, "Bind address cannot be null.");
+        this.port = port;
+        this.handshake = new FederationHandshake(Objects.requireNonNull(secret, "Secret cannot be null."), HANDSHAKE);
+        this.log = new ChangeLog(logFile);
+    }
+
+    //===========================================================
+    //                     Replication API
+    //===========================================================
+
+    @Override
+    public void start() throws IOException {
+        acceptingSocket = new ServerSocket(port, 50, bindAddress);
+
+        Thread acceptor = new Thread(this::acceptLoop, "ReplicationLeader acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(acceptingSocket != null) acceptingSocket.close();
+            for(Socket follower : followers) {
+                follower.close();
+            }
+            log.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the replication leader: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isLeader() {
+        return true;
+    }
+
+    @Override
+    public long getAppliedOffset() {
+        return log.getLastOffset();
+    }
+
+    @Override
+    public long getReplicationLag() {
+        return 0;
+    }
+
+    @Override
+    public long getReplicationLagMillis() {
+        return 0;
+    }
+
+    //===========================================================
+    //                       Changes
+    //===========================================================
+
+    @Override
+    public boolean registerClient(String username, String password) {
+        return change(ChangeRecord.REGISTER, username, password) > 0;
+    }
+
+    @Override
+    public boolean setClientPrivilegeLevel(String username, int privilegeLevel) {
+        return change(ChangeRecord.SET_PRIVILEGE_LEVEL, username, Integer.toString(privilegeLevel)) > 0;
+    }
+
+    @Override
+    public boolean deleteClient(String username) {
+        return change(ChangeRecord.DELETE, username, "") > 0;
+    }
+
+    @Override
+    public boolean banClient(String username) {
+        return change(ChangeRecord.BAN, username, "") > 0;
+    }
+
+    @Override
+    public boolean unbanClient(String username) {
+        return change(ChangeRecord.UNBAN, username, "") > 0;
+    }
+
+    /**
+     * Applies the change to the local copy and, if it succeeded, appends it to
+     * the log and wakes up the follower streams.
+     * @return the offset of the change, or {@code -1} if the change failed
+     */
+    private synchronized long change(byte operation, String username, String argument) {
+        ChangeRecord record = new ChangeRecord(log.getLastOffset() + 1, System.currentTimeMillis(), operation, username, argument);
+        try {
+            if(!record.applyTo(local)) return -1;
+        } catch (RuntimeException e) {
+            // Such as banning a client that is not registered.
+            return -1;
+        }
+
+        try {
+            log.append(record);
+        } catch (IOException e) {
+            System.err.println("Could not append the change to the change log, the followers will miss it: " + e.getMessage());
+            return -1;
+        }
+
+        notifyAll();
+        return record.getOffset();
+    }
+
+    //===========================================================
+    //                        Reads
+    //===========================================================
+
+    @Override
+    public boolean loginClient(String username, String password) {
+        return local.loginClient(username, password);
+    }
+
+    @Override
+    public boolean isClientRegistered(String username) {
+        return local.isClientRegistered(username);
+    }
+
+    @Override
+    public boolean isClientBanned(String username) {
+        return local.isClientBanned(username);
+    }
+
+    @Override
+    public int getClientPrivilegeLevel(String username) {
+        return local.getClientPrivilegeLevel(username);
+    }
+
+    @Override
+    public List<String> getBanList() {
+        return local.getBanList();
+    }
+
+    //===========================================================
+    //                   Streaming to followers
+    //===========================================================
+
+    private void acceptLoop() {
+        while (!acceptingSocket.isClosed()) {
+            try {
+                Socket socket = acceptingSocket.accept();
+                followers.add(socket);
+
+                Thread stream = new Thread(() -> serve(socket), "ReplicationLeader stream");
+                stream.setDaemon(true);
+                stream.start();
+
+            } catch (IOException e) {
+                // The accepting socket was closed.
+            }
+        }
+    }
+
+    /**
+     * Streams the log to a single follower until the connection breaks. The changes
+     * forwarded by the follower are read and performed by a separate thread.
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            try {
+                socket.setSoTimeout(FederationHandshake.TIMEOUT_MILLIS);
+                handshake.accept(in, out, LEADER_ID, Set.of(FOLLOWER_ID));
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
+                System.err.println("Replication follower " + socket.getRemoteSocketAddress() + " rejected: " + e.getMessage());
+                return;
+            }
+
+            long next = in.readLong() + 1;
+            if(next == 1 || next > log.getLastOffset() + 1) {
+                next = sendSnapshot(out) + 1;
+            }
+
+            Thread changes = new Thread(() -> readChanges(in, out), "ReplicationLeader changes");
+            changes.setDaemon(true);
+            changes.start();
+
+            while (!socket.isClosed()) {
+                List<ChangeRecord> records = awaitRecords(next);
+
+                synchronized (out) {
+                    if(records.isEmpty()) {
+                        out.writeByte(FRAME_HEARTBEAT);
+                        out.writeLong(log.getLastOffset());
+                        out.writeLong(log.getLastTimestamp());
+                    }
+
+                    for(ChangeRecord record : records) {
+                        out.writeByte(FRAME_RECORD);
+                        record.writeTo(out);
+                    }
+                    out.flush();
+                }
+
+                if(!records.isEmpty()) next = records.get(records.size() - 1).getOffset() + 1;
+            }
+
+        } catch (EOFException | SocketException e) {
+            // The follower has disconnected.
+        } catch (IOException e) {
+            System.err.println("Replication stream broke: " + e.getMessage());
+        } finally {
+            followers.remove(socket);
+        }
+    }
+
+    /**
+     * Returns the records starting from the given offset, waiting up to a heartbeat
+     * period for them if there are none yet.
+     */
+    private synchronized List<ChangeRecord> awaitRecords(long from) {
+        if(log.getLastOffset() < from) {
+            try {
+                wait(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return log.read(from, MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Sends the snapshot of all the client data, consistent with the returned offset.
+     * @return the offset of the last change contained in the snapshot
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        List<String> lines;
+        long offset;
+
+        synchronized (this) {
+            lines = local.exportClients();
+            offset = log.getLastOffset();
+        }
+
+        synchronized (out) {
+            out.writeByte(FRAME_SNAPSHOT);
+            out.writeLong(offset);
+            out.writeInt(lines.size());
+            for(String line : lines) {
+                out.writeUTF(line);
+            }
+            out.flush();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Performs the changes forwarded by the follower and sends back their results.
+     */
+    private void readChanges(DataInputStream in, DataOutputStream out) {
+        try {
+            while (true) {
+                if(in.readByte() != FRAME_CHANGE) {
+                    throw new IOException("Unexpected frame from the follower.");
+                }
+
+                long requestId = in.readLong();
+                byte operation = in.readByte();
+                String username = in.readUTF();
+                String argument = in.readUTF();
+
+                long offset = change(operation, username, argument);
+
+                synchronized (out) {
+                    out.writeByte(FRAME_RESULT);
+                    out.writeLong(requestId);
+                    out.writeBoolean(offset > 0);
+                    out.writeLong(offset);
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // The follower has disconnected; the stream thread cleans up.
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package chat.server.federation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A single event relayed between the federated nodes: the event type, the
+ * node the event originated from, the origin's sequence number of the event
+ * and the event fields, such as the sender and the message.
+ */
+class FederationEvent {
+
+    /** A global client message; fields: sender, message. */
+    static final byte GLOBAL_CLIENT_MESSAGE = 1;
+
+    /** A batch of global server messages; fields: the messages. */
+    static final byte GLOBAL_SERVER_MESSAGES = 2;
+
+    /** A private client message; fields: sender, receiver, message. */
+    static final byte PRIVATE_CLIENT_MESSAGE = 3;
+
+    /** A client was kicked; fields: kicker, kicked. */
+    static final byte CLIENT_KICKED = 4;
+
+    /** A client was banned; fields: banner, banned. */
+    static final byte CLIENT_BANNED = 5;
+
+    /** A client was deleted; fields: deleter, deleted. */
+    static final byte CLIENT_DELETED = 6;
+
+    /** A client has logged in on the origin node; fields: username. */
+    static final byte CLIENT_JOINED = 7;
+
+    /** A client has left the origin node; fields: username. */
+    static final byte CLIENT_LEFT = 8;
+
+    /**
+     * All of the clients currently logged in on the origin node; fields: the usernames.
+     * Sent as the first event on every link, so it has no sequence number of its own.
+     */
+    static final byte PRESENCE_SNAPSHOT = 9;
+
+    /** The type of the event. */
+    private final byte type;
+
+    /** The id of the node the event originated from. */
+    private final String origin;
+
+    /** The origin's sequence number of the event. */
+    private final long sequence;
+
+    /** The fields of the event. */
+    private final String[] fields;
+
+    FederationEvent(byte type, String origin, long sequence, String... fields) {
+        this.type = type;
+        this.origin = Objects.requireNonNull(origin, "Origin cannot be null.");
+        this.sequence = sequence;
+        this.fields = fields;
+    }
+
+    //===========================================================
+    //                     Serialization
+    //===========================================================
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(origin);
+        out.writeLong(sequence);
+        out.writeInt(fields.length);
+        for(String field : fields) {
+            out.writeUTF(field);
+        }
+    }
+
+    static FederationEvent readFrom(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String origin = in.readUTF();
+        long sequence = in.readLong();
+
+        String[] fields = new String[in.readInt()];
+        for(int i = 0; i < fields.length; i++) {
+            fields[i] = in.readUTF();
+        }
+
+        return new FederationEvent(type, origin, sequence, fields);
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    byte getType() {
+        return type;
+    }
+
+    String getOrigin() {
+        return origin;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    String getField(int index) {
+        return fields[index];
+    }
+
+    List<String> getFields() {
+        return Arrays.asList(fields);
+    }
+}
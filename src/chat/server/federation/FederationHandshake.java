@@ -0,0 +1,149 @@
+package chat.server.federation;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+
+/**
+ * Authenticates the two ends of a federation link to each other, proving that
+ * both know the secret shared by the nodes of the federation without sending it.
+ * <br>
+ * The connecting node sends its id and a random challenge; the accepting node
+ * answers with a challenge of its own and the signature of both, which the
+ * connecting node checks before anything else is sent; the connecting node then
+ * signs both challenges in turn. Every signature names the role, both node ids
+ * and both challenges, so it can be neither replayed on another link nor
+ * reflected back to its signer.
+ * <br>
+ * The other links between the servers, such as the replication, are
+ * authenticated the same way under a protocol name of their own, which is
+ * signed along, so a handshake of one kind of link is never accepted by another.
+ */
+public class FederationHandshake {
+
+    /** The first string sent on every federation link, identifying the federation protocol. */
+    public static final String PROTOCOL = "chat-federation-2";
+
+    /** The algorithm the challenges are signed with. */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /** The number of random bytes of a challenge. */
+    private static final int CHALLENGE_BYTES = 32;
+
+    /** The minimum number of bytes of the shared secret. */
+    public static final int MIN_SECRET_BYTES = 16;
+
+    /** The time the handshake is given to complete, in milliseconds. */
+    public static final int TIMEOUT_MILLIS = 5000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** The key derived from the shared secret. */
+    private final SecretKeySpec key;
+
+    /** The first string sent on every link, identifying its protocol. */
+    private final String protocol;
+
+    /**
+     * @param secret the secret shared by the nodes of the federation
+     * @throws IllegalArgumentException if the secret is shorter than {@link #MIN_SECRET_BYTES}
+     */
+    FederationHandshake(byte[] secret) {
+        this(secret, PROTOCOL);
+    }
+
+    /**
+     * @param secret the secret shared by the two ends of the links
+     * @param protocol the name of the protocol of the links
+     * @throws IllegalArgumentException if the secret is shorter than {@link #MIN_SECRET_BYTES}
+     */
+    public FederationHandshake(byte[] secret, String protocol) {
+        if(secret.length < MIN_SECRET_BYTES) {
+            throw new IllegalArgumentException("Secret of the '" + protocol + "' links must be at least " + MIN_SECRET_BYTES + " bytes long.");
+        }
+        key = new SecretKeySpec(secret, ALGORITHM);
+        this.protocol = protocol;
+    }
+
+    /**
+     * Authenticates the link from the connecting side.
+     * @param nodeId the id of the local node
+     * @param peerId the id of the peer the link connects to
+     * @throws IOException if the link broke, or the peer does not know the secret
+     */
+    public void connect(DataInputStream in, DataOutputStream out, String nodeId, String peerId) throws IOException {
+        byte[] challenge = challenge();
+        out.writeUTF(protocol);
+        out.writeUTF(nodeId);
+        out.write(challenge);
+        out.flush();
+
+        byte[] peerChallenge = in.readNBytes(CHALLENGE_BYTES);
+        byte[] peerSignature = in.readNBytes(signatureLength());
+        if(!MessageDigest.isEqual(peerSignature, sign("accept", peerId, nodeId, challenge, peerChallenge))) {
+            throw new IOException("Peer '" + peerId + "' failed the " + protocol + " handshake.");
+        }
+
+        out.write(sign("connect", nodeId, peerId, peerChallenge, challenge));
+        out.flush();
+    }
+
+    /**
+     * Authenticates the link from the accepting side.
+     * @param nodeId the id of the local node
+     * @param peerIds the ids of the peers allowed to connect
+     * @return the id of the connected peer, once authenticated
+     * @throws IOException if the link broke, or the peer is unknown or does not know the secret
+     */
+    public String accept(DataInputStream in, DataOutputStream out, String nodeId, Set<String> peerIds) throws IOException {
+        if(!protocol.equals(in.readUTF())) throw new IOException("Invalid " + protocol + " handshake.");
+
+        String peerId = in.readUTF();
+        if(!peerIds.contains(peerId)) throw new IOException("The " + protocol + " link from the unknown node '" + peerId + "'.");
+
+        byte[] peerChallenge = in.readNBytes(CHALLENGE_BYTES);
+        byte[] challenge = challenge();
+        out.write(challenge);
+        out.write(sign("accept", nodeId, peerId, peerChallenge, challenge));
+        out.flush();
+
+        byte[] peerSignature = in.readNBytes(signatureLength());
+        if(!MessageDigest.isEqual(peerSignature, sign("connect", peerId, nodeId, challenge, peerChallenge))) {
+            throw new IOException("Node '" + peerId + "' failed the " + protocol + " handshake.");
+        }
+        return peerId;
+    }
+
+    private static byte[] challenge() {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        return challenge;
+    }
+
+    private byte[] sign(String role, String signer, String other, byte[] otherChallenge, byte[] ownChallenge) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update((protocol + "\n" + role + "\n" + signer + "\n" + other + "\n").getBytes(StandardCharsets.UTF_8));
+            mac.update(otherChallenge);
+            return mac.doFinal(ownChallenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available.", e);
+        }
+    }
+
+    private int signatureLength() {
+        try {
+            return Mac.getInstance(ALGORITHM).getMacLength();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package chat.server.federation;
+
+import java.util.List;
+
+/**
+ * Models objects that apply the events relayed from the other federated nodes
+ * to the clients of the local node.
+ */
+public interface FederationListener {
+
+    /**
+     * Called once a global client message was sent on another node.
+     * @param sender the username of the sender
+     * @param message the message
+     */
+    void remoteGlobalClientMessage(String sender, String message);
+
+    /**
+     * Called once a batch of global server messages was sent on another node.
+     * @param messages the messages
+     */
+    void remoteGlobalServerMessages(List<String> messages);
+
+    /**
+     * Called once a private message was sent on another node to a client
+     * logged in on this node.
+     * @param sender the username of the sender
+     * @param receiver the username of the receiver
+     * @param message the message
+     */
+    void remotePrivateClientMessage(String sender, String receiver, String message);
+
+    /**
+     * Called once a client was kicked on another node.
+     * @param kicker the username of the kicker
+     * @param kicked the username of the kicked client
+     */
+    void remoteClientKicked(String kicker, String kicked);
+
+    /**
+     * Called once a client was banned on another node.
+     * @param banner the username of the banner
+     * @param banned the username of the banned client
+     */
+    void remoteClientBanned(String banner, String banned);
+
+    /**
+     * Called once a client was deleted on another node.
+     * @param deleter the username of the deleter
+     * @param deleted the username of the deleted client
+     */
+    void remoteClientDeleted(String deleter, String deleted);
+}
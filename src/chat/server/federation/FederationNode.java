@@ -0,0 +1,354 @@
+package chat.server.federation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Connects the local chat server to the other chat servers (nodes) of the
+ * federation, so that the clients logged in on different nodes can talk to
+ * each other.
+ * <br>
+ * Every node listens on its federation port and opens a persistent link to
+ * every peer, so the nodes form a full mesh. The links are one-way: a node
+ * sends its own events over its outgoing links and receives the events of
+ * the peers over the incoming ones. Since every node is linked with every
+ * peer directly, the received events are only applied locally and never
+ * relayed further, which rules out loops; in addition, the events that
+ * come back to their origin and the repeated events (by their origin's
+ * sequence number) are dropped.
+ * <br>
+ * The node also keeps the replicated presence directory: the node every
+ * client of the federation is logged in on. It is filled from the presence
+ * snapshot each peer sends once its link connects, and kept up to date by
+ * the join and leave events. Once the link from a peer breaks, the clients
+ * of that peer are removed from the directory.
+ * <br>
+ * Only the configured peers that know the federation's shared secret are
+ * linked with, as authenticated by the {@link FederationHandshake}, and every
+ * event received over a link must originate from the peer of that link.
+ */
+public class FederationNode {
+
+    /** The id of the local node. */
+    private final String nodeId;
+
+    /** The address the local node accepts the peer links on. */
+    private final InetAddress bindAddress;
+
+    /** The port the local node accepts the peer links on. */
+    private final int port;
+
+    /** Authenticates the links. */
+    private final FederationHandshake handshake;
+
+    /** The ids of the peers allowed to link with the local node. */
+    private final Set<String> peerIds = new HashSet<>();
+
+    /** The outgoing links, one per peer. */
+    private final List<PeerLink> links = new ArrayList<>();
+
+    /** Applies the events of the peers to the local clients. */
+    private final FederationListener listener;
+
+    /** Supplies the usernames of the clients logged in on the local node. */
+    private final Supplier<Collection<String>> localClients;
+
+    /** Maps the username of every client logged in on a peer to the id of that peer. */
+    private final ConcurrentHashMap<String, String> directory = new ConcurrentHashMap<>();
+
+    /** The sequence number of the last event applied, by the origin node. */
+    private final ConcurrentHashMap<String, Long> appliedSequences = new ConcurrentHashMap<>();
+
+    /** The sequence number of the last event published by the local node. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Accepts the incoming links. */
+    private ServerSocket acceptingSocket;
+
+    /** The incoming links, kept to be closed along with the node. */
+    private final Set<Socket> incoming = ConcurrentHashMap.newKeySet();
+
+    /** The current authenticated incoming link of every peer. */
+    private final ConcurrentHashMap<String, Socket> peerSockets = new ConcurrentHashMap<>();
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Constructs a new federation node.
+     * @param nodeId the id of the local node, unique within the federation
+     * @param bindAddress the address the local node accepts the peer links on
+     * @param port the port the local node accepts the peer links on
+     * @param peers the addresses of the peer nodes
+     * @param secret the secret shared by the nodes of the federation
+     * @param listener applies the events of the peers to the local clients
+     * @param localClients supplies the usernames of the clients logged in on the local node
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public FederationNode(String nodeId, InetAddress bindAddress, int port, List<PeerAddress> peers, byte[] secret,
+                          FederationListener listener, Supplier<Collection<String>> localClients) {
+        this.nodeId = Objects.requireNonNull(nodeId, "Node id cannot be null.");
+        this.bindAddress = Objects.requireNonNull(bindAddress, "Bind address cannot be null.");
+        this.port = port;
+        this.handshake = new FederationHandshake(Objects.requireNonNull(secret, "Secret cannot be null."));
+        this.listener = Objects.requireNonNull(listener, "Listener cannot be null.");
+        this.localClients = Objects.requireNonNull(localClients, "Local clients cannot be null.");
+
+        for(PeerAddress peer : peers) {
+            if(peer.getNodeId().equals(nodeId)) continue;
+            links.add(new PeerLink(peer, nodeId, handshake, this::createPresenceSnapshot));
+            peerIds.add(peer.getNodeId());
+        }
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Starts accepting the incoming links and connecting the outgoing ones.
+     * @throws IOException if the federation port could not be opened
+     */
+    public void start() throws IOException {
+        acceptingSocket = new ServerSocket(port, 50, bindAddress);
+
+        Thread acceptor = new Thread(this::acceptLoop, "Federation acceptor " + nodeId);
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        links.forEach(PeerLink::start);
+    }
+
+    /**
+     * Closes all of the links.
+     */
+    public void close() {
+        links.forEach(PeerLink::close);
+
+        try {
+            if(acceptingSocket != null) acceptingSocket.close();
+        } catch (IOException ignored) {
+        }
+
+        incoming.forEach(FederationNode::closeQuietly);
+    }
+
+    /**
+     * Returns the id of the peer node the given client is logged in on.
+     * @param username the username of the client
+     * @return the id of the peer node, or {@code null} if the client is not
+     *         logged in on any of the peers
+     */
+    public String getHomeNode(String username) {
+        return directory.get(username);
+    }
+
+    /**
+     * @return the id of the local node
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    //===========================================================
+    //                   Publishing the events
+    //===========================================================
+
+    public void publishGlobalClientMessage(String sender, String message) {
+        publish(FederationEvent.GLOBAL_CLIENT_MESSAGE, sender, message);
+    }
+
+    public void publishGlobalServerMessages(List<String> messages) {
+        publish(FederationEvent.GLOBAL_SERVER_MESSAGES, messages.toArray(new String[0]));
+    }
+
+    public void publishPrivateClientMessage(String sender, String receiver, String message) {
+        publish(FederationEvent.PRIVATE_CLIENT_MESSAGE, sender, receiver, message);
+    }
+
+    public void publishClientKicked(String kicker, String kicked) {
+        publish(FederationEvent.CLIENT_KICKED, kicker, kicked);
+    }
+
+    public void publishClientBanned(String banner, String banned) {
+        publish(FederationEvent.CLIENT_BANNED, banner, banned);
+    }
+
+    public void publishClientDeleted(String deleter, String deleted) {
+        publish(FederationEvent.CLIENT_DELETED, deleter, deleted);
+    }
+
+    public void publishClientJoined(String username) {
+        publish(FederationEvent.CLIENT_JOINED, username);
+    }
+
+    public void publishClientLeft(String username) {
+        publish(FederationEvent.CLIENT_LEFT, username);
+    }
+
+    /**
+     * Queues the event on every outgoing link. The sequence number is taken under
+     * the lock, so the events are queued on every link in the order of their numbers.
+     */
+    private synchronized void publish(byte type, String... fields) {
+        FederationEvent event = new FederationEvent(type, nodeId, sequence.incrementAndGet(), fields);
+
+        for(PeerLink link : links) {
+            if(!link.send(event)) {
+                System.err.println("Federation queue to '" + link.getPeer().getNodeId() + "' is full, event dropped.");
+            }
+        }
+    }
+
+    private FederationEvent createPresenceSnapshot() {
+        return new FederationEvent(FederationEvent.PRESENCE_SNAPSHOT, nodeId, 0, localClients.get().toArray(new String[0]));
+    }
+
+    //===========================================================
+    //                  Receiving the events
+    //===========================================================
+
+    private void acceptLoop() {
+        while (!acceptingSocket.isClosed()) {
+            try {
+                Socket socket = acceptingSocket.accept();
+                incoming.add(socket);
+
+                Thread reader = new Thread(() -> readLoop(socket), "Federation reader " + nodeId);
+                reader.setDaemon(true);
+                reader.start();
+
+            } catch (IOException e) {
+                // The accepting socket was closed.
+            }
+        }
+    }
+
+    /**
+     * Authenticates a single incoming link, then reads its events until it breaks
+     * and removes the clients of the peer from the directory. A newer link of the
+     * same peer replaces the older one.
+     */
+    private void readLoop(Socket socket) {
+        String peerId = null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            socket.setSoTimeout(FederationHandshake.TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            String authenticated = handshake.accept(in, out, nodeId, peerIds);
+            socket.setSoTimeout(0);
+
+            peerId = authenticated;
+            Socket replaced = peerSockets.put(peerId, socket);
+            if(replaced != null) closeQuietly(replaced);
+
+            // The peer might have been restarted, with its sequence numbers starting over.
+            appliedSequences.put(peerId, 0L);
+            System.out.println("Federation link from '" + peerId + "' established.");
+
+            while (true) {
+                apply(FederationEvent.readFrom(in), peerId);
+            }
+
+        } catch (EOFException | SocketException e) {
+            // The link was closed.
+        } catch (IOException e) {
+            if(peerId == null) {
+                System.err.println("Federation link from " + socket.getRemoteSocketAddress() + " rejected: " + e.getMessage());
+            } else {
+                System.err.println("Federation link from '" + peerId + "' broke: " + e.getMessage());
+            }
+
+        } finally {
+            incoming.remove(socket);
+            closeQuietly(socket);
+
+            // Unless the link was replaced, whose snapshot has replaced this link's clients.
+            if(peerId != null && peerSockets.remove(peerId, socket)) {
+                String lost = peerId;
+                directory.values().removeIf(lost::equals);
+                System.out.println("Federation link from '" + peerId + "' closed.");
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Applies the given event received over the link of the given peer.
+     * @throws IOException if the event claims to originate from another node
+     */
+    private void apply(FederationEvent event, String peerId) throws IOException {
+        String origin = event.getOrigin();
+        if(!origin.equals(peerId)) {
+            throw new IOException("Event of the node '" + origin + "' received over the link of '" + peerId + "'.");
+        }
+
+        if(event.getType() == FederationEvent.PRESENCE_SNAPSHOT) {
+            directory.values().removeIf(origin::equals);
+            for(String username : event.getFields()) {
+                directory.put(username, origin);
+            }
+            return;
+        }
+
+        Long applied = appliedSequences.get(origin);
+        if(applied != null && event.getSequence() <= applied) return;
+        appliedSequences.put(origin, event.getSequence());
+
+        switch (event.getType()) {
+            case FederationEvent.GLOBAL_CLIENT_MESSAGE:
+                listener.remoteGlobalClientMessage(event.getField(0), event.getField(1));
+                break;
+
+            case FederationEvent.GLOBAL_SERVER_MESSAGES:
+                listener.remoteGlobalServerMessages(event.getFields());
+                break;
+
+            case FederationEvent.PRIVATE_CLIENT_MESSAGE:
+                listener.remotePrivateClientMessage(event.getField(0), event.getField(1), event.getField(2));
+                break;
+
+            case FederationEvent.CLIENT_KICKED:
+                listener.remoteClientKicked(event.getField(0), event.getField(1));
+                break;
+
+            case FederationEvent.CLIENT_BANNED:
+                listener.remoteClientBanned(event.getField(0), event.getField(1));
+                break;
+
+            case FederationEvent.CLIENT_DELETED:
+                listener.remoteClientDeleted(event.getField(0), event.getField(1));
+                break;
+
+            case FederationEvent.CLIENT_JOINED:
+                directory.put(event.getField(0), origin);
+                break;
+
+            case FederationEvent.CLIENT_LEFT:
+                directory.remove(event.getField(0), origin);
+                break;
+
+            default:
+                System.err.println("Unknown federation event type " + event.getType() + " from '" + origin + "'.");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package chat.server.federation;
+
+import java.util.Objects;
+
+/**
+ * The id and the federation address of a peer node, written as
+ * {@code nodeId@host:port}.
+ */
+public class PeerAddress {
+
+    /** The id of the peer node. */
+    private final String nodeId;
+
+    /** The host of the peer node. */
+    private final String host;
+
+    /** The federation port of the peer node. */
+    private final int port;
+
+    public PeerAddress(String nodeId, String host, int port) {
+        this.nodeId = Objects.requireNonNull(nodeId, "Node id cannot be null.");
+        this.host = Objects.requireNonNull(host, "Host cannot be null.");
+        this.port = port;
+    }
+
+    /**
+     * Parses the peer address written as {@code nodeId@host:port}.
+     * @param address the address to be parsed
+     * @return the parsed address
+     * @throws IllegalArgumentException if the address is not valid
+     */
+    public static PeerAddress parse(String address) {
+        int at = address.indexOf('@');
+        int colon = address.lastIndexOf(':');
+
+        if(at <= 0 || colon <= at + 1 || colon == address.length() - 1) {
+            throw new IllegalArgumentException("Peer address must be written as nodeId@host:port, was '" + address + "'.");
+        }
+
+        try {
+            int port = Integer.parseInt(address.substring(colon + 1));
+            return new PeerAddress(address.substring(0, at), address.substring(at + 1, colon), port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in peer address '" + address + "'.");
+        }
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return nodeId + "@" + host + ":" + port;
+    }
+}
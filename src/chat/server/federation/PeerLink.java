@@ -0,0 +1,176 @@
+package chat.server.federation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The outgoing link to a single peer node. The events published by the local
+ * node are queued and written by the link's own thread, which drains all of
+ * the queued events at once and writes them with a single flush, so a burst
+ * of events costs a single network write. If the peer is unreachable, the link
+ * keeps reconnecting; on every (re)connect, the link is authenticated and the
+ * presence snapshot of the local node is sent first.
+ */
+class PeerLink {
+
+    /** The maximum number of events queued for the peer; newer events are dropped once it is reached. */
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    /** The maximum number of events written with a single flush. */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /** The time between the connection attempts, in milliseconds. */
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    /** The timeout of a single connection attempt, in milliseconds. */
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    /** The address of the peer. */
+    private final PeerAddress peer;
+
+    /** The id of the local node. */
+    private final String nodeId;
+
+    /** Authenticates the link on every connect. */
+    private final FederationHandshake handshake;
+
+    /** Creates the presence snapshot of the local node, sent first on every connect. */
+    private final Supplier<FederationEvent> snapshot;
+
+    /** The events waiting to be written to the peer. */
+    private final BlockingQueue<FederationEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** The thread that connects to the peer and writes the events. */
+    private final Thread writer;
+
+    /** The current connection to the peer; {@code null} while disconnected. */
+    private volatile Socket socket;
+
+    /** {@code true} once the link was closed. */
+    private volatile boolean closed;
+
+    /** {@code true} once the handshake has failed, until it succeeds; the failures are reported only once. */
+    private boolean rejected;
+
+    PeerLink(PeerAddress peer, String nodeId, FederationHandshake handshake, Supplier<FederationEvent> snapshot) {
+        this.peer = peer;
+        this.nodeId = nodeId;
+        this.handshake = handshake;
+        this.snapshot = snapshot;
+
+        writer = new Thread(this::writeLoop, "PeerLink " + peer.getNodeId());
+        writer.setDaemon(true);
+    }
+
+    void start() {
+        writer.start();
+    }
+
+    /**
+     * Queues the given event for the peer.
+     * @param event the event to be sent
+     * @return {@code true} if the event was queued, {@code false} if the queue is full
+     */
+    boolean send(FederationEvent event) {
+        return queue.offer(event);
+    }
+
+    void close() {
+        closed = true;
+        closeSocket();
+    }
+
+    //===========================================================
+    //                        Writing
+    //===========================================================
+
+    private void writeLoop() {
+        List<FederationEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(peer.getHost(), peer.getPort()), CONNECT_TIMEOUT_MILLIS);
+                socket = s;
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                s.setSoTimeout(FederationHandshake.TIMEOUT_MILLIS);
+                authenticate(in, out);
+                s.setSoTimeout(0);
+
+                snapshot.get().writeTo(out);
+                out.flush();
+
+                System.out.println("Federation link to '" + peer.getNodeId() + "' established.");
+
+                while (!closed) {
+                    FederationEvent first = queue.poll(RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    if(first == null) continue;
+
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                    for(FederationEvent event : batch) {
+                        event.writeTo(out);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+
+            } catch (IOException e) {
+                // The events of the failed batch are lost along with the connection.
+                batch.clear();
+
+            } catch (InterruptedException e) {
+                return;
+
+            } finally {
+                socket = null;
+            }
+
+            if(!closed) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+        try {
+            handshake.connect(in, out, nodeId, peer.getNodeId());
+            rejected = false;
+        } catch (IOException e) {
+            if(!rejected) System.err.println("Federation link to '" + peer.getNodeId() + "' rejected: " + e.getMessage());
+            rejected = true;
+            throw e;
+        }
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if(s == null) return;
+
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    PeerAddress getPeer() {
+        return peer;
+    }
+}
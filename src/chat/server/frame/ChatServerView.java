@@ -1,16 +1,27 @@
 package chat.server.frame;
 
 import chat.Common;
+import chat.JHintTextField;
+import chat.ScrollbackList;
+import chat.ScrollbackModel;
 import chat.server.*;
 import chat.server.listener.ServerClientListener;
 import chat.server.listener.ServerEventListener;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import java.awt.*;
 
 /**
  * Models the window that allows the administrator to start and close
  * server connection, while also receiving useful server state information.
+ * <br>
+ * The log keeps only the newest lines, and is rendered at most once per frame
+ * however fast the server reports, so a busy server never waits on its window.
+ * The log can be paused and filtered.
  */
 public class ChatServerView extends JFrame implements ServerEventListener, ServerClientListener {
 
@@ -20,8 +31,14 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
     /** Label displaying the current number of online clients. */
     private JLabel clientStateLabel;
 
-    /** Log text-pane used for displaying server state information. */
-    private JTextPane logTP;
+    /** The lines of the log, used for displaying server state information. */
+    private ScrollbackModel logLines;
+
+    /** Text-field used for filtering the log. */
+    private JHintTextField filterTF;
+
+    /** Button used for pausing and resuming the log. */
+    private JToggleButton pauseButton;
 
     /** Button used for starting the server. */
     private JButton startServerButton;
@@ -50,6 +67,9 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
     /** The color of the disabled button. */
     private static final Color DISABLED_BUTTON_COLOR = new Color(91, 91, 91);
 
+    /** The maximum number of log lines kept; the older ones are dropped. Set by the {@code chat.server.scrollback} property. */
+    private static final int SCROLLBACK_LINES = Integer.getInteger("chat.server.scrollback", 10000);
+
     //===========================================================
     //                      Constructor
     //===========================================================
@@ -97,15 +117,30 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
                 return;
             }
 
-            if(maxClients < 1 || maxClients > 255) {
-                JOptionPane.showMessageDialog(this, "Client limit must be in range from 1 to 255.");
+            if(maxClients < 1) {
+                JOptionPane.showMessageDialog(this, "Client limit must be positive.");
                 return;
             }
 
             server = new ChatServer(maxClients);
             server.addServerListener(this);
             server.addServerClientListener(this);
-            clientList.setModel(new ServerWorkerListModel(server));
+            ServerWorkerListModel clientModel = new ServerWorkerListModel(server);
+            clientModel.addListDataListener(new ListDataListener() {
+                @Override
+                public void intervalAdded(ListDataEvent e) {
+                    updateClientStateLabel();
+                }
+
+                @Override
+                public void intervalRemoved(ListDataEvent e) {
+                    updateClientStateLabel();
+                }
+
+                @Override
+                public void contentsChanged(ListDataEvent e) { }
+            });
+            clientList.setModel(clientModel);
 
             Thread serverThread = new Thread(() -> server.start(port));
             serverThread.setName("Server");
@@ -125,10 +160,13 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
     public void serverStarted() {
         String msg = "Starting server on address '" + server.getAddress() + "' and port " + server.getPort() + ".\r\n" +
                      "Client limit set to " + server.getMaxClients() + ".\r\n" +
-                     "Waiting for client connections...\r\n\r\n";
+                     "Waiting for client connections...\r\n";
 
-        Common.textPaneAppend(logTP, msg, Common.PLAIN_TEXT_COLOR);
+        logLines.append(msg, Common.PLAIN_TEXT_COLOR);
+        SwingUtilities.invokeLater(this::showServerStarted);
+    }
 
+    private void showServerStarted() {
         startServerButton.setEnabled(false);
         startServerButton.setBackground(DISABLED_BUTTON_COLOR);
         closeServerButton.setEnabled(true);
@@ -143,7 +181,11 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
 
     @Override
     public void serverClosed() {
-        Common.textPaneAppend(logTP, "Server closed.\r\n\r\n", Color.black);
+        logLines.append("Server closed.", Color.black);
+        SwingUtilities.invokeLater(this::showServerClosed);
+    }
+
+    private void showServerClosed() {
         startServerButton.setEnabled(true);
         startServerButton.setBackground(START_BUTTON_COLOR);
         closeServerButton.setEnabled(false);
@@ -158,22 +200,22 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
 
     @Override
     public void clientConnected(String username) {
-        Common.textPaneAppend(logTP, username + " has just connected!\r\n", Common.CLIENT_CONNECTED_COLOR);
-        updateClientStateLabel();
+        logLines.append(username + " has just connected!", Common.CLIENT_CONNECTED_COLOR);
     }
 
     @Override
     public void clientDisconnected(String username) {
-        Common.textPaneAppend(logTP, username + " has disconnected from the server.\r\n", Common.CLIENT_DISCONNECTED_COLOR);
-        updateClientStateLabel();
+        logLines.append(username + " has disconnected from the server.", Common.CLIENT_DISCONNECTED_COLOR);
     }
 
     @Override
     public void serverMessage(String message) {
-        Common.textPaneAppend(logTP, message + "\r\n", Common.PLAIN_TEXT_COLOR);
+        logLines.append(message, Common.PLAIN_TEXT_COLOR);
     }
 
     private void updateClientStateLabel() {
+        // The list may still be catching up on the disconnects once the server has closed.
+        if(!closeServerButton.isEnabled()) return;
         clientStateLabel.setText("Clients online (" + server.getClientCount() + "/" + server.getMaxClients() + ")");
     }
 
@@ -191,16 +233,10 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
     }
 
     private JSplitPane createCenterPanel() {
-        logTP = new JTextPane();
-        logTP.setEditable(false);
-        logTP.setMargin(new Insets(10, 10, 10, 10));
-
         clientList = new JList<>();
         DefaultListCellRenderer renderer = (DefaultListCellRenderer) clientList.getCellRenderer();
         renderer.setHorizontalAlignment(SwingConstants.CENTER);
 
-        JScrollPane logSP = new JScrollPane(logTP);
-        logSP.setBorder(BorderFactory.createEmptyBorder());
         JScrollPane clientSP = new JScrollPane(clientList);
         clientSP.setBorder(BorderFactory.createEmptyBorder());
 
@@ -213,7 +249,7 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
         clientPanel.setBorder(BorderFactory.createEmptyBorder());
         clientPanel.setPreferredSize(new Dimension(0, 0));
 
-        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, logSP, clientPanel);
+        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, createLogPanel(), clientPanel);
         splitPane.setResizeWeight(0.75);
         splitPane.setDividerSize(1);
         splitPane.setEnabled(false);
@@ -221,6 +257,56 @@ public class ChatServerView extends JFrame implements ServerEventListener, Serve
         return splitPane;
     }
 
+    private JPanel createLogPanel() {
+        logLines = new ScrollbackModel(SCROLLBACK_LINES, ScrollbackModel.DEFAULT_FRAME_MILLIS);
+        ScrollbackList logList = new ScrollbackList(logLines);
+        logList.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        JScrollPane logSP = new JScrollPane(logList, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
+                ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        logSP.setBorder(BorderFactory.createEmptyBorder());
+
+        filterTF = new JHintTextField("Filter...");
+        filterTF.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        filterTF.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filterEdited();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filterEdited();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) { }
+        });
+
+        pauseButton = new JToggleButton("Pause");
+        pauseButton.setBorder(BorderFactory.createEmptyBorder(4, 10, 4, 10));
+        pauseButton.addActionListener(l -> {
+            logLines.setPaused(pauseButton.isSelected());
+            pauseButton.setText(pauseButton.isSelected() ? "Resume" : "Pause");
+        });
+
+        JPanel toolPanel = new JPanel(new BorderLayout());
+        toolPanel.add(filterTF, BorderLayout.CENTER);
+        toolPanel.add(pauseButton, BorderLayout.EAST);
+
+        JPanel logPanel = new JPanel(new BorderLayout());
+        logPanel.add(toolPanel, BorderLayout.NORTH);
+        logPanel.add(logSP, BorderLayout.CENTER);
+        return logPanel;
+    }
+
+    /**
+     * Filters the log once the field has settled, as the hint is set and cleared through the document too.
+     */
+    private void filterEdited() {
+        SwingUtilities.invokeLater(() -> logLines.setFilter(filterTF.getText()));
+    }
+
     private JPanel createControlPanel() {
         JPanel controlPanel = new JPanel(new GridLayout(1, 0));
         controlPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
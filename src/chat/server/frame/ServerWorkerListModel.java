@@ -1,41 +1,127 @@
 package chat.server.frame;
 
+import chat.ScrollbackModel;
 import chat.server.ChatServer;
 import chat.server.ServerWorker;
 import chat.server.listener.ServerClientListener;
 
 import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A list model that holds all of the currently connected server clients.
+ * <br>
+ * The model keeps its own copy of the worker list, owned by the event dispatch
+ * thread. The connects and disconnects are queued by the server's threads and
+ * applied to the copy at most once per frame, each as a single row change, so
+ * a burst of connections costs a single pass on the event dispatch thread and
+ * the list view repaints only the affected rows.
  */
 public class ServerWorkerListModel extends AbstractListModel<ServerWorker> implements ServerClientListener {
 
     /** The server model. */
     private ChatServer server;
 
+    /** The workers shown by the list; accessed only on the event dispatch thread. */
+    private final List<ServerWorker> workers = new ArrayList<>();
+
+    /** The same workers as the {@link #workers}, to look them up in constant time. */
+    private final Set<ServerWorker> shown = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** The connects and disconnects not yet applied to the {@link #workers}. */
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+
+    /** {@code true} while the changes are scheduled to be applied. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** Applies the queued changes at the end of the frame. */
+    private final Timer frameTimer;
+
     ServerWorkerListModel(ChatServer server) {
         this.server = server;
+        // Listening first, so no client is missed; those that connect in between are
+        // both in the copy and queued, and are shown only once.
         this.server.addServerClientListener(this);
+        this.workers.addAll(server.getWorkers());
+        this.shown.addAll(workers);
+
+        frameTimer = new Timer(ScrollbackModel.DEFAULT_FRAME_MILLIS, e -> applyChanges());
+        frameTimer.setRepeats(false);
     }
 
     @Override
     public void clientConnected(String username) {
-        this.fireIntervalAdded(server, 0, getSize());
+        ServerWorker worker = server.getOnlineClient(username);
+        if(worker != null) queue(new Change(username, worker));
     }
 
     @Override
     public void clientDisconnected(String username) {
-        this.fireIntervalRemoved(server, 0, getSize());
+        queue(new Change(username, null));
+    }
+
+    private void queue(Change change) {
+        changes.add(change);
+
+        if(scheduled.compareAndSet(false, true)) {
+            // Started on the event dispatch thread, so never while the timer is still firing.
+            SwingUtilities.invokeLater(frameTimer::start);
+        }
+    }
+
+    private void applyChanges() {
+        scheduled.set(false);
+
+        Change change;
+        while ((change = changes.poll()) != null) {
+            if(change.worker != null) {
+                if(!shown.add(change.worker)) continue;
+
+                int index = workers.size();
+                workers.add(change.worker);
+                fireIntervalAdded(this, index, index);
+                continue;
+            }
+
+            for(int index = 0; index < workers.size(); index++) {
+                if(workers.get(index).getClientUsername().equals(change.username)) {
+                    shown.remove(workers.remove(index));
+                    fireIntervalRemoved(this, index, index);
+                    break;
+                }
+            }
+        }
     }
 
     @Override
     public int getSize() {
-        return server.getWorkers().size();
+        return workers.size();
     }
 
     @Override
     public ServerWorker getElementAt(int index) {
-        return server.getWorkers().get(index);
+        return workers.get(index);
+    }
+
+    /**
+     * A connect or a disconnect not yet applied to the list.
+     */
+    private static class Change {
+
+        private final String username;
+
+        /** The worker of the connected client; {@code null} if the client has disconnected. */
+        private final ServerWorker worker;
+
+        private Change(String username, ServerWorker worker) {
+            this.username = username;
+            this.worker = worker;
+        }
     }
 }
@@ -0,0 +1,670 @@
+package chat.server.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, segmented, on-disk log of chat messages.
+ * <br>
+ * Appending only places the message in a bounded queue, so the callers
+ * (the threads that fan the message out to the clients) never wait for
+ * the disk. A single writer thread drains the queue in batches, encodes
+ * the whole batch into one buffer and writes it with a single call.
+ * <br>
+ * The log is split into segment files named after the sequence number of
+ * their first record. The active segment is rolled once it grows over the
+ * size limit or gets older than the age limit, after which the segments
+ * outside the retention limits are deleted.
+ * <br>
+ * Every record is stored as:
+ * <pre>
+ * int    payload length
+ * long   sequence
+ * long   timestamp
+ * byte   type
+ * int    sender length, sender bytes (UTF-8)
+ * int    target length, target bytes (UTF-8)
+ * int    body length,   body bytes   (UTF-8)
+ * int    CRC32 of the payload
+ * </pre>
+ * Records are read back through memory-mapped segments; a torn record at
+ * the end of the last segment is truncated on opening. A batch that fails to
+ * be written is dropped and cut off the segment right away, so the records
+ * written after it never follow a torn one.
+ */
+public class MessageLog implements AutoCloseable {
+
+    /** The default maximum size of a single segment, in bytes. */
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /** The default maximum age of the active segment, in milliseconds. */
+    public static final long DEFAULT_MAX_SEGMENT_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /** The default maximum total size of all the segments, in bytes. */
+    public static final long DEFAULT_RETENTION_BYTES = 4L * 1024 * 1024 * 1024;
+
+    /** The default maximum age of a closed segment, in milliseconds. */
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    /** The extension of the segment files. */
+    private static final String SEGMENT_EXTENSION = ".log";
+
+    /** The name of the file holding the identifier of the log. */
+    private static final String ID_FILE = "log.id";
+
+    /** The capacity of the append queue. */
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /** The maximum number of records written in a single batch. */
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    /** The number of records between two entries of a segment's sparse index. */
+    private static final int SPARSE_INDEX_INTERVAL = 256;
+
+    /** The size of the fixed part of the payload: sequence, timestamp, type and three lengths. */
+    private static final int FIXED_PAYLOAD_SIZE = Long.BYTES * 2 + 1 + Integer.BYTES * 3;
+
+    /** The directory containing the segment files. */
+    private final Path directory;
+
+    /** The identifier of the log, generated once it is first created. */
+    private final String id;
+
+    /** The maximum size of a single segment, in bytes. */
+    private final long maxSegmentBytes;
+
+    /** The maximum age of the active segment, in milliseconds. */
+    private final long maxSegmentAgeMillis;
+
+    /** The maximum total size of all the segments, in bytes. */
+    private final long retentionBytes;
+
+    /** The maximum age of a closed segment, in milliseconds. */
+    private final long retentionMillis;
+
+    /** Maps the base sequence number of every segment to its sparse index. */
+    private final ConcurrentSkipListMap<Long, SparseIndex> segmentIndexes = new ConcurrentSkipListMap<>();
+
+    /** Listeners notified by the writer thread once the records have been written. */
+    private final List<Consumer<MessageRecord>> writeListeners = new CopyOnWriteArrayList<>();
+
+    /** The queue of records waiting to be written. */
+    private final BlockingQueue<MessageRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** The sequence number that will be given to the next appended record. */
+    private long nextSequence;
+
+    /** The sequence number of the next record to be written; used only by the writer thread. */
+    private long writtenSequence;
+
+    /** The channel of the active segment; used only by the writer thread. */
+    private FileChannel activeChannel;
+
+    /** The time the active segment was created. */
+    private long activeCreatedMillis;
+
+    /** The buffer the batches are encoded into; used only by the writer thread. */
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+    /** The checksum calculator; used only by the writer thread. */
+    private final CRC32 writeCrc = new CRC32();
+
+    /** The thread that writes the queued records to the disk. */
+    private final Thread writer;
+
+    /** Flag indicating whether the log is still accepting records. */
+    private volatile boolean open = true;
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Opens the log in the given directory using the default limits.
+     * @param directory the directory containing the segment files
+     * @throws IOException if the log could not be opened
+     */
+    public MessageLog(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_SEGMENT_AGE_MILLIS,
+             DEFAULT_RETENTION_BYTES, DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * Opens the log in the given directory, creating it if needed.
+     * @param directory the directory containing the segment files
+     * @param maxSegmentBytes the size after which the active segment is rolled
+     * @param maxSegmentAgeMillis the age after which the active segment is rolled
+     * @param retentionBytes the maximum total size of all the segments
+     * @param retentionMillis the maximum age of a closed segment
+     * @throws IOException if the log could not be opened
+     */
+    public MessageLog(Path directory, long maxSegmentBytes, long maxSegmentAgeMillis,
+                      long retentionBytes, long retentionMillis) throws IOException {
+        this.directory = Objects.requireNonNull(directory, "Directory cannot be null.");
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentAgeMillis = maxSegmentAgeMillis;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(directory);
+        id = readId();
+        recover();
+
+        writer = new Thread(this::writeLoop, "MessageLog writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Appends a new message to the log. The message is written asynchronously;
+     * this method blocks only if the writer has fallen behind by more than
+     * the capacity of the append queue.
+     * @param type the type of the message
+     * @param sender the username of the sender
+     * @param target the username of the receiver, or an empty string for global messages
+     * @param body the message text
+     * @return the appended record, or {@code null} if the log is closed
+     */
+    public MessageRecord append(byte type, String sender, String target, String body) {
+        if(!open) return null;
+
+        synchronized (queue) {
+            MessageRecord record = new MessageRecord(nextSequence, System.currentTimeMillis(), type, sender, target, body);
+
+            try {
+                queue.put(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+            nextSequence++;
+            return record;
+        }
+    }
+
+    /**
+     * Reads all of the written records, starting from the record with the
+     * given sequence number, and passes them to the given consumer in order.
+     * Records that are still waiting in the append queue are not included.
+     * @param fromSequence the sequence number of the first record to be read
+     * @param consumer the consumer of the records
+     * @throws IOException if a segment could not be read
+     */
+    public void replay(long fromSequence, Consumer<MessageRecord> consumer) throws IOException {
+        List<Long> bases = listSegments();
+
+        for(int i = 0; i < bases.size(); i++) {
+            // Skip the segment if the next one starts before the requested record.
+            if(i + 1 < bases.size() && bases.get(i + 1) <= fromSequence) continue;
+
+            Path segment = segmentPath(bases.get(i));
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                MessageRecord record;
+                while ((record = decode(buffer)) != null) {
+                    if(record.getSequence() >= fromSequence) {
+                        consumer.accept(record);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // The segment was deleted by the retention in the meantime.
+            }
+        }
+    }
+
+    /**
+     * Reads the record with the given sequence number. The record is located
+     * through the sparse index of its segment, so at most a few hundred records
+     * are decoded, no matter how big the segment is.
+     * @param sequence the sequence number of the record
+     * @return the record, or {@code null} if it was not written or was deleted by the retention
+     * @throws IOException if the segment could not be read
+     */
+    public MessageRecord read(long sequence) throws IOException {
+        Map.Entry<Long, SparseIndex> entry = segmentIndexes.floorEntry(sequence);
+        if(entry == null) return null;
+
+        try (FileChannel channel = FileChannel.open(segmentPath(entry.getKey()), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            SparseIndex index = entry.getValue();
+            index.extend(buffer);
+            buffer.position(index.floorOffset(sequence));
+
+            MessageRecord record;
+            while ((record = decode(buffer)) != null) {
+                if(record.getSequence() == sequence) return record;
+                if(record.getSequence() > sequence) return null;
+            }
+            return null;
+
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the listener that is notified, on the writer thread, of every record
+     * once it has been written. The listener should return quickly, as it
+     * delays the writing of the following records.
+     * @param listener the listener to be added
+     */
+    public void addWriteListener(Consumer<MessageRecord> listener) {
+        writeListeners.add(listener);
+    }
+
+    /**
+     * @return the sequence number that will be given to the next appended record
+     */
+    public long getNextSequence() {
+        synchronized (queue) {
+            return nextSequence;
+        }
+    }
+
+    /**
+     * @return the identifier of the log; a log created anew, such as the one of
+     *         another server, has another one, and so do its sequence numbers
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Stops accepting new records, writes all of the queued records and
+     * closes the active segment.
+     */
+    @Override
+    public void close() {
+        open = false;
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //===========================================================
+    //                     Writer thread
+    //===========================================================
+
+    private void writeLoop() {
+        List<MessageRecord> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while (open || !queue.isEmpty()) {
+            try {
+                MessageRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                if(!batch.isEmpty()) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                rollIfNeeded();
+            } catch (IOException e) {
+                System.err.println("Error writing the message log: " + e.getMessage());
+                batch.clear();
+            }
+        }
+
+        try {
+            activeChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeBatch(List<MessageRecord> batch) throws IOException {
+        // The last write failed, and so did starting a new segment after it.
+        if(!activeChannel.isOpen()) openSegment(batch.get(0).getSequence());
+
+        writeBuffer.clear();
+
+        for(MessageRecord record : batch) {
+            encode(record);
+        }
+
+        writeBuffer.flip();
+        long validLength = activeChannel.position();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                activeChannel.write(writeBuffer);
+            }
+        } catch (IOException e) {
+            discardFailedWrite(validLength, batch);
+            throw e;
+        }
+
+        writtenSequence = batch.get(batch.size() - 1).getSequence() + 1;
+
+        for(Consumer<MessageRecord> listener : writeListeners) {
+            batch.forEach(listener);
+        }
+    }
+
+    /**
+     * Removes whatever part of the failed batch reached the active segment, so the
+     * records written later never follow a torn one: the segment is truncated back
+     * to the end of its last whole record, or, if that fails too, a new segment is
+     * started after the failed batch.
+     * @param validLength the length of the active segment before the batch was written
+     * @param batch the batch that failed to be written, which is dropped
+     */
+    private void discardFailedWrite(long validLength, List<MessageRecord> batch) {
+        try {
+            activeChannel.truncate(validLength);
+            activeChannel.position(validLength);
+            // The index may have visited the records of the batch that were written whole.
+            segmentIndexes.put(segmentIndexes.lastKey(), new SparseIndex());
+            return;
+        } catch (IOException e) {
+            System.err.println("Could not truncate the message log segment, starting a new one: " + e.getMessage());
+        }
+
+        try {
+            activeChannel.close();
+        } catch (IOException e) {
+            // Abandoned anyway.
+        }
+
+        try {
+            openSegment(batch.get(batch.size() - 1).getSequence() + 1);
+        } catch (IOException e) {
+            // Tried again with the next batch; the channel stays closed until then.
+            System.err.println("Could not start a new message log segment: " + e.getMessage());
+        }
+    }
+
+    private void encode(MessageRecord record) {
+        byte[] sender = record.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] target = record.getTarget().getBytes(StandardCharsets.UTF_8);
+        byte[] body = record.getBody().getBytes(StandardCharsets.UTF_8);
+
+        int payloadLength = FIXED_PAYLOAD_SIZE + sender.length + target.length + body.length;
+        ensureCapacity(Integer.BYTES * 2 + payloadLength);
+
+        writeBuffer.putInt(payloadLength);
+        int payloadStart = writeBuffer.position();
+
+        writeBuffer.putLong(record.getSequence());
+        writeBuffer.putLong(record.getTimestamp());
+        writeBuffer.put(record.getType());
+        writeBuffer.putInt(sender.length).put(sender);
+        writeBuffer.putInt(target.length).put(target);
+        writeBuffer.putInt(body.length).put(body);
+
+        writeCrc.reset();
+        writeCrc.update(writeBuffer.duplicate().position(payloadStart).limit(writeBuffer.position()));
+        writeBuffer.putInt((int) writeCrc.getValue());
+    }
+
+    private void ensureCapacity(int needed) {
+        if(writeBuffer.remaining() >= needed) return;
+
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + needed));
+        writeBuffer.flip();
+        bigger.put(writeBuffer);
+        writeBuffer = bigger;
+    }
+
+    //===========================================================
+    //                  Segments and retention
+    //===========================================================
+
+    /**
+     * Reads the identifier of the log, generating it if the log has none yet.
+     */
+    private String readId() throws IOException {
+        Path path = directory.resolve(ID_FILE);
+        if(Files.exists(path)) {
+            String id = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+            if(!id.isEmpty()) return id;
+        }
+
+        String id = UUID.randomUUID().toString();
+        Files.write(path, id.getBytes(StandardCharsets.UTF_8));
+        return id;
+    }
+
+    /**
+     * Opens the last segment for appending, truncating the torn record at its
+     * end (if any), and restores the next sequence number.
+     */
+    private void recover() throws IOException {
+        List<Long> bases = listSegments();
+        if(bases.isEmpty()) {
+            openSegment(0);
+            return;
+        }
+
+        bases.forEach(base -> segmentIndexes.put(base, new SparseIndex()));
+
+        long base = bases.get(bases.size() - 1);
+        Path segment = segmentPath(base);
+        long validLength = 0;
+        long lastSequence = base - 1;
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            MessageRecord record;
+            while ((record = decode(buffer)) != null) {
+                lastSequence = record.getSequence();
+                validLength = buffer.position();
+            }
+        }
+
+        activeChannel = FileChannel.open(segment, StandardOpenOption.WRITE);
+        activeChannel.truncate(validLength);
+        activeChannel.position(validLength);
+        activeCreatedMillis = Files.getLastModifiedTime(segment).toMillis();
+        nextSequence = lastSequence + 1;
+        writtenSequence = nextSequence;
+    }
+
+    private void rollIfNeeded() throws IOException {
+        if(!activeChannel.isOpen()) return;
+
+        boolean tooBig = activeChannel.size() >= maxSegmentBytes;
+        boolean tooOld = activeChannel.size() > 0 && System.currentTimeMillis() - activeCreatedMillis >= maxSegmentAgeMillis;
+        if(!tooBig && !tooOld) return;
+
+        activeChannel.close();
+        openSegment(writtenSequence);
+        applyRetention();
+    }
+
+    private void openSegment(long base) throws IOException {
+        activeChannel = FileChannel.open(segmentPath(base), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentIndexes.put(base, new SparseIndex());
+        activeChannel.position(activeChannel.size());
+        activeCreatedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Deletes the oldest closed segments while the log exceeds the size limit,
+     * or while they are older than the age limit.
+     */
+    private void applyRetention() throws IOException {
+        List<Long> bases = listSegments();
+        long totalBytes = 0;
+        for(long base : bases) {
+            totalBytes += Files.size(segmentPath(base));
+        }
+
+        long now = System.currentTimeMillis();
+        // The last segment is the active one and is never deleted.
+        for(int i = 0; i < bases.size() - 1; i++) {
+            Path segment = segmentPath(bases.get(i));
+            boolean tooOld = now - Files.getLastModifiedTime(segment).toMillis() > retentionMillis;
+            if(totalBytes <= retentionBytes && !tooOld) break;
+
+            totalBytes -= Files.size(segment);
+            segmentIndexes.remove(bases.get(i));
+            Files.delete(segment);
+        }
+    }
+
+    /**
+     * @return the base sequence numbers of all the segments, in ascending order
+     */
+    private List<Long> listSegments() throws IOException {
+        List<Long> bases = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_EXTENSION)) {
+            for(Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring unknown file '" + name + "' in the message log.");
+                }
+            }
+        }
+
+        bases.sort(null);
+        return bases;
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_EXTENSION));
+    }
+
+    //===========================================================
+    //                        Decoding
+    //===========================================================
+
+    /**
+     * Decodes the next record from the given buffer, advancing its position
+     * past the record.
+     * @param buffer the buffer positioned at the start of the record
+     * @return the decoded record, or {@code null} if there is no complete, valid record left
+     */
+    private static MessageRecord decode(ByteBuffer buffer) {
+        if(buffer.remaining() < Integer.BYTES) return null;
+
+        int start = buffer.position();
+        int payloadLength = buffer.getInt(start);
+        if(payloadLength < FIXED_PAYLOAD_SIZE || buffer.remaining() < Integer.BYTES * 2 + payloadLength) return null;
+
+        int payloadStart = start + Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(payloadStart).limit(payloadStart + payloadLength));
+        if((int) crc.getValue() != buffer.getInt(payloadStart + payloadLength)) return null;
+
+        buffer.position(payloadStart);
+        long sequence = buffer.getLong();
+        long timestamp = buffer.getLong();
+        byte type = buffer.get();
+        String sender = readString(buffer);
+        String target = readString(buffer);
+        String body = readString(buffer);
+        buffer.position(payloadStart + payloadLength + Integer.BYTES);
+
+        return new MessageRecord(sequence, timestamp, type, sender, target, body);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //===========================================================
+    //             SparseIndex helper data structure
+    //===========================================================
+
+    /**
+     * Maps every {@value #SPARSE_INDEX_INTERVAL}-th record of a segment to its
+     * offset in the segment file. The index is built lazily, on the first read
+     * from the segment, and extended as the segment grows.
+     */
+    private static class SparseIndex {
+
+        /** The sequence numbers of the indexed records, in ascending order. */
+        private long[] sequences = new long[16];
+
+        /** The offsets of the indexed records. */
+        private int[] offsets = new int[16];
+
+        /** The number of entries in the index. */
+        private int size;
+
+        /** The number of records visited while building the index. */
+        private long recordCount;
+
+        /** The number of bytes of the segment that were visited while building the index. */
+        private int indexedLength;
+
+        /**
+         * Visits the records of the segment that were written since the last call.
+         * @param buffer the mapped segment
+         */
+        private synchronized void extend(ByteBuffer buffer) {
+            if(buffer.limit() <= indexedLength) return;
+
+            ByteBuffer view = buffer.duplicate().position(indexedLength);
+            int offset = view.position();
+            MessageRecord record;
+
+            while ((record = decode(view)) != null) {
+                if(recordCount++ % SPARSE_INDEX_INTERVAL == 0) {
+                    if(size == sequences.length) {
+                        sequences = Arrays.copyOf(sequences, size * 2);
+                        offsets = Arrays.copyOf(offsets, size * 2);
+                    }
+                    sequences[size] = record.getSequence();
+                    offsets[size] = offset;
+                    size++;
+                }
+                offset = view.position();
+            }
+
+            indexedLength = offset;
+        }
+
+        /**
+         * @param sequence the sequence number of the requested record
+         * @return the offset of the nearest indexed record at or before the requested one
+         */
+        private synchronized int floorOffset(long sequence) {
+            int index = Arrays.binarySearch(sequences, 0, size, sequence);
+            if(index < 0) index = -index - 2;
+            return index < 0 ? 0 : offsets[index];
+        }
+    }
+}
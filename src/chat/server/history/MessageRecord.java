@@ -0,0 +1,94 @@
+package chat.server.history;
+
+import java.util.Objects;
+
+/**
+ * A single chat message, as stored in the {@link MessageLog}.
+ */
+public class MessageRecord {
+
+    /** The type of the message sent to all of the clients. */
+    public static final byte GLOBAL = 0;
+
+    /** The type of the message sent from one client to another. */
+    public static final byte PRIVATE = 1;
+
+    /** The type of the message sent to the members of a chat room. */
+    public static final byte ROOM = 2;
+
+    /** The sequence number of the message; unique and increasing across the whole log. */
+    private final long sequence;
+
+    /** The time the message was sent, in milliseconds since the epoch. */
+    private final long timestamp;
+
+    /** The type of the message: {@link #GLOBAL}, {@link #PRIVATE} or {@link #ROOM}. */
+    private final byte type;
+
+    /** The username of the sender. */
+    private final String sender;
+
+    /** The username of the receiver, the room name for room messages, or an empty string for global messages. */
+    private final String target;
+
+    /** The message text. */
+    private final String body;
+
+    /**
+     * Constructs a new message record.
+     * @param sequence the sequence number of the message
+     * @param timestamp the time the message was sent
+     * @param type the type of the message
+     * @param sender the username of the sender
+     * @param target the username of the receiver, the room name for room messages,
+     *               or an empty string for global messages
+     * @param body the message text
+     */
+    public MessageRecord(long sequence, long timestamp, byte type, String sender, String target, String body) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.sender = Objects.requireNonNull(sender, "Sender cannot be null.");
+        this.target = Objects.requireNonNull(target, "Target cannot be null.");
+        this.body = Objects.requireNonNull(body, "Body cannot be null.");
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isPrivate() {
+        return type == PRIVATE;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        if(type == PRIVATE) return "[" + sender + " >>> " + target + "] " + body;
+        if(type == ROOM) return "[#" + target + "] [" + sender + "] " + body;
+        return "[" + sender + "] " + body;
+    }
+}
@@ -0,0 +1,228 @@
+package chat.server.history;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent storage for private messages sent to the clients that are
+ * registered, but not online. Every recipient has their own mailbox file,
+ * named after the recipient's username, so the directory itself serves as
+ * the index: delivering the mail of a client that has just logged in reads
+ * only that client's file, no matter how much mail is stored for others.
+ * <br>
+ * Each mailbox holds a bounded number of messages, and messages older than
+ * the expiry time are dropped, both when new mail is stored and when the
+ * mail is delivered. The texts are stored as length-prefixed UTF-8 bytes,
+ * as in the {@link MessageLog}, so a message of any length can be stored.
+ */
+public class OfflineMailbox {
+
+    /** The default maximum number of messages held by a single mailbox. */
+    public static final int DEFAULT_MAX_MESSAGES = 100;
+
+    /** The default time after which a stored message expires, in milliseconds. */
+    public static final long DEFAULT_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    /** The extension of the mailbox files. */
+    private static final String MAILBOX_EXTENSION = ".mbox";
+
+    /** The number of locks the mailboxes are spread over. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** The directory containing the mailbox files. */
+    private final Path directory;
+
+    /** The maximum number of messages held by a single mailbox. */
+    private final int maxMessages;
+
+    /** The time after which a stored message expires, in milliseconds. */
+    private final long expiryMillis;
+
+    /**
+     * The locks of the mailboxes, each shared by the recipients hashed to it, so that
+     * operations on most of the different mailboxes do not block each other, while
+     * the number of locks stays fixed, no matter how many recipients there are.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Opens the mailboxes in the given directory using the default limits.
+     * @param directory the directory containing the mailbox files
+     * @throws IOException if the directory could not be created
+     */
+    public OfflineMailbox(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_MESSAGES, DEFAULT_EXPIRY_MILLIS);
+    }
+
+    /**
+     * Opens the mailboxes in the given directory, creating it if needed.
+     * @param directory the directory containing the mailbox files
+     * @param maxMessages the maximum number of messages held by a single mailbox
+     * @param expiryMillis the time after which a stored message expires
+     * @throws IOException if the directory could not be created
+     */
+    public OfflineMailbox(Path directory, int maxMessages, long expiryMillis) throws IOException {
+        this.directory = Objects.requireNonNull(directory, "Directory cannot be null.");
+        this.maxMessages = maxMessages;
+        this.expiryMillis = expiryMillis;
+        for(int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        Files.createDirectories(directory);
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Stores the private message for the given recipient.
+     * @param sender the username of the sender
+     * @param receiver the username of the recipient
+     * @param message the message text
+     * @return {@code true} if the message was stored, {@code false} if the
+     *         recipient's mailbox is full or an IO error occurred
+     */
+    public boolean store(String sender, String receiver, String message) {
+        synchronized (lockOf(receiver)) {
+            try {
+                List<MessageRecord> mail = read(receiver);
+                if(mail.size() >= maxMessages) return false;
+
+                long now = System.currentTimeMillis();
+                mail.add(new MessageRecord(-1, now, MessageRecord.PRIVATE, sender, receiver, message));
+                write(receiver, mail);
+                return true;
+
+            } catch (IOException e) {
+                System.err.println("Could not store the offline message for '" + receiver + "'.");
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes all of the unexpired messages stored for the given recipient and returns them.
+     * @param receiver the username of the recipient
+     * @return the stored messages, from the oldest to the newest; empty if there are none
+     */
+    public List<MessageRecord> takeAll(String receiver) {
+        synchronized (lockOf(receiver)) {
+            try {
+                List<MessageRecord> mail = read(receiver);
+                Files.deleteIfExists(mailboxPath(receiver));
+                return mail;
+
+            } catch (IOException e) {
+                System.err.println("Could not read the offline messages for '" + receiver + "'.");
+                return new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * @return the maximum number of messages held by a single mailbox
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    //===========================================================
+    //                     Reading and writing
+    //===========================================================
+
+    /**
+     * Reads the unexpired messages from the recipient's mailbox file.
+     */
+    private List<MessageRecord> read(String receiver) throws IOException {
+        List<MessageRecord> mail = new ArrayList<>();
+        long oldestAllowed = System.currentTimeMillis() - expiryMillis;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(mailboxPath(receiver))))) {
+            int count = in.readInt();
+
+            for(int i = 0; i < count; i++) {
+                long timestamp = in.readLong();
+                String sender = readString(in);
+                String message = readString(in);
+
+                if(timestamp >= oldestAllowed) {
+                    mail.add(new MessageRecord(-1, timestamp, MessageRecord.PRIVATE, sender, receiver, message));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // The recipient has no mail.
+        }
+
+        return mail;
+    }
+
+    /**
+     * Writes the given messages to the recipient's mailbox file, replacing
+     * the old file atomically.
+     */
+    private void write(String receiver, List<MessageRecord> mail) throws IOException {
+        Path mailbox = mailboxPath(receiver);
+        Path temp = mailbox.resolveSibling(mailbox.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(mail.size());
+
+            for(MessageRecord record : mail) {
+                out.writeLong(record.getTimestamp());
+                writeString(out, record.getSender());
+                writeString(out, record.getBody());
+            }
+        }
+
+        Files.move(temp, mailbox, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) throw new IOException("Corrupted mailbox.");
+
+        byte[] bytes = in.readNBytes(length);
+        if(bytes.length < length) throw new EOFException();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Object lockOf(String receiver) {
+        return locks[Math.floorMod(receiver.hashCode(), locks.length)];
+    }
+
+    /**
+     * Returns the path of the recipient's mailbox file. Usernames that are not
+     * safe to be used as file names are hex-encoded.
+     */
+    private Path mailboxPath(String receiver) {
+        if(receiver.matches("\\w+")) {
+            return directory.resolve(receiver + MAILBOX_EXTENSION);
+        }
+
+        StringBuilder sb = new StringBuilder("%");
+        for(byte b : receiver.getBytes(StandardCharsets.UTF_8)) {
+            sb.append(String.format("%02x", b));
+        }
+        return directory.resolve(sb + MAILBOX_EXTENSION);
+    }
+}
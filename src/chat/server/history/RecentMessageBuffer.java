@@ -0,0 +1,115 @@
+package chat.server.history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size ring buffer that holds the most recent messages, so
+ * they can be replayed to the clients that have just joined.
+ * <br>
+ * The slot array is allocated once. Adding a message claims the next
+ * position with a single atomic increment and publishes an immutable
+ * slot at that position, so writers never block each other. Reading
+ * is wait-free: a snapshot visits every slot at most once and keeps
+ * only those whose position matches the expected one, skipping the
+ * slots that are being overwritten at the same time.
+ */
+public class RecentMessageBuffer {
+
+    /** The slots of the ring, indexed by the position modulo the capacity. */
+    private final AtomicReferenceArray<Slot> slots;
+
+    /** The position that the next added message will be placed at. */
+    private final AtomicLong writePosition = new AtomicLong();
+
+    /** The maximum number of messages held by the buffer. */
+    private final int capacity;
+
+    /**
+     * Constructs a new buffer.
+     * @param capacity the maximum number of messages held by the buffer
+     */
+    public RecentMessageBuffer(int capacity) {
+        if(capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds the given message, overwriting the oldest one if the buffer is full.
+     * @param record the message to be added
+     * @return the position the message was placed at
+     */
+    public long add(MessageRecord record) {
+        long position = writePosition.getAndIncrement();
+        slots.set((int) (position % capacity), new Slot(position, record));
+        return position;
+    }
+
+    /**
+     * @return the most recent messages, from the oldest to the newest
+     */
+    public List<MessageRecord> snapshot() {
+        List<MessageRecord> records = new ArrayList<>(capacity);
+        snapshot(records);
+        return records;
+    }
+
+    /**
+     * Adds the most recent messages to the given list, from the oldest to the newest.
+     * @param records the list the messages are added to
+     * @return the write position the snapshot ends at; {@code -1} if a message still
+     *         being added was skipped, in which case the snapshot is not complete
+     */
+    public long snapshot(List<MessageRecord> records) {
+        long end = writePosition.get();
+        long start = Math.max(0, end - capacity);
+        boolean complete = true;
+
+        for(long position = start; position < end; position++) {
+            Slot slot = slots.get((int) (position % capacity));
+            if(slot != null && slot.position == position) {
+                records.add(slot.record);
+            } else if(slot == null || slot.position < position) {
+                // Claimed, but not published yet; a newer slot only means the message has aged out.
+                complete = false;
+            }
+        }
+
+        return complete ? end : -1;
+    }
+
+    /**
+     * @return the number of messages that were ever added; changes every time a message is added
+     */
+    public long getWritePosition() {
+        return writePosition.get();
+    }
+
+    /**
+     * @return the maximum number of messages held by the buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * An immutable slot of the ring, tagged with the position it was written at.
+     */
+    private static class Slot {
+
+        /** The position the slot was written at. */
+        private final long position;
+
+        /** The message held by the slot. */
+        private final MessageRecord record;
+
+        private Slot(long position, MessageRecord record) {
+            this.position = position;
+            this.record = record;
+        }
+    }
+}
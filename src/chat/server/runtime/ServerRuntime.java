@@ -0,0 +1,162 @@
+package chat.server.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by several servers, the tenants, running in a single
+ * JVM: a pool of I/O threads that run the servers' accept loops and client
+ * workers, and a small pool of timer threads that run their periodic and
+ * delayed tasks. The threads are created on demand and reused across the
+ * tenants, so an idle tenant costs no threads of its own.
+ * <br>
+ * The I/O tasks block for their whole life, so every accept loop and every
+ * client connection holds an I/O thread of its own until it ends. The pool
+ * therefore never queues a task: its maximum size caps the number of
+ * connections the tenants hold together, and once it is reached, new tasks
+ * are rejected rather than left waiting for a thread. The runtime shares only
+ * threads; the buffers belong to the connections' streams, and the message
+ * log, search index, federation, replication and standby components of a
+ * server still run threads of their own.
+ * <br>
+ * The work is submitted through the {@link Tenant} handles, which account
+ * every task to the tenant that submitted it.
+ */
+public class ServerRuntime {
+
+    /** The default number of timer threads. */
+    public static final int DEFAULT_TIMER_THREADS = 2;
+
+    /** The default maximum number of I/O threads, which leaves the number of connections unbounded. */
+    public static final int DEFAULT_MAX_IO_THREADS = Integer.MAX_VALUE;
+
+    /** The default time an idle I/O thread is kept for reuse, in seconds. */
+    public static final long DEFAULT_IO_KEEP_ALIVE_SECONDS = 60;
+
+    /** The runtime of the servers that were not given one. */
+    private static final ServerRuntime DEFAULT = new ServerRuntime(DEFAULT_TIMER_THREADS);
+
+    /** Runs the accept loops and the client workers, which block on I/O. */
+    private final ThreadPoolExecutor ioPool;
+
+    /** Runs the periodic and delayed tasks, which must not block. */
+    private final ScheduledThreadPoolExecutor timers;
+
+    /** The registered tenants. */
+    private final Set<Tenant> tenants = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs a new runtime.
+     * @param timerThreads the number of timer threads
+     */
+    public ServerRuntime(int timerThreads) {
+        this(timerThreads, DEFAULT_IO_KEEP_ALIVE_SECONDS);
+    }
+
+    /**
+     * Constructs a new runtime.
+     * @param timerThreads the number of timer threads
+     * @param ioKeepAliveSeconds the time an idle I/O thread is kept for reuse, in seconds
+     */
+    public ServerRuntime(int timerThreads, long ioKeepAliveSeconds) {
+        this(timerThreads, DEFAULT_MAX_IO_THREADS, ioKeepAliveSeconds);
+    }
+
+    /**
+     * Constructs a new runtime.
+     * @param timerThreads the number of timer threads
+     * @param maxIoThreads the maximum number of I/O threads, and so of the tasks blocking on I/O at once
+     * @param ioKeepAliveSeconds the time an idle I/O thread is kept for reuse, in seconds
+     */
+    public ServerRuntime(int timerThreads, int maxIoThreads, long ioKeepAliveSeconds) {
+        // Handed over directly, as a queued task would wait for one of the connections to end.
+        ioPool = new ThreadPoolExecutor(0, maxIoThreads, ioKeepAliveSeconds, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), daemonThreads("chat-io-"));
+
+        timers = new ScheduledThreadPoolExecutor(timerThreads, daemonThreads("chat-timer-"));
+        timers.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return the runtime shared by all of the servers that were not given a runtime of their own
+     */
+    public static ServerRuntime getDefault() {
+        return DEFAULT;
+    }
+
+    //===========================================================
+    //                       Tenants
+    //===========================================================
+
+    /**
+     * Registers a new tenant.
+     * @param name the name of the tenant, as shown in its accounting
+     * @return the handle the tenant submits its work through
+     */
+    public Tenant register(String name) {
+        Tenant tenant = new Tenant(this, name);
+        tenants.add(tenant);
+        return tenant;
+    }
+
+    /**
+     * @return the registered tenants
+     */
+    public List<Tenant> getTenants() {
+        return new ArrayList<>(tenants);
+    }
+
+    /**
+     * @return the number of I/O threads, both busy and idle
+     */
+    public int getIoThreadCount() {
+        return ioPool.getPoolSize();
+    }
+
+    /**
+     * @return {@code true} if every I/O thread the runtime may have is busy, so a new I/O task would be rejected
+     */
+    public boolean isIoSaturated() {
+        return ioPool.getActiveCount() >= ioPool.getMaximumPoolSize();
+    }
+
+    /**
+     * Stops the threads. The tasks that are running are interrupted.
+     */
+    public void shutdown() {
+        timers.shutdownNow();
+        ioPool.shutdownNow();
+    }
+
+    void unregister(Tenant tenant) {
+        tenants.remove(tenant);
+    }
+
+    //===========================================================
+    //                       Executors
+    //===========================================================
+
+    void executeIo(Runnable task) {
+        ioPool.execute(task);
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return timers.schedule(task, delay, unit);
+    }
+
+    ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        return timers.scheduleWithFixedDelay(task, initialDelay, delay, unit);
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
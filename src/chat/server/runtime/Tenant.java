@@ -0,0 +1,231 @@
+package chat.server.runtime;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single server's handle on a shared {@link ServerRuntime}. The work the
+ * server submits through it runs on the runtime's threads and is accounted
+ * to the tenant, together with the connections and the traffic the server
+ * reports, so that the tenants sharing a runtime can be told apart.
+ * <br>
+ * The counters are updated without locking and may be read at any time;
+ * a read made while the server is busy is not a consistent snapshot.
+ */
+public class Tenant {
+
+    /** The runtime the tenant is registered with. */
+    private final ServerRuntime runtime;
+
+    /** The name of the tenant. */
+    private final String name;
+
+    /** The time the tenant was registered, in milliseconds since the epoch. */
+    private final long registeredMillis = System.currentTimeMillis();
+
+    //===========================================================
+    //                        Counters
+    //===========================================================
+
+    /** The number of connections currently open. */
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    /** The number of connections ever opened. */
+    private final LongAdder totalConnections = new LongAdder();
+
+    /** The number of messages received from the clients. */
+    private final LongAdder messagesReceived = new LongAdder();
+
+    /** The number of bytes received from the clients. */
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /** The number of bytes sent to the clients. */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /** The number of timer tasks run. */
+    private final LongAdder timerTasksRun = new LongAdder();
+
+    /** The time spent running the timer tasks, in nanoseconds. */
+    private final LongAdder timerBusyNanos = new LongAdder();
+
+    Tenant(ServerRuntime runtime, String name) {
+        this.runtime = runtime;
+        this.name = name;
+    }
+
+    //===========================================================
+    //                        Execution
+    //===========================================================
+
+    /**
+     * Runs the given task on one of the runtime's I/O threads. Meant for the
+     * tasks that block on I/O for their whole life, like the accept loop and
+     * the client workers.
+     * @param task the task
+     * @throws java.util.concurrent.RejectedExecutionException if every I/O thread
+     *         the runtime may have is busy, or the runtime has shut down
+     */
+    public void execute(Runnable task) {
+        runtime.executeIo(task);
+    }
+
+    /**
+     * @return {@code true} if every I/O thread of the runtime is busy, so no
+     *         further connection could be served
+     */
+    public boolean isIoSaturated() {
+        return runtime.isIoSaturated();
+    }
+
+    /**
+     * Runs the given task once on one of the runtime's timer threads.
+     * The task must not block, as the timer threads are shared by all of the tenants.
+     * @param task the task
+     * @param delay the delay before running the task
+     * @param unit the unit of the delay
+     * @return the future to cancel the task with
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return runtime.schedule(accounted(task), delay, unit);
+    }
+
+    /**
+     * Runs the given task repeatedly on the runtime's timer threads, until
+     * it is cancelled or throws. The task must not block, as the timer threads
+     * are shared by all of the tenants.
+     * @param task the task
+     * @param initialDelay the delay before the first run
+     * @param delay the delay between the end of a run and the start of the next
+     * @param unit the unit of the delays
+     * @return the future to cancel the task with
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        return runtime.scheduleWithFixedDelay(accounted(task), initialDelay, delay, unit);
+    }
+
+    private Runnable accounted(Runnable task) {
+        return () -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                timerBusyNanos.add(System.nanoTime() - start);
+                timerTasksRun.increment();
+            }
+        };
+    }
+
+    //===========================================================
+    //                       Accounting
+    //===========================================================
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void messageReceived() {
+        messagesReceived.increment();
+    }
+
+    /**
+     * @param in a client's input
+     * @return the input, counting the bytes read from it as received by the tenant
+     */
+    public InputStream countInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if(b != -1) bytesReceived.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if(n > 0) bytesReceived.add(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @param out a client's output
+     * @return the output, counting the bytes written to it as sent by the tenant
+     */
+    public OutputStream countOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesSent.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesSent.add(len);
+            }
+        };
+    }
+
+    //===========================================================
+    //                    Getters and close
+    //===========================================================
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRegisteredMillis() {
+        return registeredMillis;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getTimerTasksRun() {
+        return timerTasksRun.sum();
+    }
+
+    public long getTimerBusyNanos() {
+        return timerBusyNanos.sum();
+    }
+
+    /**
+     * Unregisters the tenant from the runtime. The tasks it has submitted
+     * must have been stopped or cancelled by the server already.
+     */
+    public void close() {
+        runtime.unregister(this);
+    }
+}
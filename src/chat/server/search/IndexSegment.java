@@ -0,0 +1,290 @@
+package chat.server.search;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable, on-disk part of the {@link SearchIndex}, covering a
+ * contiguous range of message sequence numbers.
+ * <br>
+ * The file holds the encoded posting lists, followed by the term dictionary
+ * (sorted terms, each with the offset, length and size of its posting list)
+ * and the footer. The dictionary is loaded into memory, while the posting
+ * lists are read from the memory-mapped file on demand.
+ */
+class IndexSegment {
+
+    /** The value that marks the start and the end of a valid segment file. */
+    private static final int MAGIC = 0x43484958;
+
+    /** The extension of the segment files. */
+    static final String EXTENSION = ".idx";
+
+    /** The path of the segment file. */
+    private final Path path;
+
+    /** The generation of the segment; newer segments have higher generations. */
+    private final int generation;
+
+    /** The lowest sequence number covered by the segment. */
+    private final long minSequence;
+
+    /** The highest sequence number covered by the segment. */
+    private final long maxSequence;
+
+    /** The sorted terms of the dictionary. */
+    private final String[] terms;
+
+    /** The offsets of the posting lists, indexed like the terms. */
+    private final int[] offsets;
+
+    /** The number of postings in the posting lists, indexed like the terms. */
+    private final int[] counts;
+
+    /** The mapped segment file. */
+    private final MappedByteBuffer buffer;
+
+    private IndexSegment(Path path, int generation, long minSequence, long maxSequence,
+                         String[] terms, int[] offsets, int[] counts, MappedByteBuffer buffer) {
+        this.path = path;
+        this.generation = generation;
+        this.minSequence = minSequence;
+        this.maxSequence = maxSequence;
+        this.terms = terms;
+        this.offsets = offsets;
+        this.counts = counts;
+        this.buffer = buffer;
+    }
+
+    //===========================================================
+    //                   Opening and writing
+    //===========================================================
+
+    /**
+     * Opens the segment stored in the given file.
+     * @param path the path of the segment file
+     * @return the opened segment
+     * @throws IOException if the file could not be read or is corrupted
+     */
+    static IndexSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        int generation = Integer.parseInt(name.substring(0, name.length() - EXTENSION.length()));
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int footer = buffer.limit() - (Long.BYTES * 3 + Integer.BYTES * 2);
+        if(footer < Integer.BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(buffer.limit() - Integer.BYTES) != MAGIC) {
+            throw new IOException("Index segment '" + path + "' is corrupted.");
+        }
+
+        long dictionaryOffset = buffer.getLong(footer);
+        int termCount = buffer.getInt(footer + Long.BYTES);
+        long minSequence = buffer.getLong(footer + Long.BYTES + Integer.BYTES);
+        long maxSequence = buffer.getLong(footer + Long.BYTES * 2 + Integer.BYTES);
+
+        String[] terms = new String[termCount];
+        int[] offsets = new int[termCount];
+        int[] counts = new int[termCount];
+
+        byte[] dictionary = new byte[footer - (int) dictionaryOffset];
+        buffer.duplicate().position((int) dictionaryOffset).get(dictionary);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(dictionary))) {
+            for(int i = 0; i < termCount; i++) {
+                terms[i] = in.readUTF();
+                offsets[i] = in.readInt();
+                counts[i] = in.readInt();
+            }
+        }
+
+        return new IndexSegment(path, generation, minSequence, maxSequence, terms, offsets, counts, buffer);
+    }
+
+    /**
+     * Writes a new segment file. The terms must be passed in ascending order.
+     * @param directory the directory of the index
+     * @param generation the generation of the new segment
+     * @param source the source of the sorted terms and their posting lists
+     * @return the opened, newly written segment
+     * @throws IOException if the segment could not be written
+     */
+    static IndexSegment write(Path directory, int generation, TermSource source) throws IOException {
+        Path path = directory.resolve(String.format("%010d%s", generation, EXTENSION));
+        Path temp = directory.resolve(path.getFileName() + ".tmp");
+
+        ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+        DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+        long minSequence = Long.MAX_VALUE;
+        long maxSequence = Long.MIN_VALUE;
+        int termCount = 0;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+
+            String term;
+            while ((term = source.nextTerm()) != null) {
+                long[] postings = source.postings();
+                if(postings.length == 0) continue;
+
+                minSequence = Math.min(minSequence, postings[0]);
+                maxSequence = Math.max(maxSequence, postings[postings.length - 1]);
+
+                dictionary.writeUTF(term);
+                dictionary.writeInt(out.size());
+                dictionary.writeInt(postings.length);
+                out.write(Postings.encode(postings));
+                termCount++;
+            }
+
+            long dictionaryOffset = out.size();
+            dictionaryBytes.writeTo(out);
+            out.writeLong(dictionaryOffset);
+            out.writeInt(termCount);
+            out.writeLong(minSequence);
+            out.writeLong(maxSequence);
+            out.writeInt(MAGIC);
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    //===========================================================
+    //                        Reading
+    //===========================================================
+
+    /**
+     * @param term the term
+     * @return the posting list of the given term; empty if the term is not in the segment
+     */
+    long[] postings(String term) {
+        int index = Arrays.binarySearch(terms, term);
+        return index < 0 ? Postings.EMPTY : Postings.decode(buffer, offsets[index], counts[index]);
+    }
+
+    /**
+     * @return a source of all the terms of this segment and their posting lists, in ascending order
+     */
+    TermSource termSource() {
+        return new TermSource() {
+            private int index = -1;
+
+            @Override
+            public String nextTerm() {
+                return ++index < terms.length ? terms[index] : null;
+            }
+
+            @Override
+            public long[] postings() {
+                return Postings.decode(buffer, offsets[index], counts[index]);
+            }
+        };
+    }
+
+    /**
+     * Deletes the segment file.
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Could not delete index segment '" + path + "'.");
+        }
+    }
+
+    //===========================================================
+    //                        Getters
+    //===========================================================
+
+    int getGeneration() {
+        return generation;
+    }
+
+    long getMinSequence() {
+        return minSequence;
+    }
+
+    long getMaxSequence() {
+        return maxSequence;
+    }
+
+    long getSize() {
+        return buffer.limit();
+    }
+
+    //===========================================================
+    //                       Merging
+    //===========================================================
+
+    /**
+     * Returns a source that merges the terms of the given segments. The posting
+     * lists of a term that appears in several segments are concatenated, so the
+     * segments must cover disjoint ranges and be passed from the oldest to the newest.
+     * @param segments the segments to be merged
+     * @return the merging term source
+     */
+    static TermSource merge(List<IndexSegment> segments) {
+        List<TermSource> sources = new ArrayList<>();
+        List<String> heads = new ArrayList<>();
+        for(IndexSegment segment : segments) {
+            TermSource source = segment.termSource();
+            sources.add(source);
+            heads.add(source.nextTerm());
+        }
+
+        return new TermSource() {
+            private long[] postings;
+
+            @Override
+            public String nextTerm() {
+                String smallest = null;
+                for(String head : heads) {
+                    if(head != null && (smallest == null || head.compareTo(smallest) < 0)) smallest = head;
+                }
+                if(smallest == null) return null;
+
+                List<long[]> lists = new ArrayList<>();
+                for(int i = 0; i < sources.size(); i++) {
+                    if(smallest.equals(heads.get(i))) {
+                        lists.add(sources.get(i).postings());
+                        heads.set(i, sources.get(i).nextTerm());
+                    }
+                }
+
+                postings = Postings.concat(lists.toArray(new long[0][]));
+                return smallest;
+            }
+
+            @Override
+            public long[] postings() {
+                return postings;
+            }
+        };
+    }
+
+    /**
+     * A source of terms, in ascending order, and their posting lists.
+     */
+    interface TermSource {
+
+        /**
+         * @return the next term, or {@code null} if there are no more terms
+         */
+        String nextTerm();
+
+        /**
+         * @return the posting list of the current term
+         */
+        long[] postings();
+    }
+}
@@ -0,0 +1,116 @@
+package chat.server.search;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Static helpers for working with posting lists; that is, ascending arrays
+ * of message sequence numbers. On the disk, a posting list is stored as the
+ * differences between the consecutive sequence numbers, each written as a
+ * variable-length integer, which usually takes one or two bytes per posting.
+ */
+class Postings {
+
+    /** The empty posting list. */
+    static final long[] EMPTY = new long[0];
+
+    // Private constructor to block the creation of instances.
+    private Postings() { }
+
+    /**
+     * Encodes the given posting list.
+     * @param postings the ascending sequence numbers
+     * @return the encoded posting list
+     */
+    static byte[] encode(long[] postings) {
+        ByteBuffer buffer = ByteBuffer.allocate(postings.length * 10);
+        long previous = 0;
+
+        for(long posting : postings) {
+            long delta = posting - previous;
+            previous = posting;
+
+            while ((delta & ~0x7FL) != 0) {
+                buffer.put((byte) ((delta & 0x7F) | 0x80));
+                delta >>>= 7;
+            }
+            buffer.put((byte) delta);
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Decodes the posting list stored in the given buffer.
+     * @param buffer the buffer holding the encoded posting list
+     * @param offset the offset of the posting list in the buffer
+     * @param count the number of postings in the list
+     * @return the ascending sequence numbers
+     */
+    static long[] decode(ByteBuffer buffer, int offset, int count) {
+        long[] postings = new long[count];
+        long previous = 0;
+        int position = offset;
+
+        for(int i = 0; i < count; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                b = buffer.get(position++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            previous += delta;
+            postings[i] = previous;
+        }
+
+        return postings;
+    }
+
+    /**
+     * Concatenates the given posting lists, which must cover disjoint, ascending ranges.
+     * @param lists the posting lists, from the oldest to the newest
+     * @return the concatenated posting list
+     */
+    static long[] concat(long[]... lists) {
+        int length = 0;
+        for(long[] list : lists) length += list.length;
+
+        long[] result = new long[length];
+        int position = 0;
+        for(long[] list : lists) {
+            System.arraycopy(list, 0, result, position, list.length);
+            position += list.length;
+        }
+
+        return result;
+    }
+
+    /**
+     * Intersects the two given posting lists.
+     * @param a the first posting list
+     * @param b the second posting list
+     * @return the postings contained in both lists
+     */
+    static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, size = 0;
+
+        while (i < a.length && j < b.length) {
+            if(a[i] < b[j]) {
+                i++;
+            } else if(a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+}
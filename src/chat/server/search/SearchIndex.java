@@ -0,0 +1,437 @@
+package chat.server.search;
+
+import chat.server.history.MessageRecord;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An incrementally maintained inverted index over the messages of the
+ * {@link chat.server.history.MessageLog}. Every term maps to the posting
+ * list of the sequence numbers of the messages containing it. Besides the
+ * words of the message, every message is indexed under the term
+ * {@code user:<sender>}, so filtering by the sender is just another term.
+ * <br>
+ * New messages are indexed into an in-memory buffer. Once the buffer holds
+ * too many postings, it is frozen and written to a new on-disk segment by
+ * the background thread, which keeps the memory use bounded. The same thread
+ * merges the similarly sized segments, so a query never has to visit more
+ * than a few segments.
+ * <br>
+ * Every source (the segments, the frozen buffers and the active buffer)
+ * covers a disjoint range of sequence numbers, ordered from the oldest to
+ * the newest, so the posting list of a term is simply the concatenation of
+ * its posting lists in all of the sources.
+ */
+public class SearchIndex implements AutoCloseable {
+
+    /** The prefix of the terms that index the message sender. */
+    public static final String SENDER_PREFIX = "user:";
+
+    /** The default number of postings held in memory before they are written to the disk. */
+    public static final int DEFAULT_MAX_BUFFERED_POSTINGS = 1_000_000;
+
+    /** The number of similarly sized segments that get merged together. */
+    private static final int MERGE_FACTOR = 4;
+
+    /** The number of segments after which the newest segments get merged regardless of their size. */
+    private static final int MAX_SEGMENTS = 16;
+
+    /** The directory containing the segment files. */
+    private final Path directory;
+
+    /** The number of postings held in memory before they are written to the disk. */
+    private final int maxBufferedPostings;
+
+    /** The on-disk segments, from the oldest to the newest; replaced, never modified. */
+    private volatile List<IndexSegment> segments;
+
+    /** The buffers waiting to be written to the disk, from the oldest to the newest; replaced, never modified. */
+    private volatile List<MemoryBuffer> frozenBuffers = Collections.emptyList();
+
+    /** The buffer that the new messages are indexed into. */
+    private volatile MemoryBuffer activeBuffer = new MemoryBuffer();
+
+    /** The highest indexed sequence number. */
+    private volatile long indexedSequence = -1;
+
+    /** The generation of the next written segment. */
+    private int nextGeneration;
+
+    /** The thread that writes the frozen buffers and merges the segments. */
+    private final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SearchIndex writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Opens the index in the given directory using the default buffer size.
+     * @param directory the directory containing the segment files
+     * @throws IOException if the index could not be opened
+     */
+    public SearchIndex(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_BUFFERED_POSTINGS);
+    }
+
+    /**
+     * Opens the index in the given directory, creating it if needed.
+     * @param directory the directory containing the segment files
+     * @param maxBufferedPostings the number of postings held in memory before they are written to the disk
+     * @throws IOException if the index could not be opened
+     */
+    public SearchIndex(Path directory, int maxBufferedPostings) throws IOException {
+        this.directory = Objects.requireNonNull(directory, "Directory cannot be null.");
+        this.maxBufferedPostings = maxBufferedPostings;
+
+        Files.createDirectories(directory);
+        this.segments = loadSegments();
+
+        for(IndexSegment segment : segments) {
+            indexedSequence = Math.max(indexedSequence, segment.getMaxSequence());
+            nextGeneration = Math.max(nextGeneration, segment.getGeneration() + 1);
+        }
+    }
+
+    /**
+     * Loads the segments from the disk. Segments whose range overlaps the range of
+     * a newer segment are left-overs of an interrupted merge and are deleted.
+     */
+    private List<IndexSegment> loadSegments() throws IOException {
+        List<IndexSegment> loaded = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for(Path path : stream) {
+                String name = path.getFileName().toString();
+
+                if(name.endsWith(".tmp")) {
+                    Files.delete(path);
+                } else if(name.endsWith(IndexSegment.EXTENSION)) {
+                    try {
+                        loaded.add(IndexSegment.open(path));
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Deleting corrupted index segment '" + name + "'.");
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+
+        loaded.sort(Comparator.comparingInt(IndexSegment::getGeneration).reversed());
+        List<IndexSegment> kept = new ArrayList<>();
+
+        for(IndexSegment segment : loaded) {
+            boolean overlaps = kept.stream().anyMatch(k -> segment.getMinSequence() <= k.getMaxSequence() &&
+                                                           k.getMinSequence() <= segment.getMaxSequence());
+            if(overlaps) {
+                segment.delete();
+            } else {
+                kept.add(segment);
+            }
+        }
+
+        kept.sort(Comparator.comparingLong(IndexSegment::getMinSequence));
+        return Collections.unmodifiableList(kept);
+    }
+
+    //===========================================================
+    //                       Indexing
+    //===========================================================
+
+    /**
+     * Indexes the given message. Messages must be indexed in the order of their
+     * sequence numbers; messages that are already indexed are ignored.
+     * @param record the message to be indexed
+     */
+    public void index(MessageRecord record) {
+        if(record.getSequence() <= indexedSequence) return;
+
+        MemoryBuffer buffer = activeBuffer;
+        buffer.add(SENDER_PREFIX + record.getSender().toLowerCase(), record.getSequence());
+        for(String term : new LinkedHashSet<>(tokenize(record.getBody()))) {
+            buffer.add(term, record.getSequence());
+        }
+        indexedSequence = record.getSequence();
+
+        if(buffer.getPostingCount() >= maxBufferedPostings) {
+            freezeActiveBuffer();
+        }
+    }
+
+    /**
+     * Splits the given text into lowercase terms, made of letters and digits.
+     * @param text the text to be split
+     * @return the terms, in order of appearance
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+
+        for(int i = 0; i <= text.length(); i++) {
+            boolean partOfTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if(partOfTerm && start < 0) {
+                start = i;
+            } else if(!partOfTerm && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+
+        return terms;
+    }
+
+    /**
+     * @return the highest indexed sequence number, or {@code -1} if nothing was indexed
+     */
+    public long getIndexedSequence() {
+        return indexedSequence;
+    }
+
+    //===========================================================
+    //                       Searching
+    //===========================================================
+
+    /**
+     * Finds the newest messages that contain all of the given terms. Terms starting
+     * with {@value #SENDER_PREFIX} match the sender of the message.
+     * @param query the query terms
+     * @param limit the maximum number of results
+     * @return the sequence numbers of the matching messages, from the newest to the oldest
+     */
+    public List<Long> search(Collection<String> query, int limit) {
+        List<long[]> lists = new ArrayList<>();
+        for(String term : new LinkedHashSet<>(query)) {
+            long[] postings = postings(term.toLowerCase());
+            if(postings.length == 0) return Collections.emptyList();
+            lists.add(postings);
+        }
+        if(lists.isEmpty()) return Collections.emptyList();
+
+        // Intersecting from the shortest list keeps the intermediate results small.
+        lists.sort(Comparator.comparingInt(l -> l.length));
+        long[] result = lists.get(0);
+        for(int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = Postings.intersect(result, lists.get(i));
+        }
+
+        List<Long> newest = new ArrayList<>();
+        for(int i = result.length - 1; i >= 0 && newest.size() < limit; i--) {
+            newest.add(result[i]);
+        }
+        return newest;
+    }
+
+    /**
+     * @param term the term
+     * @return the posting list of the given term, across all of the sources
+     */
+    private long[] postings(String term) {
+        // Reading the active buffer first guarantees that a buffer frozen in the
+        // meantime is found in the frozen list, or in a segment, read afterwards.
+        MemoryBuffer active = activeBuffer;
+        long[] activePostings = active.postings(term);
+        List<MemoryBuffer> frozen = frozenBuffers;
+        List<IndexSegment> segments = this.segments;
+
+        List<long[]> lists = new ArrayList<>();
+        for(IndexSegment segment : segments) {
+            lists.add(segment.postings(term));
+        }
+        for(MemoryBuffer buffer : frozen) {
+            if(buffer != active) lists.add(buffer.postings(term));
+        }
+        lists.add(activePostings);
+
+        // A buffer written to a segment while this method was running is seen twice;
+        // its postings are dropped from every list but the first.
+        long last = -1;
+        for(int i = 0; i < lists.size(); i++) {
+            long[] list = lists.get(i);
+            int start = 0;
+            while (start < list.length && list[start] <= last) start++;
+
+            if(start > 0) lists.set(i, Arrays.copyOfRange(list, start, list.length));
+            if(list.length > 0) last = Math.max(last, list[list.length - 1]);
+        }
+
+        return Postings.concat(lists.toArray(new long[0][]));
+    }
+
+    //===========================================================
+    //                 Writing and merging segments
+    //===========================================================
+
+    private synchronized void freezeActiveBuffer() {
+        MemoryBuffer buffer = activeBuffer;
+        if(buffer.getPostingCount() == 0) return;
+
+        List<MemoryBuffer> frozen = new ArrayList<>(frozenBuffers);
+        frozen.add(buffer);
+        frozenBuffers = Collections.unmodifiableList(frozen);
+        activeBuffer = new MemoryBuffer();
+
+        background.execute(() -> writeBuffer(buffer));
+    }
+
+    private void writeBuffer(MemoryBuffer buffer) {
+        try {
+            IndexSegment segment = IndexSegment.write(directory, nextGeneration++, buffer.termSource());
+
+            synchronized (this) {
+                List<IndexSegment> newSegments = new ArrayList<>(segments);
+                newSegments.add(segment);
+                segments = Collections.unmodifiableList(newSegments);
+
+                List<MemoryBuffer> frozen = new ArrayList<>(frozenBuffers);
+                frozen.remove(buffer);
+                frozenBuffers = Collections.unmodifiableList(frozen);
+            }
+
+            mergeIfNeeded();
+
+        } catch (IOException e) {
+            System.err.println("Could not write the search index segment: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Merges the newest segments of a similar size into a single segment, once
+     * there are {@value #MERGE_FACTOR} of them. Starting from the newest segment,
+     * an older segment joins the merge if it is at most twice as big as all of the
+     * newer ones together, so the segment sizes grow geometrically and every
+     * posting gets rewritten only a logarithmic number of times. If there are
+     * more than {@value #MAX_SEGMENTS} segments, the newest ones are merged anyway.
+     */
+    private void mergeIfNeeded() throws IOException {
+        List<IndexSegment> current = segments;
+        if(current.size() < 2) return;
+
+        int start = current.size() - 1;
+        long accumulated = current.get(start).getSize();
+        while (start > 0 && current.get(start - 1).getSize() <= accumulated * 2) {
+            start--;
+            accumulated += current.get(start).getSize();
+        }
+
+        int count = current.size() - start;
+        if(count < MERGE_FACTOR && current.size() <= MAX_SEGMENTS) return;
+        if(count < 2) start = current.size() - 2;
+
+        List<IndexSegment> toMerge = current.subList(start, current.size());
+        IndexSegment merged = IndexSegment.write(directory, nextGeneration++, IndexSegment.merge(toMerge));
+
+        synchronized (this) {
+            List<IndexSegment> newSegments = new ArrayList<>(segments);
+            newSegments.removeAll(toMerge);
+            newSegments.add(merged);
+            newSegments.sort(Comparator.comparingLong(IndexSegment::getMinSequence));
+            segments = Collections.unmodifiableList(newSegments);
+        }
+
+        // The old segments stay mapped by the queries that are still running, so only the files are deleted.
+        toMerge.forEach(IndexSegment::delete);
+    }
+
+    /**
+     * Writes the buffered postings to the disk and stops the background thread.
+     */
+    @Override
+    public void close() {
+        freezeActiveBuffer();
+        background.shutdown();
+
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //===========================================================
+    //             MemoryBuffer helper data structure
+    //===========================================================
+
+    /**
+     * The in-memory part of the index, mapping terms to their growing posting lists.
+     */
+    private static class MemoryBuffer {
+
+        /** Maps the term to its posting list. */
+        private final Map<String, PostingArray> postings = new HashMap<>();
+
+        /** The total number of postings in the buffer. */
+        private int postingCount;
+
+        private synchronized void add(String term, long sequence) {
+            postings.computeIfAbsent(term, t -> new PostingArray()).add(sequence);
+            postingCount++;
+        }
+
+        private synchronized long[] postings(String term) {
+            PostingArray array = postings.get(term);
+            return array == null ? Postings.EMPTY : Arrays.copyOf(array.values, array.size);
+        }
+
+        private synchronized int getPostingCount() {
+            return postingCount;
+        }
+
+        /**
+         * @return a source of all the terms of the buffer, in ascending order;
+         *         used only once the buffer is frozen
+         */
+        private IndexSegment.TermSource termSource() {
+            List<String> terms;
+            synchronized (this) {
+                terms = new ArrayList<>(postings.keySet());
+            }
+            terms.sort(null);
+            Iterator<String> iterator = terms.iterator();
+
+            return new IndexSegment.TermSource() {
+                private String term;
+
+                @Override
+                public String nextTerm() {
+                    term = iterator.hasNext() ? iterator.next() : null;
+                    return term;
+                }
+
+                @Override
+                public long[] postings() {
+                    return MemoryBuffer.this.postings(term);
+                }
+            };
+        }
+    }
+
+    /**
+     * A growable array of postings.
+     */
+    private static class PostingArray {
+
+        /** The postings, in ascending order. */
+        private long[] values = new long[4];
+
+        /** The number of postings. */
+        private int size;
+
+        private void add(long posting) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = posting;
+        }
+    }
+}
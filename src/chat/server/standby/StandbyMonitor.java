@@ -0,0 +1,240 @@
+package chat.server.standby;
+
+import chat.server.federation.FederationHandshake;
+import chat.server.history.MessageRecord;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static chat.server.standby.StandbyPublisher.*;
+
+/**
+ * The standby's end of the standby link. Keeps a warm copy of the primary's
+ * recent message history and watches the primary's heartbeats. The primary is
+ * considered failed once nothing was heard from it for the failover timeout;
+ * a broken connection alone is not enough, as the monitor keeps reconnecting
+ * in the meantime and a primary that comes back in time is not taken over.
+ * <br>
+ * A standby that has never reached the primary never takes over, as it would
+ * have nothing to take over with. The primary is authenticated by the
+ * {@link FederationHandshake}, with the secret shared by the primary and its
+ * standby, and only an authenticated primary counts as heard from.
+ */
+public class StandbyMonitor {
+
+    /** The default time without a heartbeat after which the primary is considered failed, in milliseconds. */
+    public static final long DEFAULT_FAILOVER_TIMEOUT_MILLIS = 1000;
+
+    /** The time between the attempts to reconnect to the primary, in milliseconds. */
+    private static final long RECONNECT_MILLIS = 100;
+
+    //===========================================================
+    //                         Fields
+    //===========================================================
+
+    /** The primary's host. */
+    private final String host;
+
+    /** The primary's standby port. */
+    private final int port;
+
+    /** Authenticates the primary. */
+    private final FederationHandshake handshake;
+
+    /** The time without a heartbeat after which the primary is considered failed, in milliseconds. */
+    private final long failoverTimeoutMillis;
+
+    /** The maximum number of messages kept in the history. */
+    private final int historyCapacity;
+
+    /** The copy of the primary's recent message history, from the oldest to the newest. */
+    private final ArrayDeque<MessageRecord> history = new ArrayDeque<>();
+
+    /** The last time anything was received from the primary; {@code 0} if never. */
+    private volatile long lastContactMillis;
+
+    /** The connection to the primary; {@code null} while disconnected. */
+    private volatile Socket socket;
+
+    /** The thread reading from the primary. */
+    private Thread reader;
+
+    /** Set when the monitor is closed. */
+    private volatile boolean closed;
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Constructs a new standby monitor.
+     * @param host the primary's host
+     * @param port the primary's standby port
+     * @param secret the secret shared by the primary and its standby
+     * @param failoverTimeoutMillis the time without a heartbeat after which the primary is
+     *                              considered failed, in milliseconds
+     * @param historyCapacity the maximum number of messages kept in the history
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public StandbyMonitor(String host, int port, byte[] secret, long failoverTimeoutMillis, int historyCapacity) {
+        this.host = Objects.requireNonNull(host, "Primary host cannot be null.");
+        this.port = port;
+        this.handshake = new FederationHandshake(Objects.requireNonNull(secret, "Secret cannot be null."), HANDSHAKE);
+        this.failoverTimeoutMillis = failoverTimeoutMillis;
+        this.historyCapacity = historyCapacity;
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    public void start() {
+        reader = new Thread(this::readLoop, "StandbyMonitor reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Blocks until the primary is considered failed.
+     * @return the last time anything was received from the primary, in milliseconds since the epoch
+     * @throws InterruptedException if the waiting thread was interrupted, or the monitor was closed
+     */
+    public synchronized long awaitPrimaryFailure() throws InterruptedException {
+        while (!closed) {
+            long lastContact = lastContactMillis;
+
+            if(lastContact == 0) {
+                wait();
+                continue;
+            }
+
+            long remaining = lastContact + failoverTimeoutMillis - System.currentTimeMillis();
+            if(remaining <= 0) return lastContact;
+            wait(remaining);
+        }
+
+        throw new InterruptedException("Standby monitor closed.");
+    }
+
+    /**
+     * @return the copy of the primary's recent message history, from the oldest to the newest
+     */
+    public synchronized List<MessageRecord> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    /**
+     * @return {@code true} if the monitor is currently connected to the primary
+     */
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            Socket socket = this.socket;
+            if(socket != null) socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+        if(reader != null) reader.interrupt();
+    }
+
+    //===========================================================
+    //                  Reading from the primary
+    //===========================================================
+
+    private void readLoop() {
+        while (!closed) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), (int) failoverTimeoutMillis);
+                socket.setSoTimeout((int) failoverTimeoutMillis);
+                socket.setTcpNoDelay(true);
+                this.socket = socket;
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                handshake.connect(in, out, STANDBY_ID, PRIMARY_ID);
+
+                readFrames(in);
+
+            } catch (EOFException | SocketException | SocketTimeoutException e) {
+                // The primary is unreachable, silent or the link broke; try again shortly.
+            } catch (IOException e) {
+                System.err.println("Standby link to the primary broke: " + e.getMessage());
+            } finally {
+                this.socket = null;
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void readFrames(DataInputStream in) throws IOException {
+        while (true) {
+            byte frame = in.readByte();
+
+            switch (frame) {
+                case FRAME_HISTORY:
+                    int count = in.readInt();
+                    List<MessageRecord> records = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) {
+                        records.add(readRecord(in));
+                    }
+
+                    synchronized (this) {
+                        history.clear();
+                        records.forEach(this::addToHistory);
+                    }
+                    break;
+
+                case FRAME_MESSAGE:
+                    MessageRecord record = readRecord(in);
+                    synchronized (this) {
+                        addToHistory(record);
+                    }
+                    break;
+
+                case FRAME_HEARTBEAT:
+                    break;
+
+                default:
+                    throw new IOException("Unknown standby frame " + frame + ".");
+            }
+
+            contact();
+        }
+    }
+
+    private void addToHistory(MessageRecord record) {
+        if(history.size() == historyCapacity) history.removeFirst();
+        history.addLast(record);
+    }
+
+    private void contact() {
+        boolean first = lastContactMillis == 0;
+        lastContactMillis = System.currentTimeMillis();
+
+        if(first) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
\ No newline at end of file
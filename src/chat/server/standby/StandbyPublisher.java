@@ -0,0 +1,256 @@
+package chat.server.standby;
+
+import chat.server.federation.FederationHandshake;
+import chat.server.history.MessageRecord;
+import chat.server.history.RecentMessageBuffer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The primary's end of the standby link. Every connected standby is first
+ * sent the recent message history and then every new global message, so
+ * that a standby taking over can replay the recent history to the clients
+ * right away. While there are no messages, the standby is sent heartbeats,
+ * by which it detects the failure of the primary.
+ * <br>
+ * The client data is not sent over this link; the standby follows the
+ * primary's client data through the client data replication.
+ * <br>
+ * Every standby is authenticated by the {@link FederationHandshake}, with the
+ * secret shared by the primary and its standby, before it is sent anything.
+ */
+public class StandbyPublisher {
+
+    //===========================================================
+    //                   Standby link protocol
+    //===========================================================
+
+    /** The first string sent by the standby, identifying the standby link protocol. */
+    static final String HANDSHAKE = "chat-standby-2";
+
+    /** The node id the primary signs its handshake with. */
+    static final String PRIMARY_ID = "primary";
+
+    /** The node id the standbys sign their handshakes with. */
+    static final String STANDBY_ID = "standby";
+
+    /** Primary to standby: the number of messages and the messages of the recent history follow. */
+    static final byte FRAME_HISTORY = 1;
+
+    /** Primary to standby: a single new global message follows. */
+    static final byte FRAME_MESSAGE = 2;
+
+    /** Primary to standby: the primary is alive; nothing follows. */
+    static final byte FRAME_HEARTBEAT = 3;
+
+    /** The time between the heartbeats sent to an idle standby, in milliseconds. */
+    static final long HEARTBEAT_MILLIS = 200;
+
+    /** The maximum number of messages queued for a standby; a standby that falls further behind is disconnected. */
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    /** The maximum number of messages written to a standby with a single flush. */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    //===========================================================
+    //                         Fields
+    //===========================================================
+
+    /** The address the standbys connect to. */
+    private final InetAddress bindAddress;
+
+    /** The port the standbys connect to. */
+    private final int port;
+
+    /** Authenticates the standbys. */
+    private final FederationHandshake handshake;
+
+    /** The primary's recent message history. */
+    private final RecentMessageBuffer history;
+
+    /** Accepts the standbys. */
+    private ServerSocket acceptingSocket;
+
+    /** The message queues of the connected standbys, mapped to their sockets. */
+    private final Map<Socket, BlockingQueue<MessageRecord>> standbys = new ConcurrentHashMap<>();
+
+    //===========================================================
+    //                      Constructors
+    //===========================================================
+
+    /**
+     * Constructs a new standby publisher.
+     * @param bindAddress the address the standbys connect to
+     * @param port the port the standbys connect to
+     * @param secret the secret shared by the primary and its standbys
+     * @param history the primary's recent message history; the messages must be added
+     *                through {@link #publish(MessageRecord)} from now on
+     * @throws IllegalArgumentException if the secret is too short
+     */
+    public StandbyPublisher(InetAddress bindAddress, int port, byte[] secret, RecentMessageBuffer history) {
+        this.bindAddress = Objects.requireNonNull(bindAddress, "Bind address cannot be null.");
+        this.port = port;
+        this.handshake = new FederationHandshake(Objects.requireNonNull(secret, "Secret cannot be null."), HANDSHAKE);
+        this.history = Objects.requireNonNull(history, "History cannot be null.");
+    }
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Starts accepting the standbys.
+     * @throws IOException if the port could not be opened
+     */
+    public void start() throws IOException {
+        acceptingSocket = new ServerSocket(port, 50, bindAddress);
+
+        Thread acceptor = new Thread(this::acceptLoop, "StandbyPublisher acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Adds the given global message to the recent history and queues it for
+     * all of the connected standbys. Done under the same lock as taking the
+     * history for a newly connected standby, so that the standby receives every
+     * message exactly once.
+     * @param record the message
+     * @return the position the message was placed at in the recent history
+     */
+    public synchronized long publish(MessageRecord record) {
+        long position = history.add(record);
+
+        for(Map.Entry<Socket, BlockingQueue<MessageRecord>> standby : standbys.entrySet()) {
+            if(!standby.getValue().offer(record)) {
+                System.err.println("Standby has fallen behind, disconnecting it.");
+                closeQuietly(standby.getKey());
+            }
+        }
+        return position;
+    }
+
+    public void close() {
+        try {
+            if(acceptingSocket != null) acceptingSocket.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the standby link: " + e.getMessage());
+        }
+
+        standbys.keySet().forEach(StandbyPublisher::closeQuietly);
+    }
+
+    //===========================================================
+    //                  Streaming to standbys
+    //===========================================================
+
+    private void acceptLoop() {
+        while (!acceptingSocket.isClosed()) {
+            try {
+                Socket socket = acceptingSocket.accept();
+
+                Thread stream = new Thread(() -> serve(socket), "StandbyPublisher stream");
+                stream.setDaemon(true);
+                stream.start();
+
+            } catch (IOException e) {
+                // The accepting socket was closed.
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            try {
+                socket.setSoTimeout(FederationHandshake.TIMEOUT_MILLIS);
+                handshake.accept(in, out, PRIMARY_ID, Set.of(STANDBY_ID));
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
+                System.err.println("Standby " + socket.getRemoteSocketAddress() + " rejected: " + e.getMessage());
+                return;
+            }
+
+            BlockingQueue<MessageRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            List<MessageRecord> recent;
+            synchronized (this) {
+                recent = history.snapshot();
+                standbys.put(socket, queue);
+            }
+
+            out.writeByte(FRAME_HISTORY);
+            out.writeInt(recent.size());
+            for(MessageRecord record : recent) {
+                writeRecord(out, record);
+            }
+            out.flush();
+            System.out.println("Standby connected from " + socket.getInetAddress() + ".");
+
+            List<MessageRecord> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            while (!socket.isClosed()) {
+                MessageRecord first = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if(first == null) {
+                    out.writeByte(FRAME_HEARTBEAT);
+                } else {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    for(MessageRecord record : batch) {
+                        out.writeByte(FRAME_MESSAGE);
+                        writeRecord(out, record);
+                    }
+                    batch.clear();
+                }
+                out.flush();
+            }
+
+        } catch (EOFException | SocketException e) {
+            // The standby has disconnected.
+        } catch (IOException e) {
+            System.err.println("Standby link broke: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            standbys.remove(socket);
+        }
+    }
+
+    //===========================================================
+    //                     Serialization
+    //===========================================================
+
+    static void writeRecord(DataOutputStream out, MessageRecord record) throws IOException {
+        out.writeLong(record.getSequence());
+        out.writeLong(record.getTimestamp());
+        out.writeUTF(record.getSender());
+        out.writeUTF(record.getBody());
+    }
+
+    static MessageRecord readRecord(DataInputStream in) throws IOException {
+        return new MessageRecord(in.readLong(), in.readLong(), MessageRecord.GLOBAL, in.readUTF(), "", in.readUTF());
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,207 @@
+package chat.server.topic;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps hierarchical topic patterns to their subscribers and resolves published
+ * topics to the set of matching subscribers.
+ * <br>
+ * Topics consist of segments separated by dots, such as {@code events.moderation.kick}.
+ * Patterns may additionally contain the wildcards:
+ * <ul>
+ *     <li>{@code *}, which matches exactly one segment, as in {@code events.moderation.*}</li>
+ *     <li>{@code #}, which matches zero or more segments and may only be the last
+ *     segment, as in {@code room.support.#}</li>
+ * </ul>
+ * The patterns are stored in a trie with one level per segment, so resolving a topic
+ * walks only the branches that can match it; the cost depends on the depth of the
+ * topic, not on the number of subscribers. The resolved sets are cached per topic
+ * until the next subscription change.
+ *
+ * @param <T> the type of the subscribers
+ */
+public class SubscriptionTrie<T> {
+
+    /** The separator of the topic segments. */
+    public static final String SEPARATOR = ".";
+
+    /** The wildcard that matches exactly one segment. */
+    public static final String SINGLE_WILDCARD = "*";
+
+    /** The wildcard that matches zero or more segments. */
+    public static final String MULTI_WILDCARD = "#";
+
+    /** The maximum number of segments of a topic or a pattern. */
+    public static final int MAX_DEPTH = 16;
+
+    /** The maximum number of cached topics; the cache is cleared once it is exceeded. */
+    private static final int MAX_CACHED_TOPICS = 4096;
+
+    /** The root of the trie, matching the empty topic prefix. */
+    private final Node<T> root = new Node<>();
+
+    /** The resolved subscribers, by topic. Cleared on every subscription change. */
+    private final ConcurrentHashMap<String, Set<T>> matchCache = new ConcurrentHashMap<>();
+
+    //===========================================================
+    //                      Public API
+    //===========================================================
+
+    /**
+     * Subscribes the given subscriber to the topics matching the specified pattern.
+     * @param pattern the topic pattern
+     * @param subscriber the subscriber
+     * @return {@code true} if the subscriber was subscribed, {@code false} if it
+     *         was already subscribed to the pattern
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    public synchronized boolean subscribe(String pattern, T subscriber) {
+        if(!isValidPattern(pattern)) {
+            throw new IllegalArgumentException("Invalid topic pattern '" + pattern + "'.");
+        }
+
+        Node<T> node = root;
+        for(String segment : pattern.split("\\.")) {
+            node = node.children.computeIfAbsent(segment, s -> new Node<>());
+        }
+
+        boolean added = node.subscribers.add(subscriber);
+        if(added) matchCache.clear();
+        return added;
+    }
+
+    /**
+     * Unsubscribes the given subscriber from the specified pattern, pruning
+     * the branches of the trie that are left without subscribers.
+     * @param pattern the topic pattern
+     * @param subscriber the subscriber
+     * @return {@code true} if the subscriber was unsubscribed, {@code false} if it
+     *         was not subscribed to the pattern
+     */
+    public synchronized boolean unsubscribe(String pattern, T subscriber) {
+        if(!isValidPattern(pattern)) return false;
+
+        String[] segments = pattern.split("\\.");
+        Deque<Node<T>> path = new ArrayDeque<>();
+        Node<T> node = root;
+
+        for(String segment : segments) {
+            path.push(node);
+            node = node.children.get(segment);
+            if(node == null) return false;
+        }
+
+        if(!node.subscribers.remove(subscriber)) return false;
+
+        for(int i = segments.length - 1; i >= 0 && node.isEmpty(); i--) {
+            Node<T> parent = path.pop();
+            parent.children.remove(segments[i]);
+            node = parent;
+        }
+
+        matchCache.clear();
+        return true;
+    }
+
+    /**
+     * Resolves the given topic to the set of subscribers whose patterns match it.
+     * @param topic the published topic, without wildcards
+     * @return the matching subscribers; an unmodifiable set, empty if there are none
+     */
+    public Set<T> match(String topic) {
+        Set<T> cached = matchCache.get(topic);
+        if(cached != null) return cached;
+
+        synchronized (this) {
+            cached = matchCache.get(topic);
+            if(cached != null) return cached;
+
+            Set<T> matches = new HashSet<>();
+            collect(root, topic.split("\\."), 0, matches);
+            Set<T> result = matches.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(matches);
+
+            if(matchCache.size() >= MAX_CACHED_TOPICS) matchCache.clear();
+            matchCache.put(topic, result);
+            return result;
+        }
+    }
+
+    /**
+     * Checks if the given string is a valid topic pattern.
+     * @param pattern the pattern to be checked
+     * @return {@code true} if the pattern is valid, {@code false} otherwise
+     */
+    public static boolean isValidPattern(String pattern) {
+        if(pattern == null || pattern.isEmpty()) return false;
+
+        String[] segments = pattern.split("\\.", -1);
+        if(segments.length > MAX_DEPTH) return false;
+
+        for(int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            boolean last = i == segments.length - 1;
+
+            if(segment.equals(MULTI_WILDCARD) && last) continue;
+            if(segment.equals(SINGLE_WILDCARD)) continue;
+            if(!segment.matches("[\\w-]+")) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if the given string is a valid topic, that is, a pattern without wildcards.
+     * @param topic the topic to be checked
+     * @return {@code true} if the topic is valid, {@code false} otherwise
+     */
+    public static boolean isValidTopic(String topic) {
+        return isValidPattern(topic) && !topic.contains(SINGLE_WILDCARD) && !topic.contains(MULTI_WILDCARD);
+    }
+
+    //===========================================================
+    //                        Matching
+    //===========================================================
+
+    /**
+     * Adds the subscribers of the patterns under the given node that match
+     * the topic segments starting from the specified depth.
+     */
+    private void collect(Node<T> node, String[] segments, int depth, Set<T> matches) {
+        // "#" matches the rest of the topic, including nothing at all.
+        Node<T> multi = node.children.get(MULTI_WILDCARD);
+        if(multi != null) matches.addAll(multi.subscribers);
+
+        if(depth == segments.length) {
+            matches.addAll(node.subscribers);
+            return;
+        }
+
+        Node<T> exact = node.children.get(segments[depth]);
+        if(exact != null) collect(exact, segments, depth + 1, matches);
+
+        Node<T> single = node.children.get(SINGLE_WILDCARD);
+        if(single != null) collect(single, segments, depth + 1, matches);
+    }
+
+    //===========================================================
+    //               Node helper data structure
+    //===========================================================
+
+    /**
+     * A single level of the trie: the subscribers of the pattern ending here,
+     * and the children by the next segment, wildcards included.
+     */
+    private static class Node<T> {
+
+        /** The child nodes, by the next pattern segment. */
+        private final Map<String, Node<T>> children = new HashMap<>();
+
+        /** The subscribers of the pattern that ends at this node. */
+        private final Set<T> subscribers = new HashSet<>();
+
+        private boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+}